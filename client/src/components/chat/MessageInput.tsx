@@ -1,9 +1,20 @@
-import React, { useState } from 'react';
+import React, { useEffect, useRef, useState } from 'react';
 import { useChat } from '../../context/ChatContext';
 import './MessageInput.css';
 const MessageInput: React.FC = () => {
   const [message, setMessage] = useState('');
-  const { sendMessage, activeConversation } = useChat();
+  const { sendMessage, activeConversation, notifyTyping } = useChat();
+  // Typing counts as stopped after a few idle seconds
+  const idleTimer = useRef<ReturnType<typeof setTimeout>>();
+
+  useEffect(() => () => clearTimeout(idleTimer.current), []);
+
+  const handleChange = (value: string) => {
+    setMessage(value);
+    clearTimeout(idleTimer.current);
+    notifyTyping(value.trim().length > 0);
+    idleTimer.current = setTimeout(() => notifyTyping(false), 3000);
+  };
 
   const handleSubmit = (e: React.FormEvent) => {
     e.preventDefault();
@@ -12,6 +23,7 @@ const MessageInput: React.FC = () => {
       return;
     }
     
+    clearTimeout(idleTimer.current);
     sendMessage(message.trim());
     setMessage('');
   };
@@ -25,7 +37,7 @@ const MessageInput: React.FC = () => {
       <input
         type="text"
         value={message}
-        onChange={(e) => setMessage(e.target.value)}
+        onChange={(e) => handleChange(e.target.value)}
         placeholder="Type a message..."
       />
       <button type="submit" disabled={!message.trim()}>Send</button>
@@ -5,7 +5,7 @@ import MessageInput from './MessageInput.tsx';
 import './MessageThread.css';
 
 const MessageThread: React.FC = () => {
-  const { activeConversation, messages, loadMoreMessages, loadingMoreMessages, hasMoreMessages } = useChat();
+  const { activeConversation, messages, loadMoreMessages, loadingMoreMessages, hasMoreMessages, typingUserIds, onlineUserIds } = useChat();
   const { user } = useAuth();
   const messageEndRef = useRef<HTMLDivElement>(null);
   const messagesContainerRef = useRef<HTMLDivElement>(null);
@@ -81,6 +81,11 @@ const MessageThread: React.FC = () => {
     });
   };
 
+  const others = activeConversation.participants.filter(p => p.id !== Number(user?.userId));
+  const onlineCount = others.filter(p => onlineUserIds.includes(p.id)).length;
+  const otherOnline = others.length > 0 && onlineUserIds.includes(others[0].id);
+  const typingNames = others.filter(p => typingUserIds.includes(p.id)).map(p => p.name);
+
   return (
     <div className="message-thread">
       <div className="thread-header">
@@ -93,7 +98,14 @@ const MessageThread: React.FC = () => {
           {activeConversation.isGroup && (
             <span>{activeConversation.participants.length} participants</span>
           )}
+          {activeConversation.isGroup && onlineCount > 0 && <span className="presence">, {onlineCount} online</span>}
+          {!activeConversation.isGroup && otherOnline && <span className="presence">online</span>}
         </div>
+        {typingNames.length > 0 && (
+          <div className="typing-indicator">
+            {typingNames.length === 1 ? `${typingNames[0]} is typing…` : `${typingNames.join(', ')} are typing…`}
+          </div>
+        )}
       </div>
 
       <div className="messages-container" ref={messagesContainerRef}>
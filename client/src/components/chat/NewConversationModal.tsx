@@ -16,6 +16,7 @@ const NewConversationModal: React.FC<NewConversationModalProps> = ({ onClose })
   const [groupName, setGroupName] = useState('');
   const [users, setUsers] = useState<User[]>([]);
   const [selectedUsers, setSelectedUsers] = useState<number[]>([]);
+  const [query, setQuery] = useState('');
   const [loading, setLoading] = useState(false);
   const { createDirectConversation, createGroupConversation } = useChat();
   
@@ -25,7 +26,9 @@ const NewConversationModal: React.FC<NewConversationModalProps> = ({ onClose })
     const fetchUsers = async () => {
       setLoading(true);
       try {
-        const response = await fetch(`${API_URL}/api/users`, {
+        // The directory is paged server-side; searching narrows it down
+        const search = query.trim() ? `?query=${encodeURIComponent(query.trim())}` : '';
+        const response = await fetch(`${API_URL}/api/users${search}`, {
           credentials: 'include',
         });
         
@@ -43,7 +46,7 @@ const NewConversationModal: React.FC<NewConversationModalProps> = ({ onClose })
     };
     
     fetchUsers();
-  }, [API_URL]);
+  }, [API_URL, query]);
 
   const toggleUserSelection = (userId: number) => {
     setSelectedUsers(prev => {
@@ -117,6 +120,13 @@ const NewConversationModal: React.FC<NewConversationModalProps> = ({ onClose })
 
           <div className="user-list">
             <h3>Select {isGroup ? 'Participants' : 'User'}</h3>
+            <input
+              className="user-search"
+              type="text"
+              value={query}
+              onChange={(e) => setQuery(e.target.value)}
+              placeholder="Search by name or email"
+            />
             {loading ? (
               <p>Loading users...</p>
             ) : (
@@ -1,6 +1,6 @@
-import React, { createContext, useContext, useEffect, useState, useCallback, ReactNode } from 'react';
+import React, { createContext, useContext, useEffect, useState, useCallback, useRef, ReactNode } from 'react';
 import { useAuth } from './AuthContext';
-import { Client } from '@stomp/stompjs';
+import { Client, IMessage, StompSubscription } from '@stomp/stompjs';
 import SockJS from 'sockjs-client';
 
 // Types
@@ -24,6 +24,36 @@ export interface Conversation {
     unreadCount: number;
 }
 
+// One line of a /api/sync response
+type SyncEvent =
+    | { type: 'conversation'; conversation: Conversation }
+    | { type: 'message'; message: Message }
+    | { type: 'read'; conversationId: number; userId: number; lastReadMessageId: number }
+    | { type: 'cursor'; cursor: string; hasMore: boolean };
+
+// Typing and presence changes of one conversation, by user id; empty lists are left out
+interface ConversationActivity {
+    conversationId: number;
+    typing?: number[];
+    stoppedTyping?: number[];
+    online?: number[];
+    offline?: number[];
+}
+
+// Chat messages are asked for in the compact encoding: [id, conversationId, senderId, sentAt,
+// content, read] plus the sender's [name, picture] the first time the connection sees that sender
+const COMPACT_CONTENT_TYPE = 'application/vnd.gapshap.compact+json';
+type CompactMessage = [number, number, number, number, string, boolean, [string, string | null]?];
+
+// Outcome of a send, on /user/queue/sent: the stored message's id and time, or why it failed
+interface SendReceipt {
+    clientMessageId: string;
+    conversationId: number;
+    messageId?: number;
+    sentAt?: number;
+    error?: string;
+}
+
 interface ChatContextType {
     conversations: Conversation[];
     activeConversation: Conversation | null;
@@ -39,6 +69,9 @@ interface ChatContextType {
     loadMoreMessages: () => Promise<boolean>;
     loadingMoreMessages: boolean;
     hasMoreMessages: boolean;
+    typingUserIds: number[];
+    onlineUserIds: number[];
+    notifyTyping: (typing: boolean) => void;
 }
 
 const ChatContext = createContext<ChatContextType>({
@@ -56,6 +89,9 @@ const ChatContext = createContext<ChatContextType>({
     loadMoreMessages: async () => false,
     loadingMoreMessages: false,
     hasMoreMessages: false,
+    typingUserIds: [],
+    onlineUserIds: [],
+    notifyTyping: () => { },
 });
 
 export const useChat = () => useContext(ChatContext);
@@ -71,10 +107,15 @@ export const ChatProvider: React.FC<{ children: ReactNode }> = ({ children }) =>
     const [loading, setLoading] = useState<boolean>(false);
     const [error, setError] = useState<string | null>(null);
     const [connected, setConnected] = useState<boolean>(false); // Added connection status state
-    const [currentPage, setCurrentPage] = useState<number>(0);
+    const [olderCursor, setOlderCursor] = useState<string | null>(null);
     const [hasMoreMessages, setHasMoreMessages] = useState<boolean>(true);
     const [loadingMoreMessages, setLoadingMoreMessages] = useState<boolean>(false);
+    // Who is typing, by conversation, and who is online; kept current from activity frames
+    const [typingByConversation, setTypingByConversation] = useState<Record<number, number[]>>({});
+    const [onlineUserIds, setOnlineUserIds] = useState<number[]>([]);
     const PAGE_SIZE = 20;
+    // Typing notices are refreshed this often while typing goes on, well within the server's timeout
+    const TYPING_REFRESH_MS = 2000;
 
     // Helper function to fetch a single conversation
     const fetchConversation = async (conversationId: number) => {
@@ -92,22 +133,63 @@ export const ChatProvider: React.FC<{ children: ReactNode }> = ({ children }) =>
         }
     };
 
+    // Position for /api/sync; set before the first inbox load so reconnects only fetch what changed
+    const syncCursor = useRef<string | null>(null);
+    const hasConnected = useRef<boolean>(false);
+    // Senders this connection has been sent, by id; the server resends one only after it changed
+    const senders = useRef<Map<number, { name: string; picture: string | null }>>(new Map());
+    // Sends without a receipt yet, by client message id, with the temporary id of their optimistic
+    // copy. They are sent again after a reconnect under the same id, so the server drops the
+    // ones it already stored and only receipts come back.
+    const pendingSends = useRef<Map<string, { tempId: number; conversationId: number; content: string }>>(new Map());
+
+    // Everything but chat messages stays JSON, and so do messages if the server ignored the header
+    const decodeMessage = (frame: IMessage): Message => {
+        if (!frame.headers['content-type']?.startsWith(COMPACT_CONTENT_TYPE)) {
+            return JSON.parse(frame.body);
+        }
+        const [id, conversationId, senderId, sentAt, content, read, sender] = JSON.parse(frame.body) as CompactMessage;
+        if (sender) {
+            senders.current.set(senderId, { name: sender[0], picture: sender[1] });
+        }
+        return {
+            id,
+            conversationId,
+            senderId,
+            senderName: senders.current.get(senderId)?.name ?? '',
+            content,
+            sentAt,
+            timestamp: new Date(sentAt).toISOString(),
+            read,
+        };
+    };
+
     // Helper function to setup STOMP client with all needed subscriptions
     const setupClient = (client: Client) => {
         client.onConnect = () => {
             console.log('Connected to WebSocket');
             setConnected(true);
+            // The server's dictionary starts empty with each connection too
+            senders.current.clear();
+
+            // Catch up on what was missed while disconnected. The subscriptions below are made
+            // first (the sync request only goes out after this handler returns), so nothing
+            // sent from here on is missed; duplicates are dropped by message id.
+            if (hasConnected.current) {
+                syncChanges();
+            }
+            hasConnected.current = true;
 
             // Subscribe to personal queue for new messages
             client.subscribe('/user/queue/messages', (message) => {
                 console.log('RAW MESSAGE RECEIVED:', message);
                 console.log('MESSAGE HEADERS:', message.headers);
-                const receivedMessage = JSON.parse(message.body);
+                const receivedMessage = decodeMessage(message);
                 console.log('MESSAGE BODY:', message.body);
                 console.log('PARSED MESSAGE:', receivedMessage);
                 try {
                     console.log('Received WebSocket message:', message.body);
-                    const receivedMessage = JSON.parse(message.body);
+                    const receivedMessage = decodeMessage(message);
                     handleIncomingMessage(receivedMessage);
                 } catch (error) {
                     console.error('Error processing message:', error);
@@ -124,6 +206,31 @@ export const ChatProvider: React.FC<{ children: ReactNode }> = ({ children }) =>
                 }
             });
 
+            // Typing and presence of conversations too small for their own activity topic
+            client.subscribe('/user/queue/activity', (frame) => {
+                try {
+                    applyActivity(JSON.parse(frame.body));
+                } catch (error) {
+                    console.error('Error processing activity:', error);
+                }
+            });
+
+            // The server dropped frames we were too slow to take; catch up on the messages through
+            // /api/sync. Typing frames were among them, so forget who was typing rather than show it forever.
+            client.subscribe('/user/queue/resync', () => {
+                setTypingByConversation({});
+                syncChanges();
+            });
+
+            // Receipts of our own sends
+            client.subscribe('/user/queue/sent', (frame) => {
+                try {
+                    applySendReceipt(JSON.parse(frame.body));
+                } catch (error) {
+                    console.error('Error processing send receipt:', error);
+                }
+            });
+
             // Subscribe to global updates (new conversations)
             client.subscribe('/topic/conversations', (data) => {
                 try {
@@ -133,6 +240,11 @@ export const ChatProvider: React.FC<{ children: ReactNode }> = ({ children }) =>
                     console.error('Error processing conversation update:', error);
                 }
             });
+
+            // Retry what may have been lost with the previous connection, after the receipt subscription
+            pendingSends.current.forEach((send, clientMessageId) => {
+                publishSend(client, send.conversationId, send.content, clientMessageId);
+            });
         };
 
         client.onDisconnect = () => {
@@ -148,6 +260,51 @@ export const ChatProvider: React.FC<{ children: ReactNode }> = ({ children }) =>
 
         return client;
     };
+
+    // Conversations with three or more participants publish messages and activity once on their own
+    // topics instead of to each participant's queue, so subscribe to those topics as conversations load
+    const topicSubscriptions = useRef<Map<number, StompSubscription[]>>(new Map());
+    useEffect(() => {
+        const subscriptions = topicSubscriptions.current;
+        if (!stompClient || !connected) {
+            // Subscriptions die with the connection; resubscribe once reconnected
+            subscriptions.clear();
+            return;
+        }
+
+        const topicConversationIds = new Set(
+            conversations.filter(conv => conv.participants.length >= 3).map(conv => conv.id)
+        );
+        topicConversationIds.forEach(id => {
+            if (subscriptions.has(id)) return;
+            subscriptions.set(id, [
+                stompClient.subscribe(`/topic/conversation.${id}`, (message) => {
+                    try {
+                        const receivedMessage = decodeMessage(message);
+                        // The topic echoes our own messages, which are already shown optimistically
+                        if (receivedMessage.senderId === Number(user?.userId)) return;
+                        handleIncomingMessage(receivedMessage);
+                    } catch (error) {
+                        console.error('Error processing message:', error);
+                    }
+                }),
+                stompClient.subscribe(`/topic/conversation.${id}.activity`, (frame) => {
+                    try {
+                        applyActivity(JSON.parse(frame.body));
+                    } catch (error) {
+                        console.error('Error processing activity:', error);
+                    }
+                }),
+            ]);
+        });
+        subscriptions.forEach((subscribed, id) => {
+            if (!topicConversationIds.has(id)) {
+                subscribed.forEach(subscription => subscription.unsubscribe());
+                subscriptions.delete(id);
+            }
+        });
+    }, [stompClient, connected, conversations]);
+
     useEffect(() => {
         if (activeConversation) {
             console.log(`Conversation ACTIVATED: ID=${activeConversation.id}, Name=${activeConversation.name}`);
@@ -164,7 +321,7 @@ export const ChatProvider: React.FC<{ children: ReactNode }> = ({ children }) =>
         const client = new Client({
             webSocketFactory: () => new SockJS(`${API_URL}/ws`),
             connectHeaders: {
-                // Auth headers if needed
+                'content-type': COMPACT_CONTENT_TYPE,
             },
             debug: (str) => {
                 console.log('STOMP: ' + str);
@@ -193,7 +350,7 @@ export const ChatProvider: React.FC<{ children: ReactNode }> = ({ children }) =>
             console.log("Attempting to reconnect WebSocket...");
             const reconnectClient = new Client({
                 webSocketFactory: () => new SockJS(`${API_URL}/ws`),
-                connectHeaders: {},
+                connectHeaders: { 'content-type': COMPACT_CONTENT_TYPE },
                 debug: (str) => console.log('STOMP reconnection:', str),
                 reconnectDelay: 5000,
             });
@@ -245,18 +402,99 @@ export const ChatProvider: React.FC<{ children: ReactNode }> = ({ children }) =>
         }
     }, [isAuthenticated]);
 
+    // Apply one event of a /api/sync response
+    const applySyncEvent = (event: SyncEvent) => {
+        switch (event.type) {
+            case 'conversation': {
+                const summary = event.conversation;
+                setConversations(prev => prev.some(c => c.id === summary.id)
+                    ? prev.map(c => (c.id === summary.id ? summary : c))
+                    : [...prev, summary]);
+                break;
+            }
+            case 'message': {
+                const message = event.message;
+                const savedConversationId = sessionStorage.getItem('activeConversationId');
+                if (savedConversationId && parseInt(savedConversationId) === message.conversationId) {
+                    setMessages(prev => prev.some(m => m.id === message.id) ? prev : [...prev, message]);
+                }
+                break;
+            }
+            case 'read': {
+                // Someone else read our messages up to lastReadMessageId; our own cursor moving
+                // shows up in the conversation's unread count instead
+                const savedConversationId = sessionStorage.getItem('activeConversationId');
+                if (event.userId !== Number(user?.userId) && savedConversationId
+                    && parseInt(savedConversationId) === event.conversationId) {
+                    setMessages(prev => prev.map(msg =>
+                        msg.senderId === Number(user?.userId) && msg.id <= event.lastReadMessageId
+                            ? { ...msg, read: true }
+                            : msg
+                    ));
+                }
+                break;
+            }
+            case 'cursor':
+                syncCursor.current = event.cursor;
+                break;
+        }
+    };
+
+    // Fetch everything that changed since the sync cursor as newline-delimited JSON,
+    // applying events as they stream in
+    const syncChanges = async () => {
+        const cursor = syncCursor.current;
+        try {
+            const query = cursor ? `?cursor=${encodeURIComponent(cursor)}` : '';
+            const response = await fetch(`${API_URL}/api/sync${query}`, { credentials: 'include' });
+            if (!response.ok || !response.body) {
+                throw new Error('Failed to sync');
+            }
+
+            const reader = response.body.getReader();
+            const decoder = new TextDecoder();
+            let buffered = '';
+            for (;;) {
+                const { done, value } = await reader.read();
+                buffered += decoder.decode(value, { stream: !done });
+                const lines = buffered.split('\n');
+                buffered = lines.pop() ?? '';
+                lines.filter(line => line.trim()).forEach(line => applySyncEvent(JSON.parse(line)));
+                if (done) break;
+            }
+        } catch (err) {
+            console.error('Sync failed, reloading conversations:', err);
+            if (cursor) {
+                syncCursor.current = null;
+                loadConversations();
+            }
+        }
+    };
+
     const loadConversations = async () => {
         try {
             setLoading(true);
-            const response = await fetch(`${API_URL}/api/conversations`, {
-                credentials: 'include',
-            });
-
-            if (!response.ok) {
-                throw new Error('Failed to load conversations');
+            if (!syncCursor.current) {
+                // Take the sync position before the inbox, so nothing falls between the two
+                await syncChanges();
             }
+            // The inbox is cursor-paginated; follow X-Next-Cursor until the last page
+            const data: Conversation[] = [];
+            let cursor: string | null = null;
+            do {
+                const query: string = cursor ? `?cursor=${encodeURIComponent(cursor)}` : '';
+                const response: Response = await fetch(`${API_URL}/api/conversations${query}`, {
+                    credentials: 'include',
+                });
+
+                if (!response.ok) {
+                    throw new Error('Failed to load conversations');
+                }
+
+                data.push(...await response.json());
+                cursor = response.headers.get('X-Next-Cursor');
+            } while (cursor);
 
-            const data = await response.json();
             setConversations(data);
         } catch (err) {
             setError(err instanceof Error ? err.message : 'An error occurred');
@@ -282,14 +520,14 @@ export const ChatProvider: React.FC<{ children: ReactNode }> = ({ children }) =>
       setActiveConversation(conversation);
       
       // Reset pagination state
-      setCurrentPage(0);
+      setOlderCursor(null);
       setHasMoreMessages(true);
       
       // Save the active conversation ID to sessionStorage
       saveActiveConversationId(conversationId);
 
       // Load initial messages for this conversation
-      const response = await fetch(`${API_URL}/api/conversations/${conversationId}/messages?page=0&size=${PAGE_SIZE}`, {
+      const response = await fetch(`${API_URL}/api/conversations/${conversationId}/messages?size=${PAGE_SIZE}`, {
         credentials: 'include',
       });
 
@@ -300,10 +538,16 @@ export const ChatProvider: React.FC<{ children: ReactNode }> = ({ children }) =>
       const data = await response.json();
       console.log(`Received ${data.length} messages for conversation ${conversationId}`);
       setMessages(data);
-      setHasMoreMessages(data.length === PAGE_SIZE); // If we got a full page, there might be more
+      // The server hands back a cursor only when older messages exist
+      const cursor = response.headers.get('X-Next-Cursor');
+      setOlderCursor(cursor);
+      setHasMoreMessages(cursor !== null);
 
       // Mark messages as read
       markAsRead(conversationId);
+
+      // Frames only carry changes, so start from who is online and typing right now
+      loadPresence(conversation);
     } catch (err) {
       console.error('Error selecting conversation:', err);
       setError(err instanceof Error ? err.message : 'An error occurred');
@@ -311,19 +555,37 @@ export const ChatProvider: React.FC<{ children: ReactNode }> = ({ children }) =>
       setLoading(false);
     }
   };
+  const loadPresence = async (conversation: Conversation) => {
+    try {
+      const response = await fetch(`${API_URL}/api/conversations/${conversation.id}/presence`, {
+        credentials: 'include',
+      });
+      if (!response.ok) {
+        throw new Error('Failed to load presence');
+      }
+      const activity: ConversationActivity = await response.json();
+      const online = new Set(activity.online ?? []);
+      setOnlineUserIds(prev => {
+        const updated = new Set(prev);
+        conversation.participants.forEach(p => online.has(p.id) ? updated.add(p.id) : updated.delete(p.id));
+        return [...updated];
+      });
+      setTypingByConversation(prev => ({ ...prev, [conversation.id]: activity.typing ?? [] }));
+    } catch (err) {
+      console.error('Error loading presence:', err);
+    }
+  };
 // Add function to load more (older) messages
 const loadMoreMessages = async (): Promise<boolean> => {
-    if (!activeConversation || loadingMoreMessages || !hasMoreMessages) {
+    if (!activeConversation || loadingMoreMessages || !hasMoreMessages || !olderCursor) {
       return false;
     }
     
     try {
       setLoadingMoreMessages(true);
-      const nextPage = currentPage + 1;
-      
-      console.log(`Loading more messages for conversation ${activeConversation.id}, page ${nextPage}`);
+      console.log(`Loading more messages for conversation ${activeConversation.id}, before ${olderCursor}`);
       const response = await fetch(
-        `${API_URL}/api/conversations/${activeConversation.id}/messages?page=${nextPage}&size=${PAGE_SIZE}`,
+        `${API_URL}/api/conversations/${activeConversation.id}/messages?before=${olderCursor}&size=${PAGE_SIZE}`,
         { credentials: 'include' }
       );
       
@@ -334,14 +596,15 @@ const loadMoreMessages = async (): Promise<boolean> => {
       const olderMessages = await response.json();
       console.log(`Received ${olderMessages.length} older messages`);
       
-      if (olderMessages.length < PAGE_SIZE) {
+      const cursor = response.headers.get('X-Next-Cursor');
+      setOlderCursor(cursor);
+      if (cursor === null) {
         setHasMoreMessages(false);
       }
       
       if (olderMessages.length > 0) {
         // Prepend older messages to the existing messages
         setMessages(prev => [...olderMessages, ...prev]);
-        setCurrentPage(nextPage);
         return true;
       } else {
         setHasMoreMessages(false);
@@ -424,24 +687,47 @@ const loadMoreMessages = async (): Promise<boolean> => {
         }
     };
 
+    const publishSend = (client: Client, conversationId: number, content: string, clientMessageId: string) => {
+        client.publish({
+            destination: '/app/chat.sendMessage',
+            body: JSON.stringify({ conversationId, content, clientMessageId }),
+        });
+    };
+
+    // The optimistic copy takes the stored message's id, or goes away if the push of the stored
+    // message got here first; a failed send is taken back out
+    const applySendReceipt = (receipt: SendReceipt) => {
+        const pending = pendingSends.current.get(receipt.clientMessageId);
+        if (!pending) return;
+        pendingSends.current.delete(receipt.clientMessageId);
+        if (receipt.error || receipt.messageId === undefined || receipt.sentAt === undefined) {
+            setMessages(prev => prev.filter(m => m.id !== pending.tempId));
+            setError(`Message not sent: ${receipt.error ?? 'unknown error'}`);
+            return;
+        }
+        const { messageId, sentAt } = receipt;
+        setMessages(prev => prev.some(m => m.id === messageId)
+            ? prev.filter(m => m.id !== pending.tempId)
+            : prev.map(m => m.id === pending.tempId
+                ? { ...m, id: messageId, sentAt, timestamp: new Date(sentAt).toISOString() }
+                : m));
+    };
+
     const sendMessage = useCallback((content: string) => {
         if (!activeConversation || !stompClient || !stompClient.active) {
             setError('Cannot send message: not connected');
             return;
         }
 
-        stompClient.publish({
-            destination: '/app/chat.sendMessage',
-            body: JSON.stringify({
-                conversationId: activeConversation.id,
-                content: content,
-            }),
-        });
+        // Sends are not waited on; the receipt on /user/queue/sent settles the optimistic copy
+        const clientMessageId = crypto.randomUUID();
+        const tempId = Date.now(); // temporary ID until the receipt
+        pendingSends.current.set(clientMessageId, { tempId, conversationId: activeConversation.id, content });
+        publishSend(stompClient, activeConversation.id, content, clientMessageId);
 
         // Optimistically add message to UI
-        // In a real app, you might want to mark this as 'sending' until confirmed
         const optimisticMessage = {
-            id: Date.now(), // temporary ID
+            id: tempId,
             senderId: Number(user?.userId), // Ensure senderId is a number
             senderName: user?.name || 'You',
             content: content,
@@ -452,8 +738,47 @@ const loadMoreMessages = async (): Promise<boolean> => {
         };
 
         setMessages(prev => [...prev, optimisticMessage]);
+        // Sending ends our typing on the server too
+        lastTypingNotice.current = 0;
     }, [activeConversation, stompClient, user]);
 
+    // When our last typing notice went out, or 0 when we are not typing
+    const lastTypingNotice = useRef<number>(0);
+    const notifyTyping = useCallback((typing: boolean) => {
+        if (!activeConversation || !stompClient || !stompClient.active) return;
+        const now = Date.now();
+        if (typing ? now - lastTypingNotice.current < TYPING_REFRESH_MS : lastTypingNotice.current === 0) {
+            return;
+        }
+        lastTypingNotice.current = typing ? now : 0;
+        stompClient.publish({
+            destination: '/app/chat.typing',
+            body: JSON.stringify({
+                conversationId: activeConversation.id,
+                typing: typing,
+            }),
+        });
+    }, [activeConversation, stompClient]);
+
+    // Apply an activity frame: who started or stopped typing, who came online or went offline
+    const applyActivity = (activity: ConversationActivity) => {
+        setTypingByConversation(prev => {
+            const typing = new Set(prev[activity.conversationId] ?? []);
+            activity.typing?.forEach(id => typing.add(id));
+            activity.stoppedTyping?.forEach(id => typing.delete(id));
+            activity.offline?.forEach(id => typing.delete(id));
+            return { ...prev, [activity.conversationId]: [...typing] };
+        });
+        if (activity.online?.length || activity.offline?.length) {
+            setOnlineUserIds(prev => {
+                const online = new Set(prev);
+                activity.online?.forEach(id => online.add(id));
+                activity.offline?.forEach(id => online.delete(id));
+                return [...online];
+            });
+        }
+    };
+
     const markAsRead = useCallback((conversationId: number) => {
         if (!stompClient || !stompClient.active) {
             console.warn('Cannot mark as read: not connected');
@@ -596,6 +921,10 @@ const loadMoreMessages = async (): Promise<boolean> => {
                 loadMoreMessages,      // Add this
                 loadingMoreMessages,   // Add this
                 hasMoreMessages,       // Add this
+                typingUserIds: (activeConversation ? typingByConversation[activeConversation.id] ?? [] : [])
+                    .filter(id => id !== Number(user?.userId)),
+                onlineUserIds,
+                notifyTyping,
             }}
         >
             {children}
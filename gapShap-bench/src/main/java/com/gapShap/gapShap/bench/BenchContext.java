@@ -0,0 +1,85 @@
+package com.gapShap.gapShap.bench;
+
+import com.gapShap.gapShap.GapShapApplication;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// The application as it runs in production, against an embedded Postgres. Started once per
+// JMH fork and shared by every benchmark state in it.
+public final class BenchContext {
+
+    private static BenchContext instance;
+
+    private final EmbeddedPostgres postgres;
+    private final ConfigurableApplicationContext context;
+
+    private BenchContext(String... extraArgs) {
+        try {
+            postgres = EmbeddedPostgres.builder().start();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not start embedded Postgres", e);
+        }
+        // Passed as arguments so they take precedence over application.yml
+        List<String> args = new ArrayList<>(List.of(
+                "--spring.datasource.url=" + postgres.getJdbcUrl("postgres", "postgres"),
+                "--spring.datasource.username=postgres",
+                "--spring.datasource.password=postgres",
+                "--spring.jpa.show-sql=false",
+                "--server.port=0",
+                "--logging.level.root=WARN",
+                // Point the OAuth client at a placeholder provider so startup skips Auth0 discovery
+                "--spring.security.oauth2.client.registration.auth0.provider=bench",
+                "--spring.security.oauth2.client.provider.bench.authorization-uri=http://localhost/authorize",
+                "--spring.security.oauth2.client.provider.bench.token-uri=http://localhost/token",
+                "--spring.security.oauth2.client.provider.bench.jwk-set-uri=http://localhost/jwks",
+                "--spring.security.oauth2.client.provider.bench.user-info-uri=http://localhost/userinfo",
+                "--spring.security.oauth2.client.provider.bench.user-name-attribute=sub"));
+        args.addAll(List.of(extraArgs));
+        context = new SpringApplicationBuilder(GapShapApplication.class).run(args.toArray(String[]::new));
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "bench-shutdown"));
+    }
+
+    public static BenchContext get() {
+        return start();
+    }
+
+    // Extra arguments only apply to the call that actually starts the context
+    public static synchronized BenchContext start(String... extraArgs) {
+        if (instance == null) {
+            instance = new BenchContext(extraArgs);
+        }
+        return instance;
+    }
+
+    public <T> T bean(Class<T> type) {
+        return context.getBean(type);
+    }
+
+    public <T> T bean(String name, Class<T> type) {
+        return context.getBean(name, type);
+    }
+
+    public int port() {
+        return context.getEnvironment().getRequiredProperty("local.server.port", Integer.class);
+    }
+
+    public ApplicationEventPublisher events() {
+        return context;
+    }
+
+    private void close() {
+        context.close();
+        try {
+            postgres.close();
+        } catch (IOException e) {
+            // Shutting down anyway
+        }
+    }
+}
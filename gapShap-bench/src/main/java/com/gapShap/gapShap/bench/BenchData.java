@@ -0,0 +1,71 @@
+package com.gapShap.gapShap.bench;
+
+import com.gapShap.gapShap.dto.ConversationDTO;
+import com.gapShap.gapShap.model.User;
+import com.gapShap.gapShap.service.ChatService;
+import com.gapShap.gapShap.service.UserService;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Synthetic users, conversations and message history. Users and conversations go through the
+// services so they look exactly like real ones; message history is bulk-loaded over JDBC.
+public class BenchData {
+
+    private static final String INSERT_MESSAGE =
+            "INSERT INTO messages (content, sender_id, conversation_id, sent_at) VALUES (?, ?, ?, ?)";
+    private static final String ADVANCE_LAST_MESSAGE =
+            "UPDATE conversations SET last_message_id = m.id, last_activity_at = m.sent_at " +
+            "FROM (SELECT id, sent_at FROM messages WHERE conversation_id = ? ORDER BY id DESC LIMIT 1) m " +
+            "WHERE conversations.id = ?";
+
+    private final ChatService chatService;
+    private final UserService userService;
+    private final JdbcTemplate jdbcTemplate;
+
+    public BenchData(BenchContext context) {
+        this.chatService = context.bean(ChatService.class);
+        this.userService = context.bean(UserService.class);
+        this.jdbcTemplate = context.bean(JdbcTemplate.class);
+    }
+
+    // Users named <prefix>-0 .. <prefix>-(count-1)
+    public List<User> users(String prefix, int count) {
+        List<User> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String authId = prefix + "-" + i;
+            users.add(userService.saveOrUpdateUser(authId, "User " + authId, authId + "@bench.local",
+                    "https://example.com/" + authId + ".png"));
+        }
+        return users;
+    }
+
+    public ConversationDTO direct(User user, User other) {
+        return chatService.getOrCreateDirectConversation(user, other);
+    }
+
+    public ConversationDTO group(String name, List<User> participants) {
+        return chatService.createGroupConversation(name, participants);
+    }
+
+    // Append count messages, alternating between the given senders, one second apart
+    public void messages(long conversationId, List<User> senders, int count) {
+        long start = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(count);
+        List<Object[]> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            User sender = senders.get(i % senders.size());
+            rows.add(new Object[] {"Synthetic message " + i + " with a little text in it", sender.getId(),
+                    conversationId, new Timestamp(start + TimeUnit.SECONDS.toMillis(i))});
+        }
+        jdbcTemplate.batchUpdate(INSERT_MESSAGE, rows);
+        jdbcTemplate.update(ADVANCE_LAST_MESSAGE, conversationId, conversationId);
+    }
+
+    // Refresh planner statistics once seeding is done, as autovacuum would have on a real database
+    public void analyze() {
+        jdbcTemplate.execute("ANALYZE");
+    }
+}
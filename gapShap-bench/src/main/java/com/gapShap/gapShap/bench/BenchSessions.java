@@ -0,0 +1,56 @@
+package com.gapShap.gapShap.bench;
+
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.web.socket.messaging.SessionConnectedEvent;
+
+import java.security.Principal;
+import java.util.HashMap;
+
+// Stands in for connected STOMP clients: frames go straight into clientInboundChannel, so the
+// broker and user registry see real sessions and subscriptions without any sockets. What the
+// broker sends back reaches clientOutboundChannel and is dropped for lack of a socket.
+public class BenchSessions {
+
+    private final MessageChannel inbound;
+    private final ApplicationEventPublisher events;
+
+    public BenchSessions(BenchContext context) {
+        this.inbound = context.bean("clientInboundChannel", MessageChannel.class);
+        this.events = context.events();
+    }
+
+    public void connect(String authId, String sessionId) {
+        Principal user = () -> authId;
+        inbound.send(frame(StompCommand.CONNECT, user, sessionId, null, null));
+
+        // Normally published by the WebSocket handler once CONNECTED is written back
+        SimpMessageHeaderAccessor connected = SimpMessageHeaderAccessor.create(SimpMessageType.CONNECT_ACK);
+        connected.setSessionId(sessionId);
+        connected.setUser(user);
+        connected.setLeaveMutable(true);
+        events.publishEvent(new SessionConnectedEvent(this,
+                MessageBuilder.createMessage(new byte[0], connected.getMessageHeaders()), user));
+    }
+
+    public void subscribe(String authId, String sessionId, String subscriptionId, String destination) {
+        inbound.send(frame(StompCommand.SUBSCRIBE, () -> authId, sessionId, subscriptionId, destination));
+    }
+
+    private Message<byte[]> frame(StompCommand command, Principal user,
+            String sessionId, String subscriptionId, String destination) {
+        StompHeaderAccessor accessor = StompHeaderAccessor.create(command);
+        accessor.setSessionId(sessionId);
+        accessor.setUser(user);
+        accessor.setSessionAttributes(new HashMap<>());
+        accessor.setSubscriptionId(subscriptionId);
+        accessor.setDestination(destination);
+        return MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+    }
+}
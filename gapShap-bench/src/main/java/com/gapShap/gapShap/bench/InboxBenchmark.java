@@ -0,0 +1,59 @@
+package com.gapShap.gapShap.bench;
+
+import com.gapShap.gapShap.dto.ConversationDTO;
+import com.gapShap.gapShap.dto.CursorPage;
+import com.gapShap.gapShap.model.User;
+import com.gapShap.gapShap.service.ChatService;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// getConversationsForUser for users with 10, 100 and 1000 direct conversations
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InboxBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int conversations;
+
+    private ChatService chatService;
+    private User owner;
+
+    @Setup(Level.Trial)
+    public void seed() {
+        BenchContext context = BenchContext.get();
+        BenchData data = new BenchData(context);
+        chatService = context.bean(ChatService.class);
+
+        owner = data.users("inbox-owner", 1).get(0);
+        for (User peer : data.users("inbox-peer", conversations)) {
+            long conversationId = data.direct(owner, peer).getId();
+            data.messages(conversationId, List.of(owner, peer), 5);
+        }
+        data.analyze();
+    }
+
+    // What the client loads when it opens
+    @Benchmark
+    public CursorPage<ConversationDTO> firstPage() {
+        return chatService.getConversationsForUser(owner, null, 20);
+    }
+
+    // Following X-Next-Cursor to the end, 50 at a time
+    @Benchmark
+    public int allPages() {
+        int loaded = 0;
+        String cursor = null;
+        do {
+            CursorPage<ConversationDTO> page = chatService.getConversationsForUser(owner, cursor, 50);
+            loaded += page.getItems().size();
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        return loaded;
+    }
+}
@@ -0,0 +1,62 @@
+package com.gapShap.gapShap.bench;
+
+import com.gapShap.gapShap.dto.CursorPage;
+import com.gapShap.gapShap.dto.MessageDTO;
+import com.gapShap.gapShap.model.User;
+import com.gapShap.gapShap.service.ChatService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// One page of history at increasing depth in a 100,000 message conversation: the keyset
+// (?before=) path against the legacy offset (?page=) path
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessagePageBenchmark {
+
+    private static final int HISTORY = 100_000;
+    private static final int PAGE_SIZE = 50;
+
+    // Messages between the newest one and the requested page
+    @Param({"0", "1000", "10000", "90000"})
+    public int depth;
+
+    private ChatService chatService;
+    private User viewer;
+    private long conversationId;
+    private Long before;
+
+    @Setup(Level.Trial)
+    public void seed() {
+        BenchContext context = BenchContext.get();
+        BenchData data = new BenchData(context);
+        chatService = context.bean(ChatService.class);
+
+        List<User> users = data.users("history", 2);
+        viewer = users.get(0);
+        conversationId = data.direct(users.get(0), users.get(1)).getId();
+        data.messages(conversationId, users, HISTORY);
+        data.analyze();
+
+        // The newest message the page must start below, as the client's cursor would carry it
+        before = depth == 0 ? null : context.bean(JdbcTemplate.class).queryForObject(
+                "SELECT id FROM messages WHERE conversation_id = ? ORDER BY id DESC OFFSET ? LIMIT 1",
+                Long.class, conversationId, depth - 1);
+    }
+
+    @Benchmark
+    public CursorPage<MessageDTO> keyset() {
+        return chatService.getMessagesForConversation(conversationId, viewer, before, null, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<MessageDTO> offset() {
+        return chatService.getMessagesForConversation(conversationId, viewer, depth / PAGE_SIZE, PAGE_SIZE);
+    }
+}
@@ -0,0 +1,68 @@
+package com.gapShap.gapShap.bench;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gapShap.gapShap.dto.MessageDTO;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeTypeUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// STOMP JSON payload conversion, without the database. toMessage is what every
+// convertAndSend pays per call; encodeOnce is the serialize-once path the dispatcher uses;
+// fromMessage is the @Payload Map conversion of an inbound chat.sendMessage frame.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PayloadConversionBenchmark {
+
+    // Configured the way Spring sets up the broker's JSON converter
+    private final MappingJackson2MessageConverter converter = new MappingJackson2MessageConverter();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final MessageHeaders headers =
+            new MessageHeaders(Map.of(MessageHeaders.CONTENT_TYPE, MimeTypeUtils.APPLICATION_JSON));
+
+    private MessageDTO message;
+    private Message<byte[]> inbound;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        message = new MessageDTO();
+        message.setId(123_456L);
+        message.setContent("A typical chat message, a sentence or two long, with nothing unusual in it.");
+        message.setSenderId(42L);
+        message.setSenderName("Bench Sender");
+        message.setSenderPicture("https://example.com/avatars/42.png");
+        message.setConversationId(7L);
+        message.setSentAt(System.currentTimeMillis());
+
+        inbound = MessageBuilder.withPayload("{\"conversationId\":7,\"content\":\"A typical chat message\"}"
+                        .getBytes(StandardCharsets.UTF_8))
+                .setHeader(MessageHeaders.CONTENT_TYPE, MimeTypeUtils.APPLICATION_JSON)
+                .build();
+    }
+
+    @Benchmark
+    public Message<?> toMessage() {
+        return converter.toMessage(message, headers);
+    }
+
+    @Benchmark
+    public byte[] encodeOnce() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(message);
+    }
+
+    @Benchmark
+    public Object fromMessage() {
+        return converter.fromMessage(inbound, Map.class);
+    }
+}
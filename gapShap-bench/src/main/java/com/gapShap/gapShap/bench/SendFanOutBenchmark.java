@@ -0,0 +1,57 @@
+package com.gapShap.gapShap.bench;
+
+import com.gapShap.gapShap.dto.MessageDTO;
+import com.gapShap.gapShap.model.User;
+import com.gapShap.gapShap.service.ChatService;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// sendMessage into conversations of 2, 50 and 500 participants, all of them connected and
+// subscribed, so the time includes persisting the message and handing it to the broker
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendFanOutBenchmark {
+
+    @Param({"2", "50", "500"})
+    public int participants;
+
+    private ChatService chatService;
+    private User sender;
+    private long conversationId;
+
+    @Setup(Level.Trial)
+    public void seed() throws InterruptedException {
+        BenchContext context = BenchContext.get();
+        BenchData data = new BenchData(context);
+        BenchSessions sessions = new BenchSessions(context);
+        chatService = context.bean(ChatService.class);
+
+        List<User> members = data.users("fanout", participants);
+        sender = members.get(0);
+        conversationId = participants == 2
+                ? data.direct(members.get(0), members.get(1)).getId()
+                : data.group("Fan-out bench", members).getId();
+        data.analyze();
+
+        for (User member : members) {
+            String sessionId = "bench-" + member.getAuthId();
+            sessions.connect(member.getAuthId(), sessionId);
+            sessions.subscribe(member.getAuthId(), sessionId, "messages", "/user/queue/messages");
+            sessions.subscribe(member.getAuthId(), sessionId, "conversation",
+                    ChatService.CONVERSATION_TOPIC_PREFIX + conversationId);
+        }
+        // The inbound channel handles frames on its own threads
+        Thread.sleep(1_000);
+    }
+
+    @Benchmark
+    public MessageDTO send() {
+        return chatService.sendMessage(sender, conversationId, "Benchmark message to the whole conversation");
+    }
+}
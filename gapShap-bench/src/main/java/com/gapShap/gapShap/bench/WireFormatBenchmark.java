@@ -0,0 +1,82 @@
+package com.gapShap.gapShap.bench;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gapShap.gapShap.dto.MessageDTO;
+import com.gapShap.gapShap.wire.CompactMessageFormat;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.MessageBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+// The JSON and compact encodings of a pushed chat message, without the database. jsonEncode is
+// the per-message cost of the JSON path; compactPrepare is paid once more per message when any
+// recipient session uses the compact encoding, and compactKnownSender / compactNewSender are what
+// each compact session adds. The payload sizes of each form are printed once per fork.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WireFormatBenchmark {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final CompactMessageFormat compactFormat = new CompactMessageFormat(objectMapper);
+
+    private MessageDTO message;
+    private byte[] json;
+    private Message<byte[]> prepared;
+    private CompactMessageFormat.SenderDictionary knownSender;
+
+    @Setup(Level.Trial)
+    public void setUp() throws JsonProcessingException {
+        message = new MessageDTO();
+        message.setId(123_456L);
+        message.setContent("A typical chat message, a sentence or two long, with nothing unusual in it.");
+        message.setSenderId(42L);
+        message.setSenderName("Bench Sender");
+        message.setSenderPicture("https://lh3.googleusercontent.com/a/ACg8ocJ4bench-sender-avatar-42=s96-c");
+        message.setConversationId(7L);
+        message.setSentAt(System.currentTimeMillis());
+
+        json = objectMapper.writeValueAsBytes(message);
+        // Mutable headers, the way the broker hands each subscriber its copy
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setHeader(CompactMessageFormat.DEFERRED_HEADER, new CompactMessageFormat.Deferred());
+        accessor.setLeaveMutable(true);
+        prepared = MessageBuilder.createMessage(json, accessor.getMessageHeaders());
+        knownSender = new CompactMessageFormat.SenderDictionary();
+        int first = payloadSize(compactFormat.encode(prepared, knownSender));
+        int repeat = payloadSize(compactFormat.encode(prepared, knownSender));
+        System.out.printf("Payload bytes: json=%d compact(new sender)=%d compact(known sender)=%d%n",
+                json.length, first, repeat);
+    }
+
+    private static int payloadSize(Message<?> frame) {
+        return ((byte[]) frame.getPayload()).length;
+    }
+
+    @Benchmark
+    public byte[] jsonEncode() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(message);
+    }
+
+    @Benchmark
+    public CompactMessageFormat.Prepared compactPrepare() {
+        return compactFormat.prepare(json);
+    }
+
+    @Benchmark
+    public Message<?> compactKnownSender() {
+        return compactFormat.encode(prepared, knownSender);
+    }
+
+    @Benchmark
+    public Message<?> compactNewSender() {
+        return compactFormat.encode(prepared, new CompactMessageFormat.SenderDictionary());
+    }
+}
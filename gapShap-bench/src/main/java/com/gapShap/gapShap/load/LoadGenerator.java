@@ -0,0 +1,350 @@
+package com.gapShap.gapShap.load;
+
+import com.gapShap.gapShap.bench.BenchContext;
+import com.gapShap.gapShap.bench.BenchData;
+import com.gapShap.gapShap.config.ChatProperties;
+import com.gapShap.gapShap.dto.MessageDTO;
+import com.gapShap.gapShap.model.User;
+import com.gapShap.gapShap.service.ChatService;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Drives a locally started gapShap over real STOMP connections and reports how long messages take
+// from /app/chat.sendMessage to the recipients' subscriptions.
+//
+// The application runs in this JVM against an embedded Postgres, with its resource server trusting
+// a StubIssuer, so every connection presents its own signed token at the WebSocket handshake.
+// Sends are paced open-loop on a fixed tick and stamped with the tick's intended time, so a
+// generator or server that falls behind shows up as latency rather than as a lower send rate.
+//
+// mvn -f gapShap-bench/pom.xml package exec:exec@load -Dload.args="users=2000 rate=1000 duration=60"
+public final class LoadGenerator {
+
+    private static final String SEND_DESTINATION = "/app/chat.sendMessage";
+    private static final String USER_QUEUE = "/user/queue/messages";
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final LoadSettings settings;
+    private final StubIssuer issuer;
+    private final BenchContext context;
+    private final WebSocketStompClient stompClient;
+    private final List<VirtualUser> users = new ArrayList<>();
+    private final String padding;
+
+    // Every delivery, reset at each report
+    private final Recorder intervalLatency = new Recorder(MAX_LATENCY_MICROS, 3);
+    // Deliveries of messages sent after the warmup
+    private final Histogram measuredLatency = new ConcurrentHistogram(MAX_LATENCY_MICROS, 3);
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder expected = new LongAdder();
+    private final LongAdder measuredSent = new LongAdder();
+    private final LongAdder measuredDelivered = new LongAdder();
+    private final LongAdder measuredExpected = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    private volatile long measureStart = Long.MAX_VALUE;
+    private volatile boolean stopping;
+    private long lastSent;
+    private long lastDelivered;
+
+    private LoadGenerator(LoadSettings settings, StubIssuer issuer, BenchContext context) {
+        this.settings = settings;
+        this.issuer = issuer;
+        this.context = context;
+        this.stompClient = new WebSocketStompClient(new StandardWebSocketClient());
+        this.stompClient.setMessageConverter(new MappingJackson2MessageConverter());
+        // No heartbeats: frames are only ever written from the send loop
+        this.stompClient.setDefaultHeartbeat(new long[] {0, 0});
+        this.padding = "x".repeat(settings.messageBytes());
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadSettings settings = LoadSettings.parse(args);
+        try (StubIssuer issuer = StubIssuer.start()) {
+            List<String> appArgs = new ArrayList<>();
+            appArgs.add("--spring.security.oauth2.resourceserver.jwt.issuer-uri=" + issuer.issuerUri());
+            appArgs.addAll(settings.appArgs());
+            BenchContext context = BenchContext.start(appArgs.toArray(String[]::new));
+
+            LoadGenerator generator = new LoadGenerator(settings, issuer, context);
+            generator.provision();
+            generator.connect();
+            generator.drive();
+            generator.drain();
+            generator.summarize();
+            generator.disconnect();
+        }
+        System.exit(0);
+    }
+
+    // Pair users into direct conversations and split them into groups of groupSize
+    private void provision() {
+        BenchData data = new BenchData(context);
+        int topicMinMembers = context.bean(ChatProperties.class).getFanout().getTopicMinMembers();
+
+        for (User account : data.users("load", settings.users())) {
+            users.add(new VirtualUser(account));
+        }
+        for (int i = 0; i < users.size(); i += 2) {
+            VirtualUser user = users.get(i);
+            // An odd one out pairs with the first user
+            VirtualUser other = users.get(i + 1 < users.size() ? i + 1 : 0);
+            Target direct = new Target(data.direct(user.account, other.account).getId(), 2, false);
+            user.direct = direct;
+            if (other.direct == null) {
+                other.direct = direct;
+            }
+        }
+        for (int start = 0; start < users.size(); start += settings.groupSize()) {
+            List<VirtualUser> members = users.subList(start, Math.min(start + settings.groupSize(), users.size()));
+            if (members.size() < 3) {
+                // Too few left over for a group; these users only chat directly
+                break;
+            }
+            List<User> accounts = members.stream().map(member -> member.account).toList();
+            long conversationId = data.group("Load " + start, accounts).getId();
+            Target group = new Target(conversationId, members.size(), members.size() >= topicMinMembers);
+            members.forEach(member -> member.group = group);
+        }
+        data.analyze();
+        System.out.printf("Provisioned %d users in %d direct and %d group conversations%n", users.size(),
+                (users.size() + 1) / 2, users.stream().map(user -> user.group).filter(Objects::nonNull).distinct().count());
+    }
+
+    private void connect() throws InterruptedException {
+        String url = "ws://127.0.0.1:" + context.port() + "/ws/websocket";
+        Semaphore handshakes = new Semaphore(settings.connectConcurrency());
+        CountDownLatch done = new CountDownLatch(users.size());
+        long start = System.nanoTime();
+
+        for (VirtualUser user : users) {
+            handshakes.acquire();
+            WebSocketHttpHeaders handshakeHeaders = new WebSocketHttpHeaders();
+            handshakeHeaders.setBearerAuth(issuer.token(user.account.getAuthId()));
+            stompClient.connectAsync(url, handshakeHeaders, new StompHeaders(), user)
+                    .whenComplete((session, failure) -> {
+                        handshakes.release();
+                        if (failure != null) {
+                            errors.increment();
+                            System.err.println("Connect failed for " + user.account.getAuthId() + ": " + failure);
+                        }
+                        done.countDown();
+                    });
+        }
+        done.await();
+
+        long connected = users.stream().filter(user -> user.session != null).count();
+        if (connected == 0) {
+            throw new IllegalStateException("No connection could be established");
+        }
+        System.out.printf("Connected %d of %d users in %.1f s%n", connected, users.size(),
+                (System.nanoTime() - start) / 1e9);
+        // SUBSCRIBE frames are processed asynchronously; give the broker a moment to register them
+        TimeUnit.SECONDS.sleep(1);
+    }
+
+    private void drive() {
+        double perTick = settings.rate() * TICK_NANOS / 1e9;
+        long reportNanos = settings.reportInterval().toNanos();
+        long start = System.nanoTime();
+        long end = start + settings.warmup().toNanos() + settings.duration().toNanos();
+        measureStart = start + settings.warmup().toNanos();
+        long nextReport = start + reportNanos;
+        long lastReport = start;
+        double owed = 0;
+
+        System.out.printf("Sending %.0f msg/s for %d s warmup + %d s measured%n", settings.rate(),
+                settings.warmup().toSeconds(), settings.duration().toSeconds());
+        for (long tick = start; tick < end; tick += TICK_NANOS) {
+            long wait;
+            while ((wait = tick - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            owed += perTick;
+            while (owed >= 1) {
+                owed -= 1;
+                send(tick);
+            }
+            if (tick >= nextReport) {
+                report(tick - start, tick - lastReport);
+                lastReport = tick;
+                nextReport += reportNanos;
+            }
+        }
+        stopping = true;
+    }
+
+    private void send(long intendedNanos) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        VirtualUser user = users.get(random.nextInt(users.size()));
+        StompSession session = user.session;
+        if (session == null || !session.isConnected()) {
+            errors.increment();
+            return;
+        }
+        Target target = user.group != null && random.nextDouble() < settings.groupShare() ? user.group : user.direct;
+        Map<String, Object> payload = Map.of(
+                "conversationId", target.conversationId(),
+                "content", intendedNanos + " " + padding);
+        try {
+            session.send(SEND_DESTINATION, payload);
+        } catch (RuntimeException e) {
+            errors.increment();
+            return;
+        }
+        sent.increment();
+        expected.add(target.members() - 1);
+        if (intendedNanos >= measureStart) {
+            measuredSent.increment();
+            measuredExpected.add(target.members() - 1);
+        }
+    }
+
+    private void onDelivery(VirtualUser user, MessageDTO message) {
+        if (user.account.getId().equals(message.getSenderId())) {
+            // Topic subscribers also receive their own messages
+            return;
+        }
+        String content = message.getContent();
+        long sentNanos = Long.parseLong(content, 0, content.indexOf(' '), 10);
+        long latencyMicros = Math.min((System.nanoTime() - sentNanos) / 1000, MAX_LATENCY_MICROS);
+        delivered.increment();
+        intervalLatency.recordValue(latencyMicros);
+        if (sentNanos >= measureStart) {
+            measuredDelivered.increment();
+            measuredLatency.recordValue(latencyMicros);
+        }
+    }
+
+    private void report(long elapsedNanos, long intervalNanos) {
+        Histogram interval = intervalLatency.getIntervalHistogram();
+        long sentNow = sent.sum();
+        long deliveredNow = delivered.sum();
+        double seconds = intervalNanos / 1e9;
+        System.out.printf("%5.0f s %s sent %8.1f/s  delivered %9.1f/s  p50 %8.2f  p99 %8.2f  p999 %8.2f ms  errors %d%n",
+                elapsedNanos / 1e9, elapsedNanos - intervalNanos < settings.warmup().toNanos() ? "warmup  " : "measured",
+                (sentNow - lastSent) / seconds, (deliveredNow - lastDelivered) / seconds,
+                millis(interval, 50), millis(interval, 99), millis(interval, 99.9), errors.sum());
+        lastSent = sentNow;
+        lastDelivered = deliveredNow;
+    }
+
+    // Wait for messages still in flight, up to a bound
+    private void drain() {
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+        while (delivered.sum() < expected.sum() && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+        }
+    }
+
+    private void summarize() {
+        double seconds = settings.duration().toNanos() / 1e9;
+        System.out.println();
+        System.out.printf("Connections  %d%n", users.stream().filter(user -> user.session != null).count());
+        System.out.printf("Sent         %d (%.1f msg/s, target %.0f)%n", measuredSent.sum(),
+                measuredSent.sum() / seconds, settings.rate());
+        System.out.printf("Delivered    %d of %d expected (%.1f msg/s)%n", measuredDelivered.sum(),
+                measuredExpected.sum(), measuredDelivered.sum() / seconds);
+        System.out.printf("Latency      p50 %.2f  p99 %.2f  p999 %.2f  max %.2f ms%n",
+                millis(measuredLatency, 50), millis(measuredLatency, 99), millis(measuredLatency, 99.9),
+                measuredLatency.getMaxValue() / 1000.0);
+        System.out.printf("Errors       %d%n", errors.sum());
+    }
+
+    private void disconnect() {
+        for (VirtualUser user : users) {
+            if (user.session != null && user.session.isConnected()) {
+                user.session.disconnect();
+            }
+        }
+        stompClient.stop();
+    }
+
+    private static double millis(Histogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    private record Target(long conversationId, int members, boolean topic) {
+    }
+
+    private final class VirtualUser extends StompSessionHandlerAdapter {
+
+        private final User account;
+        private final StompFrameHandler deliveries = new StompFrameHandler() {
+            @Override
+            public Type getPayloadType(StompHeaders headers) {
+                return MessageDTO.class;
+            }
+
+            @Override
+            public void handleFrame(StompHeaders headers, Object payload) {
+                onDelivery(VirtualUser.this, (MessageDTO) payload);
+            }
+        };
+        private Target direct;
+        private Target group;
+        private volatile StompSession session;
+
+        private VirtualUser(User account) {
+            this.account = account;
+        }
+
+        @Override
+        public void afterConnected(StompSession session, StompHeaders connectedHeaders) {
+            session.subscribe(USER_QUEUE, deliveries);
+            if (group != null && group.topic()) {
+                session.subscribe(ChatService.CONVERSATION_TOPIC_PREFIX + group.conversationId(), deliveries);
+            }
+            this.session = session;
+        }
+
+        // ERROR frames from the server
+        @Override
+        public void handleFrame(StompHeaders headers, Object payload) {
+            if (!stopping) {
+                errors.increment();
+                System.err.println("Error frame for " + account.getAuthId() + ": " + headers.getFirst("message"));
+            }
+        }
+
+        @Override
+        public void handleException(StompSession session, StompCommand command, StompHeaders headers,
+                byte[] payload, Throwable exception) {
+            errors.increment();
+        }
+
+        @Override
+        public void handleTransportError(StompSession session, Throwable exception) {
+            if (!stopping) {
+                errors.increment();
+                System.err.println("Transport error for " + account.getAuthId() + ": " + exception);
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.gapShap.gapShap.load;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+// Load generator options, given as key=value; anything starting with -- is passed to the application
+public record LoadSettings(
+        int users,
+        double rate,
+        Duration warmup,
+        Duration duration,
+        Duration reportInterval,
+        int groupSize,
+        double groupShare,
+        int messageBytes,
+        int connectConcurrency,
+        List<String> appArgs) {
+
+    public static LoadSettings parse(String... args) {
+        int users = 1000;
+        double rate = 500;
+        Duration warmup = Duration.ofSeconds(10);
+        Duration duration = Duration.ofSeconds(60);
+        Duration reportInterval = Duration.ofSeconds(5);
+        int groupSize = 10;
+        double groupShare = 0.5;
+        int messageBytes = 100;
+        int connectConcurrency = 50;
+        List<String> appArgs = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                appArgs.add(arg);
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected key=value but got " + arg);
+            }
+            String value = arg.substring(eq + 1);
+            switch (arg.substring(0, eq)) {
+                case "users" -> users = Integer.parseInt(value);
+                case "rate" -> rate = Double.parseDouble(value);
+                case "warmup" -> warmup = Duration.ofSeconds(Long.parseLong(value));
+                case "duration" -> duration = Duration.ofSeconds(Long.parseLong(value));
+                case "report" -> reportInterval = Duration.ofSeconds(Long.parseLong(value));
+                case "groupSize" -> groupSize = Integer.parseInt(value);
+                case "groupShare" -> groupShare = Double.parseDouble(value);
+                case "messageBytes" -> messageBytes = Integer.parseInt(value);
+                case "connectConcurrency" -> connectConcurrency = Integer.parseInt(value);
+                default -> throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        if (users < 2) {
+            throw new IllegalArgumentException("users must be at least 2");
+        }
+        if (groupSize < 3) {
+            // Smaller groups behave like direct conversations
+            throw new IllegalArgumentException("groupSize must be at least 3");
+        }
+        if (groupShare < 0 || groupShare > 1) {
+            throw new IllegalArgumentException("groupShare must be between 0 and 1");
+        }
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate must be positive");
+        }
+        return new LoadSettings(users, rate, warmup, duration, reportInterval, groupSize, groupShare,
+                messageBytes, connectConcurrency, List.copyOf(appArgs));
+    }
+}
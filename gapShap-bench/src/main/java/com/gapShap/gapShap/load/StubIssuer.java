@@ -0,0 +1,104 @@
+package com.gapShap.gapShap.load;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+
+// Just enough of an OIDC provider for the resource server: a discovery document, a JWK set and
+// locally signed access tokens, so load runs need no Auth0 tenant
+public final class StubIssuer implements AutoCloseable {
+
+    private static final Duration TOKEN_LIFETIME = Duration.ofHours(12);
+
+    private final HttpServer server;
+    private final RSAKey key;
+    private final RSASSASigner signer;
+    private final String issuer;
+
+    private StubIssuer(HttpServer server, RSAKey key) throws JOSEException {
+        this.server = server;
+        this.key = key;
+        this.signer = new RSASSASigner(key);
+        this.issuer = "http://127.0.0.1:" + server.getAddress().getPort();
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public static StubIssuer start() throws IOException {
+        try {
+            RSAKey key = new RSAKeyGenerator(2048).keyID("load").generate();
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            return new StubIssuer(server, key);
+        } catch (JOSEException e) {
+            throw new IllegalStateException("Could not create the signing key", e);
+        }
+    }
+
+    public String issuerUri() {
+        return issuer;
+    }
+
+    // An access token for the given auth id; the resource server uses sub as the principal name
+    public String token(String subject) {
+        Instant now = Instant.now();
+        JWTClaimsSet claims = new JWTClaimsSet.Builder()
+                .issuer(issuer)
+                .subject(subject)
+                .issueTime(Date.from(now))
+                .expirationTime(Date.from(now.plus(TOKEN_LIFETIME)))
+                .build();
+        SignedJWT jwt = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(key.getKeyID()).build(), claims);
+        try {
+            jwt.sign(signer);
+        } catch (JOSEException e) {
+            throw new IllegalStateException("Could not sign token", e);
+        }
+        return jwt.serialize();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String body = switch (exchange.getRequestURI().getPath()) {
+            case "/.well-known/openid-configuration" -> """
+                    {"issuer":"%1$s","jwks_uri":"%1$s/jwks","authorization_endpoint":"%1$s/authorize",\
+                    "token_endpoint":"%1$s/token","response_types_supported":["code"],\
+                    "subject_types_supported":["public"],"id_token_signing_alg_values_supported":["RS256"]}"""
+                    .formatted(issuer);
+            case "/jwks" -> new JWKSet(key.toPublicJWK()).toString();
+            default -> null;
+        };
+        try (exchange) {
+            if (body == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
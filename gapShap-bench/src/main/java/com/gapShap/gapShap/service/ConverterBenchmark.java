@@ -0,0 +1,81 @@
+package com.gapShap.gapShap.service;
+
+import com.gapShap.gapShap.bench.BenchContext;
+import com.gapShap.gapShap.bench.BenchData;
+import com.gapShap.gapShap.dto.ConversationDTO;
+import com.gapShap.gapShap.dto.MessageDTO;
+import com.gapShap.gapShap.dto.UserDTO;
+import com.gapShap.gapShap.model.Conversation;
+import com.gapShap.gapShap.model.Message;
+import com.gapShap.gapShap.model.User;
+import com.gapShap.gapShap.repository.ConversationRepository;
+import com.gapShap.gapShap.repository.MessageRepository;
+import com.gapShap.gapShap.repository.projection.InboxRow;
+import com.gapShap.gapShap.repository.projection.ReadMarks;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.domain.Limit;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The DTO converters on their own. Lives in ChatService's package to reach them.
+// conversationDTO also pays for the read-mark, last-message and unread-count queries the
+// entity-based converter runs; inboxRowDTO is the query-free path the inbox uses.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConverterBenchmark {
+
+    private ChatService chatService;
+    private TransactionTemplate transactionTemplate;
+    private ConversationRepository conversationRepository;
+    private User viewer;
+    private Message message;
+    private ReadMarks readMarks;
+    private InboxRow inboxRow;
+    private List<UserDTO> participants;
+    private long conversationId;
+
+    @Setup(Level.Trial)
+    public void seed() {
+        BenchContext context = BenchContext.get();
+        BenchData data = new BenchData(context);
+        chatService = context.bean(ChatService.class);
+        transactionTemplate = context.bean(TransactionTemplate.class);
+        conversationRepository = context.bean(ConversationRepository.class);
+
+        List<User> users = data.users("convert", 10);
+        viewer = users.get(0);
+        conversationId = data.group("Converter bench", users).getId();
+        data.messages(conversationId, users, 100);
+        data.analyze();
+
+        Conversation conversation = conversationRepository.findById(conversationId).orElseThrow();
+        message = context.bean(MessageRepository.class).findById(conversation.getLastMessageId()).orElseThrow();
+        readMarks = new ReadMarks(conversation.getLastMessageId() - 10, conversation.getLastMessageId() - 5);
+        inboxRow = conversationRepository.findInbox(viewer.getId(), Limit.of(1)).get(0);
+        participants = users.stream()
+                .map(user -> new UserDTO(user.getId(), user.getName(), user.getEmail(), user.getPictureUrl()))
+                .toList();
+    }
+
+    @Benchmark
+    public MessageDTO messageDTO() {
+        return chatService.convertToMessageDTO(message, readMarks, viewer);
+    }
+
+    @Benchmark
+    public ConversationDTO inboxRowDTO() {
+        return chatService.convertToConversationDTO(inboxRow, participants, viewer);
+    }
+
+    @Benchmark
+    public ConversationDTO conversationDTO() {
+        return transactionTemplate.execute(status -> chatService.convertToConversationDTO(
+                conversationRepository.getReferenceById(conversationId), viewer));
+    }
+}
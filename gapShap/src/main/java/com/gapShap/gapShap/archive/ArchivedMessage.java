@@ -0,0 +1,15 @@
+package com.gapShap.gapShap.archive;
+
+// A message as stored in a cold segment; senders are resolved by the reader, so renames still show
+public record ArchivedMessage(long id, long conversationId, long senderId, long sentAt, String content) {
+
+    // Segment order: by conversation, then send time, then id
+    int compareKey(long otherConversationId, long otherSentAt, long otherId) {
+        int byConversation = Long.compare(conversationId, otherConversationId);
+        if (byConversation != 0) {
+            return byConversation;
+        }
+        int bySentAt = Long.compare(sentAt, otherSentAt);
+        return bySentAt != 0 ? bySentAt : Long.compare(id, otherId);
+    }
+}
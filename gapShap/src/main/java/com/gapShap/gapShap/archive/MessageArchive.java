@@ -0,0 +1,199 @@
+package com.gapShap.gapShap.archive;
+
+import com.gapShap.gapShap.config.ChatProperties;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+// The cold tier of message storage: the segments listed in message_segments, read from the archive
+// directory. A month is listed in the same transaction that drops its partition, so every message
+// is in exactly one tier, and everything here is older than anything still in a partition.
+@Component
+public class MessageArchive {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageArchive.class);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Path directory;
+
+    // Open segments, oldest first; replaced wholesale on refresh
+    private volatile List<MessageSegment> segments = List.of();
+
+    @Autowired
+    public MessageArchive(JdbcTemplate jdbcTemplate, ChatProperties chatProperties) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.directory = Path.of(chatProperties.getArchive().getDirectory());
+    }
+
+    Path directory() {
+        return directory;
+    }
+
+    // Epoch millis before which messages live in segments rather than partitions; null while nothing is archived
+    public Long horizon() {
+        List<MessageSegment> current = segments;
+        return current.isEmpty() ? null : current.get(current.size() - 1).rangeEnd();
+    }
+
+    // Whether any segment may hold messages of the conversation; answered from the in-memory indexes
+    public boolean mayContain(long conversationId) {
+        for (MessageSegment segment : segments) {
+            if (segment.lastBlock(conversationId) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Archived messages of the conversation strictly older than the (sentAt, id) cursor, newest first.
+    // A null cursor starts from the newest archived message.
+    public List<ArchivedMessage> findBefore(long conversationId, Long sentAt, Long id, int limit) {
+        List<ArchivedMessage> found = new ArrayList<>();
+        List<MessageSegment> current = segments;
+        for (int s = current.size() - 1; s >= 0 && found.size() < limit; s--) {
+            MessageSegment segment = current.get(s);
+            if (sentAt != null && segment.rangeStart() > sentAt) {
+                continue;
+            }
+            int first = segment.firstBlock(conversationId);
+            for (int b = segment.lastBlock(conversationId); b >= first && found.size() < limit; b--) {
+                MessageSegment.Block block = segment.block(b);
+                if (sentAt != null
+                        && compare(block.firstConversationId(), block.firstSentAt(), block.firstId(),
+                                   conversationId, sentAt, id) >= 0) {
+                    continue;
+                }
+                List<ArchivedMessage> messages = read(segment, b);
+                for (int i = messages.size() - 1; i >= 0 && found.size() < limit; i--) {
+                    ArchivedMessage message = messages.get(i);
+                    if (message.conversationId() == conversationId
+                            && (sentAt == null || message.compareKey(conversationId, sentAt, id) < 0)) {
+                        found.add(message);
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    // Archived messages of the conversation strictly newer than the (sentAt, id) cursor, oldest first
+    public List<ArchivedMessage> findAfter(long conversationId, long sentAt, long id, int limit) {
+        List<ArchivedMessage> found = new ArrayList<>();
+        for (MessageSegment segment : segments) {
+            if (found.size() >= limit) {
+                break;
+            }
+            if (segment.rangeEnd() <= sentAt) {
+                continue;
+            }
+            int last = segment.lastBlock(conversationId);
+            for (int b = segment.firstBlock(conversationId); b <= last && found.size() < limit; b++) {
+                MessageSegment.Block block = segment.block(b);
+                if (compare(block.lastConversationId(), block.lastSentAt(), block.lastId(),
+                            conversationId, sentAt, id) <= 0) {
+                    continue;
+                }
+                for (ArchivedMessage message : read(segment, b)) {
+                    if (found.size() < limit && message.conversationId() == conversationId
+                            && message.compareKey(conversationId, sentAt, id) > 0) {
+                        found.add(message);
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    // Send time of an archived message, for resolving history cursors that point into the cold tier
+    public Optional<Long> findSentAt(long conversationId, long id) {
+        for (MessageSegment segment : segments) {
+            int last = segment.lastBlock(conversationId);
+            for (int b = segment.firstBlock(conversationId); b <= last; b++) {
+                for (ArchivedMessage message : read(segment, b)) {
+                    if (message.id() == id && message.conversationId() == conversationId) {
+                        return Optional.of(message.sentAt());
+                    }
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    // Every archived message of the conversation, oldest first, inflating one block at a time
+    public void forEach(long conversationId, Consumer<ArchivedMessage> action) {
+        for (MessageSegment segment : segments) {
+            int last = segment.lastBlock(conversationId);
+            for (int b = segment.firstBlock(conversationId); b <= last; b++) {
+                for (ArchivedMessage message : read(segment, b)) {
+                    if (message.conversationId() == conversationId) {
+                        action.accept(message);
+                    }
+                }
+            }
+        }
+    }
+
+    // Re-read message_segments, opening segments archived since the last refresh (possibly by another node)
+    synchronized void refresh() {
+        List<String> names = jdbcTemplate.queryForList(
+                "SELECT name FROM message_segments ORDER BY range_start", String.class);
+        Map<String, MessageSegment> open = new HashMap<>();
+        for (MessageSegment segment : segments) {
+            open.put(segment.name(), segment);
+        }
+        List<MessageSegment> refreshed = new ArrayList<>(names.size());
+        for (String name : names) {
+            MessageSegment segment = open.remove(name);
+            if (segment == null) {
+                try {
+                    segment = MessageSegment.open(name, directory.resolve(name + ".seg"));
+                } catch (IOException e) {
+                    // Without it the month's messages are unreachable, so say so loudly and retry next refresh
+                    log.error("Cannot open message segment {} in {}", name, directory, e);
+                    continue;
+                }
+            }
+            refreshed.add(segment);
+        }
+        segments = List.copyOf(refreshed);
+        // Segments no longer listed are left open: a reader may still hold the previous list
+    }
+
+    @PreDestroy
+    void close() {
+        for (MessageSegment segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                log.debug("Closing message segment {} failed", segment.name(), e);
+            }
+        }
+    }
+
+    private static List<ArchivedMessage> read(MessageSegment segment, int block) {
+        try {
+            return segment.readBlock(block);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read message segment " + segment.name(), e);
+        }
+    }
+
+    private static int compare(long conversationId, long sentAt, long id,
+                               long otherConversationId, long otherSentAt, long otherId) {
+        return new ArchivedMessage(id, conversationId, 0, sentAt, "")
+                .compareKey(otherConversationId, otherSentAt, otherId);
+    }
+}
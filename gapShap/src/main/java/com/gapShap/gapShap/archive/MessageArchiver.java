@@ -0,0 +1,220 @@
+package com.gapShap.gapShap.archive;
+
+import com.gapShap.gapShap.config.ChatProperties;
+import com.gapShap.gapShap.service.ConversationVersions;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Keeps the monthly message partitions in shape: creates them ahead of time and, when archiving is
+// enabled, moves months past the hot retention into segment files and drops their partitions.
+// A month only leaves the database once its segment is durable and has been read back, and it is
+// listed in message_segments in the same transaction that drops it.
+@Component
+public class MessageArchiver {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageArchiver.class);
+
+    private static final Pattern PARTITION_NAME = Pattern.compile("messages_(\\d{4})_(\\d{2})");
+    // Rows pulled per round trip while a partition is written out
+    private static final int FETCH_SIZE = 1000;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final MessageArchive archive;
+    private final ConversationVersions versions;
+    private final ChatProperties.Archive settings;
+
+    private ScheduledExecutorService scheduler;
+
+    @Autowired
+    public MessageArchiver(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                           MessageArchive archive, ConversationVersions versions, ChatProperties chatProperties) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.archive = archive;
+        this.versions = versions;
+        this.settings = chatProperties.getArchive();
+    }
+
+    // Started once the schema scripts have run, so the partitioning is in place
+    @EventListener(ApplicationReadyEvent.class)
+    void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "message-archiver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = settings.getCheckInterval().toMillis();
+        scheduler.scheduleWithFixedDelay(this::check, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    void check() {
+        try {
+            ensurePartitions();
+            if (settings.isEnabled()) {
+                archiveExpired();
+            }
+        } catch (RuntimeException e) {
+            // Nothing is lost: the month stays in its partition and is tried again next time
+            log.warn("Message archiving failed", e);
+        }
+        try {
+            archive.refresh();
+        } catch (RuntimeException e) {
+            log.warn("Refreshing the message segment list failed", e);
+        }
+    }
+
+    private void ensurePartitions() {
+        LocalDateTime now = LocalDateTime.now();
+        try {
+            jdbcTemplate.queryForList("SELECT ensure_message_partitions(?, ?)",
+                    Timestamp.valueOf(now), Timestamp.valueOf(now.plusMonths(settings.getPartitionsAhead())));
+        } catch (DataAccessException e) {
+            // Another node creating the same partition at the same moment; it exists either way
+            log.debug("Creating message partitions raced with another node", e);
+        }
+    }
+
+    private void archiveExpired() {
+        LocalDateTime cutoff = LocalDateTime.now().minus(settings.getHotRetention());
+        List<String> partitions = jdbcTemplate.queryForList("""
+                SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+                WHERE i.inhparent = 'messages'::regclass ORDER BY c.relname
+                """, String.class);
+        // Oldest first, stopping at the first month still hot, so archived months stay contiguous
+        for (String partition : partitions) {
+            Matcher matcher = PARTITION_NAME.matcher(partition);
+            if (!matcher.matches()) {
+                continue;
+            }
+            LocalDateTime start = LocalDate.of(Integer.parseInt(matcher.group(1)),
+                    Integer.parseInt(matcher.group(2)), 1).atStartOfDay();
+            LocalDateTime end = start.plusMonths(1);
+            if (end.isAfter(cutoff)) {
+                break;
+            }
+            archive(partition, start, end);
+        }
+    }
+
+    private void archive(String partition, LocalDateTime start, LocalDateTime end) {
+        Path directory = archive.directory();
+        Path target = directory.resolve(partition + ".seg");
+        long written;
+        try {
+            Files.createDirectories(directory);
+            written = writeSegment(partition, start, end, directory.resolve(partition + ".seg.tmp"), target);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write message segment " + target, e);
+        }
+
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                // Hold off writers while the partition is compared with its segment and dropped
+                jdbcTemplate.execute("LOCK TABLE " + partition + " IN SHARE MODE");
+                Long count = jdbcTemplate.queryForObject("SELECT count(*) FROM " + partition, Long.class);
+                if (count == null || count != written) {
+                    throw new IllegalStateException("Partition " + partition + " changed while it was archived");
+                }
+                jdbcTemplate.update("""
+                        INSERT INTO message_segments (name, range_start, range_end, message_count)
+                        VALUES (?, ?, ?, ?)
+                        """, partition, Timestamp.valueOf(start), Timestamp.valueOf(end), written);
+                jdbcTemplate.execute("ALTER TABLE messages DETACH PARTITION " + partition);
+                jdbcTemplate.execute("DROP TABLE " + partition);
+            });
+        } catch (RuntimeException e) {
+            deleteQuietly(target);
+            throw e;
+        }
+        // Inbox summaries only look at the partitions, so the month's last messages just dropped out of them
+        versions.everythingChanged();
+        log.info("Archived {} messages of {} to {}", written, partition, target);
+    }
+
+    // Write the partition to a temporary file, make it durable, move it into place and read it back
+    private long writeSegment(String partition, LocalDateTime start, LocalDateTime end, Path temp, Path target)
+            throws IOException {
+        Files.deleteIfExists(temp);
+        long written;
+        try (MessageSegmentWriter writer = new MessageSegmentWriter(temp, Timestamp.valueOf(start).getTime(),
+                Timestamp.valueOf(end).getTime(), settings.getBlockMessages())) {
+            // Cursor-based reads need a transaction; times are cut to the millisecond the tiers agree on
+            transactionTemplate.executeWithoutResult(status -> jdbcTemplate.query(connection -> {
+                PreparedStatement statement = connection.prepareStatement(
+                        "SELECT id, conversation_id, sender_id, date_trunc('milliseconds', sent_at) AS sent_at, content"
+                                + " FROM " + partition + " ORDER BY conversation_id, 4, id");
+                statement.setFetchSize(FETCH_SIZE);
+                return statement;
+            }, resultSet -> {
+                writer.append(new ArchivedMessage(resultSet.getLong(1), resultSet.getLong(2), resultSet.getLong(3),
+                        resultSet.getTimestamp(4).getTime(), resultSet.getString(5)));
+            }));
+            written = writer.finish();
+        } catch (IOException | RuntimeException e) {
+            deleteQuietly(temp);
+            throw e;
+        }
+
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel directory = FileChannel.open(target.getParent(), StandardOpenOption.READ)) {
+            // Makes the rename itself durable
+            directory.force(true);
+        } catch (IOException e) {
+            log.debug("Cannot sync directory {}", target.getParent(), e);
+        }
+        try (MessageSegment segment = MessageSegment.open(partition, target)) {
+            if (segment.messageCount() != written) {
+                throw new IOException("Segment " + target + " holds " + segment.messageCount()
+                        + " messages, expected " + written);
+            }
+        } catch (IOException e) {
+            deleteQuietly(target);
+            throw e;
+        }
+        return written;
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Cannot delete {}", path, e);
+        }
+    }
+}
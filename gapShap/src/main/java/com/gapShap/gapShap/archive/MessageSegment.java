@@ -0,0 +1,161 @@
+package com.gapShap.gapShap.archive;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+
+// A cold segment opened for reading: the sparse index is held in memory, blocks are read with
+// positional reads and inflated on demand, so one open segment is safe to share between threads
+final class MessageSegment implements Closeable {
+
+    // Index entry of one block: its first and last key, where it is and how many messages it holds
+    record Block(long firstConversationId, long firstSentAt, long firstId,
+                 long lastConversationId, long lastSentAt, long lastId,
+                 long offset, int length, int count) {
+    }
+
+    private final String name;
+    private final long rangeStart;
+    private final long rangeEnd;
+    private final long messageCount;
+    private final Block[] blocks;
+    private final FileChannel channel;
+
+    private MessageSegment(String name, long rangeStart, long rangeEnd, long messageCount, Block[] blocks,
+                           FileChannel channel) {
+        this.name = name;
+        this.rangeStart = rangeStart;
+        this.rangeEnd = rangeEnd;
+        this.messageCount = messageCount;
+        this.blocks = blocks;
+        this.channel = channel;
+    }
+
+    static MessageSegment open(String name, Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = read(channel, 0, MessageSegmentWriter.HEADER_BYTES);
+            ByteBuffer footer = read(channel, channel.size() - MessageSegmentWriter.FOOTER_BYTES,
+                    MessageSegmentWriter.FOOTER_BYTES);
+            long indexOffset = footer.getLong();
+            int blockCount = footer.getInt();
+            long messageCount = footer.getLong();
+            if (header.getLong() != MessageSegmentWriter.MAGIC || footer.getLong() != MessageSegmentWriter.MAGIC) {
+                throw new IOException("Not a complete message segment: " + path);
+            }
+            long rangeStart = header.getLong();
+            long rangeEnd = header.getLong();
+
+            ByteBuffer entries = read(channel, indexOffset, blockCount * MessageSegmentWriter.INDEX_ENTRY_BYTES);
+            Block[] blocks = new Block[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                blocks[i] = new Block(entries.getLong(), entries.getLong(), entries.getLong(),
+                        entries.getLong(), entries.getLong(), entries.getLong(),
+                        entries.getLong(), entries.getInt(), entries.getInt());
+            }
+            return new MessageSegment(name, rangeStart, rangeEnd, messageCount, blocks, channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    String name() {
+        return name;
+    }
+
+    long rangeStart() {
+        return rangeStart;
+    }
+
+    long rangeEnd() {
+        return rangeEnd;
+    }
+
+    long messageCount() {
+        return messageCount;
+    }
+
+    // Index of the first block that may hold messages of the conversation, or blockCount() if none does
+    int firstBlock(long conversationId) {
+        int low = 0;
+        int high = blocks.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (blocks[mid].lastConversationId() < conversationId) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low < blocks.length && blocks[low].firstConversationId() <= conversationId ? low : blocks.length;
+    }
+
+    // Index of the last block that may hold messages of the conversation, or -1 if none does
+    int lastBlock(long conversationId) {
+        int low = 0;
+        int high = blocks.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (blocks[mid].firstConversationId() <= conversationId) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low > 0 && blocks[low - 1].lastConversationId() >= conversationId ? low - 1 : -1;
+    }
+
+    int blockCount() {
+        return blocks.length;
+    }
+
+    Block block(int index) {
+        return blocks[index];
+    }
+
+    // Inflate one block, its messages in segment order
+    List<ArchivedMessage> readBlock(int index) throws IOException {
+        Block block = blocks[index];
+        ByteBuffer compressed = read(channel, block.offset(), block.length());
+        List<ArchivedMessage> messages = new ArrayList<>(block.count());
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(
+                new ByteArrayInputStream(compressed.array(), 0, block.length())))) {
+            for (int i = 0; i < block.count(); i++) {
+                long id = in.readLong();
+                long conversationId = in.readLong();
+                long senderId = in.readLong();
+                long sentAt = in.readLong();
+                byte[] content = new byte[in.readInt()];
+                in.readFully(content);
+                messages.add(new ArchivedMessage(id, conversationId, senderId, sentAt,
+                        new String(content, StandardCharsets.UTF_8)));
+            }
+        }
+        return messages;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Message segment is truncated");
+            }
+        }
+        return buffer.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
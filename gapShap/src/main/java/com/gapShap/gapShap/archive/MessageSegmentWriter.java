@@ -0,0 +1,129 @@
+package com.gapShap.gapShap.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+// Writes one cold segment. Messages must arrive in segment order and are packed into blocks that
+// are deflated one at a time; a sparse index with the first and last key of every block follows
+// them, so readers inflate only the blocks of the conversation they are after. Layout:
+//   header: magic, range start, range end (epoch millis)
+//   blocks: deflated records of id, conversation id, sender id, sent at, content length, content
+//   index:  per block its first and last key, file offset, compressed length and record count
+//   footer: index offset, block count, message count, magic
+final class MessageSegmentWriter implements Closeable {
+
+    static final long MAGIC = 0x4753_4D53_4547_3031L; // "GSMSEG01"
+    static final int HEADER_BYTES = 24;
+    static final int INDEX_ENTRY_BYTES = 6 * 8 + 8 + 4 + 4;
+    static final int FOOTER_BYTES = 8 + 4 + 8 + 8;
+
+    private final FileChannel channel;
+    private final int blockMessages;
+    private final ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+    private final DataOutputStream block = new DataOutputStream(blockBytes);
+    private final List<MessageSegment.Block> index = new ArrayList<>();
+    private final Deflater deflater = new Deflater();
+    private byte[] compressed = new byte[64 * 1024];
+
+    private long position;
+    private long messageCount;
+    private int blockCount;
+    private ArchivedMessage first;
+    private ArchivedMessage last;
+
+    MessageSegmentWriter(Path path, long rangeStart, long rangeEnd, int blockMessages) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.blockMessages = blockMessages;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putLong(MAGIC).putLong(rangeStart).putLong(rangeEnd);
+        write(header.flip());
+    }
+
+    void append(ArchivedMessage message) {
+        if (last != null && message.compareKey(last.conversationId(), last.sentAt(), last.id()) <= 0) {
+            throw new IllegalArgumentException("Messages must be appended in segment order");
+        }
+        try {
+            byte[] content = message.content().getBytes(StandardCharsets.UTF_8);
+            block.writeLong(message.id());
+            block.writeLong(message.conversationId());
+            block.writeLong(message.senderId());
+            block.writeLong(message.sentAt());
+            block.writeInt(content.length);
+            block.write(content);
+            if (first == null) {
+                first = message;
+            }
+            last = message;
+            messageCount++;
+            if (++blockCount == blockMessages) {
+                flushBlock();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Write the index and footer and force everything to disk; returns the number of messages written
+    long finish() throws IOException {
+        flushBlock();
+        long indexOffset = position;
+        ByteBuffer entries = ByteBuffer.allocate(index.size() * INDEX_ENTRY_BYTES);
+        for (MessageSegment.Block entry : index) {
+            entries.putLong(entry.firstConversationId()).putLong(entry.firstSentAt()).putLong(entry.firstId())
+                    .putLong(entry.lastConversationId()).putLong(entry.lastSentAt()).putLong(entry.lastId())
+                    .putLong(entry.offset()).putInt(entry.length()).putInt(entry.count());
+        }
+        write(entries.flip());
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_BYTES)
+                .putLong(indexOffset).putInt(index.size()).putLong(messageCount).putLong(MAGIC);
+        write(footer.flip());
+        channel.force(true);
+        return messageCount;
+    }
+
+    private void flushBlock() throws IOException {
+        if (blockCount == 0) {
+            return;
+        }
+        deflater.reset();
+        deflater.setInput(blockBytes.toByteArray());
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        index.add(new MessageSegment.Block(first.conversationId(), first.sentAt(), first.id(),
+                last.conversationId(), last.sentAt(), last.id(), position, length, blockCount));
+        write(ByteBuffer.wrap(compressed, 0, length));
+        blockBytes.reset();
+        blockCount = 0;
+        first = null;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        deflater.end();
+        channel.close();
+    }
+}
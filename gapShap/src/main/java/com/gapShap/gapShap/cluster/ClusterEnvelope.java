@@ -0,0 +1,28 @@
+package com.gapShap.gapShap.cluster;
+
+import java.util.List;
+
+// What nodes exchange over the relay: messages for users connected elsewhere, the session
+// changes that keep every node's view of who is connected where up to date, and data changes
+// that invalidate the ETags and cached users other nodes hand out
+public record ClusterEnvelope(Type type, String originNode, List<String> users, String destination,
+                              String payload) {
+
+    public enum Type {
+        // Deliver payload to whichever of the users are connected to the receiving node
+        DELIVER,
+        // Publish payload to the destination topic on the receiving node's broker
+        BROADCAST,
+        // The users opened their first session on the origin node
+        ONLINE,
+        // The users closed their last session on the origin node
+        OFFLINE,
+        // Every user connected to the origin node; also serves as the node's heartbeat
+        SNAPSHOT,
+        // The users' inboxes changed, and so did the conversation whose id is the payload, if any;
+        // with neither, anything may have changed
+        CHANGED,
+        // The users' names, emails or pictures changed
+        PROFILE
+    }
+}
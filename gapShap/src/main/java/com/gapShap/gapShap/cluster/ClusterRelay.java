@@ -0,0 +1,13 @@
+package com.gapShap.gapShap.cluster;
+
+import java.util.function.Consumer;
+
+// Carries envelopes between the nodes of a cluster. Implementations broadcast: every node,
+// the publishing one included, receives each envelope, in publish order per publisher.
+public interface ClusterRelay {
+
+    void publish(ClusterEnvelope envelope);
+
+    // Handlers run on the relay's delivery thread and should not block
+    void subscribe(Consumer<ClusterEnvelope> handler);
+}
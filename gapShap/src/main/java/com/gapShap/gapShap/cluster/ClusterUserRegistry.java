@@ -0,0 +1,179 @@
+package com.gapShap.gapShap.cluster;
+
+import com.gapShap.gapShap.config.ChatProperties;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.SessionConnectedEvent;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Cluster-wide view of which node each user is connected to. Local STOMP sessions are tracked
+// from session events; other nodes announce their users' first and last sessions and send a
+// full snapshot on every heartbeat, and a node that stops sending them is forgotten.
+@Component
+public class ClusterUserRegistry {
+
+    private final ChatProperties.Cluster settings;
+    private final ClusterRelay relay;
+    private final String nodeId;
+
+    // Users connected to this node, with their session ids
+    private final Map<String, Set<String>> localSessions = new ConcurrentHashMap<>();
+    private final Map<String, RemoteNode> remoteNodes = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService heartbeat;
+
+    private static final class RemoteNode {
+        private final Set<String> users = ConcurrentHashMap.newKeySet();
+        private volatile long lastSeen = System.currentTimeMillis();
+    }
+
+    @Autowired
+    public ClusterUserRegistry(ChatProperties chatProperties, ObjectProvider<ClusterRelay> relay) {
+        this.settings = chatProperties.getCluster();
+        this.relay = relay.getIfAvailable();
+        this.nodeId = settings.getNodeId() != null ? settings.getNodeId() : UUID.randomUUID().toString();
+    }
+
+    // Without a relay this is a single node and no one else needs to know about its sessions
+    public boolean isClustered() {
+        return relay != null;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public boolean isLocal(String user) {
+        return localSessions.containsKey(user);
+    }
+
+    // Whether the user has a session on any other node
+    public boolean isRemote(String user) {
+        for (RemoteNode node : remoteNodes.values()) {
+            if (node.users.contains(user)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @PostConstruct
+    void start() {
+        if (relay == null) {
+            return;
+        }
+        relay.subscribe(this::onEnvelope);
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = settings.getHeartbeatInterval().toMillis();
+        heartbeat.scheduleAtFixedRate(this::beat, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        if (heartbeat == null) {
+            return;
+        }
+        heartbeat.shutdownNow();
+        // An empty snapshot tells the other nodes to stop relaying to this one straight away
+        relay.publish(new ClusterEnvelope(ClusterEnvelope.Type.SNAPSHOT, nodeId, List.of(), null, null));
+    }
+
+    @EventListener
+    public void onSessionConnected(SessionConnectedEvent event) {
+        Principal user = event.getUser();
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(event.getMessage().getHeaders());
+        if (user == null || sessionId == null) {
+            return;
+        }
+        boolean[] first = {false};
+        localSessions.compute(user.getName(), (name, sessions) -> {
+            if (sessions == null) {
+                sessions = new HashSet<>();
+                first[0] = true;
+            }
+            sessions.add(sessionId);
+            return sessions;
+        });
+        if (first[0] && relay != null) {
+            relay.publish(new ClusterEnvelope(ClusterEnvelope.Type.ONLINE, nodeId, List.of(user.getName()), null, null));
+        }
+    }
+
+    // Disconnect events can arrive more than once for a session, so removal is idempotent
+    @EventListener
+    public void onSessionDisconnected(SessionDisconnectEvent event) {
+        Principal user = event.getUser();
+        if (user == null) {
+            return;
+        }
+        boolean[] last = {false};
+        localSessions.computeIfPresent(user.getName(), (name, sessions) -> {
+            if (sessions.remove(event.getSessionId()) && sessions.isEmpty()) {
+                last[0] = true;
+                return null;
+            }
+            return sessions;
+        });
+        if (last[0] && relay != null) {
+            relay.publish(new ClusterEnvelope(ClusterEnvelope.Type.OFFLINE, nodeId, List.of(user.getName()), null, null));
+        }
+    }
+
+    private void beat() {
+        publishSnapshot();
+        long cutoff = System.currentTimeMillis() - settings.getNodeTimeout().toMillis();
+        remoteNodes.values().removeIf(node -> node.lastSeen < cutoff);
+    }
+
+    private void publishSnapshot() {
+        List<String> users = new ArrayList<>(localSessions.keySet());
+        relay.publish(new ClusterEnvelope(ClusterEnvelope.Type.SNAPSHOT, nodeId, users, null, null));
+    }
+
+    private void onEnvelope(ClusterEnvelope envelope) {
+        if (nodeId.equals(envelope.originNode())) {
+            return;
+        }
+        switch (envelope.type()) {
+            case ONLINE -> remoteNode(envelope.originNode()).users.addAll(envelope.users());
+            case OFFLINE -> remoteNode(envelope.originNode()).users.removeAll(envelope.users());
+            case SNAPSHOT -> {
+                RemoteNode node = new RemoteNode();
+                node.users.addAll(envelope.users());
+                // A node we have not heard from yet gets our snapshot now rather than at our next beat
+                if (remoteNodes.put(envelope.originNode(), node) == null) {
+                    publishSnapshot();
+                }
+            }
+            default -> {
+            }
+        }
+    }
+
+    private RemoteNode remoteNode(String nodeId) {
+        RemoteNode node = remoteNodes.computeIfAbsent(nodeId, id -> new RemoteNode());
+        node.lastSeen = System.currentTimeMillis();
+        return node;
+    }
+}
@@ -0,0 +1,72 @@
+package com.gapShap.gapShap.cluster;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+// In-process stand-in for a real relay: every application context in this JVM that uses the
+// same channel acts as a separate node, so multi-node delivery can be exercised on one machine
+public class LoopbackClusterRelay implements ClusterRelay {
+
+    private static final Logger log = LoggerFactory.getLogger(LoopbackClusterRelay.class);
+
+    private static final Map<String, List<LoopbackClusterRelay>> CHANNELS = new ConcurrentHashMap<>();
+
+    private final String channel;
+    private final List<Consumer<ClusterEnvelope>> handlers = new CopyOnWriteArrayList<>();
+    // One delivery thread per node, like the listener connection of a networked relay
+    private final ExecutorService delivery;
+
+    public LoopbackClusterRelay(String channel) {
+        this.channel = channel;
+        this.delivery = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-loopback-relay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        CHANNELS.computeIfAbsent(channel, key -> new CopyOnWriteArrayList<>()).add(this);
+    }
+
+    @Override
+    public void publish(ClusterEnvelope envelope) {
+        for (LoopbackClusterRelay node : CHANNELS.getOrDefault(channel, List.of())) {
+            node.deliver(envelope);
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<ClusterEnvelope> handler) {
+        handlers.add(handler);
+    }
+
+    private void deliver(ClusterEnvelope envelope) {
+        try {
+            delivery.execute(() -> {
+                for (Consumer<ClusterEnvelope> handler : handlers) {
+                    try {
+                        handler.accept(envelope);
+                    } catch (RuntimeException e) {
+                        log.warn("Cluster envelope handler failed", e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The node is shutting down
+        }
+    }
+
+    @PreDestroy
+    void stop() {
+        CHANNELS.getOrDefault(channel, List.of()).remove(this);
+        delivery.shutdown();
+    }
+}
@@ -0,0 +1,221 @@
+package com.gapShap.gapShap.cluster;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+// Relays envelopes over Postgres LISTEN/NOTIFY, so a cluster needs nothing beyond the database
+// its nodes already share. NOTIFY payloads must stay under 8000 bytes; larger envelopes are
+// sent as numbered frames and put back together by the listener.
+public class PostgresClusterRelay implements ClusterRelay {
+
+    private static final Logger log = LoggerFactory.getLogger(PostgresClusterRelay.class);
+
+    private static final Pattern CHANNEL_NAME = Pattern.compile("[a-z_][a-z0-9_]*");
+    private static final int MAX_FRAME_BYTES = 7_800;
+    // A UTF-16 char is at most 3 UTF-8 bytes (surrogate pairs take 4 for 2 chars)
+    private static final int MAX_FRAME_CHARS = MAX_FRAME_BYTES / 3;
+    private static final int MAX_PARTIAL_ENVELOPES = 256;
+
+    private final String channel;
+    private final String url;
+    private final String username;
+    private final String password;
+    private final JdbcTemplate jdbcTemplate;
+    private final ObjectMapper objectMapper;
+    private final List<Consumer<ClusterEnvelope>> handlers = new CopyOnWriteArrayList<>();
+
+    private final String relayId = UUID.randomUUID().toString();
+    private final AtomicLong sequence = new AtomicLong();
+    // Frames of envelopes still being received, only touched by the listener thread
+    private final Map<String, String[]> partial = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+            return size() > MAX_PARTIAL_ENVELOPES;
+        }
+    };
+
+    private volatile boolean running;
+    private Thread listener;
+
+    public PostgresClusterRelay(String channel, String url, String username, String password,
+            JdbcTemplate jdbcTemplate, ObjectMapper objectMapper) {
+        if (!CHANNEL_NAME.matcher(channel).matches()) {
+            throw new IllegalArgumentException("Invalid cluster channel name: " + channel);
+        }
+        this.channel = channel;
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.jdbcTemplate = jdbcTemplate;
+        this.objectMapper = objectMapper;
+    }
+
+    @PostConstruct
+    void start() {
+        running = true;
+        listener = new Thread(this::listen, "cluster-postgres-relay");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        running = false;
+        listener.interrupt();
+        listener.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    // Inside a transaction the notifications only go out on commit, together
+    @Override
+    public void publish(ClusterEnvelope envelope) {
+        String json;
+        try {
+            json = objectMapper.writeValueAsString(envelope);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not encode cluster envelope", e);
+        }
+
+        String envelopeId = relayId + "-" + sequence.incrementAndGet();
+        if (json.getBytes(StandardCharsets.UTF_8).length <= MAX_FRAME_BYTES) {
+            notify(envelopeId + " 0 1 " + json);
+            return;
+        }
+        List<String> chunks = split(json);
+        for (int i = 0; i < chunks.size(); i++) {
+            notify(envelopeId + " " + i + " " + chunks.size() + " " + chunks.get(i));
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<ClusterEnvelope> handler) {
+        handlers.add(handler);
+    }
+
+    private void notify(String frame) {
+        jdbcTemplate.queryForList("SELECT pg_notify(?, ?)", channel, frame);
+    }
+
+    private List<String> split(String json) {
+        List<String> chunks = new ArrayList<>();
+        int start = 0;
+        while (start < json.length()) {
+            int end = Math.min(start + MAX_FRAME_CHARS, json.length());
+            // Never cut a surrogate pair in half
+            if (end < json.length() && Character.isHighSurrogate(json.charAt(end - 1))) {
+                end--;
+            }
+            chunks.add(json.substring(start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    // LISTEN on a connection of its own: a pooled one would be handed back and lose the subscription
+    private void listen() {
+        while (running) {
+            try (Connection connection = DriverManager.getConnection(url, username, password)) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("LISTEN " + channel);
+                }
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                while (running) {
+                    PGNotification[] notifications = pgConnection.getNotifications(500);
+                    if (notifications != null) {
+                        for (PGNotification notification : notifications) {
+                            // Anyone with database access can NOTIFY the channel; a bad frame must not end the listener
+                            try {
+                                receive(notification.getParameter());
+                            } catch (RuntimeException e) {
+                                log.warn("Dropping malformed cluster frame from backend {}", notification.getPID(), e);
+                            }
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                if (!running) {
+                    return;
+                }
+                log.warn("Cluster relay lost its listener connection, reconnecting", e);
+                try {
+                    Thread.sleep(1_000);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // A frame is "<envelope id> <index> <count> <chunk>"
+    private void receive(String frame) {
+        int first = frame.indexOf(' ');
+        int second = frame.indexOf(' ', first + 1);
+        int third = frame.indexOf(' ', second + 1);
+        if (first <= 0 || second < 0 || third < 0) {
+            throw new IllegalArgumentException("Frame header is incomplete");
+        }
+        String envelopeId = frame.substring(0, first);
+        int index = Integer.parseInt(frame.substring(first + 1, second));
+        int count = Integer.parseInt(frame.substring(second + 1, third));
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Frame " + index + " of " + count + " is out of range");
+        }
+        String chunk = frame.substring(third + 1);
+
+        String json;
+        if (count == 1) {
+            json = chunk;
+        } else {
+            String[] frames = partial.computeIfAbsent(envelopeId, key -> new String[count]);
+            if (frames.length != count) {
+                partial.remove(envelopeId);
+                throw new IllegalArgumentException("Frames of envelope " + envelopeId + " disagree on their count");
+            }
+            frames[index] = chunk;
+            for (String received : frames) {
+                if (received == null) {
+                    return;
+                }
+            }
+            partial.remove(envelopeId);
+            json = String.join("", frames);
+        }
+
+        ClusterEnvelope envelope;
+        try {
+            envelope = objectMapper.readValue(json, ClusterEnvelope.class);
+        } catch (JsonProcessingException e) {
+            log.warn("Dropping undecodable cluster envelope", e);
+            return;
+        }
+        for (Consumer<ClusterEnvelope> handler : handlers) {
+            try {
+                handler.accept(envelope);
+            } catch (RuntimeException e) {
+                log.warn("Cluster envelope handler failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.gapShap.gapShap.cluster;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gapShap.gapShap.dto.MessageDTO;
+import com.gapShap.gapShap.wire.CompactMessageFormat;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Service;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.util.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+// Sends to user destinations and topics across the cluster. Payloads are serialized once; chat
+// messages are marked so sessions that asked for the compact encoding can share one conversion.
+// Recipients connected to this node get the message from the local broker; the ones connected
+// elsewhere share one relay envelope, which their nodes hand to their own brokers.
+@Service
+public class UserMessageDispatcher {
+
+    private final SimpMessagingTemplate messagingTemplate;
+    private final ClusterUserRegistry userRegistry;
+    private final ObjectMapper objectMapper;
+    private final CompactMessageFormat compactFormat;
+    private final ClusterRelay relay;
+
+    @Autowired
+    public UserMessageDispatcher(SimpMessagingTemplate messagingTemplate,
+            ClusterUserRegistry userRegistry,
+            ObjectMapper objectMapper,
+            CompactMessageFormat compactFormat,
+            ObjectProvider<ClusterRelay> relay) {
+        this.messagingTemplate = messagingTemplate;
+        this.userRegistry = userRegistry;
+        this.objectMapper = objectMapper;
+        this.compactFormat = compactFormat;
+        this.relay = relay.getIfAvailable();
+    }
+
+    @PostConstruct
+    void start() {
+        if (relay != null) {
+            relay.subscribe(this::onEnvelope);
+        }
+    }
+
+    // Serialized once; each recipient's broker delivery reuses the same bytes
+    public void sendToUsers(Collection<String> users, String destination, Object payload) {
+        byte[] json = encode(payload);
+        Message<byte[]> message = jsonMessage(json, payload instanceof MessageDTO);
+        List<String> remote = new ArrayList<>();
+        for (String user : users) {
+            // Without a cluster, send regardless and let the broker drop it if the user isn't connected
+            if (!userRegistry.isClustered() || userRegistry.isLocal(user)) {
+                messagingTemplate.send(userDestination(user, destination), message);
+            }
+            // A user can have sessions on several nodes at once
+            if (userRegistry.isClustered() && userRegistry.isRemote(user)) {
+                remote.add(user);
+            }
+        }
+        if (!remote.isEmpty()) {
+            relay.publish(new ClusterEnvelope(ClusterEnvelope.Type.DELIVER, userRegistry.getNodeId(), remote,
+                    destination, new String(json, StandardCharsets.UTF_8)));
+        }
+    }
+
+    // To one session of a user, such as the one whose frame is being answered; it is connected here
+    public void sendToSession(String user, String sessionId, String destination, Object payload) {
+        Message<byte[]> message = MessageBuilder.fromMessage(jsonMessage(encode(payload), false))
+                .setHeader(SimpMessageHeaderAccessor.SESSION_ID_HEADER, sessionId)
+                .build();
+        messagingTemplate.send(userDestination(user, destination), message);
+    }
+
+    // Publish once to a topic; the broker hands the same bytes to every subscriber. The audience
+    // only decides whether other nodes need a copy for subscribers connected to them.
+    public void sendToTopic(String destination, Object payload, Collection<String> audience) {
+        byte[] json = encode(payload);
+        messagingTemplate.send(destination, jsonMessage(json, payload instanceof MessageDTO));
+        if (userRegistry.isClustered() && audience.stream().anyMatch(userRegistry::isRemote)) {
+            relay.publish(new ClusterEnvelope(ClusterEnvelope.Type.BROADCAST, userRegistry.getNodeId(), List.of(),
+                    destination, new String(json, StandardCharsets.UTF_8)));
+        }
+    }
+
+    private void onEnvelope(ClusterEnvelope envelope) {
+        if (userRegistry.getNodeId().equals(envelope.originNode())) {
+            return;
+        }
+        if (envelope.type() != ClusterEnvelope.Type.BROADCAST && envelope.type() != ClusterEnvelope.Type.DELIVER) {
+            // Session and data changes, which carry no payload; the registry and version counters take those
+            return;
+        }
+        // Already JSON, so it goes out as is
+        Message<byte[]> message = jsonMessage(envelope.payload().getBytes(StandardCharsets.UTF_8),
+                compactFormat.carriesMessages(envelope.destination()));
+        if (envelope.type() == ClusterEnvelope.Type.BROADCAST) {
+            messagingTemplate.send(envelope.destination(), message);
+        } else if (envelope.type() == ClusterEnvelope.Type.DELIVER) {
+            for (String user : envelope.users()) {
+                if (userRegistry.isLocal(user)) {
+                    messagingTemplate.send(userDestination(user, envelope.destination()), message);
+                }
+            }
+        }
+    }
+
+    private byte[] encode(Object payload) {
+        try {
+            return objectMapper.writeValueAsBytes(payload);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not encode message", e);
+        }
+    }
+
+    // Sent as a ready-made message so the template's converters don't touch the payload again
+    private Message<byte[]> jsonMessage(byte[] json, boolean chatMessage) {
+        return MessageBuilder.withPayload(json)
+                .setHeader(MessageHeaders.CONTENT_TYPE, MimeTypeUtils.APPLICATION_JSON)
+                // Left out when null
+                .setHeader(CompactMessageFormat.DEFERRED_HEADER, chatMessage ? new CompactMessageFormat.Deferred() : null)
+                .build();
+    }
+
+    // Same form convertAndSendToUser builds: /user/{name}/{destination}
+    private String userDestination(String user, String destination) {
+        return messagingTemplate.getUserDestinationPrefix() + StringUtils.replace(user, "/", "%2F") + destination;
+    }
+}
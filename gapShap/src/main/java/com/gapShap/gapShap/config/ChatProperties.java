@@ -0,0 +1,611 @@
+package com.gapShap.gapShap.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+// Tunables for the chat hot paths, bound from the gapshap.chat.* properties
+@ConfigurationProperties(prefix = "gapshap.chat")
+public class ChatProperties {
+    
+    private final Ingest ingest = new Ingest();
+    private final MembershipCache membershipCache = new MembershipCache();
+    private final UserCache userCache = new UserCache();
+    private final RecentMessages recentMessages = new RecentMessages();
+    private final Versions versions = new Versions();
+    private final Dedup dedup = new Dedup();
+    private final Cluster cluster = new Cluster();
+    private final Fanout fanout = new Fanout();
+    private final Presence presence = new Presence();
+    private final Channels channels = new Channels();
+    private final Outbound outbound = new Outbound();
+    private final Statements statements = new Statements();
+    private final Sync sync = new Sync();
+    private final Export export = new Export();
+    private final Search search = new Search();
+    private final Archive archive = new Archive();
+    
+    public Ingest getIngest() {
+        return ingest;
+    }
+    
+    public MembershipCache getMembershipCache() {
+        return membershipCache;
+    }
+    
+    public UserCache getUserCache() {
+        return userCache;
+    }
+    
+    public RecentMessages getRecentMessages() {
+        return recentMessages;
+    }
+    
+    public Versions getVersions() {
+        return versions;
+    }
+    
+    public Dedup getDedup() {
+        return dedup;
+    }
+    
+    public Cluster getCluster() {
+        return cluster;
+    }
+    
+    public Fanout getFanout() {
+        return fanout;
+    }
+    
+    public Presence getPresence() {
+        return presence;
+    }
+    
+    public Channels getChannels() {
+        return channels;
+    }
+    
+    public Outbound getOutbound() {
+        return outbound;
+    }
+    
+    public Statements getStatements() {
+        return statements;
+    }
+    
+    public Sync getSync() {
+        return sync;
+    }
+    
+    public Export getExport() {
+        return export;
+    }
+    
+    public Search getSearch() {
+        return search;
+    }
+    
+    public Archive getArchive() {
+        return archive;
+    }
+    
+    public enum IngestMode {
+        // Persist each message in its own transaction before fanning it out
+        DIRECT,
+        // Queue messages in memory and persist them with JDBC batch inserts
+        BATCHED
+    }
+    
+    public enum IngestAck {
+        // Fan out and return once the batch holding the message is committed
+        FLUSH,
+        // Fan out and return as soon as the message is queued; a crash loses unflushed messages
+        ENQUEUE
+    }
+    
+    public enum ClusterRelayType {
+        // Single node: messages only reach users connected to this JVM
+        NONE,
+        // In-process stand-in shared by the application contexts in one JVM, for testing
+        LOOPBACK,
+        // LISTEN/NOTIFY on the shared Postgres database
+        POSTGRES
+    }
+    
+    public enum OutboundOverflow {
+        // Merge the queued typing and presence frames, falling back to RESYNC if that frees no room
+        COALESCE,
+        // Drop the queued frames and tell the client to catch up through /api/sync
+        RESYNC,
+        // Close the session; the client reconnects and syncs
+        DISCONNECT
+    }
+    
+    public enum StatementBudgetMode {
+        // Count statements for the metrics only
+        OFF,
+        // Log the handler and its statements when it goes over budget
+        LOG,
+        // Fail the statement that goes over budget; meant for tests
+        FAIL
+    }
+    
+    public static class Ingest {
+        
+        private IngestMode mode = IngestMode.DIRECT;
+        private IngestAck ack = IngestAck.FLUSH;
+        private int queueCapacity = 10_000;
+        private int batchSize = 500;
+        private long flushIntervalMs = 10;
+        private long enqueueTimeoutMs = 1_000;
+        
+        public IngestMode getMode() {
+            return mode;
+        }
+        
+        public void setMode(IngestMode mode) {
+            this.mode = mode;
+        }
+        
+        public IngestAck getAck() {
+            return ack;
+        }
+        
+        public void setAck(IngestAck ack) {
+            this.ack = ack;
+        }
+        
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+        
+        public void setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+        
+        public int getBatchSize() {
+            return batchSize;
+        }
+        
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+        
+        public long getFlushIntervalMs() {
+            return flushIntervalMs;
+        }
+        
+        public void setFlushIntervalMs(long flushIntervalMs) {
+            this.flushIntervalMs = flushIntervalMs;
+        }
+        
+        public long getEnqueueTimeoutMs() {
+            return enqueueTimeoutMs;
+        }
+        
+        public void setEnqueueTimeoutMs(long enqueueTimeoutMs) {
+            this.enqueueTimeoutMs = enqueueTimeoutMs;
+        }
+    }
+    
+    public static class MembershipCache {
+        
+        // Number of conversations kept; rounded up to a power of two
+        private int capacity = 65_536;
+        
+        public int getCapacity() {
+            return capacity;
+        }
+        
+        public void setCapacity(int capacity) {
+            this.capacity = capacity;
+        }
+    }
+    
+    public static class UserCache {
+        
+        // Authenticated users kept resolved by auth id
+        private long maximumSize = 10_000;
+        // How long a user is served before it is read again, in case a relay notice of a profile
+        // change made through another node was missed
+        private Duration expireAfterWrite = Duration.ofMinutes(30);
+        
+        public long getMaximumSize() {
+            return maximumSize;
+        }
+        
+        public void setMaximumSize(long maximumSize) {
+            this.maximumSize = maximumSize;
+        }
+        
+        public Duration getExpireAfterWrite() {
+            return expireAfterWrite;
+        }
+        
+        public void setExpireAfterWrite(Duration expireAfterWrite) {
+            this.expireAfterWrite = expireAfterWrite;
+        }
+    }
+    
+    public static class RecentMessages {
+        
+        // Newest messages kept per conversation; first pages up to this size are served from memory
+        private int messagesPerConversation = 50;
+        // Conversations kept, least recently used dropped first
+        private long maximumConversations = 10_000;
+        // How long a window is served after it was read from the database, in case a relay notice
+        // of a message sent through another node was missed
+        private Duration maxAge = Duration.ofMinutes(2);
+        
+        public int getMessagesPerConversation() {
+            return messagesPerConversation;
+        }
+        
+        public void setMessagesPerConversation(int messagesPerConversation) {
+            this.messagesPerConversation = messagesPerConversation;
+        }
+        
+        public long getMaximumConversations() {
+            return maximumConversations;
+        }
+        
+        public void setMaximumConversations(long maximumConversations) {
+            this.maximumConversations = maximumConversations;
+        }
+        
+        public Duration getMaxAge() {
+            return maxAge;
+        }
+        
+        public void setMaxAge(Duration maxAge) {
+            this.maxAge = maxAge;
+        }
+    }
+    
+    public static class Versions {
+        
+        // Version counters for inboxes, and as many for conversations, behind the ETags of their
+        // GETs; rounded up to a power of two. Ids sharing a counter cost each other extra full responses.
+        private int stripes = 65_536;
+        
+        public int getStripes() {
+            return stripes;
+        }
+        
+        public void setStripes(int stripes) {
+            this.stripes = stripes;
+        }
+    }
+    
+    public static class Dedup {
+        
+        // How long a client message id is remembered per sender, so a retry within it is not stored again
+        private Duration window = Duration.ofMinutes(5);
+        // Sends remembered at most; past it, some are forgotten before their window ends
+        private long maximumSize = 100_000;
+        
+        public Duration getWindow() {
+            return window;
+        }
+        
+        public void setWindow(Duration window) {
+            this.window = window;
+        }
+        
+        public long getMaximumSize() {
+            return maximumSize;
+        }
+        
+        public void setMaximumSize(long maximumSize) {
+            this.maximumSize = maximumSize;
+        }
+    }
+    
+    public static class Fanout {
+        
+        // Conversations with at least this many participants publish once to their conversation
+        // topic instead of sending to each participant's queue. Clients subscribe to the topics of
+        // conversations with three or more participants, so this must not go below 3.
+        private int topicMinMembers = 3;
+        
+        public int getTopicMinMembers() {
+            return topicMinMembers;
+        }
+        
+        public void setTopicMinMembers(int topicMinMembers) {
+            this.topicMinMembers = topicMinMembers;
+        }
+    }
+    
+    public static class Presence {
+        
+        // Typing and online changes are collected and broadcast once per tick, one frame per conversation
+        private Duration tick = Duration.ofMillis(250);
+        // A typing user who sends nothing for this long is taken to have stopped; clients refresh well within it
+        private Duration typingTimeout = Duration.ofSeconds(5);
+        
+        public Duration getTick() {
+            return tick;
+        }
+        
+        public void setTick(Duration tick) {
+            this.tick = tick;
+        }
+        
+        public Duration getTypingTimeout() {
+            return typingTimeout;
+        }
+        
+        public void setTypingTimeout(Duration typingTimeout) {
+            this.typingTimeout = typingTimeout;
+        }
+    }
+    
+    public static class Channels {
+        
+        // With virtual threads (spring.threads.virtual.enabled) the STOMP channels start a thread per
+        // message. Inbound handlers hit the database, so cap them near the JDBC pool size; a sender
+        // past the cap waits, which pushes back on its connection rather than on Hikari's timeout.
+        private int inboundConcurrencyLimit = 64;
+        // Outbound tasks only write to sockets; -1 leaves them unbounded
+        private int outboundConcurrencyLimit = -1;
+        
+        public int getInboundConcurrencyLimit() {
+            return inboundConcurrencyLimit;
+        }
+        
+        public void setInboundConcurrencyLimit(int inboundConcurrencyLimit) {
+            this.inboundConcurrencyLimit = inboundConcurrencyLimit;
+        }
+        
+        public int getOutboundConcurrencyLimit() {
+            return outboundConcurrencyLimit;
+        }
+        
+        public void setOutboundConcurrencyLimit(int outboundConcurrencyLimit) {
+            this.outboundConcurrencyLimit = outboundConcurrencyLimit;
+        }
+    }
+    
+    public static class Outbound {
+        
+        // A session whose socket write has been stuck this long is closed
+        private Duration sendTimeLimit = Duration.ofSeconds(10);
+        // Bytes the WebSocket transport buffers for a session while a write is in progress
+        private DataSize sendBufferSizeLimit = DataSize.ofKilobytes(512);
+        // Frames queued per session while it is being written to; past this the overflow policy applies
+        private int queueCapacity = 256;
+        private OutboundOverflow overflow = OutboundOverflow.COALESCE;
+        
+        public Duration getSendTimeLimit() {
+            return sendTimeLimit;
+        }
+        
+        public void setSendTimeLimit(Duration sendTimeLimit) {
+            this.sendTimeLimit = sendTimeLimit;
+        }
+        
+        public DataSize getSendBufferSizeLimit() {
+            return sendBufferSizeLimit;
+        }
+        
+        public void setSendBufferSizeLimit(DataSize sendBufferSizeLimit) {
+            this.sendBufferSizeLimit = sendBufferSizeLimit;
+        }
+        
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+        
+        public void setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+        
+        public OutboundOverflow getOverflow() {
+            return overflow;
+        }
+        
+        public void setOverflow(OutboundOverflow overflow) {
+            this.overflow = overflow;
+        }
+    }
+    
+    public static class Statements {
+        
+        // What happens when a handler runs more SQL statements than its @StatementBudget
+        private StatementBudgetMode budgetMode = StatementBudgetMode.LOG;
+        // Budget for handlers without @StatementBudget; -1 for none
+        private int defaultBudget = -1;
+        
+        public StatementBudgetMode getBudgetMode() {
+            return budgetMode;
+        }
+        
+        public void setBudgetMode(StatementBudgetMode budgetMode) {
+            this.budgetMode = budgetMode;
+        }
+        
+        public int getDefaultBudget() {
+            return defaultBudget;
+        }
+        
+        public void setDefaultBudget(int defaultBudget) {
+            this.defaultBudget = defaultBudget;
+        }
+    }
+    
+    public static class Sync {
+        
+        // Messages streamed per sync response; a client that was away longer follows the
+        // returned cursor until hasMore is false
+        private int maxMessages = 1_000;
+        
+        // Longest a message, conversation or read cursor change may take from getting its id to
+        // committing. Sync cursors stay this far behind, so ids that commit out of order are not skipped.
+        private Duration commitLag = Duration.ofMinutes(1);
+        
+        public int getMaxMessages() {
+            return maxMessages;
+        }
+        
+        public void setMaxMessages(int maxMessages) {
+            this.maxMessages = maxMessages;
+        }
+        
+        public Duration getCommitLag() {
+            return commitLag;
+        }
+        
+        public void setCommitLag(Duration commitLag) {
+            this.commitLag = commitLag;
+        }
+    }
+    
+    public static class Export {
+        
+        // Exports running at once on this node. Each holds a pooled connection for as long as the
+        // client takes to download, so keep this well below the JDBC pool size.
+        private int maxConcurrent = 4;
+        
+        public int getMaxConcurrent() {
+            return maxConcurrent;
+        }
+        
+        public void setMaxConcurrent(int maxConcurrent) {
+            this.maxConcurrent = maxConcurrent;
+        }
+    }
+    
+    public static class Search {
+        
+        // Matches a search collects before sorting them by time. A term matching more of the user's
+        // messages than this is looked up newest first per conversation instead.
+        private int scanLimit = 1_000;
+        
+        public int getScanLimit() {
+            return scanLimit;
+        }
+        
+        public void setScanLimit(int scanLimit) {
+            this.scanLimit = scanLimit;
+        }
+    }
+    
+    public static class Archive {
+        
+        // Move monthly message partitions older than the hot retention into cold segment files.
+        // Every node reads the segments; only one node of a cluster should archive.
+        private boolean enabled = false;
+        // Where segments are written and read; shared storage when there are several nodes
+        private String directory = "data/message-archive";
+        // Months are archived once all of their messages are older than this
+        private Duration hotRetention = Duration.ofDays(180);
+        // Messages per compressed block; the sparse index has one entry per block
+        private int blockMessages = 256;
+        // How often partitions are created ahead, old ones archived and the segment list re-read
+        private Duration checkInterval = Duration.ofMinutes(10);
+        // Monthly partitions kept created ahead of the current month
+        private int partitionsAhead = 3;
+        
+        public boolean isEnabled() {
+            return enabled;
+        }
+        
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+        
+        public String getDirectory() {
+            return directory;
+        }
+        
+        public void setDirectory(String directory) {
+            this.directory = directory;
+        }
+        
+        public Duration getHotRetention() {
+            return hotRetention;
+        }
+        
+        public void setHotRetention(Duration hotRetention) {
+            this.hotRetention = hotRetention;
+        }
+        
+        public int getBlockMessages() {
+            return blockMessages;
+        }
+        
+        public void setBlockMessages(int blockMessages) {
+            this.blockMessages = blockMessages;
+        }
+        
+        public Duration getCheckInterval() {
+            return checkInterval;
+        }
+        
+        public void setCheckInterval(Duration checkInterval) {
+            this.checkInterval = checkInterval;
+        }
+        
+        public int getPartitionsAhead() {
+            return partitionsAhead;
+        }
+        
+        public void setPartitionsAhead(int partitionsAhead) {
+            this.partitionsAhead = partitionsAhead;
+        }
+    }
+    
+    public static class Cluster {
+        
+        private ClusterRelayType relay = ClusterRelayType.NONE;
+        // Identifies this node to the others; a random id is used when unset
+        private String nodeId;
+        // Relay channel; nodes on the same channel form one cluster
+        private String channel = "gapshap_cluster";
+        private Duration heartbeatInterval = Duration.ofSeconds(5);
+        // Nodes not heard from for this long are treated as gone
+        private Duration nodeTimeout = Duration.ofSeconds(15);
+        
+        public ClusterRelayType getRelay() {
+            return relay;
+        }
+        
+        public void setRelay(ClusterRelayType relay) {
+            this.relay = relay;
+        }
+        
+        public String getNodeId() {
+            return nodeId;
+        }
+        
+        public void setNodeId(String nodeId) {
+            this.nodeId = nodeId;
+        }
+        
+        public String getChannel() {
+            return channel;
+        }
+        
+        public void setChannel(String channel) {
+            this.channel = channel;
+        }
+        
+        public Duration getHeartbeatInterval() {
+            return heartbeatInterval;
+        }
+        
+        public void setHeartbeatInterval(Duration heartbeatInterval) {
+            this.heartbeatInterval = heartbeatInterval;
+        }
+        
+        public Duration getNodeTimeout() {
+            return nodeTimeout;
+        }
+        
+        public void setNodeTimeout(Duration nodeTimeout) {
+            this.nodeTimeout = nodeTimeout;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.gapShap.gapShap.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gapShap.gapShap.cluster.ClusterRelay;
+import com.gapShap.gapShap.cluster.LoopbackClusterRelay;
+import com.gapShap.gapShap.cluster.PostgresClusterRelay;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+// Picks the relay that links this node to the rest of the cluster; with relay=none there is
+// no relay bean and messages are only delivered to users connected to this node
+@Configuration
+public class ClusterConfig {
+
+    @Bean
+    @ConditionalOnProperty(prefix = "gapshap.chat.cluster", name = "relay", havingValue = "loopback")
+    public ClusterRelay loopbackClusterRelay(ChatProperties chatProperties) {
+        return new LoopbackClusterRelay(chatProperties.getCluster().getChannel());
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "gapshap.chat.cluster", name = "relay", havingValue = "postgres")
+    public ClusterRelay postgresClusterRelay(ChatProperties chatProperties,
+            DataSourceProperties dataSourceProperties,
+            JdbcTemplate jdbcTemplate,
+            ObjectMapper objectMapper) {
+        return new PostgresClusterRelay(chatProperties.getCluster().getChannel(),
+                dataSourceProperties.determineUrl(),
+                dataSourceProperties.determineUsername(),
+                dataSourceProperties.determinePassword(),
+                jdbcTemplate,
+                objectMapper);
+    }
+}
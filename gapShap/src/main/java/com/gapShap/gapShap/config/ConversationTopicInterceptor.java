@@ -0,0 +1,94 @@
+package com.gapShap.gapShap.config;
+
+import com.gapShap.gapShap.model.User;
+import com.gapShap.gapShap.service.ChatService;
+import com.gapShap.gapShap.service.ConversationMembershipCache;
+import com.gapShap.gapShap.service.PresenceService;
+import com.gapShap.gapShap.service.UserService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.stereotype.Component;
+import org.springframework.util.AntPathMatcher;
+
+import java.security.Principal;
+
+// Guards the per-conversation topics, for messages and for activity: only participants may subscribe,
+// and clients may not send straight to broker destinations, which would let them post as anyone
+@Component
+public class ConversationTopicInterceptor implements ChannelInterceptor {
+
+    // The simple broker matches subscriptions as Ant patterns, so /topic/** would receive every topic
+    private static final AntPathMatcher DESTINATION_MATCHER = new AntPathMatcher();
+
+    private final UserService userService;
+    private final ConversationMembershipCache membershipCache;
+
+    @Autowired
+    public ConversationTopicInterceptor(UserService userService, ConversationMembershipCache membershipCache) {
+        this.userService = userService;
+        this.membershipCache = membershipCache;
+    }
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        StompHeaderAccessor accessor = StompHeaderAccessor.wrap(message);
+        String destination = accessor.getDestination();
+        if (destination == null) {
+            return message;
+        }
+        if (StompCommand.SEND.equals(accessor.getCommand()) && isBrokerDestination(destination)) {
+            throw new AccessDeniedException("Clients may only send to application destinations");
+        }
+        if (StompCommand.SUBSCRIBE.equals(accessor.getCommand()) && isBrokerDestination(destination)) {
+            if (DESTINATION_MATCHER.isPattern(destination)) {
+                throw new AccessDeniedException("Subscriptions may not use destination patterns");
+            }
+            if (destination.startsWith("/topic")) {
+                // Conversation topics are the only topics there are
+                requireParticipant(accessor.getUser(), destination);
+            }
+        }
+        return message;
+    }
+
+    // The simple broker takes anything starting with one of its prefixes, slash or not
+    private static boolean isBrokerDestination(String destination) {
+        return destination.startsWith("/topic") || destination.startsWith("/queue");
+    }
+
+    private void requireParticipant(Principal principal, String destination) {
+        if (principal == null) {
+            throw new AccessDeniedException("Not authenticated");
+        }
+        if (!destination.startsWith(ChatService.CONVERSATION_TOPIC_PREFIX)) {
+            throw new AccessDeniedException("Unknown topic");
+        }
+        String topic = destination.substring(ChatService.CONVERSATION_TOPIC_PREFIX.length());
+        String suffix = "";
+        if (topic.endsWith(PresenceService.ACTIVITY_TOPIC_SUFFIX)) {
+            suffix = PresenceService.ACTIVITY_TOPIC_SUFFIX;
+            topic = topic.substring(0, topic.length() - suffix.length());
+        }
+        long conversationId;
+        try {
+            conversationId = Long.parseLong(topic);
+        } catch (NumberFormatException e) {
+            throw new AccessDeniedException("Unknown conversation topic");
+        }
+        // Exactly the topic the conversation is published on, not "+7" or "007"
+        if (!destination.equals(ChatService.CONVERSATION_TOPIC_PREFIX + conversationId + suffix)) {
+            throw new AccessDeniedException("Unknown conversation topic");
+        }
+        User user = userService.findUserByAuthId(principal.getName())
+                .orElseThrow(() -> new AccessDeniedException("User not found"));
+        ConversationMembershipCache.Membership membership = membershipCache.get(conversationId);
+        if (membership == null || !membership.contains(user.getId())) {
+            throw new AccessDeniedException("User is not part of this conversation");
+        }
+    }
+}
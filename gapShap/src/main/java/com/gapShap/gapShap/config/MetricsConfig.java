@@ -0,0 +1,64 @@
+package com.gapShap.gapShap.config;
+
+import com.gapShap.gapShap.metrics.HttpStatementMetrics;
+import com.gapShap.gapShap.metrics.StatementCounter;
+import com.gapShap.gapShap.metrics.StatementCountingDataSource;
+import io.micrometer.core.instrument.config.MeterFilter;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import javax.sql.DataSource;
+
+// Wires the per-request SQL statement counts into the DataSource and Spring MVC; the STOMP side
+// is registered with the inbound channel in WebSocketConfig
+@Configuration
+public class MetricsConfig implements WebMvcConfigurer {
+
+    // Clients choose STOMP destinations, so cap how many distinct ones get their own series
+    private static final int MAX_STATEMENT_HANDLERS = 100;
+
+    private final HttpStatementMetrics httpStatementMetrics;
+
+    @Autowired
+    public MetricsConfig(HttpStatementMetrics httpStatementMetrics) {
+        this.httpStatementMetrics = httpStatementMetrics;
+    }
+
+    // Static so the DataSource and the meter registries don't need this configuration, and with it
+    // the registry-backed interceptor, while they are being created
+    @Bean
+    public static BeanPostProcessor statementCountingDataSource(ObjectProvider<StatementCounter> statementCounter) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (bean instanceof DataSource dataSource && !(bean instanceof StatementCountingDataSource)) {
+                    return new StatementCountingDataSource(dataSource, statementCounter.getObject());
+                }
+                return bean;
+            }
+        };
+    }
+
+    @Bean
+    public static MeterFilter statementHandlerLimit() {
+        return MeterFilter.maximumAllowableTags(StatementCounter.METRIC_NAME, "handler",
+                MAX_STATEMENT_HANDLERS, MeterFilter.deny());
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(httpStatementMetrics);
+    }
+
+    // Streamed responses run on the async executor; the interceptor moves the request's scope there
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.registerCallableInterceptors(httpStatementMetrics);
+    }
+}
@@ -0,0 +1,436 @@
+package com.gapShap.gapShap.config;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gapShap.gapShap.dto.ConversationActivity;
+import com.gapShap.gapShap.service.ChatService;
+import com.gapShap.gapShap.service.PresenceService;
+import com.gapShap.gapShap.wire.CompactMessageFormat;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.NativeMessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.handler.WebSocketHandlerDecoratorFactory;
+import org.springframework.web.socket.messaging.SessionConnectEvent;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Bounded per-session queues between the broker and the sockets. Frames for a session are queued
+// and written by one task at a time on the outbound channel's executor, so a session whose socket
+// has stalled holds at most one thread while everyone else's frames keep flowing. A full queue is
+// handled by the overflow policy, and a write stuck past the send time limit closes the session.
+// Chat messages are put in the session's wire format as they leave the queue, in delivery order.
+@Component
+public class OutboundSessionQueues implements ChannelInterceptor, WebSocketHandlerDecoratorFactory {
+
+    private static final Logger log = LoggerFactory.getLogger(OutboundSessionQueues.class);
+
+    // Clients subscribe here to hear that frames were dropped and they should catch up through /api/sync
+    public static final String RESYNC_QUEUE = "/user/queue/resync";
+    // Frames written per task before the session goes to the back of the executor's queue
+    private static final int DRAIN_BATCH = 32;
+
+    private final ChatProperties.Outbound settings;
+    private final ObjectMapper objectMapper;
+    private final CompactMessageFormat compactFormat;
+    private final ObjectProvider<Executor> executorProvider;
+    private final Map<String, SessionQueue> queues = new ConcurrentHashMap<>();
+    private final Counter coalesced;
+    private final Counter resynced;
+    private final Counter disconnected;
+    private final Counter dropped;
+
+    // The SubProtocolWebSocketHandler that encodes frames and writes them to sessions
+    private volatile MessageHandler handler;
+    private volatile Executor executor;
+    private ScheduledExecutorService watchdog;
+
+    private static final class SessionQueue {
+
+        private final WebSocketSession session;
+        // Guarded by this
+        private final ArrayDeque<Message<?>> frames = new ArrayDeque<>();
+        private boolean draining;
+        private boolean closing;
+        // Subscription id of the session's resync queue, once it subscribes
+        private volatile String resyncSubscription;
+        // System.nanoTime() when the write in progress started, 0 while none is
+        private volatile long writeStartedAt;
+        // Senders already sent, when the session asked for the compact encoding at CONNECT
+        private volatile CompactMessageFormat.SenderDictionary senders;
+
+        private SessionQueue(WebSocketSession session) {
+            this.session = session;
+        }
+
+        private synchronized int size() {
+            return frames.size();
+        }
+    }
+
+    @Autowired
+    public OutboundSessionQueues(ChatProperties chatProperties,
+            ObjectMapper objectMapper,
+            CompactMessageFormat compactFormat,
+            @Qualifier("clientOutboundChannelExecutor") ObjectProvider<Executor> executorProvider,
+            MeterRegistry meterRegistry) {
+        this.settings = chatProperties.getOutbound();
+        this.objectMapper = objectMapper;
+        this.compactFormat = compactFormat;
+        this.executorProvider = executorProvider;
+        this.coalesced = slowConsumers(meterRegistry, "coalesced");
+        this.resynced = slowConsumers(meterRegistry, "resynced");
+        this.disconnected = slowConsumers(meterRegistry, "disconnected");
+        this.dropped = Counter.builder("gapshap.broker.outbound.dropped")
+                .description("Frames merged away, replaced by a resync marker, or discarded with a closed session")
+                .register(meterRegistry);
+        Gauge.builder("gapshap.broker.outbound.queued", this, OutboundSessionQueues::queuedFrames)
+                .description("Frames waiting in the sessions' outbound queues")
+                .register(meterRegistry);
+    }
+
+    private static Counter slowConsumers(MeterRegistry meterRegistry, String action) {
+        return Counter.builder("gapshap.broker.slow.consumers")
+                .description("Sessions that fell behind, by what was done about it")
+                .tag("action", action)
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    void start() {
+        watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "outbound-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, settings.getSendTimeLimit().toMillis() / 4);
+        watchdog.scheduleWithFixedDelay(this::closeStalled, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        watchdog.shutdownNow();
+    }
+
+    @Override
+    public WebSocketHandler decorate(WebSocketHandler webSocketHandler) {
+        if (WebSocketHandlerDecorator.unwrap(webSocketHandler) instanceof MessageHandler messageHandler) {
+            handler = messageHandler;
+        }
+        return new WebSocketHandlerDecorator(webSocketHandler) {
+            @Override
+            public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+                queues.put(session.getId(), new SessionQueue(session));
+                super.afterConnectionEstablished(session);
+            }
+
+            @Override
+            public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+                queues.remove(session.getId());
+                super.afterConnectionClosed(session, closeStatus);
+            }
+        };
+    }
+
+    @EventListener
+    public void onConnect(SessionConnectEvent event) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(event.getMessage());
+        SessionQueue queue = queues.get(accessor.getSessionId());
+        if (queue != null && compactFormat.isRequested(accessor.getContentType())) {
+            queue.senders = new CompactMessageFormat.SenderDictionary();
+        }
+    }
+
+    @EventListener
+    public void onSubscribe(SessionSubscribeEvent event) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(event.getMessage());
+        if (RESYNC_QUEUE.equals(accessor.getDestination())) {
+            SessionQueue queue = queues.get(accessor.getSessionId());
+            if (queue != null) {
+                queue.resyncSubscription = accessor.getSubscriptionId();
+            }
+        }
+    }
+
+    // Takes broker messages off the channel into their session's queue. Connect acks, heartbeats
+    // and the like pass straight through.
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        MessageHeaders headers = message.getHeaders();
+        if (handler == null || SimpMessageHeaderAccessor.getMessageType(headers) != SimpMessageType.MESSAGE) {
+            return message;
+        }
+        SessionQueue queue = queues.get(SimpMessageHeaderAccessor.getSessionId(headers));
+        if (queue == null) {
+            return message;
+        }
+        enqueue(queue, message);
+        return null;
+    }
+
+    private void enqueue(SessionQueue queue, Message<?> frame) {
+        boolean start = false;
+        boolean close = false;
+        synchronized (queue) {
+            if (queue.closing) {
+                dropped.increment();
+                return;
+            }
+            if (queue.frames.size() >= settings.getQueueCapacity() && !makeRoom(queue)) {
+                dropped.increment(queue.frames.size() + 1);
+                queue.frames.clear();
+                queue.closing = true;
+                close = true;
+            } else {
+                queue.frames.add(frame);
+                start = !queue.draining;
+                queue.draining = true;
+            }
+        }
+        if (close) {
+            close(queue);
+        } else if (start) {
+            schedule(queue);
+        }
+    }
+
+    // Called with the queue full and locked. False when the session has to be closed instead.
+    private boolean makeRoom(SessionQueue queue) {
+        ChatProperties.OutboundOverflow overflow = settings.getOverflow();
+        if (overflow == ChatProperties.OutboundOverflow.COALESCE) {
+            int merged = coalesce(queue.frames);
+            dropped.increment(merged);
+            if (queue.frames.size() < settings.getQueueCapacity()) {
+                coalesced.increment();
+                return true;
+            }
+        }
+        // Clients that never subscribed to the resync queue can only catch up by reconnecting
+        if (overflow == ChatProperties.OutboundOverflow.DISCONNECT || queue.resyncSubscription == null) {
+            disconnected.increment();
+            return false;
+        }
+        int discarded = queue.frames.size();
+        dropped.increment(discarded);
+        queue.frames.clear();
+        queue.frames.add(resyncMarker(queue, discarded));
+        resynced.increment();
+        return true;
+    }
+
+    // Merge the queued activity frames of each conversation into one, in place of the last of them.
+    // Frames are deltas applied in order, so the last change per user wins. Returns the frames removed.
+    private int coalesce(ArrayDeque<Message<?>> frames) {
+        Map<Long, List<ConversationActivity>> activities = new HashMap<>();
+        Map<Message<?>, Long> conversationOf = new IdentityHashMap<>();
+        for (Message<?> frame : frames) {
+            ConversationActivity activity = readActivity(frame);
+            if (activity != null && activity.getConversationId() != null) {
+                activities.computeIfAbsent(activity.getConversationId(), id -> new ArrayList<>()).add(activity);
+                conversationOf.put(frame, activity.getConversationId());
+            }
+        }
+
+        int before = frames.size();
+        List<Message<?>> kept = new ArrayList<>(before);
+        Map<Long, Integer> remaining = new HashMap<>();
+        activities.forEach((conversationId, list) -> remaining.put(conversationId, list.size()));
+        for (Message<?> frame : frames) {
+            Long conversationId = conversationOf.get(frame);
+            if (conversationId == null || activities.get(conversationId).size() == 1) {
+                kept.add(frame);
+            } else if (remaining.merge(conversationId, -1, Integer::sum) == 0) {
+                kept.add(MessageBuilder.withPayload(writeJson(merge(conversationId, activities.get(conversationId))))
+                        .copyHeaders(frame.getHeaders())
+                        .build());
+            }
+        }
+        frames.clear();
+        frames.addAll(kept);
+        return before - kept.size();
+    }
+
+    private ConversationActivity readActivity(Message<?> frame) {
+        MessageHeaders headers = frame.getHeaders();
+        String destination = NativeMessageHeaderAccessor.getFirstNativeHeader(
+                SimpMessageHeaderAccessor.ORIGINAL_DESTINATION, headers);
+        if (destination == null) {
+            destination = SimpMessageHeaderAccessor.getDestination(headers);
+        }
+        boolean activity = destination != null
+                && (destination.equals("/user" + PresenceService.ACTIVITY_QUEUE)
+                    || (destination.startsWith(ChatService.CONVERSATION_TOPIC_PREFIX)
+                        && destination.endsWith(PresenceService.ACTIVITY_TOPIC_SUFFIX)));
+        if (!activity || !(frame.getPayload() instanceof byte[] payload)) {
+            return null;
+        }
+        try {
+            return objectMapper.readValue(payload, ConversationActivity.class);
+        } catch (IOException e) {
+            log.debug("Unreadable activity frame for {}", destination, e);
+            return null;
+        }
+    }
+
+    private static ConversationActivity merge(Long conversationId, List<ConversationActivity> activities) {
+        Map<Long, Boolean> typing = new LinkedHashMap<>();
+        Map<Long, Boolean> online = new LinkedHashMap<>();
+        for (ConversationActivity activity : activities) {
+            activity.getTyping().forEach(userId -> typing.put(userId, true));
+            activity.getStoppedTyping().forEach(userId -> typing.put(userId, false));
+            activity.getOnline().forEach(userId -> online.put(userId, true));
+            activity.getOffline().forEach(userId -> {
+                online.put(userId, false);
+                typing.put(userId, false);
+            });
+        }
+        ConversationActivity merged = new ConversationActivity(conversationId);
+        typing.forEach((userId, started) -> (started ? merged.getTyping() : merged.getStoppedTyping()).add(userId));
+        online.forEach((userId, came) -> (came ? merged.getOnline() : merged.getOffline()).add(userId));
+        return merged;
+    }
+
+    // Sent on the session's resync subscription in place of the frames it dropped
+    private Message<byte[]> resyncMarker(SessionQueue queue, int discarded) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setSessionId(queue.session.getId());
+        accessor.setSubscriptionId(queue.resyncSubscription);
+        accessor.setDestination(RESYNC_QUEUE);
+        accessor.setContentType(MimeTypeUtils.APPLICATION_JSON);
+        return MessageBuilder.createMessage(writeJson(Map.of("dropped", discarded)), accessor.getMessageHeaders());
+    }
+
+    private byte[] writeJson(Object payload) {
+        try {
+            return objectMapper.writeValueAsBytes(payload);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not encode frame", e);
+        }
+    }
+
+    private void schedule(SessionQueue queue) {
+        Executor current = executor;
+        if (current == null) {
+            current = executorProvider.getObject();
+            executor = current;
+        }
+        try {
+            current.execute(() -> drain(queue));
+        } catch (RejectedExecutionException e) {
+            // Shutting down; the next frame tries again
+            synchronized (queue) {
+                queue.draining = false;
+            }
+            log.debug("Outbound executor rejected session {}", queue.session.getId(), e);
+        }
+    }
+
+    private void drain(SessionQueue queue) {
+        for (int i = 0; i < DRAIN_BATCH; i++) {
+            Message<?> frame;
+            synchronized (queue) {
+                frame = queue.frames.poll();
+                if (frame == null) {
+                    queue.draining = false;
+                    return;
+                }
+            }
+            CompactMessageFormat.SenderDictionary senders = queue.senders;
+            if (senders != null) {
+                frame = compactFormat.encode(frame, senders);
+            }
+            queue.writeStartedAt = System.nanoTime();
+            try {
+                handler.handleMessage(frame);
+            } catch (RuntimeException e) {
+                log.debug("Writing to session {} failed", queue.session.getId(), e);
+            } finally {
+                queue.writeStartedAt = 0;
+            }
+        }
+        // Let other sessions' frames go first before writing the rest
+        schedule(queue);
+    }
+
+    // A write stuck past the send time limit means the client stopped reading; closing the session
+    // releases the thread blocked on it
+    private void closeStalled() {
+        long now = System.nanoTime();
+        long limit = settings.getSendTimeLimit().toNanos();
+        for (SessionQueue queue : queues.values()) {
+            long started = queue.writeStartedAt;
+            if (started == 0 || now - started <= limit) {
+                continue;
+            }
+            synchronized (queue) {
+                if (queue.closing) {
+                    continue;
+                }
+                dropped.increment(queue.frames.size());
+                queue.frames.clear();
+                queue.closing = true;
+            }
+            disconnected.increment();
+            close(queue);
+        }
+    }
+
+    // Closed from the watchdog thread, so a close that blocks on the stalled socket holds up no delivery
+    private void close(SessionQueue queue) {
+        try {
+            watchdog.execute(() -> {
+                try {
+                    queue.session.close(CloseStatus.SESSION_NOT_RELIABLE);
+                } catch (IOException e) {
+                    log.debug("Closing slow session {} failed", queue.session.getId(), e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("Not closing session {} while shutting down", queue.session.getId());
+        }
+    }
+
+    private double queuedFrames() {
+        long queued = 0;
+        for (SessionQueue queue : queues.values()) {
+            queued += queue.size();
+        }
+        return queued;
+    }
+}
@@ -2,6 +2,7 @@ package com.gapShap.gapShap.config;
 
 import java.util.Arrays;
 
+import com.gapShap.gapShap.controller.CursorResponses;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.config.Customizer;
@@ -12,8 +13,6 @@ import org.springframework.security.oauth2.client.oidc.userinfo.OidcUserRequest;
 import org.springframework.security.oauth2.client.userinfo.OAuth2UserService;
 import org.springframework.security.oauth2.client.oidc.userinfo.OidcUserService;
 import org.springframework.security.oauth2.core.oidc.user.OidcUser;
-import org.springframework.security.oauth2.jwt.JwtDecoder;
-import org.springframework.security.oauth2.jwt.JwtDecoders;
 import org.springframework.security.web.SecurityFilterChain;
 import org.springframework.web.cors.CorsConfiguration;
 import org.springframework.web.cors.CorsConfigurationSource;
@@ -77,6 +76,7 @@ public class SecurityConfig {
         config.setAllowedOrigins(Arrays.asList("http://localhost:3000")); // React app origin
         config.setAllowedMethods(Arrays.asList("GET", "POST", "PUT", "DELETE", "OPTIONS"));
         config.setAllowedHeaders(Arrays.asList("Authorization", "Content-Type", "X-Requested-With"));
+        config.setExposedHeaders(Arrays.asList(CursorResponses.NEXT_CURSOR_HEADER)); // Cursor paging
         config.setAllowCredentials(true); // Important for cookies/auth
         
         UrlBasedCorsConfigurationSource source = new UrlBasedCorsConfigurationSource();
@@ -89,10 +89,8 @@ public class SecurityConfig {
         return new OidcUserService();
     }
 
-    @Bean
-    public JwtDecoder jwtDecoder() {
-        return JwtDecoders.fromIssuerLocation("https://dev-4pm565a3cspyz0h6.us.auth0.com/");
-    }
+    // The JwtDecoder comes from spring.security.oauth2.resourceserver.jwt; with only an issuer-uri,
+    // Boot defers discovery to the first token, so the app can start without reaching the issuer
 }
 
 // Removed duplicate filterChain method to resolve the error
\ No newline at end of file
@@ -0,0 +1,35 @@
+package com.gapShap.gapShap.config;
+
+import com.gapShap.gapShap.service.UserService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.stereotype.Component;
+
+import java.security.Principal;
+
+// Resolves the connecting user once at STOMP CONNECT, so the frames that follow find it
+// in UserService's cache instead of querying app_users each time
+@Component
+public class StompSessionUserInterceptor implements ChannelInterceptor {
+
+    private final UserService userService;
+
+    @Autowired
+    public StompSessionUserInterceptor(UserService userService) {
+        this.userService = userService;
+    }
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        StompHeaderAccessor accessor = StompHeaderAccessor.wrap(message);
+        Principal principal = accessor.getUser();
+        if (StompCommand.CONNECT.equals(accessor.getCommand()) && principal != null) {
+            userService.findUserByAuthId(principal.getName());
+        }
+        return message;
+    }
+}
@@ -1,15 +1,47 @@
 package com.gapShap.gapShap.config;
 
+import com.gapShap.gapShap.metrics.StompStatementMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.thread.Threading;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
 
 @Configuration
 @EnableWebSocketMessageBroker
 public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
 
+    private final StompSessionUserInterceptor sessionUserInterceptor;
+    private final ConversationTopicInterceptor conversationTopicInterceptor;
+    private final StompStatementMetrics stompStatementMetrics;
+    private final OutboundSessionQueues outboundSessionQueues;
+    private final ChatProperties.Channels channelSettings;
+    private final ChatProperties.Outbound outboundSettings;
+    private final boolean virtualThreads;
+
+    @Autowired
+    public WebSocketConfig(StompSessionUserInterceptor sessionUserInterceptor,
+            ConversationTopicInterceptor conversationTopicInterceptor,
+            StompStatementMetrics stompStatementMetrics,
+            OutboundSessionQueues outboundSessionQueues,
+            ChatProperties chatProperties,
+            Environment environment) {
+        this.sessionUserInterceptor = sessionUserInterceptor;
+        this.conversationTopicInterceptor = conversationTopicInterceptor;
+        this.stompStatementMetrics = stompStatementMetrics;
+        this.outboundSessionQueues = outboundSessionQueues;
+        this.channelSettings = chatProperties.getChannels();
+        this.outboundSettings = chatProperties.getOutbound();
+        // Same switch that moves Tomcat's request threads onto virtual threads
+        this.virtualThreads = Threading.VIRTUAL.isActive(environment);
+    }
+
     @Override
     public void registerStompEndpoints(StompEndpointRegistry registry) {
         // Register endpoint for WebSocket connection
@@ -29,4 +61,41 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
         // Set prefix for user-specific messages
         registry.setUserDestinationPrefix("/user");
     }
+
+    @Override
+    public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+        // Limits for the transport's own buffering while a write is in progress; the session
+        // queues in front of it keep that to one writer per session
+        registration.setSendTimeLimit((int) outboundSettings.getSendTimeLimit().toMillis())
+                .setSendBufferSizeLimit((int) outboundSettings.getSendBufferSizeLimit().toBytes())
+                .addDecoratorFactory(outboundSessionQueues);
+    }
+
+    @Override
+    public void configureClientInboundChannel(ChannelRegistration registration) {
+        // Resolve the user once per connection rather than once per frame,
+        // then authorize conversation topic subscriptions against the cached user.
+        // The statement count wraps the @MessageMapping call on the executor thread.
+        registration.interceptors(sessionUserInterceptor, conversationTopicInterceptor, stompStatementMetrics);
+        if (virtualThreads) {
+            // A handler blocked on JDBC parks its virtual thread instead of holding one of a few pool threads
+            registration.executor(virtualThreadExecutor("ws-inbound-", channelSettings.getInboundConcurrencyLimit()));
+        }
+    }
+
+    @Override
+    public void configureClientOutboundChannel(ChannelRegistration registration) {
+        // Frames wait in per-session queues, so one slow client can't hold up the others
+        registration.interceptors(outboundSessionQueues);
+        if (virtualThreads) {
+            registration.executor(virtualThreadExecutor("ws-outbound-", channelSettings.getOutboundConcurrencyLimit()));
+        }
+    }
+
+    private SimpleAsyncTaskExecutor virtualThreadExecutor(String threadNamePrefix, int concurrencyLimit) {
+        SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor(threadNamePrefix);
+        executor.setVirtualThreads(true);
+        executor.setConcurrencyLimit(concurrencyLimit);
+        return executor;
+    }
 }
\ No newline at end of file
@@ -1,11 +1,28 @@
 package com.gapShap.gapShap.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gapShap.gapShap.cluster.UserMessageDispatcher;
+import com.gapShap.gapShap.dto.ConversationActivity;
 import com.gapShap.gapShap.dto.ConversationDTO;
+import com.gapShap.gapShap.dto.CursorPage;
 import com.gapShap.gapShap.dto.MessageDTO;
+import com.gapShap.gapShap.dto.MessageSearchHit;
+import com.gapShap.gapShap.dto.SendReceipt;
+import com.gapShap.gapShap.metrics.StatementBudget;
 import com.gapShap.gapShap.model.User;
 import com.gapShap.gapShap.service.ChatService;
+import com.gapShap.gapShap.service.ConversationExportService;
+import com.gapShap.gapShap.service.ConversationSyncService;
+import com.gapShap.gapShap.service.MessageSearchService;
+import com.gapShap.gapShap.service.PresenceService;
 import com.gapShap.gapShap.service.UserService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.messaging.handler.annotation.MessageMapping;
 import org.springframework.messaging.handler.annotation.Payload;
@@ -13,30 +30,61 @@ import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.security.oauth2.core.oidc.user.OidcUser;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.security.Principal;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @RestController
 @RequestMapping("/api")
 public class ChatController {
+    
+    private static final String EXPORT_INTERCEPTOR = ChatController.class.getName() + ".export";
 
     private final ChatService chatService;
     private final UserService userService;
+    private final ConversationSyncService syncService;
+    private final ConversationExportService exportService;
+    private final MessageSearchService searchService;
+    private final PresenceService presenceService;
+    private final UserMessageDispatcher messageDispatcher;
+    private final ObjectMapper objectMapper;
 
     @Autowired
-    public ChatController(ChatService chatService, UserService userService) {
+    public ChatController(ChatService chatService, UserService userService,
+            ConversationSyncService syncService, ConversationExportService exportService,
+            MessageSearchService searchService, PresenceService presenceService, UserMessageDispatcher messageDispatcher, ObjectMapper objectMapper) {
         this.chatService = chatService;
         this.userService = userService;
+        this.syncService = syncService;
+        this.exportService = exportService;
+        this.searchService = searchService;
+        this.presenceService = presenceService;
+        this.messageDispatcher = messageDispatcher;
+        this.objectMapper = objectMapper;
     }
     
     // REST endpoints for conversation management
     
     @GetMapping("/conversations")
-    public ResponseEntity<?> getConversations(@AuthenticationPrincipal OidcUser principal) {
+    @StatementBudget(3)
+    public ResponseEntity<?> getConversations(
+            @AuthenticationPrincipal OidcUser principal,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "50") int limit,
+            WebRequest request) {
         if (principal == null) {
             return ResponseEntity.status(401).body("Not authenticated");
         }
@@ -44,16 +92,30 @@ public class ChatController {
         User currentUser = userService.findUserByAuthId(principal.getSubject())
             .orElseThrow(() -> new NoSuchElementException("User not found"));
         
-        List<ConversationDTO> conversations = chatService.getConversationsForUser(currentUser);
-        return ResponseEntity.ok(conversations);
+        // Taken before the inbox is read, so the tag is never newer than the page
+        String tag = chatService.inboxTag(currentUser);
+        if (request.checkNotModified(tag)) {
+            return null;
+        }
+        
+        try {
+            CursorPage<ConversationDTO> conversations = chatService.getConversationsForUser(currentUser, cursor, limit);
+            return CursorResponses.ok(revalidated(tag), conversations);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
     }
     
     @GetMapping("/conversations/{conversationId}/messages")
+    @StatementBudget(6)
     public ResponseEntity<?> getMessages(
             @AuthenticationPrincipal OidcUser principal,
             @PathVariable Long conversationId,
+            @RequestParam(required = false) Long before,
+            @RequestParam(required = false) Long after,
             @RequestParam(defaultValue = "0") int page,
-            @RequestParam(defaultValue = "20") int size) {
+            @RequestParam(defaultValue = "20") int size,
+            WebRequest request) {
         
         if (principal == null) {
             return ResponseEntity.status(401).body("Not authenticated");
@@ -63,14 +125,114 @@ public class ChatController {
             .orElseThrow(() -> new NoSuchElementException("User not found"));
         
         try {
-            List<MessageDTO> messages = chatService.getMessagesForConversation(conversationId, currentUser, page, size);
-            return ResponseEntity.ok(messages);
+            // Taken before the history is read, so the tag is never newer than the page
+            String tag = chatService.historyTag(conversationId, currentUser);
+            if (request.checkNotModified(tag)) {
+                return null;
+            }
+            if (page > 0 && before == null && after == null) {
+                // Offset paging fallback for clients that don't send a cursor
+                List<MessageDTO> messages = chatService.getMessagesForConversation(conversationId, currentUser, page, size);
+                return revalidated(tag).body(messages);
+            }
+            CursorPage<MessageDTO> messages = chatService.getMessagesForConversation(
+                    conversationId, currentUser, before, after, size);
+            return CursorResponses.ok(revalidated(tag), messages);
         } catch (IllegalArgumentException | NoSuchElementException e) {
             return ResponseEntity.badRequest().body(e.getMessage());
         }
     }
     
+    // Clients may keep the response, but check it with If-None-Match before using it again
+    private static ResponseEntity.BodyBuilder revalidated(String tag) {
+        return ResponseEntity.ok()
+                .eTag(tag)
+                .cacheControl(CacheControl.noCache().cachePrivate());
+    }
+    
+    // Messages of all the user's conversations matching q (web search syntax), newest first, with the
+    // matching words of each as character ranges; the next page is in the cursor header
+    @GetMapping("/messages/search")
+    @StatementBudget(4)
+    public ResponseEntity<?> searchMessages(
+            @AuthenticationPrincipal OidcUser principal,
+            @RequestParam String q,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "20") int limit) {
+        if (principal == null) {
+            return ResponseEntity.status(401).body("Not authenticated");
+        }
+        
+        User currentUser = userService.findUserByAuthId(principal.getSubject())
+            .orElseThrow(() -> new NoSuchElementException("User not found"));
+        
+        try {
+            CursorPage<MessageSearchHit> hits = searchService.search(currentUser, q, cursor, limit);
+            return CursorResponses.ok(hits);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+    
+    // The conversation's whole history as newline-delimited JSON, oldest first, written straight
+    // from a database cursor so neither side buffers the conversation. The budget covers a cold user
+    // and membership lookup, the read marks, the senders of archived months and the cursor.
+    @GetMapping(value = "/conversations/{conversationId}/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    @StatementBudget(5)
+    public ResponseEntity<StreamingResponseBody> exportConversation(
+            @AuthenticationPrincipal OidcUser principal,
+            @PathVariable Long conversationId,
+            NativeWebRequest webRequest) {
+        
+        if (principal == null) {
+            return ResponseEntity.status(401).build();
+        }
+        
+        User currentUser = userService.findUserByAuthId(principal.getSubject())
+            .orElseThrow(() -> new NoSuchElementException("User not found"));
+        
+        ConversationExportService.Export export;
+        try {
+            export = exportService.open(conversationId, currentUser);
+        } catch (IllegalArgumentException | NoSuchElementException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).build();
+        }
+        // The body may never run; the slot is given back however the async request ends
+        WebAsyncUtils.getAsyncManager(webRequest).registerCallableInterceptor(EXPORT_INTERCEPTOR,
+                new CallableProcessingInterceptor() {
+                    @Override
+                    public <T> void afterCompletion(NativeWebRequest request, Callable<T> task) {
+                        export.abandon();
+                    }
+                });
+        
+        StreamingResponseBody body = out -> {
+            // One generator for the whole export; it flushes to the response as its buffer fills
+            try (JsonGenerator generator = objectMapper.createGenerator(out)) {
+                generator.setRootValueSeparator(null);
+                export.writeTo(message -> {
+                    try {
+                        generator.writeObject(message);
+                        generator.writeRaw('\n');
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+        };
+        ContentDisposition attachment = ContentDisposition.attachment()
+                .filename("conversation-" + conversationId + ".ndjson")
+                .build();
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .header(HttpHeaders.CONTENT_DISPOSITION, attachment.toString())
+                .body(body);
+    }
+    
     @PostMapping("/conversations/direct/{userId}")
+    @StatementBudget(7)
     public ResponseEntity<?> createDirectConversation(
             @AuthenticationPrincipal OidcUser principal,
             @PathVariable Long userId) {
@@ -94,6 +256,7 @@ public class ChatController {
     }
     
     @PostMapping("/conversations/group")
+    @StatementBudget(7)
     public ResponseEntity<?> createGroupConversation(
             @AuthenticationPrincipal OidcUser principal,
             @RequestBody Map<String, Object> request) {
@@ -106,13 +269,17 @@ public class ChatController {
             .orElseThrow(() -> new NoSuchElementException("User not found"));
         
         String name = (String) request.get("name");
-        List<Long> participantIds = (List<Long>) request.get("participantIds");
+        List<?> rawParticipantIds = (List<?>) request.get("participantIds");
         
-        if (name == null || participantIds == null) {
+        if (name == null || rawParticipantIds == null) {
             return ResponseEntity.badRequest().body("Name and participant IDs are required");
         }
         
         try {
+            // JSON numbers arrive as Integer or Long depending on their size
+            List<Long> participantIds = rawParticipantIds.stream()
+                    .map(id -> Long.valueOf(id.toString()))
+                    .toList();
             List<User> participants = userService.findUsersByIds(participantIds);
             
             // Add current user to participants if not already included
@@ -128,6 +295,7 @@ public class ChatController {
     }
     
     @PostMapping("/conversations/{conversationId}/read")
+    @StatementBudget(3)
     public ResponseEntity<?> markMessagesAsRead(
             @AuthenticationPrincipal OidcUser principal,
             @PathVariable Long conversationId) {
@@ -147,21 +315,125 @@ public class ChatController {
         }
     }
     
+    // Who in the conversation is online and typing now; changes follow on the activity destinations
+    @GetMapping("/conversations/{conversationId}/presence")
+    @StatementBudget(2)
+    public ResponseEntity<?> getPresence(
+            @AuthenticationPrincipal OidcUser principal,
+            @PathVariable Long conversationId) {
+        
+        if (principal == null) {
+            return ResponseEntity.status(401).body("Not authenticated");
+        }
+        
+        User currentUser = userService.findUserByAuthId(principal.getSubject())
+            .orElseThrow(() -> new NoSuchElementException("User not found"));
+        
+        try {
+            ConversationActivity activity = presenceService.currentActivity(conversationId, currentUser);
+            return ResponseEntity.ok(activity);
+        } catch (IllegalArgumentException | NoSuchElementException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+    
+    // Everything that changed across the user's conversations since the cursor, as newline-delimited
+    // JSON events; reconnecting clients call this instead of reloading the inbox and every open
+    // conversation. Without a cursor the response is just the cursor for "now". Not budgeted here:
+    // the response has as many pages as there are changes, and each page is budgeted on its own.
+    @GetMapping(value = "/sync", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> sync(
+            @AuthenticationPrincipal OidcUser principal,
+            @RequestParam(required = false) String cursor) {
+        
+        if (principal == null) {
+            return ResponseEntity.status(401).build();
+        }
+        
+        User currentUser = userService.findUserByAuthId(principal.getSubject())
+            .orElseThrow(() -> new NoSuchElementException("User not found"));
+        
+        ConversationSyncService.Position from;
+        try {
+            from = syncService.position(cursor);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+        
+        // Written from the async executor as each page is loaded
+        StreamingResponseBody body = out -> syncService.sync(currentUser, from, event -> {
+            try {
+                out.write(objectMapper.writeValueAsBytes(event));
+                out.write('\n');
+                if (event.getCursor() != null) {
+                    out.flush();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    }
+    
     // WebSocket message handling
     
+    // {conversationId, content, clientMessageId}. With a clientMessageId the sending session gets a
+    // SendReceipt on /user/queue/sent once the message is stored or has failed, so clients can keep
+    // many sends in flight and retry unacknowledged ones after a reconnect without duplicating them.
     @MessageMapping("/chat.sendMessage")
-    public void sendMessage(@Payload Map<String, Object> messageRequest, Principal principal) {
+    @StatementBudget(4)
+    public void sendMessage(@Payload Map<String, Object> messageRequest, Principal principal,
+            SimpMessageHeaderAccessor headers) {
         String authId = principal.getName();
         User sender = userService.findUserByAuthId(authId)
             .orElseThrow(() -> new NoSuchElementException("User not found"));
         
         Long conversationId = Long.valueOf(messageRequest.get("conversationId").toString());
         String content = (String) messageRequest.get("content");
+        Object clientMessageId = messageRequest.get("clientMessageId");
+        
+        if (clientMessageId == null) {
+            chatService.sendMessage(sender, conversationId, content);
+        } else {
+            String id = clientMessageId.toString();
+            String sessionId = headers.getSessionId();
+            CompletableFuture<MessageDTO> sent = chatService.sendMessage(sender, conversationId, content, id);
+            sent.whenComplete((message, failure) ->
+                    messageDispatcher.sendToSession(authId, sessionId, ChatService.SEND_RECEIPTS_QUEUE,
+                            failure == null ? SendReceipt.stored(id, message)
+                                    : SendReceipt.failed(id, conversationId, reason(failure))));
+            if (sent.isCompletedExceptionally()) {
+                // Rejected outright; the receipt says why
+                return;
+            }
+        }
+        // Sending ends the sender's typing notice straight away
+        presenceService.typing(sender, conversationId, false);
+    }
+    
+    private static String reason(Throwable failure) {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+        // Membership and argument errors are worth showing; anything else is the server's problem
+        return cause instanceof IllegalArgumentException || cause instanceof NoSuchElementException
+                ? cause.getMessage() : "Message could not be saved";
+    }
+    
+    // Typing notices: {conversationId, typing}. Clients send typing=true when the user starts and
+    // every few seconds while they keep typing, and typing=false when they stop.
+    @MessageMapping("/chat.typing")
+    @StatementBudget(2)
+    public void typing(@Payload Map<String, Object> typingRequest, Principal principal) {
+        String authId = principal.getName();
+        User user = userService.findUserByAuthId(authId)
+            .orElseThrow(() -> new NoSuchElementException("User not found"));
         
-        chatService.sendMessage(sender, conversationId, content);
+        Long conversationId = Long.valueOf(typingRequest.get("conversationId").toString());
+        boolean typing = Boolean.TRUE.equals(typingRequest.get("typing"));
+        presenceService.typing(user, conversationId, typing);
     }
     
     @MessageMapping("/chat.markRead")
+    @StatementBudget(3)
     public void markRead(@Payload Map<String, Object> readRequest, Principal principal) {
         String authId = principal.getName();
         User user = userService.findUserByAuthId(authId)
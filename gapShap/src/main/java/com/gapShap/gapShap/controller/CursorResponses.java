@@ -0,0 +1,28 @@
+package com.gapShap.gapShap.controller;
+
+import com.gapShap.gapShap.dto.CursorPage;
+import org.springframework.http.ResponseEntity;
+
+import java.util.List;
+
+// Cursor-paged endpoints return the page items as the body and the cursor for the
+// following page in a header, so existing clients that expect a plain array keep working
+public final class CursorResponses {
+
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+    private CursorResponses() {
+    }
+
+    public static <T> ResponseEntity<List<T>> ok(CursorPage<T> page) {
+        return ok(ResponseEntity.ok(), page);
+    }
+
+    // For callers that set further headers on the response
+    public static <T> ResponseEntity<List<T>> ok(ResponseEntity.BodyBuilder response, CursorPage<T> page) {
+        if (page.hasMore()) {
+            response.header(NEXT_CURSOR_HEADER, page.getNextCursor());
+        }
+        return response.body(page.getItems());
+    }
+}
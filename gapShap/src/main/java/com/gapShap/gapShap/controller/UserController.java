@@ -1,5 +1,7 @@
 package com.gapShap.gapShap.controller;
 
+import com.gapShap.gapShap.dto.CursorPage;
+import com.gapShap.gapShap.metrics.StatementBudget;
 import com.gapShap.gapShap.model.User;
 import com.gapShap.gapShap.service.UserService;
 
@@ -37,6 +39,7 @@ public class UserController {
         return "Welcome to GapShap! <a href='/dashboard'>Go to Dashboard</a>";
     }
     @GetMapping("/api/user")
+    @StatementBudget(2)
     public ResponseEntity<?> getCurrentUser(@AuthenticationPrincipal OidcUser principal) {
         if (principal == null) {
             return ResponseEntity.status(401).body("Not authenticated");
@@ -59,6 +62,7 @@ public class UserController {
     }
 
     @GetMapping("/dashboard")
+    @StatementBudget(2)
     public Map<String, Object> dashboard(@AuthenticationPrincipal OidcUser principal) {
         // Save or update user in the database
         String authId = principal.getSubject();
@@ -132,8 +136,11 @@ public class UserController {
         return "This is a public endpoint that doesn't require authentication";
     }
     @GetMapping("/api/users")
+    @StatementBudget(2)
     public ResponseEntity<?> getAllUsers(@AuthenticationPrincipal OidcUser principal,
-                                        @RequestParam(required = false) String query) {
+                                        @RequestParam(required = false) String query,
+                                        @RequestParam(required = false) String cursor,
+                                        @RequestParam(defaultValue = "20") int limit) {
         if (principal == null) {
             return ResponseEntity.status(401).body("Not authenticated");
         }
@@ -141,18 +148,20 @@ public class UserController {
         User currentUser = userService.findUserByAuthId(principal.getSubject())
             .orElseThrow(() -> new NoSuchElementException("User not found"));
         
-        List<User> users;
-        if (query != null && !query.isEmpty()) {
-            // Search users by name or email if query is provided
-            users = userService.searchUsers(query);
-        } else {
-            // Return all users if no query
-            users = userService.findAllUsers();
+        CursorPage<User> users;
+        try {
+            if (query != null && !query.isBlank()) {
+                // Search users by name or email if query is provided, excluding the current user
+                users = userService.searchUsers(query, currentUser.getId(), cursor, limit);
+            } else {
+                // Otherwise page through the directory
+                users = userService.listUsers(currentUser.getId(), cursor, limit);
+            }
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
         }
         
-        // Filter out the current user from results
-        List<Map<String, Object>> response = users.stream()
-            .filter(user -> !user.getId().equals(currentUser.getId()))
+        List<Map<String, Object>> response = users.getItems().stream()
             .map(user -> {
                 Map<String, Object> userMap = new HashMap<>();
                 userMap.put("id", user.getId());
@@ -163,6 +172,6 @@ public class UserController {
             })
             .collect(Collectors.toList());
         
-        return ResponseEntity.ok(response);
+        return CursorResponses.ok(new CursorPage<>(response, users.getNextCursor()));
     }
 }
\ No newline at end of file
@@ -0,0 +1,66 @@
+package com.gapShap.gapShap.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Typing and presence changes in one conversation since the last tick, by user id. As the answer to
+// GET /api/conversations/{id}/presence it is the current state instead: who is online and typing.
+@JsonInclude(JsonInclude.Include.NON_EMPTY)
+public class ConversationActivity {
+
+    private Long conversationId;
+    private List<Long> typing = new ArrayList<>();
+    private List<Long> stoppedTyping = new ArrayList<>();
+    private List<Long> online = new ArrayList<>();
+    private List<Long> offline = new ArrayList<>();
+
+    // Default constructor
+    public ConversationActivity() {}
+
+    public ConversationActivity(Long conversationId) {
+        this.conversationId = conversationId;
+    }
+
+    // Getters and setters
+    public Long getConversationId() {
+        return conversationId;
+    }
+
+    public void setConversationId(Long conversationId) {
+        this.conversationId = conversationId;
+    }
+
+    public List<Long> getTyping() {
+        return typing;
+    }
+
+    public void setTyping(List<Long> typing) {
+        this.typing = typing;
+    }
+
+    public List<Long> getStoppedTyping() {
+        return stoppedTyping;
+    }
+
+    public void setStoppedTyping(List<Long> stoppedTyping) {
+        this.stoppedTyping = stoppedTyping;
+    }
+
+    public List<Long> getOnline() {
+        return online;
+    }
+
+    public void setOnline(List<Long> online) {
+        this.online = online;
+    }
+
+    public List<Long> getOffline() {
+        return offline;
+    }
+
+    public void setOffline(List<Long> offline) {
+        this.offline = offline;
+    }
+}
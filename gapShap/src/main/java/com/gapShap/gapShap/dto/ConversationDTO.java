@@ -9,6 +9,7 @@ public class ConversationDTO {
     private boolean isGroupChat;
     private String name;
     private Date createdAt;
+    private Long lastActivityAt;
     private List<UserDTO> participants;
     private MessageDTO lastMessage;
     private int unreadCount;
@@ -49,6 +50,14 @@ public class ConversationDTO {
         this.createdAt = createdAt;
     }
     
+    public Long getLastActivityAt() {
+        return lastActivityAt;
+    }
+    
+    public void setLastActivityAt(Long lastActivityAt) {
+        this.lastActivityAt = lastActivityAt;
+    }
+    
     public List<UserDTO> getParticipants() {
         return participants;
     }
@@ -0,0 +1,39 @@
+package com.gapShap.gapShap.dto;
+
+import java.util.List;
+
+public class CursorPage<T> {
+    
+    private List<T> items;
+    private String nextCursor;
+    
+    // Default constructor
+    public CursorPage() {}
+    
+    // Constructor with fields; nextCursor is null when there are no more items
+    public CursorPage(List<T> items, String nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+    
+    // Getters and setters
+    public List<T> getItems() {
+        return items;
+    }
+    
+    public void setItems(List<T> items) {
+        this.items = items;
+    }
+    
+    public String getNextCursor() {
+        return nextCursor;
+    }
+    
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+    
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
+}
@@ -0,0 +1,36 @@
+package com.gapShap.gapShap.dto;
+
+import java.util.List;
+
+// A message found by a search, with where the search matched: [start, end) character ranges of its
+// content, in the UTF-16 units JavaScript strings index by, so clients can highlight without parsing markup
+public class MessageSearchHit {
+
+    private MessageDTO message;
+    private List<int[]> highlights;
+
+    // Default constructor
+    public MessageSearchHit() {}
+
+    public MessageSearchHit(MessageDTO message, List<int[]> highlights) {
+        this.message = message;
+        this.highlights = highlights;
+    }
+
+    // Getters and setters
+    public MessageDTO getMessage() {
+        return message;
+    }
+
+    public void setMessage(MessageDTO message) {
+        this.message = message;
+    }
+
+    public List<int[]> getHighlights() {
+        return highlights;
+    }
+
+    public void setHighlights(List<int[]> highlights) {
+        this.highlights = highlights;
+    }
+}
@@ -0,0 +1,76 @@
+package com.gapShap.gapShap.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+// Sent to the session that sent a message with a client message id once the outcome is known: the
+// stored message's id and send time, or why it was not stored. Retries get the first attempt's receipt.
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class SendReceipt {
+
+    private String clientMessageId;
+    private Long conversationId;
+    private Long messageId;
+    private Long sentAt;
+    private String error;
+
+    // Default constructor
+    public SendReceipt() {}
+
+    public static SendReceipt stored(String clientMessageId, MessageDTO message) {
+        SendReceipt receipt = new SendReceipt();
+        receipt.setClientMessageId(clientMessageId);
+        receipt.setConversationId(message.getConversationId());
+        receipt.setMessageId(message.getId());
+        receipt.setSentAt(message.getSentAt());
+        return receipt;
+    }
+
+    public static SendReceipt failed(String clientMessageId, Long conversationId, String error) {
+        SendReceipt receipt = new SendReceipt();
+        receipt.setClientMessageId(clientMessageId);
+        receipt.setConversationId(conversationId);
+        receipt.setError(error);
+        return receipt;
+    }
+
+    // Getters and setters
+    public String getClientMessageId() {
+        return clientMessageId;
+    }
+
+    public void setClientMessageId(String clientMessageId) {
+        this.clientMessageId = clientMessageId;
+    }
+
+    public Long getConversationId() {
+        return conversationId;
+    }
+
+    public void setConversationId(Long conversationId) {
+        this.conversationId = conversationId;
+    }
+
+    public Long getMessageId() {
+        return messageId;
+    }
+
+    public void setMessageId(Long messageId) {
+        this.messageId = messageId;
+    }
+
+    public Long getSentAt() {
+        return sentAt;
+    }
+
+    public void setSentAt(Long sentAt) {
+        this.sentAt = sentAt;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
@@ -0,0 +1,120 @@
+package com.gapShap.gapShap.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+// One line of a /api/sync response. The type says which of the other fields are set:
+// "conversation" a changed conversation summary, "message" a new message, "read" a moved
+// read cursor, and "cursor" the position to sync from next time.
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class SyncEvent {
+
+    private String type;
+    private ConversationDTO conversation;
+    private MessageDTO message;
+    private Long conversationId;
+    private Long userId;
+    private Long lastReadMessageId;
+    private String cursor;
+    private Boolean hasMore;
+
+    // Default constructor
+    public SyncEvent() {}
+
+    public static SyncEvent conversation(ConversationDTO conversation) {
+        SyncEvent event = new SyncEvent();
+        event.setType("conversation");
+        event.setConversation(conversation);
+        return event;
+    }
+
+    public static SyncEvent message(MessageDTO message) {
+        SyncEvent event = new SyncEvent();
+        event.setType("message");
+        event.setMessage(message);
+        return event;
+    }
+
+    // Everything up to lastReadMessageId in the conversation has been read by the user
+    public static SyncEvent read(Long conversationId, Long userId, Long lastReadMessageId) {
+        SyncEvent event = new SyncEvent();
+        event.setType("read");
+        event.setConversationId(conversationId);
+        event.setUserId(userId);
+        event.setLastReadMessageId(lastReadMessageId);
+        return event;
+    }
+
+    // hasMore is true while the same response still has more changes to stream after this point
+    public static SyncEvent cursor(String cursor, boolean hasMore) {
+        SyncEvent event = new SyncEvent();
+        event.setType("cursor");
+        event.setCursor(cursor);
+        event.setHasMore(hasMore);
+        return event;
+    }
+
+    // Getters and setters
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public ConversationDTO getConversation() {
+        return conversation;
+    }
+
+    public void setConversation(ConversationDTO conversation) {
+        this.conversation = conversation;
+    }
+
+    public MessageDTO getMessage() {
+        return message;
+    }
+
+    public void setMessage(MessageDTO message) {
+        this.message = message;
+    }
+
+    public Long getConversationId() {
+        return conversationId;
+    }
+
+    public void setConversationId(Long conversationId) {
+        this.conversationId = conversationId;
+    }
+
+    public Long getUserId() {
+        return userId;
+    }
+
+    public void setUserId(Long userId) {
+        this.userId = userId;
+    }
+
+    public Long getLastReadMessageId() {
+        return lastReadMessageId;
+    }
+
+    public void setLastReadMessageId(Long lastReadMessageId) {
+        this.lastReadMessageId = lastReadMessageId;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    public Boolean getHasMore() {
+        return hasMore;
+    }
+
+    public void setHasMore(Boolean hasMore) {
+        this.hasMore = hasMore;
+    }
+}
@@ -0,0 +1,55 @@
+package com.gapShap.gapShap.metrics;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.simp.user.SimpSession;
+import org.springframework.messaging.simp.user.SimpUser;
+import org.springframework.messaging.simp.user.SimpUserRegistry;
+import org.springframework.stereotype.Component;
+
+// Connected users, STOMP sessions and subscriptions on this node. The counts are taken when the
+// gauges are read, so the message path pays nothing for them. The channel executors' queue depths
+// are already published by Spring Boot as executor.queued{name=clientInboundChannelExecutor}, etc.
+@Component
+public class BrokerMetrics implements MeterBinder {
+
+    private final SimpUserRegistry userRegistry;
+
+    @Autowired
+    public BrokerMetrics(SimpUserRegistry userRegistry) {
+        this.userRegistry = userRegistry;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("gapshap.broker.users", userRegistry, SimpUserRegistry::getUserCount)
+                .description("Users with at least one STOMP session on this node")
+                .register(registry);
+        Gauge.builder("gapshap.broker.sessions", this, BrokerMetrics::sessionCount)
+                .description("STOMP sessions on this node")
+                .register(registry);
+        Gauge.builder("gapshap.broker.subscriptions", this, BrokerMetrics::subscriptionCount)
+                .description("Subscriptions held by the STOMP sessions on this node")
+                .register(registry);
+    }
+
+    private double sessionCount() {
+        long sessions = 0;
+        for (SimpUser user : userRegistry.getUsers()) {
+            sessions += user.getSessions().size();
+        }
+        return sessions;
+    }
+
+    private double subscriptionCount() {
+        long subscriptions = 0;
+        for (SimpUser user : userRegistry.getUsers()) {
+            for (SimpSession session : user.getSessions()) {
+                subscriptions += session.getSubscriptions().size();
+            }
+        }
+        return subscriptions;
+    }
+}
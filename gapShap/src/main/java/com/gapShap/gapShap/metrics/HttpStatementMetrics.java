@@ -0,0 +1,103 @@
+package com.gapShap.gapShap.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import java.util.concurrent.Callable;
+
+// Records how many SQL statements each HTTP request ran, tagged with its route, and holds
+// controller methods to their @StatementBudget. Async requests (streamed responses) keep one
+// scope that follows them from the servlet thread to the async task and back.
+@Component
+public class HttpStatementMetrics implements AsyncHandlerInterceptor, CallableProcessingInterceptor {
+
+    private static final String SCOPE_ATTRIBUTE = HttpStatementMetrics.class.getName() + ".scope";
+
+    private final StatementCounter statementCounter;
+    private final Meter.MeterProvider<DistributionSummary> statements;
+
+    @Autowired
+    public HttpStatementMetrics(StatementCounter statementCounter, MeterRegistry meterRegistry) {
+        this.statementCounter = statementCounter;
+        this.statements = DistributionSummary.builder(StatementCounter.METRIC_NAME)
+                .description("SQL statements run while handling one request or STOMP message")
+                .tag("transport", "http")
+                .withRegistry(meterRegistry);
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        if (request.getDispatcherType() == DispatcherType.ASYNC
+                && request.getAttribute(SCOPE_ATTRIBUTE) instanceof StatementCounter.Scope scope) {
+            // Dispatched again once the async task finished; afterCompletion follows on this thread
+            scope.attach();
+            return true;
+        }
+        StatementCounter.Scope scope;
+        if (handler instanceof HandlerMethod handlerMethod) {
+            int budget = statementCounter.budgetOf(handlerMethod.getMethodAnnotation(StatementBudget.class));
+            scope = statementCounter.open(request.getMethod() + " " + route(request), budget);
+        } else {
+            scope = statementCounter.open();
+        }
+        request.setAttribute(SCOPE_ATTRIBUTE, scope);
+        return true;
+    }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response,
+            Object handler) {
+        // The servlet thread goes back to the pool; it must not keep counting for this request
+        if (request.getAttribute(SCOPE_ATTRIBUTE) instanceof StatementCounter.Scope scope) {
+            scope.detach();
+        }
+    }
+
+    @Override
+    public <T> void preProcess(NativeWebRequest request, Callable<T> task) {
+        StatementCounter.Scope scope = scopeOf(request);
+        if (scope != null) {
+            scope.attach();
+        }
+    }
+
+    @Override
+    public <T> void postProcess(NativeWebRequest request, Callable<T> task, Object concurrentResult) {
+        StatementCounter.Scope scope = scopeOf(request);
+        if (scope != null) {
+            scope.detach();
+        }
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+            Exception ex) {
+        if (!(request.getAttribute(SCOPE_ATTRIBUTE) instanceof StatementCounter.Scope scope)) {
+            return;
+        }
+        scope.close();
+        statements.withTags("method", request.getMethod(), "handler", route(request)).record(scope.count());
+    }
+
+    private static StatementCounter.Scope scopeOf(NativeWebRequest request) {
+        Object scope = request.getAttribute(SCOPE_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        return scope instanceof StatementCounter.Scope ? (StatementCounter.Scope) scope : null;
+    }
+
+    private static String route(HttpServletRequest request) {
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        return pattern != null ? pattern.toString() : "UNKNOWN";
+    }
+}
@@ -0,0 +1,17 @@
+package com.gapShap.gapShap.metrics;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// The most SQL statements a controller method may run for one HTTP request or STOMP message,
+// including a cold user cache. What happens past it is set by gapshap.chat.statements.budget-mode.
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface StatementBudget {
+
+    int value();
+}
@@ -0,0 +1,129 @@
+package com.gapShap.gapShap.metrics;
+
+import com.gapShap.gapShap.config.ChatProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Counts the SQL statements run on the current thread while a scope is open, and holds scopes
+// opened with a budget to it. StatementCountingDataSource reports every statement that goes through
+// the application's DataSource, Hibernate's and JdbcTemplate's alike; outside a scope it costs one
+// ThreadLocal read.
+@Component
+public class StatementCounter {
+
+    private static final Logger log = LoggerFactory.getLogger(StatementCounter.class);
+
+    // Distribution of statements per HTTP request or STOMP message
+    public static final String METRIC_NAME = "gapshap.sql.statements";
+
+    // No budget; the scope only counts
+    public static final int UNLIMITED = -1;
+
+    private static final ThreadLocal<Scope> CURRENT = new ThreadLocal<>();
+
+    private final ChatProperties.Statements settings;
+
+    @Autowired
+    public StatementCounter(ChatProperties chatProperties) {
+        this.settings = chatProperties.getStatements();
+    }
+
+    // Start counting on this thread until the returned scope is closed; scopes may nest
+    public Scope open() {
+        return open(null, UNLIMITED);
+    }
+
+    // As open(), checking the count against the handler's budget when budgets are enforced
+    public Scope open(String handler, int budget) {
+        ChatProperties.StatementBudgetMode mode = budget == UNLIMITED
+                ? ChatProperties.StatementBudgetMode.OFF
+                : settings.getBudgetMode();
+        Scope scope = new Scope(CURRENT.get(), handler, budget, mode);
+        CURRENT.set(scope);
+        return scope;
+    }
+
+    // The budget for a handler method's @StatementBudget, or the configured default
+    public int budgetOf(StatementBudget annotation) {
+        return annotation != null ? annotation.value() : settings.getDefaultBudget();
+    }
+
+    // A statement is about to run on this thread
+    void executed(String sql) {
+        Scope scope = CURRENT.get();
+        if (scope != null) {
+            scope.add(sql);
+        }
+    }
+
+    public static final class Scope implements AutoCloseable {
+
+        private Scope outer;
+        private final String handler;
+        private final int budget;
+        private final ChatProperties.StatementBudgetMode mode;
+        // Only kept while a budget is enforced, for the report
+        private final List<String> statements;
+        private int count;
+
+        private Scope(Scope outer, String handler, int budget, ChatProperties.StatementBudgetMode mode) {
+            this.outer = outer;
+            this.handler = handler;
+            this.budget = budget;
+            this.mode = mode;
+            this.statements = mode != ChatProperties.StatementBudgetMode.OFF ? new ArrayList<>() : null;
+        }
+
+        public int count() {
+            return count;
+        }
+
+        private void add(String sql) {
+            count++;
+            if (statements != null) {
+                statements.add(sql);
+                if (count > budget && mode == ChatProperties.StatementBudgetMode.FAIL) {
+                    throw new IllegalStateException(report());
+                }
+            }
+        }
+
+        private String report() {
+            return handler + " ran " + count + " SQL statements, over its budget of " + budget + ":\n  "
+                    + String.join("\n  ", statements);
+        }
+
+        // Unbind the scope from this thread without closing it, when the request it counts
+        // carries on on another thread (async servlet processing)
+        public void detach() {
+            CURRENT.set(outer);
+            outer = null;
+        }
+
+        // Bind a detached scope to the current thread again
+        public void attach() {
+            outer = CURRENT.get();
+            CURRENT.set(this);
+        }
+
+        @Override
+        public void close() {
+            CURRENT.set(outer);
+            if (outer != null) {
+                // Statements of a nested scope also belong to the one around it
+                outer.count += count;
+                if (outer.statements != null && statements != null) {
+                    outer.statements.addAll(statements);
+                }
+            }
+            if (mode == ChatProperties.StatementBudgetMode.LOG && count > budget) {
+                log.warn(report());
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.gapShap.gapShap.metrics;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Set;
+
+// The application's DataSource, counting every statement run through it for the StatementCounter:
+// Hibernate's, JdbcTemplate's and any other. Connections and the statements they create are wrapped
+// in proxies; each execute call counts once, a whole batch included.
+public class StatementCountingDataSource extends DelegatingDataSource implements AutoCloseable {
+
+    private static final Set<String> EXECUTE_METHODS = Set.of("execute", "executeQuery", "executeUpdate",
+            "executeLargeUpdate", "executeBatch", "executeLargeBatch");
+
+    private final StatementCounter statementCounter;
+
+    public StatementCountingDataSource(DataSource targetDataSource, StatementCounter statementCounter) {
+        super(targetDataSource);
+        this.statementCounter = statementCounter;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return countingConnection(super.getConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return countingConnection(super.getConnection(username, password));
+    }
+
+    // The pool is the target's; it is closed with the application context all the same
+    @Override
+    public void close() throws Exception {
+        if (obtainTargetDataSource() instanceof AutoCloseable closeable) {
+            closeable.close();
+        }
+    }
+
+    private Connection countingConnection(Connection connection) {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Connection.class},
+                (proxy, method, args) -> {
+                    if (isObjectIdentity(method)) {
+                        return objectIdentity(proxy, method, args);
+                    }
+                    Object result = invoke(connection, method, args);
+                    if (result instanceof Statement statement && method.getReturnType().isInterface()) {
+                        // Prepared and callable statements know their SQL up front
+                        String sql = method.getName().startsWith("prepare") ? (String) args[0] : null;
+                        return countingStatement(statement, method.getReturnType(), sql, (Connection) proxy);
+                    }
+                    return result;
+                });
+    }
+
+    private Object countingStatement(Statement statement, Class<?> type, String preparedSql, Connection connection) {
+        return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {type},
+                (proxy, method, args) -> {
+                    if (isObjectIdentity(method)) {
+                        return objectIdentity(proxy, method, args);
+                    }
+                    if (EXECUTE_METHODS.contains(method.getName())) {
+                        String sql = preparedSql;
+                        if (sql == null) {
+                            sql = args != null && args.length > 0 && args[0] instanceof String text ? text : "(batch)";
+                        }
+                        statementCounter.executed(sql);
+                    } else if (method.getName().equals("getConnection")) {
+                        return connection;
+                    }
+                    return invoke(statement, method, args);
+                });
+    }
+
+    private static boolean isObjectIdentity(Method method) {
+        return method.getDeclaringClass() == Object.class && !method.getName().equals("toString");
+    }
+
+    // A proxy is only ever equal to itself, as the wrapped object can't tell
+    private static Object objectIdentity(Object proxy, Method method, Object[] args) {
+        return method.getName().equals("equals") ? proxy == args[0] : System.identityHashCode(proxy);
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+}
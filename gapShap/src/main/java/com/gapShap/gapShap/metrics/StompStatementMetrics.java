@@ -0,0 +1,99 @@
+package com.gapShap.gapShap.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.handler.DestinationPatternsMessageCondition;
+import org.springframework.messaging.handler.HandlerMethod;
+import org.springframework.messaging.simp.SimpMessageMappingInfo;
+import org.springframework.messaging.simp.annotation.support.SimpAnnotationMethodMessageHandler;
+import org.springframework.messaging.support.ExecutorChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Records how many SQL statements each @MessageMapping invocation ran, tagged with its destination,
+// and holds the methods to their @StatementBudget.
+// The inbound channel hands each message to every subscribed handler as a separate task; only the
+// annotation handler runs application code, the broker handlers are left alone.
+@Component
+public class StompStatementMetrics implements ExecutorChannelInterceptor {
+
+    private final StatementCounter statementCounter;
+    private final Meter.MeterProvider<DistributionSummary> statements;
+    // beforeHandle and afterMessageHandled run on the same executor thread
+    private final ThreadLocal<StatementCounter.Scope> scopes = new ThreadLocal<>();
+    // Budgets of the @MessageMapping methods, by destination; only destinations that matched one
+    private final Map<String, Integer> budgets = new ConcurrentHashMap<>();
+
+    @Autowired
+    public StompStatementMetrics(StatementCounter statementCounter, MeterRegistry meterRegistry) {
+        this.statementCounter = statementCounter;
+        this.statements = DistributionSummary.builder(StatementCounter.METRIC_NAME)
+                .description("SQL statements run while handling one request or STOMP message")
+                .tag("transport", "stomp")
+                .withRegistry(meterRegistry);
+    }
+
+    @Override
+    public Message<?> beforeHandle(Message<?> message, MessageChannel channel, MessageHandler handler) {
+        if (handler instanceof SimpAnnotationMethodMessageHandler annotationHandler
+                && SimpMessageHeaderAccessor.getMessageType(message.getHeaders()) == SimpMessageType.MESSAGE) {
+            String destination = SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+            scopes.set(statementCounter.open(destination, budgetFor(annotationHandler, message, destination)));
+        }
+        return message;
+    }
+
+    @Override
+    public void afterMessageHandled(Message<?> message, MessageChannel channel, MessageHandler handler,
+            Exception ex) {
+        StatementCounter.Scope scope = scopes.get();
+        if (scope == null) {
+            return;
+        }
+        scopes.remove();
+        scope.close();
+        String destination = SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+        statements.withTags("handler", destination != null ? destination : "UNKNOWN").record(scope.count());
+    }
+
+    private int budgetFor(SimpAnnotationMethodMessageHandler handler, Message<?> message, String destination) {
+        if (destination == null) {
+            return statementCounter.budgetOf(null);
+        }
+        Integer budget = budgets.get(destination);
+        if (budget == null) {
+            // The handler only sets the lookup destination (its own prefix stripped) once it handles the message
+            Message<?> lookup = null;
+            for (String prefix : handler.getDestinationPrefixes()) {
+                if (destination.startsWith(prefix)) {
+                    lookup = MessageBuilder.fromMessage(message)
+                            .setHeader(DestinationPatternsMessageCondition.LOOKUP_DESTINATION_HEADER,
+                                    destination.substring(prefix.length() - 1))
+                            .build();
+                    break;
+                }
+            }
+            if (lookup == null) {
+                return statementCounter.budgetOf(null);
+            }
+            for (Map.Entry<SimpMessageMappingInfo, HandlerMethod> mapping : handler.getHandlerMethods().entrySet()) {
+                if (mapping.getKey().getMatchingCondition(lookup) != null) {
+                    budget = statementCounter.budgetOf(mapping.getValue().getMethodAnnotation(StatementBudget.class));
+                    budgets.put(destination, budget);
+                    break;
+                }
+            }
+        }
+        return budget != null ? budget : statementCounter.budgetOf(null);
+    }
+}
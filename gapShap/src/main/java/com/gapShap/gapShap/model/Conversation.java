@@ -6,7 +6,9 @@ import java.util.Date;
 import java.util.List;
 
 @Entity
-@Table(name = "conversations")
+@Table(name = "conversations", indexes = {
+    @Index(name = "idx_conversations_last_activity", columnList = "last_activity_at DESC, id DESC")
+})
 public class Conversation {
     
     @Id
@@ -22,11 +24,19 @@ public class Conversation {
     @Column(name = "created_at")
     private Date createdAt;
     
+    // Denormalized inbox columns, kept current by ChatService.sendMessage
+    @Column(name = "last_message_id")
+    private Long lastMessageId;
+    
+    @Column(name = "last_activity_at")
+    private Date lastActivityAt;
+    
     @ManyToMany
     @JoinTable(
         name = "conversation_participants",
         joinColumns = @JoinColumn(name = "conversation_id"),
-        inverseJoinColumns = @JoinColumn(name = "user_id")
+        inverseJoinColumns = @JoinColumn(name = "user_id"),
+        indexes = @Index(name = "idx_conversation_participants_user", columnList = "user_id, conversation_id")
     )
     private List<User> participants = new ArrayList<>();
     
@@ -36,6 +46,7 @@ public class Conversation {
     // Default constructor
     public Conversation() {
         this.createdAt = new Date();
+        this.lastActivityAt = this.createdAt;
     }
     
     // Constructor for direct conversations
@@ -43,6 +54,7 @@ public class Conversation {
         this.isGroupChat = false;
         this.name = null;
         this.createdAt = new Date();
+        this.lastActivityAt = this.createdAt;
         this.participants.add(user1);
         this.participants.add(user2);
     }
@@ -52,6 +64,7 @@ public class Conversation {
         this.isGroupChat = true;
         this.name = name;
         this.createdAt = new Date();
+        this.lastActivityAt = this.createdAt;
         this.participants.addAll(participants);
     }
     
@@ -88,6 +101,22 @@ public class Conversation {
         this.createdAt = createdAt;
     }
     
+    public Long getLastMessageId() {
+        return lastMessageId;
+    }
+    
+    public void setLastMessageId(Long lastMessageId) {
+        this.lastMessageId = lastMessageId;
+    }
+    
+    public Date getLastActivityAt() {
+        return lastActivityAt;
+    }
+    
+    public void setLastActivityAt(Date lastActivityAt) {
+        this.lastActivityAt = lastActivityAt;
+    }
+    
     public List<User> getParticipants() {
         return participants;
     }
@@ -0,0 +1,108 @@
+package com.gapShap.gapShap.model;
+
+import jakarta.persistence.*;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.Objects;
+
+// Read cursor of one user in one conversation: everything up to lastReadMessageId has been read
+@Entity
+@Table(name = "conversation_reads", indexes = {
+    @Index(name = "idx_conversation_reads_conversation", columnList = "conversation_id, last_read_message_id"),
+    // Backs the sync query for cursors that moved since a client last saw them
+    @Index(name = "idx_conversation_reads_seq", columnList = "conversation_id, read_seq")
+})
+@IdClass(ConversationRead.Key.class)
+public class ConversationRead {
+    
+    @Id
+    @Column(name = "user_id")
+    private Long userId;
+    
+    @Id
+    @Column(name = "conversation_id")
+    private Long conversationId;
+    
+    @Column(name = "last_read_message_id", nullable = false)
+    private Long lastReadMessageId;
+    
+    // Position of the latest change to this cursor in the order of all read-cursor changes.
+    // Drawn from conversation_reads_seq by the database on every insert and advance.
+    @Column(name = "read_seq", insertable = false, updatable = false)
+    private Long readSeq;
+    
+    // When the cursor last moved; null for cursors that haven't moved since the column was added
+    @Column(name = "read_at")
+    private Date readAt;
+    
+    // Default constructor required by JPA
+    public ConversationRead() {
+    }
+    
+    public ConversationRead(Long userId, Long conversationId, Long lastReadMessageId) {
+        this.userId = userId;
+        this.conversationId = conversationId;
+        this.lastReadMessageId = lastReadMessageId;
+    }
+    
+    // Getters and setters
+    public Long getUserId() {
+        return userId;
+    }
+    
+    public void setUserId(Long userId) {
+        this.userId = userId;
+    }
+    
+    public Long getConversationId() {
+        return conversationId;
+    }
+    
+    public void setConversationId(Long conversationId) {
+        this.conversationId = conversationId;
+    }
+    
+    public Long getLastReadMessageId() {
+        return lastReadMessageId;
+    }
+    
+    public void setLastReadMessageId(Long lastReadMessageId) {
+        this.lastReadMessageId = lastReadMessageId;
+    }
+    
+    public Long getReadSeq() {
+        return readSeq;
+    }
+    
+    public Date getReadAt() {
+        return readAt;
+    }
+    
+    // Composite primary key (user_id, conversation_id)
+    public static class Key implements Serializable {
+        
+        private Long userId;
+        private Long conversationId;
+        
+        public Key() {
+        }
+        
+        public Key(Long userId, Long conversationId) {
+            this.userId = userId;
+            this.conversationId = conversationId;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return Objects.equals(userId, key.userId) && Objects.equals(conversationId, key.conversationId);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(userId, conversationId);
+        }
+    }
+}
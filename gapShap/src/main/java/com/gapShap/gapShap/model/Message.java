@@ -4,7 +4,12 @@ import jakarta.persistence.*;
 import java.util.Date;
 
 @Entity
-@Table(name = "messages")
+@Table(name = "messages", indexes = {
+    // Backs keyset pagination of a conversation's history
+    @Index(name = "idx_messages_conversation_sent", columnList = "conversation_id, sent_at DESC, id DESC"),
+    // Backs unread counts, which are id ranges past a read cursor
+    @Index(name = "idx_messages_conversation_id", columnList = "conversation_id, id")
+})
 public class Message {
     
     @Id
@@ -25,13 +30,9 @@ public class Message {
     @Column(name = "sent_at", nullable = false)
     private Date sentAt;
     
-    @Column(name = "is_read")
-    private boolean isRead;
-    
     // Default constructor
     public Message() {
         this.sentAt = new Date();
-        this.isRead = false;
     }
     
     // Constructor with required fields
@@ -40,7 +41,6 @@ public class Message {
         this.sender = sender;
         this.conversation = conversation;
         this.sentAt = new Date();
-        this.isRead = false;
     }
     
     // Getters and setters
@@ -83,12 +83,4 @@ public class Message {
     public void setSentAt(Date sentAt) {
         this.sentAt = sentAt;
     }
-    
-    public boolean isRead() {
-        return isRead;
-    }
-    
-    public void setRead(boolean read) {
-        isRead = read;
-    }
 }
\ No newline at end of file
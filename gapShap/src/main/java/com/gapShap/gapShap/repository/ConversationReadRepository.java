@@ -0,0 +1,46 @@
+package com.gapShap.gapShap.repository;
+
+import com.gapShap.gapShap.model.ConversationRead;
+import com.gapShap.gapShap.repository.projection.ReadMarks;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Date;
+import java.util.List;
+
+@Repository
+public interface ConversationReadRepository extends JpaRepository<ConversationRead, ConversationRead.Key> {
+    
+    // Move the user's read cursor up to the conversation's last message in a single statement
+    @Modifying
+    @Query(value = "INSERT INTO conversation_reads (user_id, conversation_id, last_read_message_id, read_at) " +
+                   "SELECT :userId, c.id, c.last_message_id, :readAt FROM conversations c " +
+                   "WHERE c.id = :conversationId AND c.last_message_id IS NOT NULL " +
+                   "ON CONFLICT (user_id, conversation_id) DO UPDATE " +
+                   "SET last_read_message_id = EXCLUDED.last_read_message_id, read_seq = EXCLUDED.read_seq, " +
+                   "read_at = EXCLUDED.read_at " +
+                   "WHERE conversation_reads.last_read_message_id < EXCLUDED.last_read_message_id",
+           nativeQuery = true)
+    int markReadUpToLatest(@Param("userId") Long userId, @Param("conversationId") Long conversationId,
+                           @Param("readAt") Date readAt);
+    
+    // The viewer's own cursor and the furthest cursor of anyone else in the conversation
+    @Query("SELECT new com.gapShap.gapShap.repository.projection.ReadMarks(" +
+           "MAX(CASE WHEN r.userId = :userId THEN r.lastReadMessageId END), " +
+           "MAX(CASE WHEN r.userId <> :userId THEN r.lastReadMessageId END)) " +
+           "FROM ConversationRead r WHERE r.conversationId = :conversationId")
+    ReadMarks findReadMarks(@Param("conversationId") Long conversationId, @Param("userId") Long userId);
+    
+    // Read cursors in the user's conversations, their own included, that moved past the given change
+    @Query("SELECT r FROM ConversationRead r WHERE r.readSeq > :afterReadSeq AND r.conversationId IN " +
+           "(SELECT c.id FROM Conversation c JOIN c.participants p WHERE p.id = :userId) " +
+           "ORDER BY r.readSeq")
+    List<ConversationRead> findChangedSince(@Param("userId") Long userId, @Param("afterReadSeq") Long afterReadSeq);
+    
+    // Cursors moved before read_at was recorded count as long settled
+    @Query("SELECT COALESCE(MAX(r.readSeq), 0) FROM ConversationRead r WHERE r.readAt IS NULL OR r.readAt < :before")
+    long findMaxReadSeqBefore(@Param("before") Date before);
+}
@@ -2,21 +2,90 @@ package com.gapShap.gapShap.repository;
 
 import com.gapShap.gapShap.model.Conversation;
 import com.gapShap.gapShap.model.User;
+import com.gapShap.gapShap.repository.projection.InboxRow;
+import com.gapShap.gapShap.repository.projection.MemberRow;
+import com.gapShap.gapShap.repository.projection.ParticipantRow;
+import com.gapShap.gapShap.repository.projection.UserConversationRow;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface ConversationRepository extends JpaRepository<Conversation, Long> {
     
+    String INBOX_SELECT = "SELECT new com.gapShap.gapShap.repository.projection.InboxRow(" +
+           "c.id, c.isGroupChat, c.name, c.createdAt, c.lastActivityAt, " +
+           "m.id, m.content, m.sentAt, s.id, s.name, s.pictureUrl, " +
+           "r.lastReadMessageId, " +
+           "(SELECT MAX(o.lastReadMessageId) FROM ConversationRead o " +
+           " WHERE o.conversationId = c.id AND o.userId <> :userId), " +
+           // Skip counting entirely when the cursor is already at the last message
+           "CASE WHEN COALESCE(r.lastReadMessageId, 0) >= COALESCE(c.lastMessageId, 0) THEN 0L " +
+           "ELSE (SELECT COUNT(u) FROM Message u WHERE u.conversation = c AND u.sender.id <> :userId " +
+           "      AND u.id > COALESCE(r.lastReadMessageId, 0)) END) " +
+           "FROM Conversation c JOIN c.participants p " +
+           "LEFT JOIN Message m ON m.id = c.lastMessageId LEFT JOIN m.sender s " +
+           "LEFT JOIN ConversationRead r ON r.userId = :userId AND r.conversationId = c.id " +
+           "WHERE p.id = :userId ";
+    
+    String INBOX_ORDER = "ORDER BY c.lastActivityAt DESC, c.id DESC";
+    
     @Query("SELECT c FROM Conversation c JOIN c.participants p1 JOIN c.participants p2 " +
            "WHERE c.isGroupChat = false AND p1 = :user1 AND p2 = :user2")
     Optional<Conversation> findDirectConversation(@Param("user1") User user1, @Param("user2") User user2);
     
-    @Query("SELECT c FROM Conversation c JOIN c.participants p WHERE p = :user")
-    List<Conversation> findConversationsForUser(@Param("user") User user);
-}
\ No newline at end of file
+    // First inbox page, newest activity first
+    @Query(INBOX_SELECT + INBOX_ORDER)
+    List<InboxRow> findInbox(@Param("userId") Long userId, Limit limit);
+    
+    // Inbox page strictly after the (lastActivityAt, id) keyset cursor
+    @Query(INBOX_SELECT +
+           "AND (c.lastActivityAt < :before OR (c.lastActivityAt = :before AND c.id < :beforeId)) " +
+           INBOX_ORDER)
+    List<InboxRow> findInboxBefore(@Param("userId") Long userId,
+                                   @Param("before") Date before,
+                                   @Param("beforeId") Long beforeId,
+                                   Limit limit);
+    
+    // Inbox rows of the conversations that changed past a sync cursor: new messages, created since,
+    // or the user's own read cursor moved (on another device, say)
+    @Query(INBOX_SELECT +
+           "AND (c.lastMessageId > :afterMessageId OR c.id > :afterConversationId OR r.readSeq > :afterReadSeq) " +
+           INBOX_ORDER)
+    List<InboxRow> findInboxChangedSince(@Param("userId") Long userId,
+                                         @Param("afterMessageId") Long afterMessageId,
+                                         @Param("afterConversationId") Long afterConversationId,
+                                         @Param("afterReadSeq") Long afterReadSeq);
+    
+    @Query("SELECT COALESCE(MAX(c.id), 0) FROM Conversation c WHERE c.createdAt < :before")
+    long findMaxIdCreatedBefore(@Param("before") Date before);
+    
+    @Query("SELECT new com.gapShap.gapShap.repository.projection.ParticipantRow(" +
+           "c.id, u.id, u.name, u.email, u.pictureUrl) " +
+           "FROM Conversation c JOIN c.participants u WHERE c.id IN :conversationIds")
+    List<ParticipantRow> findParticipantRows(@Param("conversationIds") Collection<Long> conversationIds);
+    
+    @Query("SELECT new com.gapShap.gapShap.repository.projection.MemberRow(u.id, u.authId) " +
+           "FROM Conversation c JOIN c.participants u WHERE c.id = :conversationId")
+    List<MemberRow> findMembers(@Param("conversationId") Long conversationId);
+    
+    @Query("SELECT new com.gapShap.gapShap.repository.projection.UserConversationRow(c.id, u.id, u.authId) " +
+           "FROM Conversation c JOIN c.participants u WHERE u.authId IN :authIds")
+    List<UserConversationRow> findConversationsOfUsers(@Param("authIds") Collection<String> authIds);
+    
+    // Advance the denormalized last-message columns; never moves them backwards under concurrent sends
+    @Modifying
+    @Query("UPDATE Conversation c SET c.lastMessageId = :messageId, c.lastActivityAt = :sentAt " +
+           "WHERE c.id = :conversationId AND (c.lastMessageId IS NULL OR c.lastMessageId < :messageId)")
+    int advanceLastMessage(@Param("conversationId") Long conversationId,
+                           @Param("messageId") Long messageId,
+                           @Param("sentAt") Date sentAt);
+}
@@ -2,19 +2,150 @@ package com.gapShap.gapShap.repository;
 
 import com.gapShap.gapShap.model.Conversation;
 import com.gapShap.gapShap.model.Message;
+import com.gapShap.gapShap.repository.projection.MessageKey;
+import com.gapShap.gapShap.repository.projection.MessageRow;
+import com.gapShap.gapShap.repository.projection.SearchRow;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Date;
 import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
 
 @Repository
 public interface MessageRepository extends JpaRepository<Message, Long> {
     
+    // Rows per round trip when streaming a history
+    int EXPORT_FETCH_SIZE = 500;
+    
+    // What a search matches against; has to agree with idx_messages_content_fts in db/maintenance.sql.
+    // The simple configuration lowercases words without stemming or stop words, whatever the language.
+    String SEARCH_DOCUMENT = "to_tsvector('simple', m.content)";
+    // Search input in web search syntax: words, "quoted phrases", OR and -excluded words
+    String SEARCH_QUERY = "websearch_to_tsquery('simple', :query)";
+    // Strictly older than the (sentAt, id) keyset cursor; partitions newer than the cursor are skipped
+    String SEARCH_BEFORE = "(m.sent_at < :sentAt OR (m.sent_at = :sentAt AND m.id < :id))";
+    // Control characters around each matching word of a headline, unlikely to be in the content itself
+    char HIGHLIGHT_START = '\u0002';
+    char HIGHLIGHT_END = '\u0003';
+    
     List<Message> findByConversationOrderBySentAtAsc(Conversation conversation, Pageable pageable);
+    // Senders fetched with the page, not one select per distinct sender
+    @EntityGraph(attributePaths = "sender")
     List<Message> findByConversationOrderBySentAtDesc(Conversation conversation, Pageable pageable);
+
+    long countByConversation(Conversation conversation);
+    
+    // Newest messages of a conversation
+    @Query("SELECT m FROM Message m JOIN FETCH m.sender WHERE m.conversation.id = :conversationId " +
+           "ORDER BY m.sentAt DESC, m.id DESC")
+    List<Message> findLatest(@Param("conversationId") Long conversationId, Limit limit);
+    
+    // Messages strictly older than the (sentAt, id) keyset cursor, newest first
+    @Query("SELECT m FROM Message m JOIN FETCH m.sender WHERE m.conversation.id = :conversationId " +
+           "AND (m.sentAt < :sentAt OR (m.sentAt = :sentAt AND m.id < :id)) " +
+           "ORDER BY m.sentAt DESC, m.id DESC")
+    List<Message> findBefore(@Param("conversationId") Long conversationId,
+                             @Param("sentAt") Date sentAt,
+                             @Param("id") Long id,
+                             Limit limit);
+    
+    // Messages strictly newer than the (sentAt, id) keyset cursor, oldest first
+    @Query("SELECT m FROM Message m JOIN FETCH m.sender WHERE m.conversation.id = :conversationId " +
+           "AND (m.sentAt > :sentAt OR (m.sentAt = :sentAt AND m.id > :id)) " +
+           "ORDER BY m.sentAt ASC, m.id ASC")
+    List<Message> findAfter(@Param("conversationId") Long conversationId,
+                            @Param("sentAt") Date sentAt,
+                            @Param("id") Long id,
+                            Limit limit);
+    
+    // Messages past a sync cursor across all of the user's conversations, oldest first. Conversations
+    // whose last message is older than the cursor are skipped without touching their messages.
+    @Query("SELECT m FROM Message m JOIN FETCH m.sender JOIN FETCH m.conversation WHERE m.id > :afterId AND m.conversation.id IN " +
+           "(SELECT c.id FROM Conversation c JOIN c.participants p WHERE p.id = :userId AND c.lastMessageId > :afterId) " +
+           "ORDER BY m.id")
+    List<Message> findForUserSince(@Param("userId") Long userId, @Param("afterId") Long afterId, Limit limit);
+    
+    // A conversation's whole history in chronological order, read through a database cursor a fetch
+    // at a time. Rows are projections, so the persistence context stays empty however long it runs;
+    // the stream has to be consumed and closed inside a transaction.
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "" + EXPORT_FETCH_SIZE))
+    @Query("SELECT new com.gapShap.gapShap.repository.projection.MessageRow(" +
+           "m.id, m.content, m.sentAt, s.id, s.name, s.pictureUrl) " +
+           "FROM Message m JOIN m.sender s WHERE m.conversation.id = :conversationId " +
+           "ORDER BY m.sentAt ASC, m.id ASC")
+    Stream<MessageRow> streamHistory(@Param("conversationId") Long conversationId);
+    
+    @Query("SELECT COALESCE(MAX(m.id), 0) FROM Message m WHERE m.sentAt < :before")
+    long findMaxIdSentBefore(@Param("before") Date before);
+    
+    @Query("SELECT m.sentAt FROM Message m WHERE m.id = :id AND m.conversation.id = :conversationId")
+    Optional<Date> findSentAt(@Param("conversationId") Long conversationId, @Param("id") Long id);
+    
+    // Messages from other participants past the given read cursor
+    @Query("SELECT COUNT(m) FROM Message m WHERE m.conversation.id = :conversationId " +
+           "AND m.sender.id <> :userId AND m.id > :lastReadMessageId")
+    long countUnread(@Param("conversationId") Long conversationId,
+                     @Param("userId") Long userId,
+                     @Param("lastReadMessageId") Long lastReadMessageId);
+    
+    // Up to limit of the user's messages matching the search that are older than the cursor, in no
+    // particular order. Reads every match it returns, so it is cheap while the term is rare among the
+    // user's messages; callers sort the keys themselves and learn from a full result that it wasn't.
+    @Query(value = "SELECT m.id AS id, m.sent_at AS sentAt FROM messages m " +
+                   "WHERE m.conversation_id IN " +
+                   "(SELECT cp.conversation_id FROM conversation_participants cp WHERE cp.user_id = :userId) " +
+                   "AND " + SEARCH_DOCUMENT + " @@ " + SEARCH_QUERY + " AND " + SEARCH_BEFORE + " " +
+                   "LIMIT :limit",
+           nativeQuery = true)
+    List<MessageKey> findSearchMatches(@Param("userId") Long userId,
+                                       @Param("query") String query,
+                                       @Param("sentAt") Date sentAt,
+                                       @Param("id") Long id,
+                                       @Param("limit") int limit);
     
-    List<Message> findByConversationAndIsReadFalseOrderBySentAtDesc(Conversation conversation);
+    // The newest of the user's messages matching the search that are older than the cursor, taking
+    // at most limit from each conversation. Each conversation stops at its newest matches, so common
+    // terms cost about the same as rare ones; what it costs grows with the user's conversations instead.
+    @Query(value = "SELECT x.id AS id, x.sent_at AS sentAt FROM conversation_participants cp " +
+                   "CROSS JOIN LATERAL (SELECT m.id, m.sent_at FROM messages m " +
+                   "WHERE m.conversation_id = cp.conversation_id " +
+                   "AND " + SEARCH_DOCUMENT + " @@ " + SEARCH_QUERY + " AND " + SEARCH_BEFORE + " " +
+                   "ORDER BY m.sent_at DESC, m.id DESC LIMIT :limit) x " +
+                   "WHERE cp.user_id = :userId " +
+                   "ORDER BY x.sent_at DESC, x.id DESC LIMIT :limit",
+           nativeQuery = true)
+    List<MessageKey> findNewestSearchMatches(@Param("userId") Long userId,
+                                             @Param("query") String query,
+                                             @Param("sentAt") Date sentAt,
+                                             @Param("id") Long id,
+                                             @Param("limit") int limit);
     
-    long countByConversationAndIsReadFalse(Conversation conversation);
-}
\ No newline at end of file
+    // A page of search hits by id, with highlighted content, senders and read flags. Oldest and newest
+    // bound sent_at so only the partitions holding the page are probed.
+    @Query(value = "SELECT m.id AS id, m.conversation_id AS conversationId, m.sent_at AS sentAt, " +
+                   "m.content AS content, ts_headline('simple', m.content, " + SEARCH_QUERY + ", " +
+                   "'HighlightAll=true, StartSel=' || chr(2) || ', StopSel=' || chr(3)) AS headline, " +
+                   "s.id AS senderId, s.name AS senderName, s.picture_url AS senderPicture, " +
+                   // Same rule as ReadMarks.isRead
+                   "EXISTS (SELECT 1 FROM conversation_reads r WHERE r.conversation_id = m.conversation_id " +
+                   "AND r.last_read_message_id >= m.id " +
+                   "AND CASE WHEN m.sender_id = :userId THEN r.user_id <> :userId ELSE r.user_id = :userId END) AS read " +
+                   "FROM messages m JOIN app_users s ON s.id = m.sender_id " +
+                   "WHERE m.id IN (:ids) AND m.sent_at BETWEEN :oldest AND :newest",
+           nativeQuery = true)
+    List<SearchRow> findSearchPage(@Param("userId") Long userId,
+                                   @Param("query") String query,
+                                   @Param("ids") List<Long> ids,
+                                   @Param("oldest") Date oldest,
+                                   @Param("newest") Date newest);
+}
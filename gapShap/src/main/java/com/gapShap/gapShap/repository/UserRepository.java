@@ -1,8 +1,13 @@
 package com.gapShap.gapShap.repository;
 
 import com.gapShap.gapShap.model.User;
+import com.gapShap.gapShap.repository.projection.UserPageRow;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 import java.util.List;
 import java.util.Optional;
 
@@ -10,5 +15,46 @@ import java.util.Optional;
 public interface UserRepository extends JpaRepository<User, Long> {
     Optional<User> findByAuthId(String authId);
     Optional<User> findByEmail(String email);
-    List<User> findByNameContainingIgnoreCaseOrEmailContainingIgnoreCase(String name, String email);
+    // Rank of a search hit: name prefix, then email prefix, then substring anywhere
+    String SEARCH_TIER = "CASE WHEN LOWER(u.name) LIKE :prefix ESCAPE '\\' THEN 0 " +
+                         "WHEN LOWER(u.email) LIKE :prefix ESCAPE '\\' THEN 1 ELSE 2 END";
+
+    // Ranked search page after the (tier, lower(name), id) keyset; the LIKE filters are served by trigram indexes.
+    // Rows carry the keys as Postgres computed them, so the next cursor compares like for like.
+    @Query("SELECT new com.gapShap.gapShap.repository.projection.UserPageRow(u, " + SEARCH_TIER + ", LOWER(u.name)) " +
+           "FROM User u " +
+           "WHERE (LOWER(u.name) LIKE :pattern ESCAPE '\\' OR LOWER(u.email) LIKE :pattern ESCAPE '\\') " +
+           "AND u.id <> :excludeId " +
+           "AND (" + SEARCH_TIER + ", LOWER(u.name), u.id) > (:afterTier, :afterName, :afterId) " +
+           "ORDER BY " + SEARCH_TIER + ", LOWER(u.name), u.id")
+    List<UserPageRow> searchRanked(@Param("pattern") String pattern,
+                                   @Param("prefix") String prefix,
+                                   @Param("excludeId") Long excludeId,
+                                   @Param("afterTier") int afterTier,
+                                   @Param("afterName") String afterName,
+                                   @Param("afterId") Long afterId,
+                                   Limit limit);
+
+    // Alphabetical directory page after the (lower(name), id) keyset
+    @Query("SELECT new com.gapShap.gapShap.repository.projection.UserPageRow(u, 0, LOWER(u.name)) " +
+           "FROM User u WHERE u.id <> :excludeId " +
+           "AND (LOWER(u.name) > :afterName OR (LOWER(u.name) = :afterName AND u.id > :afterId)) " +
+           "ORDER BY LOWER(u.name), u.id")
+    List<UserPageRow> findDirectoryPage(@Param("excludeId") Long excludeId,
+                                        @Param("afterName") String afterName,
+                                        @Param("afterId") Long afterId,
+                                        Limit limit);
+
+    // Insert or update by auth id in one statement; concurrent first logins can't collide on the unique key
+    @Transactional
+    @Query(value = "INSERT INTO app_users (auth_id, name, email, picture_url) " +
+                   "VALUES (:authId, :name, :email, :pictureUrl) " +
+                   "ON CONFLICT (auth_id) DO UPDATE SET name = EXCLUDED.name, email = EXCLUDED.email, " +
+                   "picture_url = EXCLUDED.picture_url " +
+                   "RETURNING *",
+           nativeQuery = true)
+    User upsertByAuthId(@Param("authId") String authId,
+                        @Param("name") String name,
+                        @Param("email") String email,
+                        @Param("pictureUrl") String pictureUrl);
 }
\ No newline at end of file
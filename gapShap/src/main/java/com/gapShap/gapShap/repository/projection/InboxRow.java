@@ -0,0 +1,21 @@
+package com.gapShap.gapShap.repository.projection;
+
+import java.util.Date;
+
+// One inbox summary row: the conversation, its last message (if any), read cursors and the unread count
+public record InboxRow(
+        Long conversationId,
+        boolean groupChat,
+        String name,
+        Date createdAt,
+        Date lastActivityAt,
+        Long lastMessageId,
+        String lastMessageContent,
+        Date lastMessageSentAt,
+        Long lastMessageSenderId,
+        String lastMessageSenderName,
+        String lastMessageSenderPicture,
+        Long ownReadMessageId,
+        Long othersReadMessageId,
+        Long unreadCount) {
+}
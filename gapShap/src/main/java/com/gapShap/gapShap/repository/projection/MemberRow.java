@@ -0,0 +1,5 @@
+package com.gapShap.gapShap.repository.projection;
+
+// Just enough of a participant to authorize a send and address the fan-out
+public record MemberRow(Long userId, String authId) {
+}
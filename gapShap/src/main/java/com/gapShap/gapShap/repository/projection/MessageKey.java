@@ -0,0 +1,7 @@
+package com.gapShap.gapShap.repository.projection;
+
+import java.util.Date;
+
+// A message's place in the (sentAt, id) order, without the message
+public record MessageKey(Long id, Date sentAt) {
+}
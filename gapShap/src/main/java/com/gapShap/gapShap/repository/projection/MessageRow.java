@@ -0,0 +1,13 @@
+package com.gapShap.gapShap.repository.projection;
+
+import java.util.Date;
+
+// A message with its sender flattened in, read without loading entities into the persistence context
+public record MessageRow(
+        Long id,
+        String content,
+        Date sentAt,
+        Long senderId,
+        String senderName,
+        String senderPicture) {
+}
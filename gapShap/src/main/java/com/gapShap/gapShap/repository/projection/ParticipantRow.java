@@ -0,0 +1,10 @@
+package com.gapShap.gapShap.repository.projection;
+
+// A participant of a conversation, flattened for batch loading
+public record ParticipantRow(
+        Long conversationId,
+        Long userId,
+        String name,
+        String email,
+        String pictureUrl) {
+}
@@ -0,0 +1,14 @@
+package com.gapShap.gapShap.repository.projection;
+
+// Read cursors of a conversation as seen by one viewer; either may be null when nothing was read yet
+public record ReadMarks(Long ownReadMessageId, Long othersReadMessageId) {
+
+    public static final ReadMarks NONE = new ReadMarks(null, null);
+
+    // The viewer's own messages count as read once someone else has read them,
+    // everyone else's once the viewer has
+    public boolean isRead(Long viewerId, Long senderId, Long messageId) {
+        Long cursor = viewerId.equals(senderId) ? othersReadMessageId : ownReadMessageId;
+        return cursor != null && messageId <= cursor;
+    }
+}
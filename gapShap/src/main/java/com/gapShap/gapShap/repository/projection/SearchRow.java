@@ -0,0 +1,17 @@
+package com.gapShap.gapShap.repository.projection;
+
+import java.util.Date;
+
+// A search hit with its sender flattened in. Headline is the content with every matching word
+// between MessageRepository.HIGHLIGHT_START and HIGHLIGHT_END; read is as the searching user sees it.
+public record SearchRow(
+        Long id,
+        Long conversationId,
+        Date sentAt,
+        String content,
+        String headline,
+        Long senderId,
+        String senderName,
+        String senderPicture,
+        Boolean read) {
+}
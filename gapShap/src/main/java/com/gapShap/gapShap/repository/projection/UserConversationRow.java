@@ -0,0 +1,5 @@
+package com.gapShap.gapShap.repository.projection;
+
+// One conversation a user takes part in, for routing a user's presence changes to their conversations
+public record UserConversationRow(Long conversationId, Long userId, String authId) {
+}
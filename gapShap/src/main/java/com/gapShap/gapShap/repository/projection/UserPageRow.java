@@ -0,0 +1,7 @@
+package com.gapShap.gapShap.repository.projection;
+
+import com.gapShap.gapShap.model.User;
+
+// One user of a directory or search page with the keys it was ordered by, as the database computed them
+public record UserPageRow(User user, int tier, String sortName) {
+}
@@ -1,61 +1,162 @@
 package com.gapShap.gapShap.service;
 
+import com.gapShap.gapShap.archive.ArchivedMessage;
+import com.gapShap.gapShap.archive.MessageArchive;
+import com.gapShap.gapShap.cluster.UserMessageDispatcher;
+import com.gapShap.gapShap.config.ChatProperties;
 import com.gapShap.gapShap.dto.ConversationDTO;
+import com.gapShap.gapShap.dto.CursorPage;
 import com.gapShap.gapShap.dto.MessageDTO;
 import com.gapShap.gapShap.dto.UserDTO;
 import com.gapShap.gapShap.model.Conversation;
 import com.gapShap.gapShap.model.Message;
 import com.gapShap.gapShap.model.User;
+import com.gapShap.gapShap.repository.ConversationReadRepository;
 import com.gapShap.gapShap.repository.ConversationRepository;
 import com.gapShap.gapShap.repository.MessageRepository;
 import com.gapShap.gapShap.repository.UserRepository;
+import com.gapShap.gapShap.repository.projection.InboxRow;
+import com.gapShap.gapShap.repository.projection.ParticipantRow;
+import com.gapShap.gapShap.repository.projection.ReadMarks;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
-import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 
 @Service
 public class ChatService {
 
+    private static final int MAX_INBOX_PAGE_SIZE = 200;
+    private static final int MAX_MESSAGE_PAGE_SIZE = 200;
+
+    // Queue messages of smaller conversations are sent to, per recipient
+    public static final String MESSAGES_QUEUE = "/queue/messages";
+    // Queue a sender's session gets SendReceipts on
+    public static final String SEND_RECEIPTS_QUEUE = "/queue/sent";
+    // Topic a conversation's messages are published to, followed by its id
+    public static final String CONVERSATION_TOPIC_PREFIX = "/topic/conversation.";
+
     private final ConversationRepository conversationRepository;
     private final MessageRepository messageRepository;
+    private final ConversationReadRepository conversationReadRepository;
     private final UserRepository userRepository;
-    private final SimpMessagingTemplate messagingTemplate;
+    private final UserMessageDispatcher messageDispatcher;
+    private final MessageIngestPipeline ingestPipeline;
+    private final ConversationMembershipCache membershipCache;
+    private final MessageArchive messageArchive;
+    private final RecentMessageCache recentMessages;
+    private final ConversationVersions versions;
+    private final SendDeduplicator sendDeduplicator;
+    private final TransactionTemplate transactionTemplate;
+    private final ChatProperties.Fanout fanoutSettings;
+    private final Timer sendTimer;
+    private final Timer inboxTimer;
+    private final Timer keysetHistoryTimer;
+    private final Timer offsetHistoryTimer;
+    private final Timer topicFanOutTimer;
+    private final Timer queueFanOutTimer;
+    private final DistributionSummary topicFanOutSizes;
+    private final DistributionSummary queueFanOutSizes;
 
     @Autowired
     public ChatService(ConversationRepository conversationRepository,
             MessageRepository messageRepository,
+            ConversationReadRepository conversationReadRepository,
             UserRepository userRepository,
-            SimpMessagingTemplate messagingTemplate) {
+            UserMessageDispatcher messageDispatcher,
+            MessageIngestPipeline ingestPipeline,
+            ConversationMembershipCache membershipCache,
+            MessageArchive messageArchive,
+            RecentMessageCache recentMessages,
+            ConversationVersions versions,
+            SendDeduplicator sendDeduplicator,
+            TransactionTemplate transactionTemplate,
+            ChatProperties chatProperties,
+            MeterRegistry meterRegistry) {
         this.conversationRepository = conversationRepository;
         this.messageRepository = messageRepository;
+        this.conversationReadRepository = conversationReadRepository;
         this.userRepository = userRepository;
-        this.messagingTemplate = messagingTemplate;
+        this.messageDispatcher = messageDispatcher;
+        this.ingestPipeline = ingestPipeline;
+        this.membershipCache = membershipCache;
+        this.messageArchive = messageArchive;
+        this.recentMessages = recentMessages;
+        this.versions = versions;
+        this.sendDeduplicator = sendDeduplicator;
+        this.transactionTemplate = transactionTemplate;
+        this.fanoutSettings = chatProperties.getFanout();
+
+        // Histogram buckets for these are switched on under management.metrics.distribution
+        this.sendTimer = Timer.builder("gapshap.chat.send").register(meterRegistry);
+        this.inboxTimer = Timer.builder("gapshap.chat.inbox").register(meterRegistry);
+        this.keysetHistoryTimer = Timer.builder("gapshap.chat.history").tag("paging", "keyset").register(meterRegistry);
+        this.offsetHistoryTimer = Timer.builder("gapshap.chat.history").tag("paging", "offset").register(meterRegistry);
+        this.topicFanOutTimer = Timer.builder("gapshap.chat.fanout").tag("delivery", "topic").register(meterRegistry);
+        this.queueFanOutTimer = Timer.builder("gapshap.chat.fanout").tag("delivery", "queue").register(meterRegistry);
+        this.topicFanOutSizes = DistributionSummary.builder("gapshap.chat.fanout.recipients")
+                .tag("delivery", "topic").register(meterRegistry);
+        this.queueFanOutSizes = DistributionSummary.builder("gapshap.chat.fanout.recipients")
+                .tag("delivery", "queue").register(meterRegistry);
+    }
+
+    // Get one page of a user's inbox, newest activity first
+    @Transactional(readOnly = true)
+    public CursorPage<ConversationDTO> getConversationsForUser(User user, String cursor, int limit) {
+        return inboxTimer.record(() -> loadInbox(user, cursor, limit));
     }
 
-    // Get all conversations for a user
+    private CursorPage<ConversationDTO> loadInbox(User user, String cursor, int limit) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_INBOX_PAGE_SIZE));
 
-    public List<ConversationDTO> getConversationsForUser(User user) {
-        List<Conversation> conversations = conversationRepository.findConversationsForUser(user);
-        return conversations.stream()
-                .map(conversation -> convertToConversationDTO(conversation, user))
-                .sorted((c1, c2) -> {
-                    // Get timestamps for both conversations, using createdAt as a fallback
-                    Long timestamp1 = c1.getLastMessage() != null ? c1.getLastMessage().getSentAt()
-                            : (c1.getCreatedAt() != null ? c1.getCreatedAt().getTime() : 0L);
+        // Fetch one extra row to find out whether another page follows
+        Limit window = Limit.of(pageSize + 1);
+        List<InboxRow> rows;
+        if (cursor == null || cursor.isEmpty()) {
+            rows = conversationRepository.findInbox(user.getId(), window);
+        } else {
+            long[] keyset = parseInboxCursor(cursor);
+            rows = conversationRepository.findInboxBefore(user.getId(), new Date(keyset[0]), keyset[1], window);
+        }
 
-                    Long timestamp2 = c2.getLastMessage() != null ? c2.getLastMessage().getSentAt()
-                            : (c2.getCreatedAt() != null ? c2.getCreatedAt().getTime() : 0L);
+        boolean hasMore = rows.size() > pageSize;
+        if (hasMore) {
+            rows = rows.subList(0, pageSize);
+        }
 
-                    // Sort in reverse order (newest first)
-                    return timestamp2.compareTo(timestamp1);
-                })
-                .collect(Collectors.toList());
+        List<ConversationDTO> conversations = convertToConversationDTOs(rows, user);
+
+        String nextCursor = null;
+        if (hasMore) {
+            InboxRow last = rows.get(rows.size() - 1);
+            nextCursor = last.lastActivityAt().getTime() + "_" + last.conversationId();
+        }
+        return new CursorPage<>(conversations, nextCursor);
+    }
+
+    // ETag of the user's inbox pages; any page is unchanged while it is
+    public String inboxTag(User user) {
+        return versions.inboxTag(user);
+    }
+
+    // ETag of the conversation's history pages for a participant; checks membership first, so a
+    // 304 never confirms a conversation to someone outside it
+    public String historyTag(Long conversationId, User user) {
+        requireMember(conversationId, user);
+        return versions.historyTag(conversationId, user);
     }
 
     // Get or create a direct conversation between two users
@@ -69,7 +170,10 @@ public class ChatService {
 
         Conversation conversation = existingConversation.orElseGet(() -> {
             Conversation newConversation = new Conversation(user1, user2);
-            return conversationRepository.save(newConversation);
+            newConversation = conversationRepository.save(newConversation);
+            membershipCache.invalidate(newConversation.getId());
+            afterCommit(() -> versions.created(List.of(user1, user2)));
+            return newConversation;
         });
 
         return convertToConversationDTO(conversation, user1);
@@ -84,32 +188,55 @@ public class ChatService {
 
         Conversation conversation = new Conversation(name, participants);
         conversation = conversationRepository.save(conversation);
+        membershipCache.invalidate(conversation.getId());
+        afterCommit(() -> versions.created(participants));
 
         return convertToConversationDTO(conversation, participants.get(0));
     }
 
-    // Get messages for a conversation with pagination
-    // Update the getMessagesForConversation method
+    // Get messages for a conversation with offset pagination (kept for older clients)
+    @Transactional(readOnly = true)
     public List<MessageDTO> getMessagesForConversation(Long conversationId, User currentUser, int page, int size) {
-        Optional<Conversation> conversationOpt = conversationRepository.findById(conversationId);
-        if (conversationOpt.isEmpty()) {
-            throw new NoSuchElementException("Conversation not found");
-        }
+        return offsetHistoryTimer.record(() -> loadMessagesByOffset(conversationId, currentUser, page, size));
+    }
 
-        Conversation conversation = conversationOpt.get();
-        if (!conversation.getParticipants().contains(currentUser)) {
-            throw new IllegalArgumentException("User is not part of this conversation");
+    private List<MessageDTO> loadMessagesByOffset(Long conversationId, User currentUser, int page, int size) {
+        requireMember(conversationId, currentUser);
+        if (page == 0) {
+            List<MessageDTO> recent = recentMessages.latest(conversationId, size);
+            if (recent != null) {
+                ReadMarks readMarks = conversationReadRepository.findReadMarks(conversationId, currentUser.getId());
+                markRead(recent, readMarks, currentUser);
+                setSenders(recent, findParticipants(conversationId));
+                Collections.reverse(recent);
+                return recent;
+            }
         }
+        Conversation conversation = conversationRepository.getReferenceById(conversationId);
 
         Pageable pageable = PageRequest.of(page, size);
         // Change from Asc to Desc to get most recent messages
         List<Message> messages = messageRepository.findByConversationOrderBySentAtDesc(conversation, pageable);
+        List<ArchivedMessage> archived = List.of();
+        if (messages.size() < size && messageArchive.mayContain(conversationId)) {
+            // The page runs past the partitions: skip what they held and carry on into the archive
+            long hot = messageRepository.countByConversation(conversation);
+            long skip = Math.max(0, (long) page * size - hot);
+            List<ArchivedMessage> older = messageArchive.findBefore(conversationId, null, null,
+                    (int) Math.min(Integer.MAX_VALUE, skip + size - messages.size()));
+            archived = older.subList((int) Math.min(skip, older.size()), older.size());
+        }
+        ReadMarks readMarks = conversationReadRepository.findReadMarks(conversationId, currentUser.getId());
+        Map<Long, UserDTO> senders = archived.isEmpty() ? Map.of() : findParticipants(conversationId);
 
         // Convert to DTOs, collect, and reverse to maintain chronological order for
         // display
         List<MessageDTO> messageDTOs = messages.stream()
-                .map(this::convertToMessageDTO)
+                .map(message -> convertToMessageDTO(message, readMarks, currentUser))
                 .collect(Collectors.toList());
+        for (ArchivedMessage message : archived) {
+            messageDTOs.add(convertToMessageDTO(message, senders, readMarks, currentUser));
+        }
 
         // Reverse the order so newest messages appear at the bottom in the UI
         Collections.reverse(messageDTOs);
@@ -117,62 +244,289 @@ public class ChatService {
         return messageDTOs;
     }
 
+    // Get a page of messages around a message-id cursor. With "before" (or no cursor) the page holds the
+    // messages just older than the cursor, with "after" the ones just newer; either way in chronological order.
+    @Transactional(readOnly = true)
+    public CursorPage<MessageDTO> getMessagesForConversation(Long conversationId, User currentUser,
+                                                             Long before, Long after, int size) {
+        return keysetHistoryTimer.record(() -> loadMessagePage(conversationId, currentUser, before, after, size));
+    }
+
+    private CursorPage<MessageDTO> loadMessagePage(Long conversationId, User currentUser,
+                                                   Long before, Long after, int size) {
+        if (before != null && after != null) {
+            throw new IllegalArgumentException("Use either before or after, not both");
+        }
+
+        requireMember(conversationId, currentUser);
+
+        int pageSize = Math.max(1, Math.min(size, MAX_MESSAGE_PAGE_SIZE));
+        // Fetch one extra row to find out whether another page follows
+        Limit window = Limit.of(pageSize + 1);
+        Long cursorId = before != null ? before : after;
+
+        if (cursorId == null) {
+            List<MessageDTO> recent = recentMessages.latest(conversationId, pageSize + 1);
+            if (recent != null) {
+                ReadMarks readMarks = conversationReadRepository.findReadMarks(conversationId, currentUser.getId());
+                markRead(recent, readMarks, currentUser);
+                setSenders(recent, findParticipants(conversationId));
+                return toCursorPage(recent, pageSize, false);
+            }
+        }
+
+        List<Message> messages;
+        List<ArchivedMessage> archived = List.of();
+        Long cursorSentAt = null;
+        long recentStamp = 0;
+        if (cursorId == null) {
+            // Read enough to fill the recent-message cache as well as this page
+            recentStamp = recentMessages.stamp(conversationId);
+            messages = messageRepository.findLatest(conversationId,
+                    Limit.of(Math.max(pageSize, recentMessages.capacity()) + 1));
+        } else {
+            cursorSentAt = messageRepository.findSentAt(conversationId, cursorId)
+                    .map(Date::getTime)
+                    .or(() -> messageArchive.findSentAt(conversationId, cursorId))
+                    .orElseThrow(() -> new IllegalArgumentException("Invalid cursor"));
+            if (after != null) {
+                // Archived messages are older than any in the partitions, so going forward they come first
+                Long horizon = messageArchive.horizon();
+                if (horizon != null && cursorSentAt < horizon) {
+                    archived = messageArchive.findAfter(conversationId, cursorSentAt, cursorId, pageSize + 1);
+                }
+                messages = archived.size() > pageSize ? List.of()
+                        : messageRepository.findAfter(conversationId, new Date(cursorSentAt), cursorId,
+                                Limit.of(pageSize + 1 - archived.size()));
+            } else {
+                messages = messageRepository.findBefore(conversationId, new Date(cursorSentAt), cursorId, window);
+            }
+        }
+        if (after == null && messages.size() <= pageSize && messageArchive.mayContain(conversationId)) {
+            // The partitions ran out before the page filled; carry on into the archive from where they stopped
+            Message oldest = messages.isEmpty() ? null : messages.get(messages.size() - 1);
+            archived = messageArchive.findBefore(conversationId,
+                    oldest != null ? Long.valueOf(oldest.getSentAt().getTime()) : cursorSentAt,
+                    oldest != null ? oldest.getId() : cursorId,
+                    pageSize + 1 - messages.size());
+        }
+
+        ReadMarks readMarks = conversationReadRepository.findReadMarks(conversationId, currentUser.getId());
+        Map<Long, UserDTO> senders = archived.isEmpty() ? Map.of() : findParticipants(conversationId);
+        List<MessageDTO> messageDTOs = new ArrayList<>(messages.size() + archived.size());
+        for (Message message : messages) {
+            messageDTOs.add(convertToMessageDTO(message, readMarks, currentUser));
+        }
+        // Backwards the archive continues after the (newer) partition rows, forwards it precedes them
+        List<MessageDTO> archivedDTOs = new ArrayList<>(archived.size());
+        for (ArchivedMessage message : archived) {
+            archivedDTOs.add(convertToMessageDTO(message, senders, readMarks, currentUser));
+        }
+        messageDTOs.addAll(after == null ? messageDTOs.size() : 0, archivedDTOs);
+
+        if (cursorId == null) {
+            recentMessages.fill(conversationId, recentStamp, messageDTOs.subList(0, messages.size()),
+                    !messageArchive.mayContain(conversationId));
+        }
+        return toCursorPage(messageDTOs, pageSize, after != null);
+    }
+
+    // Cut a page from messages fetched one past the page size, newest first going back or oldest first going forward
+    private CursorPage<MessageDTO> toCursorPage(List<MessageDTO> messageDTOs, int pageSize, boolean forward) {
+        boolean hasMore = messageDTOs.size() > pageSize;
+        if (hasMore) {
+            messageDTOs = new ArrayList<>(messageDTOs.subList(0, pageSize));
+        }
+        if (!forward) {
+            // Older-first queries come back newest first; flip to chronological order
+            Collections.reverse(messageDTOs);
+        }
+
+        String nextCursor = null;
+        if (hasMore) {
+            // Continue from the oldest message going back, or from the newest going forward
+            MessageDTO edge = forward ? messageDTOs.get(messageDTOs.size() - 1) : messageDTOs.get(0);
+            nextCursor = String.valueOf(edge.getId());
+        }
+        return new CursorPage<>(messageDTOs, nextCursor);
+    }
+
+    // Set the viewer's read flags on messages taken from the recent-message cache
+    private void markRead(List<MessageDTO> messageDTOs, ReadMarks readMarks, User viewer) {
+        for (MessageDTO messageDTO : messageDTOs) {
+            messageDTO.setRead(readMarks.isRead(viewer.getId(), messageDTO.getSenderId(), messageDTO.getId()));
+        }
+    }
+
+    // Cached messages carry only the sender's id; names and pictures are the participants' current ones
+    private void setSenders(List<MessageDTO> messageDTOs, Map<Long, UserDTO> senders) {
+        for (MessageDTO messageDTO : messageDTOs) {
+            UserDTO sender = senders.get(messageDTO.getSenderId());
+            if (sender != null) {
+                messageDTO.setSenderName(sender.getName());
+                messageDTO.setSenderPicture(sender.getPictureUrl());
+            }
+        }
+    }
+
     // Send a new message
-    @Transactional
     public MessageDTO sendMessage(User sender, Long conversationId, String content) {
-        Optional<Conversation> conversationOpt = conversationRepository.findById(conversationId);
-        if (conversationOpt.isEmpty()) {
-            throw new NoSuchElementException("Conversation not found");
+        return sendTimer.record(() -> send(sender, conversationId, content, null));
+    }
+
+    // Send a message the client tagged with its own id. The result completes once the message is
+    // persisted, or failed to be, without holding the caller until a batch commits. A retry of a send
+    // seen within the dedup window gets the first attempt's result and stores nothing.
+    public CompletableFuture<MessageDTO> sendMessage(User sender, Long conversationId, String content,
+                                                     String clientMessageId) {
+        CompletableFuture<MessageDTO> persisted = new CompletableFuture<>();
+        try {
+            CompletableFuture<MessageDTO> earlier = sendDeduplicator.claim(sender.getId(), clientMessageId, persisted);
+            if (earlier != null) {
+                return earlier;
+            }
+            sendTimer.record(() -> send(sender, conversationId, content, persisted));
+        } catch (RuntimeException e) {
+            persisted.completeExceptionally(e);
         }
+        return persisted;
+    }
 
-        Conversation conversation = conversationOpt.get();
-        if (!conversation.getParticipants().contains(sender)) {
-            throw new IllegalArgumentException("User is not part of this conversation");
+    // With persisted, the caller learns through it when the message is stored rather than by waiting here
+    private MessageDTO send(User sender, Long conversationId, String content, CompletableFuture<MessageDTO> persisted) {
+        if (ingestPipeline.isEnabled()) {
+            return sendBuffered(sender, conversationId, content, persisted);
         }
+        MessageDTO sent = transactionTemplate.execute(status -> sendDirect(sender, conversationId, content));
+        // Only once committed, so neither clients, the cache nor an ETag see a message the database doesn't have
+        ConversationMembershipCache.Membership membership = membershipCache.get(conversationId);
+        fanOut(sent, sender, membership);
+        recentMessages.append(sent);
+        versions.changed(membership);
+        if (persisted != null) {
+            persisted.complete(sent);
+        }
+        return sent;
+    }
+
+    // Persist the message; run in its own transaction
+    private MessageDTO sendDirect(User sender, Long conversationId, String content) {
+        requireMember(conversationId, sender);
+        Conversation conversation = conversationRepository.getReferenceById(conversationId);
 
         Message message = new Message(content, sender, conversation);
         message = messageRepository.save(message);
+        conversationRepository.advanceLastMessage(conversationId, message.getId(), message.getSentAt());
 
-        MessageDTO messageDTO = convertToMessageDTO(message);
+        return convertToMessageDTO(message, ReadMarks.NONE, sender);
+    }
 
-        // Send message to all participants in the conversation
-        for (User participant : conversation.getParticipants()) {
-            if (!participant.getId().equals(sender.getId())) {
-                messagingTemplate.convertAndSendToUser(
-                        participant.getAuthId(),
-                        "/queue/messages",
-                        messageDTO);
+    // Hand the message to the batched ingest pipeline; depending on the ack mode, fan out
+    // once its batch is committed or straight away. Callers with persisted aren't held until the
+    // commit: their message fans out from the pipeline once it is stored.
+    private MessageDTO sendBuffered(User sender, Long conversationId, String content,
+                                    CompletableFuture<MessageDTO> persisted) {
+        ConversationMembershipCache.Membership membership = requireMember(conversationId, sender);
+
+        MessageIngestPipeline.PendingMessage pending = ingestPipeline.submit(conversationId, sender.getId(), content);
+        boolean fanOutOnCommit = !ingestPipeline.acksOnEnqueue() && persisted != null;
+        if (!ingestPipeline.acksOnEnqueue() && persisted == null) {
+            try {
+                pending.persisted().join();
+            } catch (CompletionException e) {
+                throw new IllegalStateException("Message could not be saved", e.getCause());
             }
         }
 
+        MessageDTO messageDTO = new MessageDTO();
+        messageDTO.setId(pending.id());
+        messageDTO.setContent(content);
+        messageDTO.setSenderId(sender.getId());
+        messageDTO.setSenderName(sender.getName());
+        messageDTO.setSenderPicture(sender.getPictureUrl());
+        messageDTO.setConversationId(conversationId);
+        messageDTO.setSentAt(pending.sentAt().getTime());
+        pending.persisted().whenComplete((ignored, failure) -> {
+            if (failure != null) {
+                if (persisted != null) {
+                    persisted.completeExceptionally(new IllegalStateException("Message could not be saved", failure));
+                }
+                return;
+            }
+            recentMessages.append(messageDTO);
+            versions.changed(membership);
+            if (fanOutOnCommit) {
+                fanOut(messageDTO, sender, membership);
+            }
+            if (persisted != null) {
+                persisted.complete(messageDTO);
+            }
+        });
+
+        if (!fanOutOnCommit) {
+            fanOut(messageDTO, sender, membership);
+        }
+
         return messageDTO;
     }
 
-    // Mark messages as read
-    @Transactional
-    public void markMessagesAsRead(User user, Long conversationId) {
-        Optional<Conversation> conversationOpt = conversationRepository.findById(conversationId);
-        if (conversationOpt.isEmpty()) {
-            throw new NoSuchElementException("Conversation not found");
+    // Deliver a message to every participant except its sender, wherever in the cluster they are connected
+    private void fanOut(MessageDTO messageDTO, User sender, ConversationMembershipCache.Membership membership) {
+        List<String> recipients = new ArrayList<>(membership.size());
+        for (int i = 0; i < membership.size(); i++) {
+            if (membership.userIdAt(i) != sender.getId()) {
+                recipients.add(membership.authIdAt(i));
+            }
+        }
+        if (membership.size() >= fanoutSettings.getTopicMinMembers()) {
+            // One publish whatever the group size; the sender's own copy is ignored by the client
+            topicFanOutSizes.record(recipients.size());
+            topicFanOutTimer.record(() -> messageDispatcher.sendToTopic(
+                    CONVERSATION_TOPIC_PREFIX + messageDTO.getConversationId(), messageDTO, recipients));
+        } else {
+            queueFanOutSizes.record(recipients.size());
+            queueFanOutTimer.record(() -> messageDispatcher.sendToUsers(recipients, MESSAGES_QUEUE, messageDTO));
         }
+    }
 
-        Conversation conversation = conversationOpt.get();
-        if (!conversation.getParticipants().contains(user)) {
+    // Resolve the conversation's participants from the membership cache and check the user is one of them
+    ConversationMembershipCache.Membership requireMember(Long conversationId, User user) {
+        ConversationMembershipCache.Membership membership = membershipCache.get(conversationId);
+        if (membership == null) {
+            throw new NoSuchElementException("Conversation not found");
+        }
+        if (!membership.contains(user.getId())) {
             throw new IllegalArgumentException("User is not part of this conversation");
         }
+        return membership;
+    }
 
-        List<Message> unreadMessages = messageRepository
-                .findByConversationAndIsReadFalseOrderBySentAtDesc(conversation);
-        for (Message message : unreadMessages) {
-            if (!message.getSender().getId().equals(user.getId())) {
-                message.setRead(true);
-                messageRepository.save(message);
-            }
+    // Mark messages as read
+    public void markMessagesAsRead(User user, Long conversationId) {
+        ConversationMembershipCache.Membership membership = requireMember(conversationId, user);
+
+        // A single upsert of the user's read cursor, however many messages are unread
+        Integer moved = transactionTemplate.execute(status ->
+                conversationReadRepository.markReadUpToLatest(user.getId(), conversationId, new Date()));
+        // Reading what was already read changes nothing, so cached copies stay valid
+        if (moved != null && moved > 0) {
+            versions.changed(membership);
         }
     }
 
-    // Convert Message to MessageDTO
-    private MessageDTO convertToMessageDTO(Message message) {
+    // Run once the surrounding transaction has committed
+    private static void afterCommit(Runnable action) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    // Convert Message to MessageDTO, with the read flag as seen by the viewer.
+    // The converters are package-private so gapShap-bench can measure them directly.
+    MessageDTO convertToMessageDTO(Message message, ReadMarks readMarks, User viewer) {
         MessageDTO messageDTO = new MessageDTO();
         messageDTO.setId(message.getId());
         messageDTO.setContent(message.getContent());
@@ -184,47 +538,150 @@ public class ChatService {
         // Send timestamp as milliseconds (most reliable format)
         messageDTO.setSentAt(message.getSentAt().getTime());
 
-        messageDTO.setRead(message.isRead());
+        messageDTO.setRead(readMarks.isRead(viewer.getId(), message.getSender().getId(), message.getId()));
 
         return messageDTO;
     }
 
+    // Convert an archived message to MessageDTO; senders are looked up among the conversation's participants
+    MessageDTO convertToMessageDTO(ArchivedMessage message, Map<Long, UserDTO> senders, ReadMarks readMarks,
+                                   User viewer) {
+        MessageDTO messageDTO = new MessageDTO();
+        messageDTO.setId(message.id());
+        messageDTO.setContent(message.content());
+        messageDTO.setSenderId(message.senderId());
+        UserDTO sender = senders.get(message.senderId());
+        if (sender != null) {
+            messageDTO.setSenderName(sender.getName());
+            messageDTO.setSenderPicture(sender.getPictureUrl());
+        }
+        messageDTO.setConversationId(message.conversationId());
+        messageDTO.setSentAt(message.sentAt());
+        messageDTO.setRead(readMarks.isRead(viewer.getId(), message.senderId(), message.id()));
+        return messageDTO;
+    }
+
+    // Participants of one conversation by user id, for resolving the senders of archived and cached messages
+    Map<Long, UserDTO> findParticipants(Long conversationId) {
+        Map<Long, UserDTO> participants = new HashMap<>();
+        for (ParticipantRow row : conversationRepository.findParticipantRows(List.of(conversationId))) {
+            participants.put(row.userId(), new UserDTO(row.userId(), row.name(), row.email(), row.pictureUrl()));
+        }
+        return participants;
+    }
+
     // Convert Conversation to ConversationDTO
-    private ConversationDTO convertToConversationDTO(Conversation conversation, User currentUser) {
+    ConversationDTO convertToConversationDTO(Conversation conversation, User currentUser) {
         ConversationDTO conversationDTO = new ConversationDTO();
         conversationDTO.setId(conversation.getId());
         conversationDTO.setGroupChat(conversation.isGroupChat());
         conversationDTO.setCreatedAt(conversation.getCreatedAt());
+        conversationDTO.setLastActivityAt(conversation.getLastActivityAt().getTime());
 
-        // Get participants (excluding current user for direct chats)
         List<UserDTO> participantDTOs = conversation.getParticipants().stream()
                 .map(user -> new UserDTO(user.getId(), user.getName(), user.getEmail(), user.getPictureUrl()))
                 .collect(Collectors.toList());
         conversationDTO.setParticipants(participantDTOs);
+        conversationDTO.setName(displayName(conversation.isGroupChat(), conversation.getName(),
+                participantDTOs, currentUser));
 
-        // For direct conversations, set the name to the other user's name
-        if (!conversation.isGroupChat()) {
-            Optional<User> otherUser = conversation.getParticipants().stream()
-                    .filter(u -> !u.getId().equals(currentUser.getId()))
-                    .findFirst();
+        // Get last message and unread count
+        ReadMarks readMarks = conversationReadRepository.findReadMarks(conversation.getId(), currentUser.getId());
+        if (conversation.getLastMessageId() != null) {
+            MessageDTO recent = recentMessages.last(conversation.getId());
+            if (recent != null && recent.getId().equals(conversation.getLastMessageId())) {
+                markRead(List.of(recent), readMarks, currentUser);
+                setSenders(List.of(recent), participantDTOs.stream()
+                        .collect(Collectors.toMap(UserDTO::getId, participant -> participant)));
+                conversationDTO.setLastMessage(recent);
+            } else {
+                messageRepository.findById(conversation.getLastMessageId())
+                        .ifPresent(message -> conversationDTO.setLastMessage(
+                                convertToMessageDTO(message, readMarks, currentUser)));
+            }
+        }
+
+        long lastRead = readMarks.ownReadMessageId() != null ? readMarks.ownReadMessageId() : 0L;
+        long unreadCount = messageRepository.countUnread(conversation.getId(), currentUser.getId(), lastRead);
+        conversationDTO.setUnreadCount((int) unreadCount);
+
+        return conversationDTO;
+    }
 
-            if (otherUser.isPresent()) {
-                conversationDTO.setName(otherUser.get().getName());
+    // Convert inbox summary rows to ConversationDTOs, loading the participants of all of them in a single query
+    List<ConversationDTO> convertToConversationDTOs(List<InboxRow> rows, User currentUser) {
+        Map<Long, List<UserDTO>> participantsByConversation = new HashMap<>();
+        if (!rows.isEmpty()) {
+            List<Long> conversationIds = rows.stream()
+                    .map(InboxRow::conversationId)
+                    .collect(Collectors.toList());
+            for (ParticipantRow row : conversationRepository.findParticipantRows(conversationIds)) {
+                participantsByConversation
+                        .computeIfAbsent(row.conversationId(), id -> new ArrayList<>())
+                        .add(new UserDTO(row.userId(), row.name(), row.email(), row.pictureUrl()));
             }
-        } else {
-            conversationDTO.setName(conversation.getName());
         }
 
-        // Get last message and unread count
-        Pageable pageable = PageRequest.of(0, 1);
-        List<Message> lastMessages = messageRepository.findByConversationOrderBySentAtDesc(conversation, pageable);
-        if (!lastMessages.isEmpty()) {
-            conversationDTO.setLastMessage(convertToMessageDTO(lastMessages.get(0)));
+        return rows.stream()
+                .map(row -> convertToConversationDTO(row,
+                        participantsByConversation.getOrDefault(row.conversationId(), List.of()), currentUser))
+                .collect(Collectors.toList());
+    }
+
+    // Convert an inbox summary row to ConversationDTO
+    ConversationDTO convertToConversationDTO(InboxRow row, List<UserDTO> participants, User currentUser) {
+        ConversationDTO conversationDTO = new ConversationDTO();
+        conversationDTO.setId(row.conversationId());
+        conversationDTO.setGroupChat(row.groupChat());
+        conversationDTO.setCreatedAt(row.createdAt());
+        conversationDTO.setLastActivityAt(row.lastActivityAt().getTime());
+        conversationDTO.setParticipants(participants);
+        conversationDTO.setName(displayName(row.groupChat(), row.name(), participants, currentUser));
+
+        if (row.lastMessageId() != null) {
+            MessageDTO lastMessage = new MessageDTO();
+            lastMessage.setId(row.lastMessageId());
+            lastMessage.setContent(row.lastMessageContent());
+            lastMessage.setSenderId(row.lastMessageSenderId());
+            lastMessage.setSenderName(row.lastMessageSenderName());
+            lastMessage.setSenderPicture(row.lastMessageSenderPicture());
+            lastMessage.setConversationId(row.conversationId());
+            lastMessage.setSentAt(row.lastMessageSentAt().getTime());
+            ReadMarks readMarks = new ReadMarks(row.ownReadMessageId(), row.othersReadMessageId());
+            lastMessage.setRead(readMarks.isRead(currentUser.getId(), row.lastMessageSenderId(), row.lastMessageId()));
+            conversationDTO.setLastMessage(lastMessage);
         }
 
-        long unreadCount = messageRepository.countByConversationAndIsReadFalse(conversation);
-        conversationDTO.setUnreadCount((int) unreadCount);
+        conversationDTO.setUnreadCount(row.unreadCount().intValue());
 
         return conversationDTO;
     }
-}
\ No newline at end of file
+
+    // Group chats keep their own name; direct chats are named after the other user
+    private String displayName(boolean groupChat, String name, List<UserDTO> participants, User currentUser) {
+        if (groupChat) {
+            return name;
+        }
+        return participants.stream()
+                .filter(p -> !p.getId().equals(currentUser.getId()))
+                .map(UserDTO::getName)
+                .findFirst()
+                .orElse(null);
+    }
+
+    // Inbox cursors are "<lastActivityAt millis>_<conversation id>"
+    private long[] parseInboxCursor(String cursor) {
+        int separator = cursor.indexOf('_');
+        try {
+            if (separator > 0) {
+                return new long[] {
+                        Long.parseLong(cursor.substring(0, separator)),
+                        Long.parseLong(cursor.substring(separator + 1))
+                };
+            }
+        } catch (NumberFormatException ignored) {
+            // fall through to the error below
+        }
+        throw new IllegalArgumentException("Invalid cursor");
+    }
+}
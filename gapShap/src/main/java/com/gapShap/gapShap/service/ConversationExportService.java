@@ -0,0 +1,120 @@
+package com.gapShap.gapShap.service;
+
+import com.gapShap.gapShap.archive.MessageArchive;
+import com.gapShap.gapShap.config.ChatProperties;
+import com.gapShap.gapShap.dto.MessageDTO;
+import com.gapShap.gapShap.dto.UserDTO;
+import com.gapShap.gapShap.model.User;
+import com.gapShap.gapShap.repository.ConversationReadRepository;
+import com.gapShap.gapShap.repository.MessageRepository;
+import com.gapShap.gapShap.repository.projection.MessageRow;
+import com.gapShap.gapShap.repository.projection.ReadMarks;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+// Full history of a conversation, streamed from a database cursor one message at a time, so heap use
+// stays flat however long the conversation is and the pace is set by whoever consumes the messages
+@Service
+public class ConversationExportService {
+
+    private final MessageRepository messageRepository;
+    private final ConversationReadRepository conversationReadRepository;
+    private final ChatService chatService;
+    private final MessageArchive messageArchive;
+    private final TransactionTemplate readOnlyTemplate;
+    // Every running export holds a JDBC connection, so only so many may run at once
+    private final Semaphore exports;
+
+    @Autowired
+    public ConversationExportService(MessageRepository messageRepository,
+            ConversationReadRepository conversationReadRepository,
+            ChatService chatService,
+            MessageArchive messageArchive,
+            PlatformTransactionManager transactionManager,
+            ChatProperties chatProperties) {
+        this.messageRepository = messageRepository;
+        this.conversationReadRepository = conversationReadRepository;
+        this.chatService = chatService;
+        this.messageArchive = messageArchive;
+        this.readOnlyTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTemplate.setReadOnly(true);
+        this.exports = new Semaphore(chatProperties.getExport().getMaxConcurrent());
+    }
+
+    // Check the user may export the conversation and reserve an export slot, before any of the
+    // response is written. Throws IllegalStateException when all slots are taken. The slot is freed
+    // when writeTo finishes, or by abandon if writeTo never gets to run.
+    public Export open(Long conversationId, User user) {
+        chatService.requireMember(conversationId, user);
+        if (!exports.tryAcquire()) {
+            throw new IllegalStateException("Too many exports in progress, try again later");
+        }
+        return new Export(conversationId, user);
+    }
+
+    public final class Export {
+
+        private final Long conversationId;
+        private final User user;
+        // Set by whichever of writeTo and abandon comes first; only that one frees the slot
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        private Export(Long conversationId, User user) {
+            this.conversationId = conversationId;
+            this.user = user;
+        }
+
+        // Hand every message of the conversation, oldest first, to the consumer; frees the slot when done
+        public void writeTo(Consumer<MessageDTO> messages) {
+            if (!claimed.compareAndSet(false, true)) {
+                throw new IllegalStateException("Export was abandoned");
+            }
+            try {
+                readOnlyTemplate.executeWithoutResult(status -> {
+                    ReadMarks readMarks = conversationReadRepository.findReadMarks(conversationId, user.getId());
+                    // Archived months come first: they are older than anything still in a partition
+                    if (messageArchive.mayContain(conversationId)) {
+                        Map<Long, UserDTO> senders = chatService.findParticipants(conversationId);
+                        messageArchive.forEach(conversationId, message ->
+                                messages.accept(chatService.convertToMessageDTO(message, senders, readMarks, user)));
+                    }
+                    try (Stream<MessageRow> rows = messageRepository.streamHistory(conversationId)) {
+                        rows.forEach(row -> messages.accept(toMessageDTO(row, readMarks)));
+                    }
+                });
+            } finally {
+                exports.release();
+            }
+        }
+
+        // Free the slot of an export that never started writing: the request ended before its turn
+        // (the async executor rejected it, it timed out or the client went away). An export already
+        // writing keeps its slot until writeTo returns, as it still holds a connection until then.
+        public void abandon() {
+            if (claimed.compareAndSet(false, true)) {
+                exports.release();
+            }
+        }
+
+        private MessageDTO toMessageDTO(MessageRow row, ReadMarks readMarks) {
+            MessageDTO messageDTO = new MessageDTO();
+            messageDTO.setId(row.id());
+            messageDTO.setContent(row.content());
+            messageDTO.setSenderId(row.senderId());
+            messageDTO.setSenderName(row.senderName());
+            messageDTO.setSenderPicture(row.senderPicture());
+            messageDTO.setConversationId(conversationId);
+            messageDTO.setSentAt(row.sentAt().getTime());
+            messageDTO.setRead(readMarks.isRead(user.getId(), row.senderId(), row.id()));
+            return messageDTO;
+        }
+    }
+}
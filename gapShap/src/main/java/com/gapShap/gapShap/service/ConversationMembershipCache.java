@@ -0,0 +1,127 @@
+package com.gapShap.gapShap.service;
+
+import com.gapShap.gapShap.config.ChatProperties;
+import com.gapShap.gapShap.repository.ConversationRepository;
+import com.gapShap.gapShap.repository.projection.MemberRow;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Conversation id -> participant ids, so membership checks on the hot path need no database
+// round trip and no allocation. The table is direct-mapped: each conversation hashes to one
+// slot and a newer conversation landing on an occupied slot evicts the older one.
+@Component
+public class ConversationMembershipCache {
+
+    private final ConversationRepository conversationRepository;
+    private final AtomicReferenceArray<Membership> slots;
+    // Bumped on invalidation so a load that raced with it is not stored
+    private final AtomicLongArray generations;
+    private final int mask;
+
+    // The participants of one conversation, sorted by user id
+    public static final class Membership {
+
+        private final long conversationId;
+        private final long[] userIds;
+        private final String[] authIds;
+
+        private Membership(long conversationId, long[] userIds, String[] authIds) {
+            this.conversationId = conversationId;
+            this.userIds = userIds;
+            this.authIds = authIds;
+        }
+
+        public long conversationId() {
+            return conversationId;
+        }
+
+        public boolean contains(long userId) {
+            int low = 0;
+            int high = userIds.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long value = userIds[mid];
+                if (value < userId) {
+                    low = mid + 1;
+                } else if (value > userId) {
+                    high = mid - 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public int size() {
+            return userIds.length;
+        }
+
+        public long userIdAt(int index) {
+            return userIds[index];
+        }
+
+        public String authIdAt(int index) {
+            return authIds[index];
+        }
+    }
+
+    @Autowired
+    public ConversationMembershipCache(ConversationRepository conversationRepository, ChatProperties chatProperties) {
+        this.conversationRepository = conversationRepository;
+        int capacity = Integer.highestOneBit(Math.max(2, chatProperties.getMembershipCache().getCapacity() - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.generations = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+    }
+
+    // The conversation's participants, loading them on a miss; null if the conversation has none (or doesn't exist)
+    public Membership get(long conversationId) {
+        int slot = slotOf(conversationId);
+        Membership cached = slots.get(slot);
+        if (cached != null && cached.conversationId == conversationId) {
+            return cached;
+        }
+
+        long generation = generations.get(slot);
+        Membership loaded = load(conversationId);
+        if (loaded != null && generations.get(slot) == generation) {
+            slots.set(slot, loaded);
+        }
+        return loaded;
+    }
+
+    // Drop the cached participants after the conversation's membership changed
+    public void invalidate(long conversationId) {
+        int slot = slotOf(conversationId);
+        generations.incrementAndGet(slot);
+        Membership cached = slots.get(slot);
+        if (cached != null && cached.conversationId == conversationId) {
+            slots.compareAndSet(slot, cached, null);
+        }
+    }
+
+    private Membership load(long conversationId) {
+        List<MemberRow> members = conversationRepository.findMembers(conversationId);
+        if (members.isEmpty()) {
+            return null;
+        }
+        members.sort(Comparator.comparing(MemberRow::userId));
+        long[] userIds = new long[members.size()];
+        String[] authIds = new String[members.size()];
+        for (int i = 0; i < userIds.length; i++) {
+            userIds[i] = members.get(i).userId();
+            authIds[i] = members.get(i).authId();
+        }
+        return new Membership(conversationId, userIds, authIds);
+    }
+
+    private int slotOf(long conversationId) {
+        // Fibonacci hashing spreads sequential ids across the table
+        return (int) ((conversationId * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+}
@@ -0,0 +1,195 @@
+package com.gapShap.gapShap.service;
+
+import com.gapShap.gapShap.config.ChatProperties;
+import com.gapShap.gapShap.dto.ConversationDTO;
+import com.gapShap.gapShap.dto.SyncEvent;
+import com.gapShap.gapShap.metrics.StatementCounter;
+import com.gapShap.gapShap.model.ConversationRead;
+import com.gapShap.gapShap.model.Message;
+import com.gapShap.gapShap.model.User;
+import com.gapShap.gapShap.repository.ConversationReadRepository;
+import com.gapShap.gapShap.repository.ConversationRepository;
+import com.gapShap.gapShap.repository.MessageRepository;
+import com.gapShap.gapShap.repository.projection.InboxRow;
+import com.gapShap.gapShap.repository.projection.ReadMarks;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// Catch-up for reconnecting clients: everything that changed in a user's conversations since a sync
+// cursor, instead of the whole inbox plus a page of every open conversation. The cost follows what
+// changed: conversations with nothing new are ruled out by their last_message_id and read_seq alone.
+// Ids and read_seq values are drawn before their transactions commit, so they can become visible out
+// of order; cursors only move past changes older than the commit lag, and anything newer is sent again
+// on the next sync.
+@Service
+public class ConversationSyncService {
+
+    // Statements per page: changed summaries, their participants, new messages, moved read cursors
+    private static final int PAGE_STATEMENT_BUDGET = 4;
+
+    private final ConversationRepository conversationRepository;
+    private final MessageRepository messageRepository;
+    private final ConversationReadRepository conversationReadRepository;
+    private final ChatService chatService;
+    private final StatementCounter statementCounter;
+    private final TransactionTemplate snapshotTemplate;
+    private final ChatProperties.Sync settings;
+    private final Timer pageTimer;
+
+    @Autowired
+    public ConversationSyncService(ConversationRepository conversationRepository,
+            MessageRepository messageRepository,
+            ConversationReadRepository conversationReadRepository,
+            ChatService chatService,
+            StatementCounter statementCounter,
+            PlatformTransactionManager transactionManager,
+            ChatProperties chatProperties,
+            MeterRegistry meterRegistry) {
+        this.conversationRepository = conversationRepository;
+        this.messageRepository = messageRepository;
+        this.conversationReadRepository = conversationReadRepository;
+        this.chatService = chatService;
+        this.statementCounter = statementCounter;
+        this.settings = chatProperties.getSync();
+        this.pageTimer = Timer.builder("gapshap.chat.sync").register(meterRegistry);
+
+        // Each page reads one snapshot, so its summaries, messages and read cursors agree with each other
+        this.snapshotTemplate = new TransactionTemplate(transactionManager);
+        this.snapshotTemplate.setReadOnly(true);
+        this.snapshotTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+    }
+
+    // Parse a client's cursor; null or empty means the client has nothing yet
+    public Position position(String cursor) {
+        return Position.decode(cursor);
+    }
+
+    // Stream the changes since the position to the consumer, page by page, each page followed by a
+    // cursor event the client can resume from. Events are handed over after the page's transaction
+    // has ended, so a slow reader does not hold a database connection.
+    public void sync(User user, Position from, Consumer<SyncEvent> events) {
+        // Changes from before this are committed, or never will be
+        long settledBefore = System.currentTimeMillis() - settings.getCommitLag().toMillis();
+        if (from == null) {
+            // First sync: the client loads the inbox itself and only needs to know where "now" is
+            Date before = new Date(settledBefore);
+            Position now = snapshotTemplate.execute(status -> new Position(
+                    messageRepository.findMaxIdSentBefore(before),
+                    conversationReadRepository.findMaxReadSeqBefore(before),
+                    conversationRepository.findMaxIdCreatedBefore(before)));
+            events.accept(SyncEvent.cursor(now.encode(), false));
+            return;
+        }
+
+        // Pages follow everything they have read, while the cursor handed out only moves past what has settled
+        Page page;
+        Position scanned = from;
+        Position settled = from;
+        do {
+            Position pageStart = scanned;
+            Position settledStart = settled;
+            try (StatementCounter.Scope scope = statementCounter.open("sync page", PAGE_STATEMENT_BUDGET)) {
+                page = pageTimer.record(() -> snapshotTemplate.execute(
+                        status -> loadPage(user, pageStart, settledStart, settledBefore)));
+            }
+            page.events().forEach(events);
+            events.accept(SyncEvent.cursor(page.settled().encode(), page.hasMore()));
+            scanned = page.next();
+            settled = page.settled();
+        } while (page.hasMore());
+    }
+
+    private Page loadPage(User user, Position from, Position settled, long settledBefore) {
+        List<SyncEvent> events = new ArrayList<>();
+        long conversationId = from.conversationId();
+        long settledConversationId = settled.conversationId();
+
+        // Summaries first, so conversations the client has never seen arrive before their messages
+        List<InboxRow> rows = conversationRepository.findInboxChangedSince(
+                user.getId(), from.messageId(), from.conversationId(), from.readSeq());
+        Map<Long, ReadMarks> readMarks = new HashMap<>();
+        for (InboxRow row : rows) {
+            readMarks.put(row.conversationId(), new ReadMarks(row.ownReadMessageId(), row.othersReadMessageId()));
+            conversationId = Math.max(conversationId, row.conversationId());
+            if (row.createdAt().getTime() < settledBefore) {
+                settledConversationId = Math.max(settledConversationId, row.conversationId());
+            }
+        }
+        for (ConversationDTO conversation : chatService.convertToConversationDTOs(rows, user)) {
+            events.add(SyncEvent.conversation(conversation));
+        }
+
+        // Every conversation with a message past the cursor is among the rows above, so its read marks are known
+        int pageSize = Math.max(1, settings.getMaxMessages());
+        List<Message> messages = messageRepository.findForUserSince(user.getId(), from.messageId(),
+                Limit.of(pageSize + 1));
+        boolean hasMore = messages.size() > pageSize;
+        if (hasMore) {
+            messages = messages.subList(0, pageSize);
+        }
+        long messageId = from.messageId();
+        long settledMessageId = settled.messageId();
+        for (Message message : messages) {
+            ReadMarks marks = readMarks.getOrDefault(message.getConversation().getId(), ReadMarks.NONE);
+            events.add(SyncEvent.message(chatService.convertToMessageDTO(message, marks, user)));
+            messageId = message.getId();
+            if (message.getSentAt().getTime() < settledBefore) {
+                settledMessageId = Math.max(settledMessageId, messageId);
+            }
+        }
+
+        long readSeq = from.readSeq();
+        long settledReadSeq = settled.readSeq();
+        for (ConversationRead read : conversationReadRepository.findChangedSince(user.getId(), from.readSeq())) {
+            events.add(SyncEvent.read(read.getConversationId(), read.getUserId(), read.getLastReadMessageId()));
+            readSeq = read.getReadSeq();
+            if (read.getReadAt() == null || read.getReadAt().getTime() < settledBefore) {
+                settledReadSeq = Math.max(settledReadSeq, readSeq);
+            }
+        }
+
+        return new Page(events, new Position(messageId, readSeq, conversationId),
+                new Position(settledMessageId, settledReadSeq, settledConversationId), hasMore);
+    }
+
+    private record Page(List<SyncEvent> events, Position next, Position settled, boolean hasMore) {
+    }
+
+    // How far a client has synced: the message id, read cursor change and conversation id up to which
+    // it has seen everything. Opaque to clients.
+    public record Position(long messageId, long readSeq, long conversationId) {
+
+        static Position decode(String cursor) {
+            if (cursor == null || cursor.isEmpty()) {
+                return null;
+            }
+            try {
+                String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8)
+                        .split("\n", 3);
+                return new Position(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+        }
+
+        String encode() {
+            String raw = messageId + "\n" + readSeq + "\n" + conversationId;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.gapShap.gapShap.service;
+
+import com.gapShap.gapShap.cluster.ClusterEnvelope;
+import com.gapShap.gapShap.cluster.ClusterRelay;
+import com.gapShap.gapShap.cluster.ClusterUserRegistry;
+import com.gapShap.gapShap.config.ChatProperties;
+import com.gapShap.gapShap.model.User;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Version counters behind the ETags of inbox pages and message history, so a poll that finds
+// nothing changed is answered without the queries. Sends, reads and new conversations bump the
+// counters of what they changed once their transaction has committed, and the tag is read before
+// a response is built, so a tag never describes older data than the response it came with.
+// Counters are striped like the recent-message cache's generations: ids sharing a stripe only cost
+// each other extra full responses. Other nodes bump theirs as the changes arrive over the relay.
+// Counters start over with each process, so tags carry a random epoch and only ever match on the
+// process that issued them; changes that touch too much to track (profile edits, archived months)
+// start a new epoch.
+@Component
+public class ConversationVersions {
+
+    private final ClusterUserRegistry userRegistry;
+    private final ClusterRelay relay;
+    private final AtomicLongArray inboxes;
+    private final AtomicLongArray conversations;
+    private final int mask;
+
+    private volatile String epoch = newEpoch();
+
+    @Autowired
+    public ConversationVersions(ClusterUserRegistry userRegistry,
+            ObjectProvider<ClusterRelay> relay,
+            ChatProperties chatProperties) {
+        this.userRegistry = userRegistry;
+        this.relay = relay.getIfAvailable();
+        int stripes = Integer.highestOneBit(Math.max(2, chatProperties.getVersions().getStripes() - 1)) << 1;
+        this.inboxes = new AtomicLongArray(stripes);
+        this.conversations = new AtomicLongArray(stripes);
+        this.mask = stripes - 1;
+    }
+
+    @PostConstruct
+    void start() {
+        if (relay != null) {
+            relay.subscribe(this::onEnvelope);
+        }
+    }
+
+    // Strong ETag of the user's inbox pages
+    public String inboxTag(User user) {
+        return tag(user, inboxes.get(stripeOf(user.getAuthId().hashCode())));
+    }
+
+    // Strong ETag of the conversation's history pages as the user sees them
+    public String historyTag(Long conversationId, User user) {
+        return tag(user, conversations.get(stripeOf(conversationId)));
+    }
+
+    // A message was committed to the conversation or a participant read it: its history (read flags
+    // included) and every participant's inbox changed
+    public void changed(ConversationMembershipCache.Membership membership) {
+        if (membership == null) {
+            return;
+        }
+        List<String> users = new ArrayList<>(membership.size());
+        for (int i = 0; i < membership.size(); i++) {
+            users.add(membership.authIdAt(i));
+        }
+        bump(membership.conversationId(), users);
+        publish(users, String.valueOf(membership.conversationId()));
+    }
+
+    // A conversation was created; only its participants' inboxes have something new
+    public void created(Collection<User> participants) {
+        List<String> users = participants.stream().map(User::getAuthId).toList();
+        bump(null, users);
+        publish(users, null);
+    }
+
+    // Something every inbox and history may show changed, such as a user's name or picture
+    public void everythingChanged() {
+        epoch = newEpoch();
+        publish(List.of(), null);
+    }
+
+    private void onEnvelope(ClusterEnvelope envelope) {
+        if (envelope.type() != ClusterEnvelope.Type.CHANGED || userRegistry.getNodeId().equals(envelope.originNode())) {
+            return;
+        }
+        if (envelope.users().isEmpty() && envelope.payload() == null) {
+            epoch = newEpoch();
+        } else {
+            bump(envelope.payload() != null ? Long.valueOf(envelope.payload()) : null, envelope.users());
+        }
+    }
+
+    private void bump(Long conversationId, Collection<String> users) {
+        if (conversationId != null) {
+            conversations.incrementAndGet(stripeOf(conversationId));
+        }
+        for (String authId : users) {
+            inboxes.incrementAndGet(stripeOf(authId.hashCode()));
+        }
+    }
+
+    private void publish(List<String> users, String conversationId) {
+        if (relay != null) {
+            relay.publish(new ClusterEnvelope(ClusterEnvelope.Type.CHANGED, userRegistry.getNodeId(), users,
+                    null, conversationId));
+        }
+    }
+
+    // Responses differ per viewer (read flags, names of direct chats), so the viewer is part of the tag
+    private String tag(User user, long version) {
+        return "\"" + epoch + "-" + user.getId() + "-" + version + "\"";
+    }
+
+    private int stripeOf(long id) {
+        // Fibonacci hashing spreads sequential ids across the stripes
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    private static String newEpoch() {
+        return Long.toString(ThreadLocalRandom.current().nextLong() >>> 1, 36);
+    }
+}
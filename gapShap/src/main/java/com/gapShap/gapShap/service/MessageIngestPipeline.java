@@ -0,0 +1,229 @@
+package com.gapShap.gapShap.service;
+
+import com.gapShap.gapShap.config.ChatProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Write-behind ingest for chat messages: sends are queued in memory and a single drainer
+// persists them with JDBC batch inserts, flushing on batch size or time window.
+// Ids are taken in queue order and batches commit in queue order, so a message is never committed
+// after one with a higher id; sync and read markers rely on that. Only true on a single node: another
+// node would hold a different block of ids, so batched mode refuses to start with a cluster relay.
+@Service
+public class MessageIngestPipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageIngestPipeline.class);
+
+    private static final String INSERT_MESSAGE =
+            "INSERT INTO messages (id, content, sender_id, conversation_id, sent_at) VALUES (?, ?, ?, ?, ?)";
+    private static final String ADVANCE_LAST_MESSAGE =
+            "UPDATE conversations SET last_message_id = ?, last_activity_at = ? " +
+            "WHERE id = ? AND (last_message_id IS NULL OR last_message_id < ?)";
+    private static final String RESERVE_IDS =
+            "SELECT nextval(pg_get_serial_sequence('messages', 'id')) FROM generate_series(1, ?)";
+
+    private final ChatProperties.Ingest settings;
+    private final boolean clustered;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final BlockingQueue<PendingMessage> queue;
+    private final ArrayDeque<Long> reservedIds = new ArrayDeque<>();
+    private final ReentrantLock idLock = new ReentrantLock();
+
+    private final Counter persistedCounter;
+    private final Counter failedCounter;
+    private final DistributionSummary batchSizes;
+    private final Timer flushTimer;
+
+    private volatile boolean running;
+    private Thread drainer;
+
+    // A message accepted for ingest; persisted completes once its batch is committed
+    public record PendingMessage(long id, long conversationId, long senderId, String content, Date sentAt,
+                                 CompletableFuture<Void> persisted) {
+    }
+
+    @Autowired
+    public MessageIngestPipeline(ChatProperties chatProperties,
+            JdbcTemplate jdbcTemplate,
+            TransactionTemplate transactionTemplate,
+            MeterRegistry meterRegistry) {
+        this.settings = chatProperties.getIngest();
+        this.clustered = chatProperties.getCluster().getRelay() != ChatProperties.ClusterRelayType.NONE;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.queue = new ArrayBlockingQueue<>(settings.getQueueCapacity());
+
+        Gauge.builder("gapshap.ingest.queue.depth", queue, BlockingQueue::size)
+                .description("Messages accepted but not yet persisted")
+                .register(meterRegistry);
+        Gauge.builder("gapshap.ingest.queue.remaining", queue, BlockingQueue::remainingCapacity)
+                .register(meterRegistry);
+        this.persistedCounter = Counter.builder("gapshap.ingest.persisted").register(meterRegistry);
+        this.failedCounter = Counter.builder("gapshap.ingest.failed").register(meterRegistry);
+        this.batchSizes = DistributionSummary.builder("gapshap.ingest.batch.size").register(meterRegistry);
+        this.flushTimer = Timer.builder("gapshap.ingest.flush").register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return settings.getMode() == ChatProperties.IngestMode.BATCHED;
+    }
+
+    public boolean acksOnEnqueue() {
+        return settings.getAck() == ChatProperties.IngestAck.ENQUEUE;
+    }
+
+    @PostConstruct
+    void start() {
+        if (!isEnabled()) {
+            return;
+        }
+        if (clustered) {
+            throw new IllegalStateException(
+                    "gapshap.chat.ingest.mode=batched is single-node only; use direct with a cluster relay");
+        }
+        running = true;
+        drainer = new Thread(this::drain, "message-ingest-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        if (drainer == null) {
+            return;
+        }
+        // The drainer keeps going until whatever is still queued has been flushed
+        running = false;
+        drainer.interrupt();
+        drainer.join(TimeUnit.SECONDS.toMillis(30));
+    }
+
+    // Queue a message for persistence. The id is reserved up front so it can be fanned out before the flush.
+    public PendingMessage submit(long conversationId, long senderId, String content) {
+        if (!running) {
+            throw new IllegalStateException("Message ingest is not running");
+        }
+        // Id and queue slot are taken under one lock, so the queue stays in id order. A lock rather
+        // than synchronized: a virtual thread blocking on JDBC inside a monitor pins its carrier.
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.getEnqueueTimeoutMs());
+        try {
+            if (!idLock.tryLock(settings.getEnqueueTimeoutMs(), TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("Message queue is full");
+            }
+            try {
+                PendingMessage message = new PendingMessage(nextId(), conversationId, senderId, content,
+                        new Date(), new CompletableFuture<>());
+                if (!queue.offer(message, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    throw new IllegalStateException("Message queue is full");
+                }
+                return message;
+            } finally {
+                idLock.unlock();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing message", e);
+        }
+    }
+
+    // Called with idLock held
+    private long nextId() {
+        if (reservedIds.isEmpty()) {
+            reservedIds.addAll(jdbcTemplate.queryForList(RESERVE_IDS, Long.class, settings.getBatchSize()));
+        }
+        return reservedIds.poll();
+    }
+
+    private void drain() {
+        List<PendingMessage> batch = new ArrayList<>(settings.getBatchSize());
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingMessage first = queue.poll(settings.getFlushIntervalMs(), TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // Keep collecting until the batch is full or the flush window closes
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.getFlushIntervalMs());
+                while (batch.size() < settings.getBatchSize()) {
+                    queue.drainTo(batch, settings.getBatchSize() - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= settings.getBatchSize() || remaining <= 0) {
+                        break;
+                    }
+                    PendingMessage next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // stop() interrupts to cut the wait short; the loop condition decides whether to go on
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<PendingMessage> batch) {
+        // Only the newest message of each conversation moves its inbox columns
+        Map<Long, PendingMessage> latestByConversation = new HashMap<>();
+        for (PendingMessage message : batch) {
+            latestByConversation.merge(message.conversationId(), message,
+                    (a, b) -> a.id() >= b.id() ? a : b);
+        }
+
+        try {
+            flushTimer.record(() -> transactionTemplate.executeWithoutResult(status -> {
+                jdbcTemplate.batchUpdate(INSERT_MESSAGE, batch, batch.size(), (ps, message) -> {
+                    ps.setLong(1, message.id());
+                    ps.setString(2, message.content());
+                    ps.setLong(3, message.senderId());
+                    ps.setLong(4, message.conversationId());
+                    ps.setTimestamp(5, new Timestamp(message.sentAt().getTime()));
+                });
+                List<PendingMessage> latest = new ArrayList<>(latestByConversation.values());
+                jdbcTemplate.batchUpdate(ADVANCE_LAST_MESSAGE, latest, latest.size(), (ps, message) -> {
+                    ps.setLong(1, message.id());
+                    ps.setTimestamp(2, new Timestamp(message.sentAt().getTime()));
+                    ps.setLong(3, message.conversationId());
+                    ps.setLong(4, message.id());
+                });
+            }));
+            batchSizes.record(batch.size());
+            persistedCounter.increment(batch.size());
+            batch.forEach(message -> message.persisted().complete(null));
+        } catch (RuntimeException e) {
+            failedCounter.increment(batch.size());
+            log.error("Failed to persist a batch of {} messages", batch.size(), e);
+            batch.forEach(message -> message.persisted().completeExceptionally(e));
+        }
+    }
+}
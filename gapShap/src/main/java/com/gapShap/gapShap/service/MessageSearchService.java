@@ -0,0 +1,153 @@
+package com.gapShap.gapShap.service;
+
+import com.gapShap.gapShap.config.ChatProperties;
+import com.gapShap.gapShap.dto.CursorPage;
+import com.gapShap.gapShap.dto.MessageDTO;
+import com.gapShap.gapShap.dto.MessageSearchHit;
+import com.gapShap.gapShap.model.User;
+import com.gapShap.gapShap.repository.MessageRepository;
+import com.gapShap.gapShap.repository.projection.MessageKey;
+import com.gapShap.gapShap.repository.projection.SearchRow;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.*;
+
+// Full-text search over the messages of every conversation a user is in, newest first. Postgres indexes
+// each message's words as it is inserted (idx_messages_content_fts), per conversation, so sends need
+// nothing extra. A page is found in one of two ways: a term rarer than the scan limit among the user's
+// messages has all its matches read and sorted, a more common one is read newest first per conversation
+// and stops early. Months moved to the archive are not searched.
+@Service
+public class MessageSearchService {
+
+    private static final int MAX_PAGE_SIZE = 50;
+    // Longer input is a paste, not a search
+    private static final int MAX_QUERY_LENGTH = 200;
+    // Later than any message (9999-12-31), so the first page starts from the newest
+    private static final MessageKey FIRST = new MessageKey(Long.MAX_VALUE, new Date(253_402_300_799_999L));
+    private static final Comparator<MessageKey> NEWEST_FIRST =
+            Comparator.comparing(MessageKey::sentAt).thenComparing(MessageKey::id).reversed();
+
+    private final MessageRepository messageRepository;
+    private final int scanLimit;
+    private final Timer searchTimer;
+    private final Counter perConversationSearches;
+
+    @Autowired
+    public MessageSearchService(MessageRepository messageRepository,
+            ChatProperties chatProperties,
+            MeterRegistry meterRegistry) {
+        this.messageRepository = messageRepository;
+        this.scanLimit = chatProperties.getSearch().getScanLimit();
+        this.searchTimer = Timer.builder("gapshap.chat.search").register(meterRegistry);
+        this.perConversationSearches = Counter.builder("gapshap.chat.search.per.conversation")
+                .register(meterRegistry);
+    }
+
+    // One page of the user's messages matching the query, newest first
+    @Transactional(readOnly = true)
+    public CursorPage<MessageSearchHit> search(User user, String query, String cursor, int limit) {
+        if (query == null || query.isBlank()) {
+            throw new IllegalArgumentException("Search query is required");
+        }
+        if (query.length() > MAX_QUERY_LENGTH) {
+            throw new IllegalArgumentException("Search query is too long");
+        }
+        return searchTimer.record(() -> findPage(user, query, cursor, limit));
+    }
+
+    private CursorPage<MessageSearchHit> findPage(User user, String query, String cursor, int limit) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        MessageKey after = parseCursor(cursor);
+
+        // Fetch one extra key to find out whether another page follows
+        List<MessageKey> keys = messageRepository.findSearchMatches(user.getId(), query,
+                after.sentAt(), after.id(), scanLimit + 1);
+        if (keys.size() > scanLimit) {
+            perConversationSearches.increment();
+            keys = messageRepository.findNewestSearchMatches(user.getId(), query,
+                    after.sentAt(), after.id(), pageSize + 1);
+        } else {
+            keys = new ArrayList<>(keys);
+            keys.sort(NEWEST_FIRST);
+        }
+        boolean hasMore = keys.size() > pageSize;
+        keys = keys.subList(0, Math.min(keys.size(), pageSize));
+        if (keys.isEmpty()) {
+            return new CursorPage<>(List.of(), null);
+        }
+
+        List<Long> ids = keys.stream().map(MessageKey::id).toList();
+        Map<Long, SearchRow> rows = new HashMap<>();
+        for (SearchRow row : messageRepository.findSearchPage(user.getId(), query, ids,
+                keys.get(keys.size() - 1).sentAt(), keys.get(0).sentAt())) {
+            rows.put(row.id(), row);
+        }
+        List<MessageSearchHit> hits = new ArrayList<>(keys.size());
+        for (MessageKey key : keys) {
+            SearchRow row = rows.get(key.id());
+            // Gone if its month was archived in between
+            if (row != null) {
+                hits.add(toHit(row));
+            }
+        }
+
+        MessageKey last = keys.get(keys.size() - 1);
+        return new CursorPage<>(hits, hasMore ? last.sentAt().getTime() + "_" + last.id() : null);
+    }
+
+    private MessageSearchHit toHit(SearchRow row) {
+        MessageDTO message = new MessageDTO();
+        message.setId(row.id());
+        message.setContent(row.content());
+        message.setSenderId(row.senderId());
+        message.setSenderName(row.senderName());
+        message.setSenderPicture(row.senderPicture());
+        message.setConversationId(row.conversationId());
+        message.setSentAt(row.sentAt().getTime());
+        message.setRead(Boolean.TRUE.equals(row.read()));
+        return new MessageSearchHit(message, highlights(row.headline(), row.content()));
+    }
+
+    // Ranges of the content between the headline's markers. If the content held marker characters of
+    // its own the ranges would be off, so such a message comes without highlights.
+    private static List<int[]> highlights(String headline, String content) {
+        List<int[]> ranges = new ArrayList<>();
+        StringBuilder text = new StringBuilder(content.length());
+        int start = -1;
+        for (int i = 0; i < headline.length(); i++) {
+            char c = headline.charAt(i);
+            if (c == MessageRepository.HIGHLIGHT_START) {
+                start = text.length();
+            } else if (c == MessageRepository.HIGHLIGHT_END && start >= 0) {
+                ranges.add(new int[] {start, text.length()});
+                start = -1;
+            } else {
+                text.append(c);
+            }
+        }
+        return text.toString().equals(content) ? ranges : List.of();
+    }
+
+    // Search cursors are "<sentAt millis>_<message id>" of the last hit returned
+    private MessageKey parseCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return FIRST;
+        }
+        int separator = cursor.indexOf('_');
+        try {
+            if (separator > 0) {
+                return new MessageKey(Long.parseLong(cursor.substring(separator + 1)),
+                        new Date(Long.parseLong(cursor.substring(0, separator))));
+            }
+        } catch (NumberFormatException ignored) {
+            // fall through to the error below
+        }
+        throw new IllegalArgumentException("Invalid cursor");
+    }
+}
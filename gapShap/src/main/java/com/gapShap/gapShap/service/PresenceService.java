@@ -0,0 +1,283 @@
+package com.gapShap.gapShap.service;
+
+import com.gapShap.gapShap.cluster.ClusterUserRegistry;
+import com.gapShap.gapShap.cluster.UserMessageDispatcher;
+import com.gapShap.gapShap.config.ChatProperties;
+import com.gapShap.gapShap.dto.ConversationActivity;
+import com.gapShap.gapShap.model.User;
+import com.gapShap.gapShap.repository.ConversationRepository;
+import com.gapShap.gapShap.repository.projection.UserConversationRow;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.messaging.AbstractSubProtocolEvent;
+import org.springframework.web.socket.messaging.SessionConnectedEvent;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Typing indicators and online status. Raw events (keystroke notices, session connects and
+// disconnects) only update concurrent maps and mark what changed; once per tick the changes are
+// diffed against what was last announced and each affected conversation gets at most one frame.
+// So the broker sees one frame per changed conversation per tick however many events came in,
+// and a user who connects and drops within a tick causes none at all.
+@Service
+public class PresenceService {
+
+    private static final Logger log = LoggerFactory.getLogger(PresenceService.class);
+
+    // Large conversations get their activity on /topic/conversation.{id}.activity, small ones on the members' queues
+    public static final String ACTIVITY_TOPIC_SUFFIX = ".activity";
+    public static final String ACTIVITY_QUEUE = "/queue/activity";
+
+    private final ChatService chatService;
+    private final ClusterUserRegistry userRegistry;
+    private final UserMessageDispatcher messageDispatcher;
+    private final ConversationMembershipCache membershipCache;
+    private final ConversationRepository conversationRepository;
+    private final ChatProperties.Presence settings;
+    private final int topicMinMembers;
+    private final Counter events;
+    private final Counter frames;
+
+    // Conversation id -> typing user id -> System.nanoTime() at which their typing lapses
+    private final Map<Long, Map<Long, Long>> typists = new ConcurrentHashMap<>();
+    // Conversations whose typists changed, and users who connected or disconnected here, since the last tick
+    private final Set<Long> changedConversations = ConcurrentHashMap.newKeySet();
+    private final Set<String> changedUsers = ConcurrentHashMap.newKeySet();
+
+    // What was last announced; only the tick thread touches these
+    private final Map<Long, Set<Long>> announcedTypists = new HashMap<>();
+    private final Set<String> announcedOnline = new HashSet<>();
+
+    private ScheduledExecutorService ticker;
+
+    @Autowired
+    public PresenceService(ChatService chatService,
+            ClusterUserRegistry userRegistry,
+            UserMessageDispatcher messageDispatcher,
+            ConversationMembershipCache membershipCache,
+            ConversationRepository conversationRepository,
+            ChatProperties chatProperties,
+            MeterRegistry meterRegistry) {
+        this.chatService = chatService;
+        this.userRegistry = userRegistry;
+        this.messageDispatcher = messageDispatcher;
+        this.membershipCache = membershipCache;
+        this.conversationRepository = conversationRepository;
+        this.settings = chatProperties.getPresence();
+        this.topicMinMembers = chatProperties.getFanout().getTopicMinMembers();
+        this.events = Counter.builder("gapshap.chat.activity.events").register(meterRegistry);
+        this.frames = Counter.builder("gapshap.chat.activity.frames").register(meterRegistry);
+    }
+
+    @PostConstruct
+    void start() {
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "presence-tick");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = settings.getTick().toMillis();
+        ticker.scheduleAtFixedRate(this::tick, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        ticker.shutdownNow();
+    }
+
+    // The user started (or is still) typing in the conversation, or stopped
+    public void typing(User user, Long conversationId, boolean typing) {
+        chatService.requireMember(conversationId, user);
+        events.increment();
+        long lapsesAt = System.nanoTime() + settings.getTypingTimeout().toNanos();
+        boolean[] changed = {false};
+        typists.compute(conversationId, (id, current) -> {
+            if (typing) {
+                Map<Long, Long> updated = current != null ? current : new ConcurrentHashMap<>();
+                changed[0] = updated.put(user.getId(), lapsesAt) == null;
+                return updated;
+            }
+            if (current == null) {
+                return null;
+            }
+            changed[0] = current.remove(user.getId()) != null;
+            return current.isEmpty() ? null : current;
+        });
+        // Refreshes of an ongoing typing notice only push its lapse time back
+        if (changed[0]) {
+            changedConversations.add(conversationId);
+        }
+    }
+
+    // Who in the conversation is online and typing right now, for clients opening it
+    public ConversationActivity currentActivity(Long conversationId, User user) {
+        ConversationMembershipCache.Membership membership = chatService.requireMember(conversationId, user);
+        ConversationActivity activity = new ConversationActivity(conversationId);
+        for (int i = 0; i < membership.size(); i++) {
+            String authId = membership.authIdAt(i);
+            if (userRegistry.isLocal(authId) || userRegistry.isRemote(authId)) {
+                activity.getOnline().add(membership.userIdAt(i));
+            }
+        }
+        long now = System.nanoTime();
+        typists.getOrDefault(conversationId, Map.of()).forEach((userId, lapsesAt) -> {
+            if (lapsesAt - now > 0) {
+                activity.getTyping().add(userId);
+            }
+        });
+        return activity;
+    }
+
+    @EventListener
+    public void onSessionConnected(SessionConnectedEvent event) {
+        sessionChanged(event);
+    }
+
+    @EventListener
+    public void onSessionDisconnect(SessionDisconnectEvent event) {
+        sessionChanged(event);
+    }
+
+    private void sessionChanged(AbstractSubProtocolEvent event) {
+        Principal user = event.getUser();
+        if (user != null) {
+            events.increment();
+            changedUsers.add(user.getName());
+        }
+    }
+
+    void tick() {
+        try {
+            Map<Long, ConversationActivity> activities = new HashMap<>();
+            collectPresence(activities);
+            collectTyping(activities);
+            for (ConversationActivity activity : activities.values()) {
+                publish(activity);
+            }
+        } catch (RuntimeException e) {
+            // The changes are lost for this tick; typing recovers with the next notice or lapse
+            log.warn("Broadcasting presence failed", e);
+        }
+    }
+
+    // Online and offline changes of users connected here, looked up once per tick for all of them.
+    // A user still connected to another node is left for that node to announce.
+    private void collectPresence(Map<Long, ConversationActivity> activities) {
+        Map<String, Boolean> changes = new HashMap<>();
+        for (String authId : drain(changedUsers)) {
+            boolean local = userRegistry.isLocal(authId);
+            boolean changed = local ? announcedOnline.add(authId) : announcedOnline.remove(authId);
+            if (changed && !userRegistry.isRemote(authId)) {
+                changes.put(authId, local);
+            }
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        for (UserConversationRow row : conversationRepository.findConversationsOfUsers(changes.keySet())) {
+            ConversationActivity activity = activities.computeIfAbsent(row.conversationId(), ConversationActivity::new);
+            if (changes.get(row.authId())) {
+                activity.getOnline().add(row.userId());
+            } else {
+                activity.getOffline().add(row.userId());
+                // Gone users stop typing now rather than when their notice lapses
+                typists.computeIfPresent(row.conversationId(), (id, current) -> {
+                    current.remove(row.userId());
+                    return current.isEmpty() ? null : current;
+                });
+                changedConversations.add(row.conversationId());
+            }
+        }
+    }
+
+    // Typists who started or stopped, including notices that lapsed, against the last announcement
+    private void collectTyping(Map<Long, ConversationActivity> activities) {
+        long now = System.nanoTime();
+        Set<Long> conversations = new HashSet<>(drain(changedConversations));
+        typists.forEach((conversationId, current) -> {
+            if (current.values().stream().anyMatch(lapsesAt -> lapsesAt - now <= 0)) {
+                conversations.add(conversationId);
+            }
+        });
+
+        for (Long conversationId : conversations) {
+            Set<Long> typing = new HashSet<>();
+            typists.computeIfPresent(conversationId, (id, current) -> {
+                current.values().removeIf(lapsesAt -> lapsesAt - now <= 0);
+                typing.addAll(current.keySet());
+                return current.isEmpty() ? null : current;
+            });
+            Set<Long> announced = announcedTypists.getOrDefault(conversationId, Set.of());
+            ConversationActivity activity = null;
+            for (Long userId : typing) {
+                if (!announced.contains(userId)) {
+                    activity = activities.computeIfAbsent(conversationId, ConversationActivity::new);
+                    activity.getTyping().add(userId);
+                }
+            }
+            for (Long userId : announced) {
+                if (!typing.contains(userId)) {
+                    activity = activities.computeIfAbsent(conversationId, ConversationActivity::new);
+                    activity.getStoppedTyping().add(userId);
+                }
+            }
+            if (typing.isEmpty()) {
+                announcedTypists.remove(conversationId);
+            } else {
+                announcedTypists.put(conversationId, typing);
+            }
+        }
+    }
+
+    private void publish(ConversationActivity activity) {
+        if (activity.getTyping().isEmpty() && activity.getStoppedTyping().isEmpty()
+                && activity.getOnline().isEmpty() && activity.getOffline().isEmpty()) {
+            return;
+        }
+        ConversationMembershipCache.Membership membership = membershipCache.get(activity.getConversationId());
+        if (membership == null) {
+            return;
+        }
+        List<String> audience = new ArrayList<>(membership.size());
+        for (int i = 0; i < membership.size(); i++) {
+            audience.add(membership.authIdAt(i));
+        }
+        if (membership.size() >= topicMinMembers) {
+            messageDispatcher.sendToTopic(ChatService.CONVERSATION_TOPIC_PREFIX + activity.getConversationId()
+                    + ACTIVITY_TOPIC_SUFFIX, activity, audience);
+        } else {
+            messageDispatcher.sendToUsers(audience, ACTIVITY_QUEUE, activity);
+        }
+        frames.increment();
+    }
+
+    // Take everything currently in the set; anything added meanwhile is left for the next tick
+    private static <T> List<T> drain(Set<T> changed) {
+        List<T> drained = new ArrayList<>();
+        for (Iterator<T> iterator = changed.iterator(); iterator.hasNext(); ) {
+            drained.add(iterator.next());
+            iterator.remove();
+        }
+        return drained;
+    }
+}
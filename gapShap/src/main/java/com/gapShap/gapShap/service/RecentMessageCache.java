@@ -0,0 +1,218 @@
+package com.gapShap.gapShap.service;
+
+import com.gapShap.gapShap.cluster.ClusterEnvelope;
+import com.gapShap.gapShap.cluster.ClusterRelay;
+import com.gapShap.gapShap.cluster.ClusterUserRegistry;
+import com.gapShap.gapShap.config.ChatProperties;
+import com.gapShap.gapShap.dto.MessageDTO;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// The newest messages of recently active conversations, so first-page history loads and last-message
+// lookups skip the database. Windows are filled from a database read and kept current write-through
+// as messages are committed; the least recently used conversations are dropped once the cache is full.
+// Messages sent through other nodes only reach this one as a relay notice that the conversation changed,
+// which drops its window, and a window is read from the database again once it is max-age old in case
+// such a notice was missed. Messages are kept without a read flag or the sender's name and picture,
+// which callers set per viewer and from the current participants.
+@Component
+public class RecentMessageCache {
+
+    private static final int STRIPES = 1024;
+
+    private final ClusterUserRegistry userRegistry;
+    private final ClusterRelay relay;
+    private final Cache<Long, Window> windows;
+    private final int capacity;
+    private final long maxAgeNanos;
+    // Bumped on every append, so a fill whose database read raced with an append is not stored
+    private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+    private final Counter hits;
+    private final Counter misses;
+
+    // One conversation's newest messages, oldest first. Never modified: an append swaps in a new window.
+    private static final class Window {
+
+        private final MessageDTO[] messages;
+        // Whether these are all of the conversation's messages, so there is nothing older to page to
+        private final boolean complete;
+        // System.nanoTime() of the database read the window started from; appends keep it
+        private final long filledAt;
+
+        private Window(MessageDTO[] messages, boolean complete, long filledAt) {
+            this.messages = messages;
+            this.complete = complete;
+            this.filledAt = filledAt;
+        }
+    }
+
+    @Autowired
+    public RecentMessageCache(ClusterUserRegistry userRegistry,
+            ObjectProvider<ClusterRelay> relay,
+            ChatProperties chatProperties,
+            MeterRegistry meterRegistry) {
+        ChatProperties.RecentMessages settings = chatProperties.getRecentMessages();
+        this.userRegistry = userRegistry;
+        this.relay = relay.getIfAvailable();
+        this.capacity = Math.max(1, settings.getMessagesPerConversation());
+        this.maxAgeNanos = settings.getMaxAge().toNanos();
+        this.windows = Caffeine.newBuilder()
+                .maximumSize(settings.getMaximumConversations())
+                .build();
+        this.hits = Counter.builder("gapshap.chat.recent.lookups").tag("result", "hit").register(meterRegistry);
+        this.misses = Counter.builder("gapshap.chat.recent.lookups").tag("result", "miss").register(meterRegistry);
+        Gauge.builder("gapshap.chat.recent.conversations", windows, Cache::estimatedSize).register(meterRegistry);
+    }
+
+    @PostConstruct
+    void start() {
+        if (relay != null) {
+            relay.subscribe(this::onEnvelope);
+        }
+    }
+
+    // Another node committed a message to the conversation (or someone read it there); this node's
+    // window may be missing the message, so it is read again on next use
+    private void onEnvelope(ClusterEnvelope envelope) {
+        if (envelope.type() == ClusterEnvelope.Type.CHANGED && envelope.payload() != null
+                && !userRegistry.getNodeId().equals(envelope.originNode())) {
+            evict(Long.parseLong(envelope.payload()));
+        }
+    }
+
+    // Drop the conversation's window; a fill whose read started before this is not stored either
+    public void evict(long conversationId) {
+        windows.asMap().compute(conversationId, (id, current) -> {
+            generations.incrementAndGet(stripeOf(conversationId));
+            return null;
+        });
+    }
+
+    // Messages kept per conversation
+    public int capacity() {
+        return capacity;
+    }
+
+    // Up to count of the conversation's newest messages, newest first, or null when the cache can't
+    // tell: nothing is cached, or fewer are cached than asked for while older messages exist
+    public List<MessageDTO> latest(long conversationId, int count) {
+        Window window = current(conversationId);
+        if (window == null || (window.messages.length < count && !window.complete)) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        int size = Math.min(count, window.messages.length);
+        List<MessageDTO> latest = new ArrayList<>(size);
+        for (int i = window.messages.length - 1; i >= window.messages.length - size; i--) {
+            latest.add(copy(window.messages[i]));
+        }
+        return latest;
+    }
+
+    // The conversation's newest message if it is cached
+    public MessageDTO last(long conversationId) {
+        Window window = current(conversationId);
+        if (window == null || window.messages.length == 0) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return copy(window.messages[window.messages.length - 1]);
+    }
+
+    // The conversation's window unless it is past its max age
+    private Window current(long conversationId) {
+        Window window = windows.getIfPresent(conversationId);
+        if (window != null && System.nanoTime() - window.filledAt > maxAgeNanos) {
+            windows.asMap().remove(conversationId, window);
+            return null;
+        }
+        return window;
+    }
+
+    // Taken before reading the newest messages from the database, and handed back to fill
+    public long stamp(long conversationId) {
+        return generations.get(stripeOf(conversationId));
+    }
+
+    // Cache the newest messages as read from the database, newest first. Skipped if a message was
+    // appended since the stamp was taken, as the read may not include it.
+    public void fill(long conversationId, long stamp, List<MessageDTO> newestFirst, boolean complete) {
+        long filledAt = System.nanoTime();
+        int size = Math.min(capacity, newestFirst.size());
+        MessageDTO[] messages = new MessageDTO[size];
+        for (int i = 0; i < size; i++) {
+            messages[size - 1 - i] = copy(newestFirst.get(i));
+        }
+        Window filled = new Window(messages, complete && newestFirst.size() <= capacity, filledAt);
+        windows.asMap().compute(conversationId, (id, current) ->
+                generations.get(stripeOf(conversationId)) == stamp ? filled : current);
+    }
+
+    // Add a committed message to its conversation's window, if the conversation is cached.
+    // Appends may arrive out of order and more than once; the window stays sorted and unique.
+    public void append(MessageDTO message) {
+        long conversationId = message.getConversationId();
+        MessageDTO kept = copy(message);
+        windows.asMap().compute(conversationId, (id, current) -> {
+            generations.incrementAndGet(stripeOf(conversationId));
+            return current == null ? null : insert(current, kept);
+        });
+    }
+
+    private Window insert(Window window, MessageDTO message) {
+        MessageDTO[] messages = window.messages;
+        int position = messages.length;
+        while (position > 0 && compare(messages[position - 1], message) > 0) {
+            position--;
+        }
+        if (position > 0 && messages[position - 1].getId().equals(message.getId())) {
+            return window;
+        }
+        boolean full = messages.length == capacity;
+        if (full && position == 0) {
+            // Older than everything kept
+            return window;
+        }
+        MessageDTO[] inserted = new MessageDTO[messages.length + 1];
+        System.arraycopy(messages, 0, inserted, 0, position);
+        inserted[position] = message;
+        System.arraycopy(messages, position, inserted, position + 1, messages.length - position);
+        return full
+                ? new Window(Arrays.copyOfRange(inserted, 1, inserted.length), false, window.filledAt)
+                : new Window(inserted, window.complete, window.filledAt);
+    }
+
+    // History order: by send time, then id
+    private static int compare(MessageDTO a, MessageDTO b) {
+        int bySentAt = Long.compare(a.getSentAt(), b.getSentAt());
+        return bySentAt != 0 ? bySentAt : Long.compare(a.getId(), b.getId());
+    }
+
+    private static MessageDTO copy(MessageDTO message) {
+        MessageDTO copy = new MessageDTO();
+        copy.setId(message.getId());
+        copy.setContent(message.getContent());
+        copy.setSenderId(message.getSenderId());
+        copy.setConversationId(message.getConversationId());
+        copy.setSentAt(message.getSentAt());
+        return copy;
+    }
+
+    private static int stripeOf(long conversationId) {
+        return (int) ((conversationId * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1);
+    }
+}
@@ -0,0 +1,59 @@
+package com.gapShap.gapShap.service;
+
+import com.gapShap.gapShap.config.ChatProperties;
+import com.gapShap.gapShap.dto.MessageDTO;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+
+// Sends recently seen by (sender, client message id), so a client retrying after a reconnect gets
+// the first attempt's outcome instead of storing the message twice. Entries hold the attempt's
+// persisted future: a retry while it is still in flight waits on the same one. Failed attempts are
+// forgotten straight away, so retrying them stores the message after all.
+@Component
+public class SendDeduplicator {
+
+    // Client message ids are opaque to the server; this only keeps keys small
+    private static final int MAX_CLIENT_MESSAGE_ID_LENGTH = 64;
+
+    private final Cache<SendKey, CompletableFuture<MessageDTO>> sends;
+    private final Counter duplicates;
+
+    private record SendKey(long senderId, String clientMessageId) {
+    }
+
+    @Autowired
+    public SendDeduplicator(ChatProperties chatProperties, MeterRegistry meterRegistry) {
+        ChatProperties.Dedup settings = chatProperties.getDedup();
+        this.sends = Caffeine.newBuilder()
+                .expireAfterWrite(settings.getWindow())
+                .maximumSize(settings.getMaximumSize())
+                .build();
+        this.duplicates = Counter.builder("gapshap.chat.send.duplicates").register(meterRegistry);
+    }
+
+    // Registers the attempt and returns null if the send is new, or the earlier attempt's outcome if not
+    public CompletableFuture<MessageDTO> claim(long senderId, String clientMessageId,
+                                               CompletableFuture<MessageDTO> attempt) {
+        if (clientMessageId.isEmpty() || clientMessageId.length() > MAX_CLIENT_MESSAGE_ID_LENGTH) {
+            throw new IllegalArgumentException("Invalid client message id");
+        }
+        SendKey key = new SendKey(senderId, clientMessageId);
+        CompletableFuture<MessageDTO> earlier = sends.asMap().putIfAbsent(key, attempt);
+        if (earlier != null) {
+            duplicates.increment();
+            return earlier;
+        }
+        attempt.whenComplete((message, failure) -> {
+            if (failure != null) {
+                sends.asMap().remove(key, attempt);
+            }
+        });
+        return null;
+    }
+}
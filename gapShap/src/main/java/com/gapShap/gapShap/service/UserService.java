@@ -1,58 +1,190 @@
 package com.gapShap.gapShap.service;
 
+import com.gapShap.gapShap.cluster.ClusterEnvelope;
+import com.gapShap.gapShap.cluster.ClusterRelay;
+import com.gapShap.gapShap.cluster.ClusterUserRegistry;
+import com.gapShap.gapShap.config.ChatProperties;
+import com.gapShap.gapShap.dto.CursorPage;
 import com.gapShap.gapShap.model.User;
 import com.gapShap.gapShap.repository.UserRepository;
+import com.gapShap.gapShap.repository.projection.UserPageRow;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Limit;
 import org.springframework.stereotype.Service;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 @Service
 public class UserService {
 
+    private static final int MAX_USER_PAGE_SIZE = 50;
+
     private final UserRepository userRepository;
+    private final ConversationVersions conversationVersions;
+    private final ClusterUserRegistry userRegistry;
+    private final ClusterRelay relay;
+    // Resolved users by auth id, so requests and STOMP frames don't each query app_users. Profile
+    // changes made through other nodes evict the user here; entries also expire after a while in
+    // case such a notice is lost.
+    private final Cache<String, User> usersByAuthId;
 
     @Autowired
-    public UserService(UserRepository userRepository) {
+    public UserService(UserRepository userRepository, ConversationVersions conversationVersions,
+            ClusterUserRegistry userRegistry, ObjectProvider<ClusterRelay> relay,
+            ChatProperties chatProperties) {
         this.userRepository = userRepository;
+        this.conversationVersions = conversationVersions;
+        this.userRegistry = userRegistry;
+        this.relay = relay.getIfAvailable();
+        this.usersByAuthId = Caffeine.newBuilder()
+                .maximumSize(chatProperties.getUserCache().getMaximumSize())
+                .expireAfterWrite(chatProperties.getUserCache().getExpireAfterWrite())
+                .build();
     }
 
-    public User saveOrUpdateUser(String authId, String name, String email, String pictureUrl) {
-        Optional<User> existingUser = userRepository.findByAuthId(authId);
+    @PostConstruct
+    void start() {
+        if (relay != null) {
+            relay.subscribe(this::onEnvelope);
+        }
+    }
 
+    private void onEnvelope(ClusterEnvelope envelope) {
+        if (envelope.type() == ClusterEnvelope.Type.PROFILE
+                && !userRegistry.getNodeId().equals(envelope.originNode())) {
+            usersByAuthId.invalidateAll(envelope.users());
+        }
+    }
+
+    // Logins with unchanged claims cost no write; changed or new users go through a single upsert
+    public User saveOrUpdateUser(String authId, String name, String email, String pictureUrl) {
+        Optional<User> existingUser = findUserByAuthId(authId);
+        if (existingUser.isPresent() && hasSameClaims(existingUser.get(), name, email, pictureUrl)) {
+            return existingUser.get();
+        }
+        User saved = remember(userRepository.upsertByAuthId(authId, name, email, pictureUrl));
         if (existingUser.isPresent()) {
-            User user = existingUser.get();
-            user.setName(name);
-            user.setEmail(email);
-            user.setPictureUrl(pictureUrl);
-            return userRepository.save(user);
-        } else {
-            User newUser = new User(authId, name, email, pictureUrl);
-            return userRepository.save(newUser);
+            // Names and pictures show up in inboxes and histories well beyond the user's own
+            conversationVersions.everythingChanged();
+            // Other nodes may hold the old profile; new users are never cached before they exist
+            if (relay != null) {
+                relay.publish(new ClusterEnvelope(ClusterEnvelope.Type.PROFILE, userRegistry.getNodeId(),
+                        List.of(authId), null, null));
+            }
         }
+        return saved;
+    }
+
+    private boolean hasSameClaims(User user, String name, String email, String pictureUrl) {
+        return Objects.equals(user.getName(), name)
+                && Objects.equals(user.getEmail(), email)
+                && Objects.equals(user.getPictureUrl(), pictureUrl);
     }
 
+    // Served from the cache after the first lookup; profile changes refresh it in saveOrUpdateUser,
+    // on this node directly and on the others through the relay
     public Optional<User> findUserByAuthId(String authId) {
-        return userRepository.findByAuthId(authId);
+        User cached = usersByAuthId.getIfPresent(authId);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        // Unknown users are not cached, they may sign up a moment later
+        return userRepository.findByAuthId(authId).map(this::remember);
+    }
+
+    private User remember(User user) {
+        usersByAuthId.put(user.getAuthId(), user);
+        return user;
     }
     public Optional<User> findUserById(Long id) {
         return userRepository.findById(id);
     }
+    // One query for the whole list; unknown ids are skipped and the order of ids is kept
     public List<User> findUsersByIds(List<Long> ids) {
+        Map<Long, User> usersById = userRepository.findAllById(ids).stream()
+                .collect(Collectors.toMap(User::getId, Function.identity()));
         return ids.stream()
-                .map(userRepository::findById)
-                .filter(Optional::isPresent)
-                .map(Optional::get)
+                .distinct()
+                .map(usersById::get)
+                .filter(Objects::nonNull)
                 .collect(Collectors.toList());
     }
     
-    public List<User> findAllUsers() {
-        return userRepository.findAll();
+    // Alphabetical user directory, one page at a time
+    public CursorPage<User> listUsers(Long excludeUserId, String cursor, int limit) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_USER_PAGE_SIZE));
+        UserCursor after = UserCursor.decode(cursor);
+        List<UserPageRow> rows = userRepository.findDirectoryPage(excludeUserId, after.name(), after.id(),
+                Limit.of(pageSize + 1));
+        return toPage(rows, pageSize);
     }
-    
-    // Search users by name or email
-    public List<User> searchUsers(String query) {
-        return userRepository.findByNameContainingIgnoreCaseOrEmailContainingIgnoreCase(query, query);
+
+    // Search users by name or email: name prefix matches first, then email prefix, then substring matches
+    public CursorPage<User> searchUsers(String query, Long excludeUserId, String cursor, int limit) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_USER_PAGE_SIZE));
+        String needle = query.trim().toLowerCase(Locale.ROOT);
+        String prefix = escapeLike(needle) + "%";
+        // Queries shorter than a trigram can't use the substring index, so they only match prefixes
+        String pattern = needle.length() < 3 ? prefix : "%" + escapeLike(needle) + "%";
+
+        UserCursor after = UserCursor.decode(cursor);
+        List<UserPageRow> rows = userRepository.searchRanked(pattern, prefix, excludeUserId,
+                after.tier(), after.name(), after.id(), Limit.of(pageSize + 1));
+        return toPage(rows, pageSize);
+    }
+
+    // The cursor takes the last row's keys from the database: Java's and Postgres' lowercasing
+    // disagree on some names, and a cursor built in Java would skip or repeat rows past them
+    private CursorPage<User> toPage(List<UserPageRow> rows, int pageSize) {
+        List<User> page = new ArrayList<>(Math.min(rows.size(), pageSize));
+        for (int i = 0; i < rows.size() && i < pageSize; i++) {
+            page.add(rows.get(i).user());
+        }
+        if (rows.size() <= pageSize) {
+            return new CursorPage<>(page, null);
+        }
+        UserPageRow last = rows.get(pageSize - 1);
+        UserCursor next = new UserCursor(last.tier(), last.sortName(), last.user().getId());
+        return new CursorPage<>(page, next.encode());
+    }
+
+    private String escapeLike(String value) {
+        return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    // Keyset position in a user listing; opaque to clients
+    private record UserCursor(int tier, String name, long id) {
+
+        private static final UserCursor FIRST = new UserCursor(-1, "", 0L);
+
+        static UserCursor decode(String cursor) {
+            if (cursor == null || cursor.isEmpty()) {
+                return FIRST;
+            }
+            try {
+                String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8)
+                        .split("\n", 3);
+                return new UserCursor(Integer.parseInt(parts[0]), parts[2], Long.parseLong(parts[1]));
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+        }
+
+        String encode() {
+            String raw = tier + "\n" + id + "\n" + name;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,159 @@
+package com.gapShap.gapShap.wire;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gapShap.gapShap.dto.MessageDTO;
+import com.gapShap.gapShap.service.ChatService;
+import com.gapShap.gapShap.service.PresenceService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+// A compact encoding of chat messages for clients that ask for it with content-type on STOMP CONNECT.
+// A message goes out as the array [id, conversationId, senderId, sentAt, content, read], and the
+// sender's [name, picture] is appended only the first time a session sees that sender (or after it
+// changed); the client keeps them in a per-connection dictionary. Everything else stays JSON, and
+// it is still JSON text, since SockJS only carries text frames.
+@Component
+public class CompactMessageFormat {
+
+    public static final MimeType CONTENT_TYPE = MimeType.valueOf("application/vnd.gapshap.compact+json");
+    // Header marking chat message frames, carrying their compact form once it is built
+    public static final String DEFERRED_HEADER = "gapshapCompact";
+    // Senders a session's dictionary holds before the least recently used are sent again
+    private static final int DICTIONARY_SIZE = 1024;
+
+    private final ObjectMapper objectMapper;
+
+    // The message's fields without the closing bracket, and its sender entry
+    public record Prepared(long senderId, int senderVersion, byte[] fields, byte[] sender) {
+    }
+
+    // Attached to a chat message when it is sent. Its compact form is built from the JSON payload the
+    // first time a compact session needs it and shared by the others, so JSON-only traffic pays nothing.
+    public static final class Deferred {
+
+        private volatile Prepared prepared;
+    }
+
+    // Senders a session has been sent, with the version of their name and picture it has.
+    // Only the session's outbound queue touches it, one frame at a time.
+    public static final class SenderDictionary {
+
+        private final Map<Long, Integer> versions = new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+                return size() > DICTIONARY_SIZE;
+            }
+        };
+
+        // Whether the session already has this version of the sender; remembers it if not
+        private boolean remember(long senderId, int version) {
+            Integer known = versions.put(senderId, version);
+            return known != null && known == version;
+        }
+    }
+
+    @Autowired
+    public CompactMessageFormat(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    // Whether a CONNECT with this content-type asks for the compact encoding
+    public boolean isRequested(MimeType contentType) {
+        return contentType != null && CONTENT_TYPE.equalsTypeAndSubtype(contentType);
+    }
+
+    // Whether messages sent to the destination are chat messages
+    public boolean carriesMessages(String destination) {
+        return ChatService.MESSAGES_QUEUE.equals(destination)
+                || (destination.startsWith(ChatService.CONVERSATION_TOPIC_PREFIX)
+                    && !destination.endsWith(PresenceService.ACTIVITY_TOPIC_SUFFIX));
+    }
+
+    // Read back from the JSON every session shares, which also stands in for a snapshot of the message
+    public Prepared prepare(byte[] json) {
+        try {
+            return prepare(objectMapper.readValue(json, MessageDTO.class));
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not decode message", e);
+        }
+    }
+
+    private Prepared prepare(MessageDTO message) {
+        ByteArrayBuilder fields = new ByteArrayBuilder(64 + length(message.getContent()));
+        ByteArrayBuilder sender = new ByteArrayBuilder(32 + length(message.getSenderPicture()));
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(fields)) {
+            generator.writeStartArray();
+            writeNumber(generator, message.getId());
+            writeNumber(generator, message.getConversationId());
+            writeNumber(generator, message.getSenderId());
+            writeNumber(generator, message.getSentAt());
+            generator.writeString(message.getContent());
+            generator.writeBoolean(message.isRead());
+            generator.writeEndArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not encode message", e);
+        }
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(sender)) {
+            generator.writeStartArray();
+            generator.writeString(message.getSenderName());
+            generator.writeString(message.getSenderPicture());
+            generator.writeEndArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not encode message", e);
+        }
+        byte[] array = fields.toByteArray();
+        long senderId = message.getSenderId() != null ? message.getSenderId() : 0;
+        return new Prepared(senderId, Objects.hash(message.getSenderName(), message.getSenderPicture()),
+                Arrays.copyOf(array, array.length - 1), sender.toByteArray());
+    }
+
+    private static void writeNumber(JsonGenerator generator, Long value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+        } else {
+            generator.writeNumber(value);
+        }
+    }
+
+    private static int length(String value) {
+        return value != null ? value.length() : 0;
+    }
+
+    // The frame as this session gets it: compact if it is a chat message, unchanged otherwise
+    public Message<?> encode(Message<?> frame, SenderDictionary dictionary) {
+        if (!(frame.getHeaders().get(DEFERRED_HEADER) instanceof Deferred deferred)) {
+            return frame;
+        }
+        Prepared prepared = deferred.prepared;
+        if (prepared == null) {
+            // Sessions racing here build the same thing
+            prepared = prepare((byte[]) frame.getPayload());
+            deferred.prepared = prepared;
+        }
+        byte[] payload;
+        if (dictionary.remember(prepared.senderId(), prepared.senderVersion())) {
+            payload = Arrays.copyOf(prepared.fields(), prepared.fields().length + 1);
+        } else {
+            payload = Arrays.copyOf(prepared.fields(), prepared.fields().length + prepared.sender().length + 2);
+            payload[prepared.fields().length] = ',';
+            System.arraycopy(prepared.sender(), 0, payload, prepared.fields().length + 1, prepared.sender().length);
+        }
+        payload[payload.length - 1] = ']';
+        // The broker leaves each subscriber's copy mutable, so this normally reuses its headers
+        MessageHeaderAccessor accessor = MessageHeaderAccessor.getMutableAccessor(frame);
+        accessor.setContentType(CONTENT_TYPE);
+        return MessageBuilder.createMessage(payload, accessor.getMessageHeaders());
+    }
+}
@@ -0,0 +1,120 @@
+-- Idempotent schema maintenance, run after Hibernate's ddl-auto update on every startup
+
+-- Backfill the denormalized inbox columns of conversations created before they existed
+UPDATE conversations c
+SET last_message_id = (SELECT m.id FROM messages m
+                       WHERE m.conversation_id = c.id
+                       ORDER BY m.sent_at DESC, m.id DESC
+                       LIMIT 1)
+WHERE c.last_activity_at IS NULL;
+
+UPDATE conversations c
+SET last_activity_at = COALESCE((SELECT m.sent_at FROM messages m WHERE m.id = c.last_message_id), c.created_at)
+WHERE c.last_activity_at IS NULL;
+
+-- Carry legacy per-message is_read flags over to per-user read cursors, then drop the column.
+-- The body is single-quoted so the script splitter keeps the block in one statement.
+DO '
+BEGIN
+    IF EXISTS (SELECT 1 FROM information_schema.columns
+               WHERE table_name = ''messages'' AND column_name = ''is_read'') THEN
+        INSERT INTO conversation_reads (user_id, conversation_id, last_read_message_id)
+        SELECT cp.user_id, cp.conversation_id, MAX(m.id)
+        FROM conversation_participants cp
+        JOIN messages m ON m.conversation_id = cp.conversation_id
+                       AND m.sender_id <> cp.user_id
+                       AND m.is_read
+        GROUP BY cp.user_id, cp.conversation_id
+        ON CONFLICT DO NOTHING;
+        ALTER TABLE messages DROP COLUMN is_read;
+    END IF;
+END';
+
+-- Every insert and advance of a read cursor takes the next number, so /api/sync can ask for the cursors
+-- that moved since a client's last sync. Hibernate adds the column; rows older than it get numbered here.
+CREATE SEQUENCE IF NOT EXISTS conversation_reads_seq;
+ALTER TABLE conversation_reads ALTER COLUMN read_seq SET DEFAULT nextval('conversation_reads_seq');
+UPDATE conversation_reads SET read_seq = nextval('conversation_reads_seq') WHERE read_seq IS NULL;
+ALTER TABLE conversation_reads ALTER COLUMN read_seq SET NOT NULL;
+
+-- Messages are range-partitioned by month of sent_at. Months moved to the cold tier are listed in
+-- message_segments, in the same transaction that drops their partition, and are never recreated.
+CREATE TABLE IF NOT EXISTS message_segments (
+    name text PRIMARY KEY,
+    range_start timestamp NOT NULL,
+    range_end timestamp NOT NULL,
+    message_count bigint NOT NULL,
+    archived_at timestamp NOT NULL DEFAULT now()
+);
+
+-- Create the monthly partitions covering from_time through to_time that don't exist yet
+CREATE OR REPLACE FUNCTION ensure_message_partitions(from_time timestamp, to_time timestamp) RETURNS void AS '
+DECLARE
+    month timestamp := date_trunc(''month'', from_time);
+    archived_until timestamp := COALESCE((SELECT MAX(range_end) FROM message_segments), ''-infinity'');
+BEGIN
+    WHILE month <= to_time LOOP
+        IF month >= archived_until THEN
+            EXECUTE format(''CREATE TABLE IF NOT EXISTS %I PARTITION OF messages FOR VALUES FROM (%L) TO (%L)'',
+                           ''messages_'' || to_char(month, ''YYYY_MM''), month, month + interval ''1 month'');
+        END IF;
+        month := month + interval ''1 month'';
+    END LOOP;
+END' LANGUAGE plpgsql;
+
+-- One-time conversion of the plain messages table Hibernate creates. Partitioned tables need the
+-- partition key in the primary key, and on Postgres 16 cannot have identity columns, so ids come
+-- from an owned sequence instead. Indexes and foreign keys keep their names so ddl-auto sees them.
+DO '
+DECLARE
+    fk record;
+BEGIN
+    IF (SELECT relkind FROM pg_class WHERE oid = to_regclass(''messages'')) = ''r'' THEN
+        ALTER TABLE messages RENAME TO messages_unpartitioned;
+        ALTER INDEX messages_pkey RENAME TO messages_unpartitioned_pkey;
+        ALTER INDEX IF EXISTS idx_messages_conversation_sent RENAME TO idx_messages_unpartitioned_sent;
+        ALTER INDEX IF EXISTS idx_messages_conversation_id RENAME TO idx_messages_unpartitioned_id;
+
+        CREATE SEQUENCE messages_partitioned_id_seq;
+        CREATE TABLE messages (
+            id bigint NOT NULL DEFAULT nextval(''messages_partitioned_id_seq''),
+            content text NOT NULL,
+            conversation_id bigint NOT NULL,
+            sender_id bigint NOT NULL,
+            sent_at timestamp(6) NOT NULL,
+            PRIMARY KEY (id, sent_at)
+        ) PARTITION BY RANGE (sent_at);
+        ALTER SEQUENCE messages_partitioned_id_seq OWNED BY messages.id;
+        FOR fk IN SELECT conname, pg_get_constraintdef(oid) AS definition FROM pg_constraint
+                  WHERE conrelid = ''messages_unpartitioned''::regclass AND contype = ''f'' LOOP
+            EXECUTE format(''ALTER TABLE messages ADD CONSTRAINT %I %s'', fk.conname, fk.definition);
+        END LOOP;
+        CREATE INDEX idx_messages_conversation_sent ON messages (conversation_id, sent_at DESC, id DESC);
+        CREATE INDEX idx_messages_conversation_id ON messages (conversation_id, id);
+
+        PERFORM ensure_message_partitions(
+            COALESCE((SELECT MIN(sent_at) FROM messages_unpartitioned), now()::timestamp), now()::timestamp);
+        INSERT INTO messages (id, content, conversation_id, sender_id, sent_at)
+        SELECT id, content, conversation_id, sender_id, sent_at FROM messages_unpartitioned;
+        PERFORM setval(''messages_partitioned_id_seq'', COALESCE((SELECT MAX(id) FROM messages_unpartitioned), 0) + 1, false);
+
+        DROP TABLE messages_unpartitioned;
+        ALTER SEQUENCE messages_partitioned_id_seq RENAME TO messages_id_seq;
+    END IF;
+END';
+
+-- Partitions for last month through the next three; the archiver extends this while running.
+-- Last month is included so rows backdated across a month boundary (seeded data) still have a home.
+SELECT ensure_message_partitions((now() - interval '1 month')::timestamp, (now() + interval '3 months')::timestamp);
+
+-- User search: trigram indexes serve the substring/prefix LIKE filters, the btree serves the directory order.
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+CREATE INDEX IF NOT EXISTS idx_app_users_name_trgm ON app_users USING gin (lower(name) gin_trgm_ops);
+CREATE INDEX IF NOT EXISTS idx_app_users_email_trgm ON app_users USING gin (lower(email) gin_trgm_ops);
+CREATE INDEX IF NOT EXISTS idx_app_users_name_lower ON app_users (lower(name), id);
+
+-- Message search: the words of each message, led by conversation_id (btree_gin) so a search reads only the
+-- entries of the caller's conversations. Partitions inherit it, and inserts keep it current; the expression
+-- has to match MessageRepository.SEARCH_DOCUMENT for the planner to use it.
+CREATE EXTENSION IF NOT EXISTS btree_gin;
+CREATE INDEX IF NOT EXISTS idx_messages_content_fts ON messages USING gin (conversation_id, to_tsvector('simple', content));
@@ -0,0 +1,37 @@
+package com.gapShap.gapShap;
+
+import com.gapShap.gapShap.model.User;
+import com.gapShap.gapShap.service.UserService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+
+import java.util.UUID;
+
+// Base for tests that run the whole application against the local Postgres database. Subclasses share
+// one context, so keep their configuration here. Auth0 is mocked out, as it can't be reached from tests.
+// The database is shared with development, so tests create their own users and conversations.
+@SpringBootTest(properties = "spring.jpa.show-sql=false")
+@AutoConfigureMockMvc
+@ActiveProfiles("test")
+public abstract class IntegrationTest {
+
+    @MockitoBean
+    protected JwtDecoder jwtDecoder;
+
+    @MockitoBean
+    protected ClientRegistrationRepository clientRegistrationRepository;
+
+    @Autowired
+    protected UserService userService;
+
+    // A user no other test run has seen
+    protected User newUser(String name) {
+        String authId = "test|" + UUID.randomUUID();
+        return userService.saveOrUpdateUser(authId, name, authId + "@example.com", null);
+    }
+}
@@ -0,0 +1,161 @@
+package com.gapShap.gapShap.archive;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIOException;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+class MessageSegmentTests {
+
+    private static final long RANGE_START = 1_767_225_600_000L;
+    private static final long RANGE_END = 1_769_904_000_000L;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void roundTripsEveryMessageInOrder() throws IOException {
+        List<ArchivedMessage> messages = new ArrayList<>();
+        long id = 100;
+        for (long conversationId = 1; conversationId <= 3; conversationId++) {
+            for (int i = 0; i < 7; i++) {
+                messages.add(new ArchivedMessage(id++, conversationId, 10 + i % 2, RANGE_START + i * 1000L,
+                        i == 0 ? "" : "message " + i + " é😀\n"));
+            }
+        }
+        // Same send time, told apart by id
+        messages.add(new ArchivedMessage(id++, 4, 10, RANGE_START, "tie a"));
+        messages.add(new ArchivedMessage(id, 4, 11, RANGE_START, "tie b"));
+
+        try (MessageSegment segment = write("roundtrip", 4, messages)) {
+            assertThat(segment.name()).isEqualTo("roundtrip");
+            assertThat(segment.rangeStart()).isEqualTo(RANGE_START);
+            assertThat(segment.rangeEnd()).isEqualTo(RANGE_END);
+            assertThat(segment.messageCount()).isEqualTo(messages.size());
+            assertThat(segment.blockCount()).isEqualTo((messages.size() + 3) / 4);
+
+            List<ArchivedMessage> read = new ArrayList<>();
+            for (int i = 0; i < segment.blockCount(); i++) {
+                List<ArchivedMessage> block = segment.readBlock(i);
+                assertThat(block).hasSize(segment.block(i).count());
+                assertThat(block.get(0).id()).isEqualTo(segment.block(i).firstId());
+                assertThat(block.get(block.size() - 1).id()).isEqualTo(segment.block(i).lastId());
+                read.addAll(block);
+            }
+            assertThat(read).containsExactlyElementsOf(messages);
+        }
+    }
+
+    @Test
+    void findsTheBlocksOfEachConversation() throws IOException {
+        // Blocks of three: [1 1 1] [1 3 3] [3 3 3] [5 8 8] [8]
+        List<ArchivedMessage> messages = conversations(1, 1, 1, 1, 3, 3, 3, 3, 3, 5, 8, 8, 8);
+
+        try (MessageSegment segment = write("blocks", 3, messages)) {
+            assertThat(segment.blockCount()).isEqualTo(5);
+
+            // Spans two blocks, ending where another conversation starts
+            assertThat(segment.firstBlock(1)).isEqualTo(0);
+            assertThat(segment.lastBlock(1)).isEqualTo(1);
+            // Starts mid-block and fills the next one exactly
+            assertThat(segment.firstBlock(3)).isEqualTo(1);
+            assertThat(segment.lastBlock(3)).isEqualTo(2);
+            // A single message sharing its block with the next conversation
+            assertThat(segment.firstBlock(5)).isEqualTo(3);
+            assertThat(segment.lastBlock(5)).isEqualTo(3);
+            // The last message of the segment sits alone in a block
+            assertThat(segment.firstBlock(8)).isEqualTo(3);
+            assertThat(segment.lastBlock(8)).isEqualTo(4);
+        }
+    }
+
+    @Test
+    void findsNoBlockForAbsentConversations() throws IOException {
+        List<ArchivedMessage> messages = conversations(2, 2, 4, 4, 6, 6);
+
+        try (MessageSegment segment = write("absent", 2, messages)) {
+            // Before the first, between two blocks, inside a block's range and after the last
+            for (long conversationId : new long[] {1, 3, 5, 7}) {
+                assertThat(segment.firstBlock(conversationId)).as("first %d", conversationId)
+                        .isEqualTo(segment.blockCount());
+                assertThat(segment.lastBlock(conversationId)).as("last %d", conversationId).isEqualTo(-1);
+            }
+        }
+
+        // A conversation inside a block's key range whose messages it does not hold
+        try (MessageSegment segment = write("inside", 3, conversations(2, 4, 6))) {
+            assertThat(segment.firstBlock(3)).isEqualTo(0);
+            assertThat(segment.lastBlock(3)).isEqualTo(0);
+        }
+    }
+
+    @Test
+    void emptySegmentHasNoBlocks() throws IOException {
+        try (MessageSegment segment = write("empty", 4, List.of())) {
+            assertThat(segment.messageCount()).isZero();
+            assertThat(segment.blockCount()).isZero();
+            assertThat(segment.firstBlock(1)).isZero();
+            assertThat(segment.lastBlock(1)).isEqualTo(-1);
+        }
+    }
+
+    @Test
+    void rejectsMessagesOutOfSegmentOrder() throws IOException {
+        try (MessageSegmentWriter writer = new MessageSegmentWriter(directory.resolve("order"),
+                RANGE_START, RANGE_END, 4)) {
+            writer.append(new ArchivedMessage(2, 5, 10, RANGE_START + 1000, "b"));
+
+            assertThatIllegalArgumentException()
+                    .isThrownBy(() -> writer.append(new ArchivedMessage(3, 5, 10, RANGE_START, "earlier")));
+            assertThatIllegalArgumentException()
+                    .isThrownBy(() -> writer.append(new ArchivedMessage(1, 4, 10, RANGE_START + 2000, "lower")));
+            assertThatIllegalArgumentException()
+                    .isThrownBy(() -> writer.append(new ArchivedMessage(2, 5, 10, RANGE_START + 1000, "again")));
+        }
+    }
+
+    @Test
+    void refusesUnfinishedSegments() throws IOException {
+        Path path = directory.resolve("unfinished");
+        try (MessageSegmentWriter writer = new MessageSegmentWriter(path, RANGE_START, RANGE_END, 2)) {
+            for (ArchivedMessage message : conversations(1, 1, 1)) {
+                writer.append(message);
+            }
+            writer.finish();
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+
+        assertThatIOException().isThrownBy(() -> MessageSegment.open("unfinished", path));
+    }
+
+    private MessageSegment write(String name, int blockMessages, List<ArchivedMessage> messages) throws IOException {
+        Path path = directory.resolve(name);
+        try (MessageSegmentWriter writer = new MessageSegmentWriter(path, RANGE_START, RANGE_END, blockMessages)) {
+            for (ArchivedMessage message : messages) {
+                writer.append(message);
+            }
+            assertThat(writer.finish()).isEqualTo(messages.size());
+        }
+        return MessageSegment.open(name, path);
+    }
+
+    // One message per entry, in segment order, for the given conversation ids
+    private static List<ArchivedMessage> conversations(long... conversationIds) {
+        List<ArchivedMessage> messages = new ArrayList<>();
+        for (int i = 0; i < conversationIds.length; i++) {
+            messages.add(new ArchivedMessage(i + 1, conversationIds[i], 10, RANGE_START + i, "m" + i));
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,81 @@
+package com.gapShap.gapShap.cluster;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// Runs against the local database the application uses
+class PostgresClusterRelayTests {
+
+    private static final String URL = "jdbc:postgresql://localhost:5432/gapshap";
+    private static final String USERNAME = "postgres";
+    private static final String PASSWORD = "postgres";
+
+    private final String channel = "relay_test_" + UUID.randomUUID().toString().replace("-", "");
+    private final JdbcTemplate jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource(URL, USERNAME, PASSWORD));
+    private final LinkedBlockingQueue<ClusterEnvelope> received = new LinkedBlockingQueue<>();
+    private PostgresClusterRelay relay;
+
+    @BeforeEach
+    void setUp() throws InterruptedException {
+        relay = new PostgresClusterRelay(channel, URL, USERNAME, PASSWORD, jdbcTemplate, new ObjectMapper());
+        relay.subscribe(received::add);
+        relay.start();
+        awaitListening();
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        relay.stop();
+    }
+
+    @Test
+    void deliversEnvelopesLargerThanOneNotification() throws InterruptedException {
+        // Multi-byte characters, so the frames are cut by bytes rather than chars
+        String payload = "é😀".repeat(5_000);
+        relay.publish(new ClusterEnvelope(ClusterEnvelope.Type.DELIVER, "a", List.of("bob"), "/queue/x", payload));
+
+        ClusterEnvelope envelope = received.poll(5, TimeUnit.SECONDS);
+        assertThat(envelope).isNotNull();
+        assertThat(envelope.payload()).isEqualTo(payload);
+        assertThat(envelope.users()).containsExactly("bob");
+    }
+
+    @Test
+    void keepsListeningPastMalformedFrames() throws InterruptedException {
+        for (String frame : List.of("", "garbage", "id x 1 {}", "id 0 y {}", "id 3 2 {}", "id 0 0 {}",
+                "split 0 2 {", "split 1 3 }", "id 0 1 not json")) {
+            jdbcTemplate.queryForList("SELECT pg_notify(?, ?)", channel, frame);
+        }
+        relay.publish(new ClusterEnvelope(ClusterEnvelope.Type.CHANGED, "a", List.of("alice"), null, null));
+
+        ClusterEnvelope envelope = received.poll(5, TimeUnit.SECONDS);
+        assertThat(envelope).isNotNull();
+        assertThat(envelope.type()).isEqualTo(ClusterEnvelope.Type.CHANGED);
+        assertThat(received.poll(200, TimeUnit.MILLISECONDS)).isNull();
+    }
+
+    // LISTEN runs on the relay's own thread; publish probes until one comes back
+    private void awaitListening() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (System.currentTimeMillis() < deadline) {
+            relay.publish(new ClusterEnvelope(ClusterEnvelope.Type.SNAPSHOT, "probe", List.of(), null, null));
+            if (received.poll(100, TimeUnit.MILLISECONDS) != null) {
+                Thread.sleep(200);
+                received.clear();
+                return;
+            }
+        }
+        throw new AssertionError("Relay did not start listening");
+    }
+}
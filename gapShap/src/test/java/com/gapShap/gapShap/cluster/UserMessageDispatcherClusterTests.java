@@ -0,0 +1,195 @@
+package com.gapShap.gapShap.cluster;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gapShap.gapShap.config.ChatProperties;
+import com.gapShap.gapShap.dto.MessageDTO;
+import com.gapShap.gapShap.service.ChatService;
+import com.gapShap.gapShap.wire.CompactMessageFormat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.messaging.SessionConnectedEvent;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// Two nodes in one JVM, joined by the loopback relay, each with its broker replaced by a recorder
+class UserMessageDispatcherClusterTests {
+
+    private static final long WAIT_MILLIS = 5_000;
+
+    private final String channel = "dispatcher-" + UUID.randomUUID();
+    private final List<Node> nodes = new ArrayList<>();
+
+    private static final class Node {
+
+        private final LoopbackClusterRelay relay;
+        private final ClusterUserRegistry registry;
+        private final UserMessageDispatcher dispatcher;
+        // Everything handed to this node's broker
+        private final LinkedBlockingQueue<Message<?>> sent = new LinkedBlockingQueue<>();
+
+        private Node(String nodeId, String channel) {
+            ChatProperties chatProperties = new ChatProperties();
+            chatProperties.getCluster().setNodeId(nodeId);
+            relay = new LoopbackClusterRelay(channel);
+            StaticListableBeanFactory beanFactory = new StaticListableBeanFactory();
+            beanFactory.addBean("clusterRelay", relay);
+            ObjectProvider<ClusterRelay> relayProvider = beanFactory.getBeanProvider(ClusterRelay.class);
+            registry = new ClusterUserRegistry(chatProperties, relayProvider);
+            SimpMessagingTemplate template = new SimpMessagingTemplate((message, timeout) -> sent.add(message));
+            ObjectMapper objectMapper = new ObjectMapper();
+            dispatcher = new UserMessageDispatcher(template, registry, objectMapper,
+                    new CompactMessageFormat(objectMapper), relayProvider);
+            registry.start();
+            dispatcher.start();
+        }
+
+        private void connect(String user, String sessionId) {
+            Principal principal = () -> user;
+            SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.CONNECT_ACK);
+            accessor.setSessionId(sessionId);
+            accessor.setUser(principal);
+            registry.onSessionConnected(new SessionConnectedEvent(this,
+                    MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders()), principal));
+        }
+
+        private void disconnect(String user, String sessionId) {
+            registry.onSessionDisconnected(new SessionDisconnectEvent(this,
+                    MessageBuilder.withPayload(new byte[0]).build(), sessionId, CloseStatus.NORMAL, () -> user));
+        }
+
+        private Message<?> next() throws InterruptedException {
+            return sent.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        for (Node node : nodes) {
+            node.registry.stop();
+            node.relay.stop();
+        }
+    }
+
+    @Test
+    void deliversToUsersOnEitherNode() throws Exception {
+        Node a = node("a");
+        Node b = node("b");
+        a.connect("alice", "s-1");
+        b.connect("bob", "s-2");
+        await(() -> a.registry.isRemote("bob") && b.registry.isRemote("alice"));
+
+        MessageDTO message = message("hello é😀");
+        a.dispatcher.sendToUsers(List.of("alice", "bob"), ChatService.MESSAGES_QUEUE, message);
+
+        Message<?> local = a.next();
+        assertThat(destination(local)).isEqualTo("/user/alice" + ChatService.MESSAGES_QUEUE);
+        Message<?> relayed = b.next();
+        assertThat(destination(relayed)).isEqualTo("/user/bob" + ChatService.MESSAGES_QUEUE);
+        // The same JSON on both nodes, still marked as a chat message for compact sessions
+        assertThat(payload(relayed)).isEqualTo(payload(local));
+        assertThat(new ObjectMapper().readValue(payload(relayed), MessageDTO.class).getContent())
+                .isEqualTo("hello é😀");
+        assertThat(relayed.getHeaders()).containsKey(CompactMessageFormat.DEFERRED_HEADER);
+        assertThat(a.sent).isEmpty();
+        assertThat(b.sent).isEmpty();
+    }
+
+    @Test
+    void deliversOnEveryNodeAUserIsConnectedTo() throws Exception {
+        Node a = node("a");
+        Node b = node("b");
+        a.connect("bob", "s-1");
+        b.connect("bob", "s-2");
+        await(() -> a.registry.isRemote("bob") && b.registry.isRemote("bob"));
+
+        a.dispatcher.sendToUsers(List.of("bob"), ChatService.MESSAGES_QUEUE, message("to both"));
+
+        assertThat(destination(a.next())).isEqualTo("/user/bob" + ChatService.MESSAGES_QUEUE);
+        assertThat(destination(b.next())).isEqualTo("/user/bob" + ChatService.MESSAGES_QUEUE);
+    }
+
+    @Test
+    void stopsRelayingOnceAUserLeavesTheOtherNode() throws Exception {
+        Node a = node("a");
+        Node b = node("b");
+        b.connect("bob", "s-1");
+        await(() -> a.registry.isRemote("bob"));
+
+        b.disconnect("bob", "s-1");
+        await(() -> !a.registry.isRemote("bob"));
+        a.dispatcher.sendToUsers(List.of("bob"), ChatService.MESSAGES_QUEUE, message("nobody home"));
+
+        // Without a local session the message is not sent here either, and nothing goes to b
+        assertThat(a.sent.poll(200, TimeUnit.MILLISECONDS)).isNull();
+        assertThat(b.sent.poll(200, TimeUnit.MILLISECONDS)).isNull();
+    }
+
+    @Test
+    void broadcastsTopicsOnlyWhenTheAudienceReachesAnotherNode() throws Exception {
+        Node a = node("a");
+        Node b = node("b");
+        a.connect("alice", "s-1");
+        b.connect("bob", "s-2");
+        await(() -> a.registry.isRemote("bob"));
+        String topic = ChatService.CONVERSATION_TOPIC_PREFIX + "9";
+
+        a.dispatcher.sendToTopic(topic, message("local only"), List.of("alice"));
+        assertThat(destination(a.next())).isEqualTo(topic);
+        assertThat(b.sent.poll(200, TimeUnit.MILLISECONDS)).isNull();
+
+        a.dispatcher.sendToTopic(topic, message("everyone"), List.of("alice", "bob"));
+        assertThat(payload(a.next())).contains("everyone");
+        Message<?> relayed = b.next();
+        assertThat(destination(relayed)).isEqualTo(topic);
+        assertThat(payload(relayed)).contains("everyone");
+    }
+
+    private Node node(String nodeId) {
+        Node node = new Node(nodeId, channel);
+        nodes.add(node);
+        return node;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertThat(System.currentTimeMillis()).as("condition not met in time").isLessThan(deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static MessageDTO message(String content) {
+        MessageDTO message = new MessageDTO();
+        message.setId(1L);
+        message.setContent(content);
+        message.setConversationId(9L);
+        return message;
+    }
+
+    private static String destination(Message<?> message) {
+        assertThat(message).as("message sent to the broker").isNotNull();
+        return SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+    }
+
+    private static String payload(Message<?> message) {
+        return new String((byte[]) message.getPayload(), StandardCharsets.UTF_8);
+    }
+}
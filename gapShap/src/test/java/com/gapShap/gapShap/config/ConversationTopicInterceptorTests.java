@@ -0,0 +1,126 @@
+package com.gapShap.gapShap.config;
+
+import com.gapShap.gapShap.model.User;
+import com.gapShap.gapShap.repository.ConversationRepository;
+import com.gapShap.gapShap.repository.projection.MemberRow;
+import com.gapShap.gapShap.service.ChatService;
+import com.gapShap.gapShap.service.ConversationMembershipCache;
+import com.gapShap.gapShap.service.PresenceService;
+import com.gapShap.gapShap.service.UserService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.security.access.AccessDeniedException;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ConversationTopicInterceptorTests {
+
+    private static final long MEMBER_ID = 1L;
+    private static final long OTHER_ID = 2L;
+
+    private final MessageChannel channel = mock(MessageChannel.class);
+    private ConversationTopicInterceptor interceptor;
+
+    @BeforeEach
+    void setUp() {
+        UserService userService = mock(UserService.class);
+        when(userService.findUserByAuthId("member")).thenReturn(Optional.of(user(MEMBER_ID, "member")));
+        when(userService.findUserByAuthId("outsider")).thenReturn(Optional.of(user(OTHER_ID, "outsider")));
+        ConversationRepository conversationRepository = mock(ConversationRepository.class);
+        when(conversationRepository.findMembers(anyLong())).thenReturn(new ArrayList<>());
+        when(conversationRepository.findMembers(7L))
+                .thenAnswer(invocation -> new ArrayList<>(List.of(new MemberRow(MEMBER_ID, "member"))));
+        interceptor = new ConversationTopicInterceptor(userService,
+                new ConversationMembershipCache(conversationRepository, new ChatProperties()));
+    }
+
+    @Test
+    void participantsMaySubscribeToTheirConversation() {
+        Message<?> messages = subscribe("member", ChatService.CONVERSATION_TOPIC_PREFIX + "7");
+        Message<?> activity = subscribe("member",
+                ChatService.CONVERSATION_TOPIC_PREFIX + "7" + PresenceService.ACTIVITY_TOPIC_SUFFIX);
+
+        assertThat(interceptor.preSend(messages, channel)).isSameAs(messages);
+        assertThat(interceptor.preSend(activity, channel)).isSameAs(activity);
+    }
+
+    @Test
+    void othersMayNotSubscribe() {
+        assertDenied(subscribe("outsider", ChatService.CONVERSATION_TOPIC_PREFIX + "7"));
+        assertDenied(subscribe("outsider",
+                ChatService.CONVERSATION_TOPIC_PREFIX + "7" + PresenceService.ACTIVITY_TOPIC_SUFFIX));
+        assertDenied(subscribe(null, ChatService.CONVERSATION_TOPIC_PREFIX + "7"));
+    }
+
+    @Test
+    void rejectsWildcardSubscriptions() {
+        for (String destination : List.of("/topic/**", "/topic/*", "/topic/conversation.*",
+                "/topic/conversation.?", "/topic/conversation.{id}", "/topic/conversation.7/**", "/queue/**",
+                "/topic**")) {
+            assertDenied(subscribe("member", destination));
+        }
+    }
+
+    @Test
+    void rejectsTopicsThatAreNotExactlyAConversation() {
+        for (String destination : List.of("/topic/other", "/topic", "/topicconversation.7",
+                "/topic/conversation.+7", "/topic/conversation.007", "/topic/conversation.7.typing",
+                "/topic/conversation.activity")) {
+            assertDenied(subscribe("member", destination));
+        }
+    }
+
+    @Test
+    void userDestinationsPassThrough() {
+        Message<?> message = subscribe("outsider", "/user" + ChatService.MESSAGES_QUEUE);
+
+        assertThat(interceptor.preSend(message, channel)).isSameAs(message);
+    }
+
+    @Test
+    void clientsMayNotSendToTheBroker() {
+        for (String destination : List.of(ChatService.CONVERSATION_TOPIC_PREFIX + "7", "/queue/messages", "/topicx")) {
+            StompHeaderAccessor accessor = StompHeaderAccessor.create(StompCommand.SEND);
+            accessor.setDestination(destination);
+            assertDenied(MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders()));
+        }
+    }
+
+    private void assertDenied(Message<?> message) {
+        assertThatThrownBy(() -> interceptor.preSend(message, channel))
+                .as(StompHeaderAccessor.wrap(message).getDestination())
+                .isInstanceOf(AccessDeniedException.class);
+    }
+
+    private static Message<?> subscribe(String authId, String destination) {
+        StompHeaderAccessor accessor = StompHeaderAccessor.create(StompCommand.SUBSCRIBE);
+        accessor.setSessionId("session-1");
+        accessor.setSubscriptionId("sub-0");
+        accessor.setDestination(destination);
+        if (authId != null) {
+            Principal principal = () -> authId;
+            accessor.setUser(principal);
+        }
+        return MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+    }
+
+    private static User user(long id, String authId) {
+        User user = new User(authId, authId, authId + "@example.com", null);
+        user.setId(id);
+        return user;
+    }
+}
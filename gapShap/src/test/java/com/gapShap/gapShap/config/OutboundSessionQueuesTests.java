@@ -0,0 +1,264 @@
+package com.gapShap.gapShap.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gapShap.gapShap.dto.ConversationActivity;
+import com.gapShap.gapShap.service.ChatService;
+import com.gapShap.gapShap.service.PresenceService;
+import com.gapShap.gapShap.wire.CompactMessageFormat;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class OutboundSessionQueuesTests {
+
+    private static final String SESSION_ID = "session-1";
+    private static final String ACTIVITY_DESTINATION = "/user" + PresenceService.ACTIVITY_QUEUE;
+    private static final String MESSAGES_DESTINATION = "/user" + ChatService.MESSAGES_QUEUE;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final MessageChannel channel = mock(MessageChannel.class);
+    private final ManualExecutor executor = new ManualExecutor();
+    private final RecordingHandler handler = new RecordingHandler();
+    private final WebSocketSession session = mock(WebSocketSession.class);
+    private OutboundSessionQueues queues;
+
+    @AfterEach
+    void tearDown() {
+        if (queues != null) {
+            queues.stop();
+        }
+    }
+
+    @Test
+    void queuesFramesAndWritesThemInOrder() throws Exception {
+        connect(ChatProperties.OutboundOverflow.COALESCE, 4);
+        Message<byte[]> first = chatFrame("a");
+        Message<byte[]> second = chatFrame("b");
+
+        assertThat(queues.preSend(first, channel)).isNull();
+        assertThat(queues.preSend(second, channel)).isNull();
+        assertThat(handler.frames).isEmpty();
+
+        executor.runAll();
+        assertThat(handler.frames).containsExactly(first, second);
+    }
+
+    @Test
+    void passesThroughWhatIsNotABrokerMessage() throws Exception {
+        connect(ChatProperties.OutboundOverflow.COALESCE, 4);
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.CONNECT_ACK);
+        accessor.setSessionId(SESSION_ID);
+        Message<byte[]> connectAck = MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+        Message<byte[]> otherSession = frame("other", MESSAGES_DESTINATION, "{}".getBytes());
+
+        assertThat(queues.preSend(connectAck, channel)).isSameAs(connectAck);
+        assertThat(queues.preSend(otherSession, channel)).isSameAs(otherSession);
+    }
+
+    @Test
+    void coalesceMergesQueuedActivityPerConversation() throws Exception {
+        connect(ChatProperties.OutboundOverflow.COALESCE, 3);
+        ConversationActivity typing = new ConversationActivity(7L);
+        typing.getTyping().add(1L);
+        typing.getOnline().add(2L);
+        ConversationActivity stopped = new ConversationActivity(7L);
+        stopped.getStoppedTyping().add(1L);
+        stopped.getTyping().add(2L);
+        Message<byte[]> chat = chatFrame("a");
+        Message<byte[]> later = chatFrame("b");
+
+        queues.preSend(activityFrame(typing), channel);
+        queues.preSend(chat, channel);
+        queues.preSend(activityFrame(stopped), channel);
+        // The queue is full: the two activity frames become one and the new frame fits
+        queues.preSend(later, channel);
+        executor.runAll();
+
+        assertThat(handler.frames).hasSize(3);
+        assertThat(handler.frames.get(0)).isSameAs(chat);
+        ConversationActivity merged = objectMapper.readValue((byte[]) handler.frames.get(1).getPayload(),
+                ConversationActivity.class);
+        assertThat(merged.getConversationId()).isEqualTo(7L);
+        assertThat(merged.getTyping()).containsExactly(2L);
+        assertThat(merged.getStoppedTyping()).containsExactly(1L);
+        assertThat(merged.getOnline()).containsExactly(2L);
+        assertThat(SimpMessageHeaderAccessor.getDestination(handler.frames.get(1).getHeaders()))
+                .isEqualTo(ACTIVITY_DESTINATION);
+        assertThat(handler.frames.get(2)).isSameAs(later);
+        assertThat(slowConsumers("coalesced")).isEqualTo(1);
+        verify(session, never()).close(CloseStatus.SESSION_NOT_RELIABLE);
+    }
+
+    @Test
+    void coalesceFallsBackToResyncWhenNothingMerges() throws Exception {
+        connect(ChatProperties.OutboundOverflow.COALESCE, 2);
+        subscribeToResync("resync-sub");
+        Message<byte[]> later = chatFrame("c");
+
+        queues.preSend(chatFrame("a"), channel);
+        queues.preSend(chatFrame("b"), channel);
+        queues.preSend(later, channel);
+        executor.runAll();
+
+        assertThat(handler.frames).hasSize(2);
+        Message<?> marker = handler.frames.get(0);
+        assertThat(SimpMessageHeaderAccessor.getDestination(marker.getHeaders()))
+                .isEqualTo(OutboundSessionQueues.RESYNC_QUEUE);
+        assertThat(SimpMessageHeaderAccessor.getSubscriptionId(marker.getHeaders())).isEqualTo("resync-sub");
+        assertThat(objectMapper.readValue((byte[]) marker.getPayload(), Map.class)).containsEntry("dropped", 2);
+        assertThat(handler.frames.get(1)).isSameAs(later);
+        assertThat(slowConsumers("resynced")).isEqualTo(1);
+    }
+
+    @Test
+    void resyncDisconnectsSessionsWithoutAResyncSubscription() throws Exception {
+        connect(ChatProperties.OutboundOverflow.RESYNC, 2);
+
+        queues.preSend(chatFrame("a"), channel);
+        queues.preSend(chatFrame("b"), channel);
+        queues.preSend(chatFrame("c"), channel);
+
+        verify(session, timeout(1000)).close(CloseStatus.SESSION_NOT_RELIABLE);
+        // Whatever comes after the close is dropped rather than queued
+        assertThat(queues.preSend(chatFrame("d"), channel)).isNull();
+        executor.runAll();
+        assertThat(handler.frames).isEmpty();
+        assertThat(slowConsumers("disconnected")).isEqualTo(1);
+        assertThat(meterRegistry.get("gapshap.broker.outbound.dropped").counter().count()).isEqualTo(4);
+    }
+
+    @Test
+    void disconnectClosesEvenWithAResyncSubscription() throws Exception {
+        connect(ChatProperties.OutboundOverflow.DISCONNECT, 2);
+        subscribeToResync("resync-sub");
+
+        queues.preSend(chatFrame("a"), channel);
+        queues.preSend(chatFrame("b"), channel);
+        verify(session, after(100).never()).close(CloseStatus.SESSION_NOT_RELIABLE);
+        queues.preSend(chatFrame("c"), channel);
+
+        verify(session, timeout(1000)).close(CloseStatus.SESSION_NOT_RELIABLE);
+        assertThat(slowConsumers("disconnected")).isEqualTo(1);
+        assertThat(slowConsumers("resynced")).isZero();
+    }
+
+    private void connect(ChatProperties.OutboundOverflow overflow, int capacity) throws Exception {
+        ChatProperties chatProperties = new ChatProperties();
+        chatProperties.getOutbound().setOverflow(overflow);
+        chatProperties.getOutbound().setQueueCapacity(capacity);
+        DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+        beanFactory.registerSingleton("clientOutboundChannelExecutor", executor);
+        queues = new OutboundSessionQueues(chatProperties, objectMapper, new CompactMessageFormat(objectMapper),
+                beanFactory.getBeanProvider(Executor.class), meterRegistry);
+        queues.start();
+        when(session.getId()).thenReturn(SESSION_ID);
+        queues.decorate(handler).afterConnectionEstablished(session);
+    }
+
+    private void subscribeToResync(String subscriptionId) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.SUBSCRIBE);
+        accessor.setSessionId(SESSION_ID);
+        accessor.setSubscriptionId(subscriptionId);
+        accessor.setDestination(OutboundSessionQueues.RESYNC_QUEUE);
+        queues.onSubscribe(new SessionSubscribeEvent(this,
+                MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders())));
+    }
+
+    private Message<byte[]> chatFrame(String content) throws IOException {
+        return frame(SESSION_ID, MESSAGES_DESTINATION, objectMapper.writeValueAsBytes(Map.of("content", content)));
+    }
+
+    private Message<byte[]> activityFrame(ConversationActivity activity) throws IOException {
+        return frame(SESSION_ID, ACTIVITY_DESTINATION, objectMapper.writeValueAsBytes(activity));
+    }
+
+    private static Message<byte[]> frame(String sessionId, String destination, byte[] payload) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setSessionId(sessionId);
+        accessor.setSubscriptionId("sub-0");
+        accessor.setDestination(destination);
+        return MessageBuilder.createMessage(payload, accessor.getMessageHeaders());
+    }
+
+    private double slowConsumers(String action) {
+        return meterRegistry.get("gapshap.broker.slow.consumers").tag("action", action).counter().count();
+    }
+
+    // Runs drain tasks only when told to, so frames pile up as they would behind a stalled socket
+    private static final class ManualExecutor implements Executor {
+
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    // Stands in for the SubProtocolWebSocketHandler, which is both
+    private static final class RecordingHandler implements WebSocketHandler, MessageHandler {
+
+        private final List<Message<?>> frames = new ArrayList<>();
+
+        @Override
+        public void handleMessage(Message<?> message) {
+            frames.add(message);
+        }
+
+        @Override
+        public void afterConnectionEstablished(WebSocketSession session) {
+        }
+
+        @Override
+        public void handleMessage(WebSocketSession session, WebSocketMessage<?> message) {
+        }
+
+        @Override
+        public void handleTransportError(WebSocketSession session, Throwable exception) {
+        }
+
+        @Override
+        public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) {
+        }
+
+        @Override
+        public boolean supportsPartialMessages() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.gapShap.gapShap.config;
+
+import com.gapShap.gapShap.service.UserService;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.MessageBuilder;
+
+import java.security.Principal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class StompSessionUserInterceptorTests {
+
+    private static final Principal ALICE = () -> "auth0|alice";
+
+    private final UserService userService = mock(UserService.class);
+    private final StompSessionUserInterceptor interceptor = new StompSessionUserInterceptor(userService);
+
+    @Test
+    void resolvesTheUserAtConnect() {
+        Message<?> connect = frame(StompCommand.CONNECT, ALICE);
+
+        assertThat(interceptor.preSend(connect, mock(MessageChannel.class))).isSameAs(connect);
+        verify(userService).findUserByAuthId("auth0|alice");
+    }
+
+    @Test
+    void leavesOtherFramesAlone() {
+        interceptor.preSend(frame(StompCommand.SEND, ALICE), mock(MessageChannel.class));
+        interceptor.preSend(frame(StompCommand.SUBSCRIBE, ALICE), mock(MessageChannel.class));
+        interceptor.preSend(frame(StompCommand.CONNECT, null), mock(MessageChannel.class));
+
+        verify(userService, never()).findUserByAuthId(any());
+    }
+
+    private static Message<byte[]> frame(StompCommand command, Principal user) {
+        StompHeaderAccessor accessor = StompHeaderAccessor.create(command);
+        accessor.setUser(user);
+        return MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+    }
+}
@@ -0,0 +1,101 @@
+package com.gapShap.gapShap.controller;
+
+import com.gapShap.gapShap.IntegrationTest;
+import com.gapShap.gapShap.model.User;
+import com.gapShap.gapShap.service.ChatService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.oidcLogin;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+
+class ChatControllerTests extends IntegrationTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ChatService chatService;
+
+    @Test
+    void inboxIsNotModifiedUntilSomethingArrives() throws Exception {
+        User alice = newUser("Alice");
+        User bob = newUser("Bob");
+        MockHttpServletResponse first = fetch(alice, "/api/conversations", null);
+        assertThat(first.getStatus()).isEqualTo(200);
+        assertThat(first.getHeader("Cache-Control")).contains("no-cache", "private");
+        String tag = first.getHeader("ETag");
+
+        assertThat(fetch(alice, "/api/conversations", tag).getStatus()).isEqualTo(304);
+
+        long conversationId = chatService.getOrCreateDirectConversation(bob, alice).getId();
+        MockHttpServletResponse created = fetch(alice, "/api/conversations", tag);
+        assertThat(created.getStatus()).isEqualTo(200);
+        tag = created.getHeader("ETag");
+
+        chatService.sendMessage(bob, conversationId, "hello");
+        assertThat(fetch(alice, "/api/conversations", tag).getStatus()).isEqualTo(200);
+    }
+
+    @Test
+    void historyChangesWithSendsAndReadsOnly() throws Exception {
+        User alice = newUser("Alice");
+        User bob = newUser("Bob");
+        long conversationId = chatService.getOrCreateDirectConversation(alice, bob).getId();
+        String history = "/api/conversations/" + conversationId + "/messages";
+        String tag = fetch(alice, history, null).getHeader("ETag");
+        assertThat(fetch(alice, history, tag).getStatus()).isEqualTo(304);
+
+        chatService.sendMessage(bob, conversationId, "hello");
+        MockHttpServletResponse sent = fetch(alice, history, tag);
+        assertThat(sent.getStatus()).isEqualTo(200);
+        tag = sent.getHeader("ETag");
+
+        // The read flags changed
+        chatService.markMessagesAsRead(alice, conversationId);
+        MockHttpServletResponse read = fetch(alice, history, tag);
+        assertThat(read.getStatus()).isEqualTo(200);
+        tag = read.getHeader("ETag");
+
+        // Nothing was left to read
+        chatService.markMessagesAsRead(alice, conversationId);
+        assertThat(fetch(alice, history, tag).getStatus()).isEqualTo(304);
+    }
+
+    @Test
+    void tagsAreNeitherSharedNorConfirmedToOutsiders() throws Exception {
+        User alice = newUser("Alice");
+        User bob = newUser("Bob");
+        long conversationId = chatService.getOrCreateDirectConversation(alice, bob).getId();
+        String history = "/api/conversations/" + conversationId + "/messages";
+        String tag = fetch(alice, history, null).getHeader("ETag");
+
+        // Read flags and names differ per viewer
+        assertThat(fetch(bob, history, tag).getStatus()).isEqualTo(200);
+        assertThat(fetch(newUser("Carol"), history, tag).getStatus()).isEqualTo(400);
+    }
+
+    @Test
+    void profileChangesInvalidateEveryTag() throws Exception {
+        User alice = newUser("Alice");
+        String tag = fetch(alice, "/api/conversations", null).getHeader("ETag");
+
+        User bob = newUser("Bob");
+        userService.saveOrUpdateUser(bob.getAuthId(), "Bobby", bob.getEmail(), null);
+
+        assertThat(fetch(alice, "/api/conversations", tag).getStatus()).isEqualTo(200);
+    }
+
+    private MockHttpServletResponse fetch(User user, String path, String ifNoneMatch) throws Exception {
+        MockHttpServletRequestBuilder request = get(path).with(oidcLogin().idToken(token -> token
+                .subject(user.getAuthId())));
+        if (ifNoneMatch != null) {
+            request.header("If-None-Match", ifNoneMatch);
+        }
+        return mockMvc.perform(request).andReturn().getResponse();
+    }
+}
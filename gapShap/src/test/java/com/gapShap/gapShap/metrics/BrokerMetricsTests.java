@@ -0,0 +1,58 @@
+package com.gapShap.gapShap.metrics;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.simp.user.SimpSession;
+import org.springframework.messaging.simp.user.SimpSubscription;
+import org.springframework.messaging.simp.user.SimpUser;
+import org.springframework.messaging.simp.user.SimpUserRegistry;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class BrokerMetricsTests {
+
+    private final SimpUserRegistry userRegistry = mock(SimpUserRegistry.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    // The gauges only hold it weakly, as they do the bean in the application
+    private final BrokerMetrics brokerMetrics = new BrokerMetrics(userRegistry);
+
+    @Test
+    void countsUsersSessionsAndSubscriptionsWhenRead() {
+        brokerMetrics.bindTo(meterRegistry);
+        assertThat(gauge("gapshap.broker.sessions")).isZero();
+
+        SimpUser alice = user(session(2), session(1));
+        SimpUser bob = user(session(3));
+        when(userRegistry.getUserCount()).thenReturn(2);
+        when(userRegistry.getUsers()).thenReturn(Set.of(alice, bob));
+
+        assertThat(gauge("gapshap.broker.users")).isEqualTo(2);
+        assertThat(gauge("gapshap.broker.sessions")).isEqualTo(3);
+        assertThat(gauge("gapshap.broker.subscriptions")).isEqualTo(6);
+    }
+
+    private double gauge(String name) {
+        return meterRegistry.get(name).gauge().value();
+    }
+
+    private static SimpUser user(SimpSession... sessions) {
+        SimpUser user = mock(SimpUser.class);
+        when(user.getSessions()).thenReturn(Set.of(sessions));
+        return user;
+    }
+
+    private static SimpSession session(int subscriptions) {
+        SimpSession session = mock(SimpSession.class);
+        Set<SimpSubscription> held = new HashSet<>();
+        for (int i = 0; i < subscriptions; i++) {
+            held.add(mock(SimpSubscription.class));
+        }
+        when(session.getSubscriptions()).thenReturn(held);
+        return session;
+    }
+}
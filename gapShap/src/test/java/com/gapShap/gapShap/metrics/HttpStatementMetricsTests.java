@@ -0,0 +1,75 @@
+package com.gapShap.gapShap.metrics;
+
+import com.gapShap.gapShap.config.ChatProperties;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.DispatcherType;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerMapping;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HttpStatementMetricsTests {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final StatementCounter statementCounter = new StatementCounter(new ChatProperties());
+    private final HttpStatementMetrics metrics = new HttpStatementMetrics(statementCounter, meterRegistry);
+    private final MockHttpServletResponse response = new MockHttpServletResponse();
+
+    @Test
+    void recordsStatementsPerRoute() throws Exception {
+        MockHttpServletRequest request = request("/api/conversations/{id}/messages");
+        HandlerMethod handler = handler();
+
+        metrics.preHandle(request, response, handler);
+        statementCounter.executed("SELECT 1");
+        statementCounter.executed("SELECT 2");
+        metrics.afterCompletion(request, response, handler, null);
+        // Outside the request; not counted
+        statementCounter.executed("SELECT 3");
+
+        DistributionSummary statements = meterRegistry.get(StatementCounter.METRIC_NAME)
+                .tags("transport", "http", "method", "GET", "handler", "/api/conversations/{id}/messages")
+                .summary();
+        assertThat(statements.count()).isEqualTo(1);
+        assertThat(statements.totalAmount()).isEqualTo(2);
+    }
+
+    @Test
+    void followsAsyncRequestsToTheirTask() throws Exception {
+        MockHttpServletRequest request = request("/api/conversations/{id}/export");
+        HandlerMethod handler = handler();
+
+        metrics.preHandle(request, response, handler);
+        statementCounter.executed("SELECT conversation");
+        metrics.afterConcurrentHandlingStarted(request, response, handler);
+        // The servlet thread serves someone else now
+        statementCounter.executed("SELECT unrelated");
+
+        ServletWebRequest webRequest = new ServletWebRequest(request, response);
+        metrics.preProcess(webRequest, () -> null);
+        statementCounter.executed("SELECT messages");
+        metrics.postProcess(webRequest, () -> null, null);
+
+        request.setDispatcherType(DispatcherType.ASYNC);
+        metrics.preHandle(request, response, handler);
+        metrics.afterCompletion(request, response, handler, null);
+
+        assertThat(meterRegistry.get(StatementCounter.METRIC_NAME)
+                .tag("handler", "/api/conversations/{id}/export").summary().totalAmount()).isEqualTo(2);
+    }
+
+    private static MockHttpServletRequest request(String pattern) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api");
+        request.setAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE, pattern);
+        return request;
+    }
+
+    private static HandlerMethod handler() throws NoSuchMethodException {
+        return new HandlerMethod(new Object(), Object.class.getMethod("toString"));
+    }
+}
@@ -0,0 +1,85 @@
+package com.gapShap.gapShap.metrics;
+
+import com.gapShap.gapShap.config.ChatProperties;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalStateException;
+import static org.assertj.core.api.Assertions.assertThatNoException;
+
+class StatementCounterTests {
+
+    @Test
+    void failModeStopsTheStatementOverBudget() {
+        StatementCounter statementCounter = counter(ChatProperties.StatementBudgetMode.FAIL);
+
+        try (StatementCounter.Scope scope = statementCounter.open("GET /api/conversations", 2)) {
+            statementCounter.executed("SELECT inbox");
+            statementCounter.executed("SELECT participants");
+            assertThatIllegalStateException().isThrownBy(() -> statementCounter.executed("SELECT user"))
+                    .withMessageContaining("GET /api/conversations ran 3 SQL statements, over its budget of 2")
+                    .withMessageContaining("SELECT inbox");
+            assertThat(scope.count()).isEqualTo(3);
+        }
+    }
+
+    @Test
+    void logAndOffModesOnlyCount() {
+        for (ChatProperties.StatementBudgetMode mode : new ChatProperties.StatementBudgetMode[] {
+                ChatProperties.StatementBudgetMode.LOG, ChatProperties.StatementBudgetMode.OFF}) {
+            StatementCounter statementCounter = counter(mode);
+            try (StatementCounter.Scope scope = statementCounter.open("GET /api/users", 1)) {
+                assertThatNoException().isThrownBy(() -> {
+                    statementCounter.executed("SELECT 1");
+                    statementCounter.executed("SELECT 2");
+                });
+                assertThat(scope.count()).isEqualTo(2);
+            }
+        }
+    }
+
+    @Test
+    void unlimitedScopesNeverFail() {
+        StatementCounter statementCounter = counter(ChatProperties.StatementBudgetMode.FAIL);
+
+        try (StatementCounter.Scope scope = statementCounter.open()) {
+            for (int i = 0; i < 100; i++) {
+                statementCounter.executed("SELECT " + i);
+            }
+            assertThat(scope.count()).isEqualTo(100);
+        }
+    }
+
+    @Test
+    void nestedScopesAddUpAndCountingStopsOnClose() {
+        StatementCounter statementCounter = counter(ChatProperties.StatementBudgetMode.FAIL);
+
+        try (StatementCounter.Scope outer = statementCounter.open("SEND /app/chat.sendMessage", 3)) {
+            statementCounter.executed("SELECT membership");
+            try (StatementCounter.Scope inner = statementCounter.open()) {
+                statementCounter.executed("INSERT message");
+                assertThat(inner.count()).isEqualTo(1);
+            }
+            assertThat(outer.count()).isEqualTo(2);
+            statementCounter.executed("UPDATE conversation");
+            // The inner scope's statement counts against the outer budget
+            assertThatIllegalStateException().isThrownBy(() -> statementCounter.executed("SELECT extra"));
+        }
+        assertThatNoException().isThrownBy(() -> statementCounter.executed("SELECT outside"));
+    }
+
+    @Test
+    void handlersWithoutABudgetGetTheDefault() {
+        ChatProperties chatProperties = new ChatProperties();
+        chatProperties.getStatements().setDefaultBudget(10);
+        StatementCounter statementCounter = new StatementCounter(chatProperties);
+
+        assertThat(statementCounter.budgetOf(null)).isEqualTo(10);
+    }
+
+    private static StatementCounter counter(ChatProperties.StatementBudgetMode mode) {
+        ChatProperties chatProperties = new ChatProperties();
+        chatProperties.getStatements().setBudgetMode(mode);
+        return new StatementCounter(chatProperties);
+    }
+}
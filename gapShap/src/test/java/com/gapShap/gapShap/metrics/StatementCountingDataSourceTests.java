@@ -0,0 +1,82 @@
+package com.gapShap.gapShap.metrics;
+
+import com.gapShap.gapShap.config.ChatProperties;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalStateException;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class StatementCountingDataSourceTests {
+
+    private final Connection connection = mock(Connection.class);
+    private final PreparedStatement preparedStatement = mock(PreparedStatement.class);
+    private final Statement statement = mock(Statement.class);
+
+    @Test
+    void countsEachExecuteCallOnce() throws Exception {
+        StatementCounter statementCounter = new StatementCounter(new ChatProperties());
+        DataSource dataSource = dataSource(statementCounter);
+
+        try (StatementCounter.Scope scope = statementCounter.open();
+             Connection counted = dataSource.getConnection()) {
+            PreparedStatement prepared = counted.prepareStatement("INSERT INTO messages VALUES (?)");
+            prepared.setLong(1, 1L);
+            prepared.addBatch();
+            prepared.addBatch();
+            prepared.executeBatch();
+            prepared.executeUpdate();
+            Statement plain = counted.createStatement();
+            plain.execute("SELECT 1");
+
+            assertThat(scope.count()).isEqualTo(3);
+            // Statements hand back the counting connection, not the one they wrap
+            assertThat(prepared.getConnection()).isSameAs(counted);
+        }
+        verify(preparedStatement).executeBatch();
+        verify(statement).execute("SELECT 1");
+    }
+
+    @Test
+    void reportsTheStatementsOverBudget() throws Exception {
+        ChatProperties chatProperties = new ChatProperties();
+        chatProperties.getStatements().setBudgetMode(ChatProperties.StatementBudgetMode.FAIL);
+        StatementCounter statementCounter = new StatementCounter(chatProperties);
+        DataSource dataSource = dataSource(statementCounter);
+
+        try (StatementCounter.Scope scope = statementCounter.open("GET /api/conversations", 1);
+             Connection counted = dataSource.getConnection()) {
+            counted.prepareStatement("SELECT inbox").executeQuery();
+            PreparedStatement second = counted.prepareStatement("SELECT participants");
+            assertThatIllegalStateException().isThrownBy(second::executeQuery)
+                    .withMessageContaining("SELECT inbox")
+                    .withMessageContaining("SELECT participants");
+        }
+    }
+
+    @Test
+    void proxiesAreOnlyEqualToThemselves() throws Exception {
+        DataSource dataSource = dataSource(new StatementCounter(new ChatProperties()));
+
+        Connection counted = dataSource.getConnection();
+
+        assertThat(counted).isEqualTo(counted).isNotEqualTo(connection);
+        assertThat(counted.hashCode()).isEqualTo(System.identityHashCode(counted));
+    }
+
+    private DataSource dataSource(StatementCounter statementCounter) throws Exception {
+        DataSource target = mock(DataSource.class);
+        when(target.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(preparedStatement);
+        when(connection.createStatement()).thenReturn(statement);
+        return new StatementCountingDataSource(target, statementCounter);
+    }
+}
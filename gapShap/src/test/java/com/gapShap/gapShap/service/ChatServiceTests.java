@@ -0,0 +1,204 @@
+package com.gapShap.gapShap.service;
+
+import com.gapShap.gapShap.IntegrationTest;
+import com.gapShap.gapShap.dto.ConversationDTO;
+import com.gapShap.gapShap.dto.CursorPage;
+import com.gapShap.gapShap.dto.MessageDTO;
+import com.gapShap.gapShap.metrics.StatementCounter;
+import com.gapShap.gapShap.model.User;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+class ChatServiceTests extends IntegrationTest {
+
+    @Autowired
+    private ChatService chatService;
+
+    @Autowired
+    private StatementCounter statementCounter;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Test
+    void inboxPagesByLatestActivity() throws InterruptedException {
+        User owner = newUser("Inbox owner");
+        // Newest activity first
+        List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            User friend = newUser("Friend " + i);
+            long conversationId = chatService.getOrCreateDirectConversation(owner, friend).getId();
+            chatService.sendMessage(friend, conversationId, "hello " + i);
+            expected.add(0, conversationId);
+            Thread.sleep(5);
+        }
+        // Sending to the oldest conversation brings it back to the top
+        long oldest = expected.remove(expected.size() - 1);
+        chatService.sendMessage(owner, oldest, "bump");
+        expected.add(0, oldest);
+
+        List<ConversationDTO> inbox = new ArrayList<>();
+        String cursor = null;
+        do {
+            CursorPage<ConversationDTO> page = chatService.getConversationsForUser(owner, cursor, 2);
+            assertThat(page.getItems()).hasSizeLessThanOrEqualTo(2);
+            inbox.addAll(page.getItems());
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+
+        assertThat(inbox).extracting(ConversationDTO::getId).containsExactlyElementsOf(expected);
+        ConversationDTO top = inbox.get(0);
+        assertThat(top.getLastMessage().getContent()).isEqualTo("bump");
+        assertThat(top.getName()).isEqualTo("Friend 0");
+        assertThat(top.getParticipants()).hasSize(2);
+        assertThat(inbox).allSatisfy(conversation -> assertThat(conversation.getUnreadCount()).isEqualTo(1));
+    }
+
+    @Test
+    void inboxStatementsDoNotGrowWithConversations() {
+        User owner = newUser("Busy inbox owner");
+        for (int i = 0; i < 6; i++) {
+            User friend = newUser("Friend " + i);
+            chatService.sendMessage(friend, chatService.getOrCreateDirectConversation(owner, friend).getId(), "hi");
+        }
+
+        try (StatementCounter.Scope scope = statementCounter.open()) {
+            assertThat(chatService.getConversationsForUser(owner, null, 20).getItems()).hasSize(6);
+            // The summary rows, then the participants of all of them
+            assertThat(scope.count()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    void rejectsInvalidInboxCursors() {
+        User owner = newUser("Inbox owner");
+
+        assertThatIllegalArgumentException().isThrownBy(() -> chatService.getConversationsForUser(owner, "12", 10));
+        assertThatIllegalArgumentException().isThrownBy(() -> chatService.getConversationsForUser(owner, "a_b", 10));
+    }
+
+    @Test
+    void historyPagesBackAndForthByMessageCursor() {
+        User alice = newUser("Alice");
+        User bob = newUser("Bob");
+        long conversationId = chatService.getOrCreateDirectConversation(alice, bob).getId();
+        List<Long> sent = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            sent.add(chatService.sendMessage(i % 2 == 0 ? alice : bob, conversationId, "m" + i).getId());
+        }
+
+        // Back from the latest, each page in chronological order
+        List<Long> backwards = new ArrayList<>();
+        Long before = null;
+        do {
+            CursorPage<MessageDTO> page = chatService.getMessagesForConversation(conversationId, alice, before, null, 3);
+            backwards.addAll(0, messageIds(page));
+            before = page.getNextCursor() != null ? Long.valueOf(page.getNextCursor()) : null;
+        } while (before != null);
+        assertThat(backwards).containsExactlyElementsOf(sent);
+
+        // Forward from the first message
+        List<Long> forwards = new ArrayList<>();
+        Long after = sent.get(0);
+        do {
+            CursorPage<MessageDTO> page = chatService.getMessagesForConversation(conversationId, bob, null, after, 4);
+            forwards.addAll(messageIds(page));
+            after = page.getNextCursor() != null ? Long.valueOf(page.getNextCursor()) : null;
+        } while (after != null);
+        assertThat(forwards).containsExactlyElementsOf(sent.subList(1, sent.size()));
+    }
+
+    @Test
+    void historyRejectsCursorsOutsideTheConversation() {
+        User alice = newUser("Alice");
+        User bob = newUser("Bob");
+        User carol = newUser("Carol");
+        long conversationId = chatService.getOrCreateDirectConversation(alice, bob).getId();
+        long otherId = chatService.getOrCreateDirectConversation(alice, carol).getId();
+        long elsewhere = chatService.sendMessage(carol, otherId, "elsewhere").getId();
+        long here = chatService.sendMessage(bob, conversationId, "here").getId();
+
+        assertThatIllegalArgumentException().isThrownBy(
+                () -> chatService.getMessagesForConversation(conversationId, alice, elsewhere, null, 10));
+        assertThatIllegalArgumentException().isThrownBy(
+                () -> chatService.getMessagesForConversation(conversationId, alice, here, here, 10));
+        assertThatIllegalArgumentException().isThrownBy(
+                () -> chatService.getMessagesForConversation(conversationId, carol, null, null, 10));
+    }
+
+    @Test
+    void readCursorsDriveUnreadCountsAndReadFlags() {
+        User alice = newUser("Alice");
+        User bob = newUser("Bob");
+        long conversationId = chatService.getOrCreateDirectConversation(alice, bob).getId();
+        chatService.sendMessage(alice, conversationId, "one");
+        chatService.sendMessage(alice, conversationId, "two");
+
+        assertThat(inboxEntry(bob, conversationId).getUnreadCount()).isEqualTo(2);
+        assertThat(history(bob, conversationId)).noneMatch(MessageDTO::isRead);
+        assertThat(history(alice, conversationId)).noneMatch(MessageDTO::isRead);
+
+        chatService.markMessagesAsRead(bob, conversationId);
+
+        assertThat(inboxEntry(bob, conversationId).getUnreadCount()).isZero();
+        assertThat(history(bob, conversationId)).allMatch(MessageDTO::isRead);
+        // The sender sees their messages as read once the other participant has
+        assertThat(history(alice, conversationId)).allMatch(MessageDTO::isRead);
+
+        // Only what arrives after the cursor is unread
+        chatService.sendMessage(alice, conversationId, "three");
+        assertThat(inboxEntry(bob, conversationId).getUnreadCount()).isEqualTo(1);
+        assertThat(history(bob, conversationId)).extracting(MessageDTO::isRead).containsExactly(true, true, false);
+        assertThat(inboxEntry(alice, conversationId).getUnreadCount()).isZero();
+    }
+
+    @Test
+    void hotPathsAreTimed() {
+        User alice = newUser("Alice");
+        User bob = newUser("Bob");
+        long conversationId = chatService.getOrCreateDirectConversation(alice, bob).getId();
+        long sends = timerCount("gapshap.chat.send");
+        long inboxes = timerCount("gapshap.chat.inbox");
+        long keysetPages = meterRegistry.get("gapshap.chat.history").tag("paging", "keyset").timer().count();
+        double fanOuts = meterRegistry.get("gapshap.chat.fanout.recipients").summaries().stream()
+                .mapToDouble(DistributionSummary::totalAmount).sum();
+
+        chatService.sendMessage(alice, conversationId, "timed");
+        chatService.getConversationsForUser(bob, null, 10);
+        chatService.getMessagesForConversation(conversationId, bob, null, null, 10);
+
+        assertThat(timerCount("gapshap.chat.send")).isEqualTo(sends + 1);
+        assertThat(timerCount("gapshap.chat.inbox")).isEqualTo(inboxes + 1);
+        assertThat(meterRegistry.get("gapshap.chat.history").tag("paging", "keyset").timer().count())
+                .isEqualTo(keysetPages + 1);
+        // Everyone but the sender, over whichever delivery the conversation uses
+        assertThat(meterRegistry.get("gapshap.chat.fanout.recipients").summaries().stream()
+                .mapToDouble(DistributionSummary::totalAmount).sum()).isEqualTo(fanOuts + 1);
+    }
+
+    private long timerCount(String name) {
+        return meterRegistry.get(name).timer().count();
+    }
+
+    private ConversationDTO inboxEntry(User user, long conversationId) {
+        return chatService.getConversationsForUser(user, null, 50).getItems().stream()
+                .filter(conversation -> conversation.getId() == conversationId)
+                .findFirst().orElseThrow();
+    }
+
+    private List<MessageDTO> history(User user, long conversationId) {
+        return chatService.getMessagesForConversation(conversationId, user, null, null, 50).getItems();
+    }
+
+    private static List<Long> messageIds(CursorPage<MessageDTO> page) {
+        return page.getItems().stream().map(MessageDTO::getId).toList();
+    }
+}
@@ -0,0 +1,86 @@
+package com.gapShap.gapShap.service;
+
+import com.gapShap.gapShap.IntegrationTest;
+import com.gapShap.gapShap.config.ChatProperties;
+import com.gapShap.gapShap.dto.MessageDTO;
+import com.gapShap.gapShap.model.User;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+import static org.assertj.core.api.Assertions.assertThatIllegalStateException;
+
+class ConversationExportServiceTests extends IntegrationTest {
+
+    @Autowired
+    private ConversationExportService exportService;
+
+    @Autowired
+    private ChatService chatService;
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Test
+    void exportsEveryMessageOldestFirst() {
+        User alice = newUser("Alice");
+        User bob = newUser("Bob");
+        long conversationId = chatService.getOrCreateDirectConversation(alice, bob).getId();
+        List<Long> sent = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            sent.add(chatService.sendMessage(i % 2 == 0 ? alice : bob, conversationId, "m" + i).getId());
+        }
+        chatService.markMessagesAsRead(bob, conversationId);
+
+        List<MessageDTO> exported = new ArrayList<>();
+        exportService.open(conversationId, bob).writeTo(exported::add);
+
+        assertThat(exported).extracting(MessageDTO::getId).containsExactlyElementsOf(sent);
+        assertThat(exported).extracting(MessageDTO::getSenderName)
+                .containsExactly("Alice", "Bob", "Alice", "Bob", "Alice");
+        assertThat(exported).allMatch(message -> message.getConversationId() == conversationId);
+        // Bob has read everything Alice sent; nobody has read what Bob sent
+        assertThat(exported).extracting(MessageDTO::isRead).containsExactly(true, false, true, false, true);
+    }
+
+    @Test
+    void rejectsNonMembers() {
+        User alice = newUser("Alice");
+        long conversationId = chatService.getOrCreateDirectConversation(alice, newUser("Bob")).getId();
+
+        assertThatIllegalArgumentException().isThrownBy(() -> exportService.open(conversationId, newUser("Carol")));
+    }
+
+    @Test
+    void limitsConcurrentExports() {
+        User alice = newUser("Alice");
+        long conversationId = chatService.getOrCreateDirectConversation(alice, newUser("Bob")).getId();
+        List<ConversationExportService.Export> running = new ArrayList<>();
+        try {
+            for (int i = 0; i < chatProperties.getExport().getMaxConcurrent(); i++) {
+                running.add(exportService.open(conversationId, alice));
+            }
+            assertThatIllegalStateException().isThrownBy(() -> exportService.open(conversationId, alice));
+
+            // A finished export frees its slot once, however often it is abandoned afterwards
+            ConversationExportService.Export finished = running.remove(0);
+            finished.writeTo(message -> { });
+            finished.abandon();
+            running.add(exportService.open(conversationId, alice));
+            assertThatIllegalStateException().isThrownBy(() -> exportService.open(conversationId, alice));
+
+            // So does one that never got to write
+            ConversationExportService.Export abandoned = running.remove(0);
+            abandoned.abandon();
+            assertThatIllegalStateException().isThrownBy(() -> abandoned.writeTo(message -> { }));
+            running.add(exportService.open(conversationId, alice));
+            assertThatIllegalStateException().isThrownBy(() -> exportService.open(conversationId, alice));
+        } finally {
+            running.forEach(ConversationExportService.Export::abandon);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.gapShap.gapShap.service;
+
+import com.gapShap.gapShap.config.ChatProperties;
+import com.gapShap.gapShap.repository.ConversationRepository;
+import com.gapShap.gapShap.repository.projection.MemberRow;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ConversationMembershipCacheTests {
+
+    private final ConversationRepository conversationRepository = mock(ConversationRepository.class);
+
+    @Test
+    void loadsOnceAndAnswersFromTheTable() {
+        when(conversationRepository.findMembers(7L)).thenReturn(members(30, 10, 20));
+        ConversationMembershipCache cache = cache(64);
+
+        ConversationMembershipCache.Membership membership = cache.get(7);
+
+        assertThat(cache.get(7)).isSameAs(membership);
+        verify(conversationRepository, times(1)).findMembers(7L);
+        assertThat(membership.conversationId()).isEqualTo(7);
+        assertThat(membership.size()).isEqualTo(3);
+        // Sorted by user id, with the auth ids alongside
+        assertThat(membership.userIdAt(0)).isEqualTo(10);
+        assertThat(membership.authIdAt(0)).isEqualTo("auth|10");
+        assertThat(membership.contains(20)).isTrue();
+        assertThat(membership.contains(30)).isTrue();
+        assertThat(membership.contains(15)).isFalse();
+    }
+
+    @Test
+    void invalidateReloadsTheParticipants() {
+        when(conversationRepository.findMembers(7L)).thenReturn(members(10, 20), members(10, 20, 30));
+        ConversationMembershipCache cache = cache(64);
+        assertThat(cache.get(7).contains(30)).isFalse();
+
+        cache.invalidate(7);
+
+        assertThat(cache.get(7).contains(30)).isTrue();
+        verify(conversationRepository, times(2)).findMembers(7L);
+    }
+
+    @Test
+    void doesNotCacheConversationsWithoutParticipants() {
+        when(conversationRepository.findMembers(7L)).thenReturn(new ArrayList<>());
+        ConversationMembershipCache cache = cache(64);
+
+        assertThat(cache.get(7)).isNull();
+        assertThat(cache.get(7)).isNull();
+        verify(conversationRepository, times(2)).findMembers(7L);
+    }
+
+    @Test
+    void newerConversationsEvictOlderOnesFromTheirSlot() {
+        when(conversationRepository.findMembers(anyLong())).thenAnswer(invocation -> members(10, 20));
+        // Four slots, so of five conversations at least two share one
+        ConversationMembershipCache cache = cache(4);
+        for (long conversationId = 1; conversationId <= 5; conversationId++) {
+            cache.get(conversationId);
+        }
+        for (long conversationId = 1; conversationId <= 5; conversationId++) {
+            assertThat(cache.get(conversationId).conversationId()).isEqualTo(conversationId);
+        }
+
+        verify(conversationRepository, atLeast(6)).findMembers(anyLong());
+    }
+
+    @Test
+    void loadRacingWithInvalidateIsNotStored() {
+        ConversationMembershipCache cache = cache(64);
+        // The membership changes while the old participants are being read
+        when(conversationRepository.findMembers(7L)).thenAnswer(invocation -> {
+            cache.invalidate(7);
+            return members(10, 20);
+        }).thenReturn(members(10, 20, 30));
+
+        assertThat(cache.get(7).contains(30)).isFalse();
+        assertThat(cache.get(7).contains(30)).isTrue();
+        verify(conversationRepository, times(2)).findMembers(7L);
+    }
+
+    private ConversationMembershipCache cache(int capacity) {
+        ChatProperties chatProperties = new ChatProperties();
+        chatProperties.getMembershipCache().setCapacity(capacity);
+        return new ConversationMembershipCache(conversationRepository, chatProperties);
+    }
+
+    // A mutable list, as the repository returns
+    private static List<MemberRow> members(long... userIds) {
+        List<MemberRow> members = new ArrayList<>();
+        for (long userId : userIds) {
+            members.add(new MemberRow(userId, "auth|" + userId));
+        }
+        return members;
+    }
+}
@@ -0,0 +1,172 @@
+package com.gapShap.gapShap.service;
+
+import com.gapShap.gapShap.config.ChatProperties;
+import com.gapShap.gapShap.dto.MessageDTO;
+import com.gapShap.gapShap.dto.SyncEvent;
+import com.gapShap.gapShap.metrics.StatementCounter;
+import com.gapShap.gapShap.model.Conversation;
+import com.gapShap.gapShap.model.ConversationRead;
+import com.gapShap.gapShap.model.Message;
+import com.gapShap.gapShap.model.User;
+import com.gapShap.gapShap.repository.ConversationReadRepository;
+import com.gapShap.gapShap.repository.ConversationRepository;
+import com.gapShap.gapShap.repository.MessageRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.domain.Limit;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ConversationSyncServiceTests {
+
+    private static final long USER_ID = 1L;
+    private static final long CONVERSATION_ID = 9L;
+    private static final Duration COMMIT_LAG = Duration.ofMinutes(1);
+
+    private final ConversationRepository conversationRepository = mock(ConversationRepository.class);
+    private final MessageRepository messageRepository = mock(MessageRepository.class);
+    private final ConversationReadRepository conversationReadRepository = mock(ConversationReadRepository.class);
+    private final ChatService chatService = mock(ChatService.class);
+    private final User user = new User("u1", "User", "u1@example.com", null);
+    private ConversationSyncService syncService;
+
+    @BeforeEach
+    void setUp() {
+        user.setId(USER_ID);
+        ChatProperties chatProperties = new ChatProperties();
+        chatProperties.getSync().setCommitLag(COMMIT_LAG);
+        chatProperties.getSync().setMaxMessages(2);
+        PlatformTransactionManager transactionManager = mock(PlatformTransactionManager.class);
+        when(transactionManager.getTransaction(any())).thenReturn(new SimpleTransactionStatus());
+        when(chatService.convertToMessageDTO(any(Message.class), any(), any())).thenAnswer(invocation -> {
+            MessageDTO dto = new MessageDTO();
+            dto.setId(invocation.<Message>getArgument(0).getId());
+            return dto;
+        });
+        when(conversationRepository.findInboxChangedSince(anyLong(), anyLong(), anyLong(), anyLong()))
+                .thenReturn(List.of());
+        when(conversationReadRepository.findChangedSince(anyLong(), anyLong())).thenReturn(List.of());
+        when(messageRepository.findForUserSince(anyLong(), anyLong(), any())).thenReturn(List.of());
+        syncService = new ConversationSyncService(conversationRepository, messageRepository,
+                conversationReadRepository, chatService, new StatementCounter(chatProperties), transactionManager,
+                chatProperties, new SimpleMeterRegistry());
+    }
+
+    @Test
+    void firstSyncStartsBehindTheCommitLag() {
+        when(messageRepository.findMaxIdSentBefore(any())).thenReturn(40L);
+        when(conversationReadRepository.findMaxReadSeqBefore(any())).thenReturn(7L);
+        when(conversationRepository.findMaxIdCreatedBefore(any())).thenReturn(3L);
+        long started = System.currentTimeMillis();
+
+        List<SyncEvent> events = sync(null);
+
+        assertThat(events).hasSize(1);
+        assertThat(position(events.get(0))).isEqualTo(new ConversationSyncService.Position(40, 7, 3));
+        ArgumentCaptor<Date> before = ArgumentCaptor.forClass(Date.class);
+        verify(messageRepository).findMaxIdSentBefore(before.capture());
+        assertThat(before.getValue().getTime())
+                .isBetween(started - COMMIT_LAG.toMillis(), System.currentTimeMillis() - COMMIT_LAG.toMillis());
+    }
+
+    @Test
+    void cursorStaysBehindMessagesThatMayCommitOutOfOrder() {
+        // 11 is settled; 12 has not committed yet and 13 is too recent to vouch for it
+        when(messageRepository.findForUserSince(eq(USER_ID), eq(10L), any(Limit.class)))
+                .thenReturn(List.of(message(11, minutesAgo(5)), message(13, minutesAgo(0))));
+        List<SyncEvent> first = sync(new ConversationSyncService.Position(10, 0, 0));
+
+        assertThat(messageIds(first)).containsExactly(11L, 13L);
+        ConversationSyncService.Position cursor = position(first.get(first.size() - 1));
+        assertThat(cursor.messageId()).isEqualTo(11);
+
+        // 12 commits; the next sync from the cursor picks it up, and 13 again
+        when(messageRepository.findForUserSince(eq(USER_ID), eq(11L), any(Limit.class)))
+                .thenReturn(List.of(message(12, minutesAgo(0)), message(13, minutesAgo(0))));
+        List<SyncEvent> second = sync(cursor);
+
+        assertThat(messageIds(second)).containsExactly(12L, 13L);
+    }
+
+    @Test
+    void pagesFollowWhatTheyReadWhileTheCursorWaits() {
+        when(messageRepository.findForUserSince(eq(USER_ID), eq(10L), any(Limit.class)))
+                .thenReturn(List.of(message(11, minutesAgo(5)), message(12, minutesAgo(0)),
+                        message(13, minutesAgo(0))));
+        when(messageRepository.findForUserSince(eq(USER_ID), eq(12L), any(Limit.class)))
+                .thenReturn(List.of(message(13, minutesAgo(0))));
+
+        List<SyncEvent> events = sync(new ConversationSyncService.Position(10, 0, 0));
+
+        assertThat(messageIds(events)).containsExactly(11L, 12L, 13L);
+        List<SyncEvent> cursors = events.stream().filter(event -> event.getType().equals("cursor")).toList();
+        assertThat(cursors).hasSize(2);
+        assertThat(cursors.get(0).getHasMore()).isTrue();
+        assertThat(position(cursors.get(0)).messageId()).isEqualTo(11);
+        assertThat(cursors.get(1).getHasMore()).isFalse();
+        assertThat(position(cursors.get(1)).messageId()).isEqualTo(11);
+    }
+
+    @Test
+    void cursorStaysBehindRecentReadCursorChanges() {
+        when(conversationReadRepository.findChangedSince(USER_ID, 4L)).thenReturn(List.of(
+                read(5, null), read(6, minutesAgo(5)), read(8, minutesAgo(0))));
+
+        List<SyncEvent> events = sync(new ConversationSyncService.Position(0, 4, 0));
+
+        assertThat(events.stream().filter(event -> event.getType().equals("read"))).hasSize(3);
+        assertThat(position(events.get(events.size() - 1)).readSeq()).isEqualTo(6);
+    }
+
+    private List<SyncEvent> sync(ConversationSyncService.Position from) {
+        List<SyncEvent> events = new ArrayList<>();
+        syncService.sync(user, from, events::add);
+        return events;
+    }
+
+    private static List<Long> messageIds(List<SyncEvent> events) {
+        return events.stream().filter(event -> event.getType().equals("message"))
+                .map(event -> event.getMessage().getId()).toList();
+    }
+
+    private static ConversationSyncService.Position position(SyncEvent event) {
+        assertThat(event.getType()).isEqualTo("cursor");
+        return ConversationSyncService.Position.decode(event.getCursor());
+    }
+
+    private static Date minutesAgo(int minutes) {
+        return new Date(System.currentTimeMillis() - Duration.ofMinutes(minutes).toMillis());
+    }
+
+    private Message message(long id, Date sentAt) {
+        Conversation conversation = new Conversation();
+        conversation.setId(CONVERSATION_ID);
+        Message message = new Message("m" + id, user, conversation);
+        message.setId(id);
+        message.setSentAt(sentAt);
+        return message;
+    }
+
+    private static ConversationRead read(long readSeq, Date readAt) {
+        ConversationRead read = new ConversationRead(2L, CONVERSATION_ID, 100 + readSeq);
+        ReflectionTestUtils.setField(read, "readSeq", readSeq);
+        ReflectionTestUtils.setField(read, "readAt", readAt);
+        return read;
+    }
+}
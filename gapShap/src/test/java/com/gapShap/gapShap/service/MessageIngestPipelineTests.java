@@ -0,0 +1,99 @@
+package com.gapShap.gapShap.service;
+
+import com.gapShap.gapShap.IntegrationTest;
+import com.gapShap.gapShap.config.ChatProperties;
+import com.gapShap.gapShap.model.User;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalStateException;
+import static org.mockito.Mockito.mock;
+
+// The application runs with direct ingest, so these tests start a batched pipeline of their own
+class MessageIngestPipelineTests extends IntegrationTest {
+
+    @Autowired
+    private ChatService chatService;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    private MessageIngestPipeline pipeline;
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        if (pipeline != null) {
+            pipeline.stop();
+        }
+    }
+
+    @Test
+    void persistsConcurrentSendsInIdOrder() throws Exception {
+        User alice = newUser("Alice");
+        User bob = newUser("Bob");
+        long conversationId = chatService.getOrCreateDirectConversation(alice, bob).getId();
+        pipeline = batchedPipeline(ChatProperties.ClusterRelayType.NONE, jdbcTemplate);
+        pipeline.start();
+
+        List<Long> completed = Collections.synchronizedList(new ArrayList<>());
+        List<Future<MessageIngestPipeline.PendingMessage>> sends = new ArrayList<>();
+        ExecutorService senders = Executors.newFixedThreadPool(8);
+        try {
+            for (int i = 0; i < 200; i++) {
+                User sender = i % 2 == 0 ? alice : bob;
+                sends.add(senders.submit(() -> {
+                    MessageIngestPipeline.PendingMessage message =
+                            pipeline.submit(conversationId, sender.getId(), "batched");
+                    message.persisted().thenRun(() -> completed.add(message.id()));
+                    return message;
+                }));
+            }
+            for (Future<MessageIngestPipeline.PendingMessage> send : sends) {
+                send.get().persisted().get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            senders.shutdown();
+        }
+
+        List<Long> persisted = jdbcTemplate.queryForList(
+                "SELECT id FROM messages WHERE conversation_id = ? ORDER BY id", Long.class, conversationId);
+        assertThat(persisted).hasSize(200).isSorted();
+        // A batch never commits before one holding lower ids
+        assertThat(completed).hasSize(200).isSorted();
+        assertThat(jdbcTemplate.queryForObject("SELECT last_message_id FROM conversations WHERE id = ?",
+                Long.class, conversationId)).isEqualTo(persisted.get(persisted.size() - 1));
+    }
+
+    @Test
+    void refusesToStartOnACluster() {
+        pipeline = batchedPipeline(ChatProperties.ClusterRelayType.POSTGRES, mock(JdbcTemplate.class));
+
+        assertThatIllegalStateException().isThrownBy(pipeline::start);
+        assertThatIllegalStateException().isThrownBy(() -> pipeline.submit(1L, 1L, "not running"));
+    }
+
+    private MessageIngestPipeline batchedPipeline(ChatProperties.ClusterRelayType relay, JdbcTemplate jdbc) {
+        ChatProperties chatProperties = new ChatProperties();
+        chatProperties.getIngest().setMode(ChatProperties.IngestMode.BATCHED);
+        chatProperties.getIngest().setBatchSize(16);
+        chatProperties.getIngest().setFlushIntervalMs(2);
+        chatProperties.getCluster().setRelay(relay);
+        return new MessageIngestPipeline(chatProperties, jdbc, transactionTemplate, new SimpleMeterRegistry());
+    }
+}
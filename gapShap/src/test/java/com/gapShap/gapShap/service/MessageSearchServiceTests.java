@@ -0,0 +1,120 @@
+package com.gapShap.gapShap.service;
+
+import com.gapShap.gapShap.IntegrationTest;
+import com.gapShap.gapShap.config.ChatProperties;
+import com.gapShap.gapShap.dto.CursorPage;
+import com.gapShap.gapShap.dto.MessageSearchHit;
+import com.gapShap.gapShap.model.User;
+import com.gapShap.gapShap.repository.MessageRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+class MessageSearchServiceTests extends IntegrationTest {
+
+    @Autowired
+    private MessageSearchService searchService;
+
+    @Autowired
+    private MessageRepository messageRepository;
+
+    @Autowired
+    private ChatService chatService;
+
+    @Test
+    void pagesThroughTheUsersMatchesNewestFirst() {
+        String word = word();
+        Fixture fixture = fixture(word);
+
+        List<Long> found = searchAll(searchService, fixture.alice(), word, 2);
+
+        assertThat(found).containsExactlyElementsOf(fixture.newestFirst());
+    }
+
+    @Test
+    void commonTermsSearchedPerConversationGiveTheSamePages() {
+        String word = word();
+        Fixture fixture = fixture(word);
+        // Fewer matches allowed than there are, so the search goes newest first per conversation
+        ChatProperties chatProperties = new ChatProperties();
+        chatProperties.getSearch().setScanLimit(2);
+        MessageSearchService perConversation = new MessageSearchService(messageRepository, chatProperties,
+                new SimpleMeterRegistry());
+
+        List<Long> found = searchAll(perConversation, fixture.alice(), word, 2);
+
+        assertThat(found).containsExactlyElementsOf(fixture.newestFirst());
+    }
+
+    @Test
+    void highlightsTheMatchingWords() {
+        String word = word();
+        User alice = newUser("Alice");
+        long conversationId = chatService.getOrCreateDirectConversation(alice, newUser("Bob")).getId();
+        String content = "Did you see " + word.toUpperCase() + " yesterday?";
+        chatService.sendMessage(alice, conversationId, content);
+
+        MessageSearchHit hit = searchService.search(alice, word, null, 10).getItems().get(0);
+
+        assertThat(hit.getMessage().getContent()).isEqualTo(content);
+        assertThat(hit.getHighlights()).hasSize(1);
+        int[] range = hit.getHighlights().get(0);
+        assertThat(content.substring(range[0], range[1])).isEqualTo(word.toUpperCase());
+    }
+
+    @Test
+    void rejectsInvalidQueriesAndCursors() {
+        User alice = newUser("Alice");
+
+        assertThatIllegalArgumentException().isThrownBy(() -> searchService.search(alice, " ", null, 10));
+        assertThatIllegalArgumentException().isThrownBy(() -> searchService.search(alice, "x".repeat(201), null, 10));
+        assertThatIllegalArgumentException().isThrownBy(() -> searchService.search(alice, "hello", "12", 10));
+        assertThatIllegalArgumentException().isThrownBy(() -> searchService.search(alice, "hello", "a_b", 10));
+    }
+
+    private record Fixture(User alice, List<Long> newestFirst) {
+    }
+
+    // Matches in two of Alice's conversations, around messages that don't match and one she can't see
+    private Fixture fixture(String word) {
+        User alice = newUser("Alice");
+        User bob = newUser("Bob");
+        User carol = newUser("Carol");
+        long withBob = chatService.getOrCreateDirectConversation(alice, bob).getId();
+        long withCarol = chatService.getOrCreateDirectConversation(alice, carol).getId();
+        long elsewhere = chatService.getOrCreateDirectConversation(bob, carol).getId();
+        List<Long> matches = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            long conversationId = i % 2 == 0 ? withBob : withCarol;
+            User sender = i % 2 == 0 ? bob : carol;
+            matches.add(0, chatService.sendMessage(sender, conversationId, "about " + word + " " + i).getId());
+            chatService.sendMessage(alice, conversationId, "unrelated " + i);
+        }
+        chatService.sendMessage(bob, elsewhere, "also " + word);
+        return new Fixture(alice, matches);
+    }
+
+    private static List<Long> searchAll(MessageSearchService service, User user, String query, int limit) {
+        List<Long> found = new ArrayList<>();
+        String cursor = null;
+        do {
+            CursorPage<MessageSearchHit> page = service.search(user, query, cursor, limit);
+            assertThat(page.getItems()).hasSizeLessThanOrEqualTo(limit);
+            page.getItems().forEach(hit -> found.add(hit.getMessage().getId()));
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        return found;
+    }
+
+    // Letters only, so the search parser sees one word no other message contains
+    private static String word() {
+        return "w" + UUID.randomUUID().toString().replace("-", "").replaceAll("[0-9]", "q").substring(0, 12);
+    }
+}
@@ -0,0 +1,191 @@
+package com.gapShap.gapShap.service;
+
+import com.gapShap.gapShap.cluster.ClusterUserRegistry;
+import com.gapShap.gapShap.cluster.UserMessageDispatcher;
+import com.gapShap.gapShap.config.ChatProperties;
+import com.gapShap.gapShap.dto.ConversationActivity;
+import com.gapShap.gapShap.model.User;
+import com.gapShap.gapShap.repository.ConversationRepository;
+import com.gapShap.gapShap.repository.projection.MemberRow;
+import com.gapShap.gapShap.repository.projection.UserConversationRow;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.messaging.SessionConnectedEvent;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import java.security.Principal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+class PresenceServiceTests {
+
+    private static final long SMALL = 1L;
+    private static final long LARGE = 2L;
+
+    private final ChatService chatService = mock(ChatService.class);
+    private final ClusterUserRegistry userRegistry = mock(ClusterUserRegistry.class);
+    private final UserMessageDispatcher messageDispatcher = mock(UserMessageDispatcher.class);
+    private final ConversationRepository conversationRepository = mock(ConversationRepository.class);
+    private final ChatProperties chatProperties = new ChatProperties();
+    private final User alice = user(10, "alice");
+    private final User bob = user(20, "bob");
+    private ConversationMembershipCache membershipCache;
+    private PresenceService presenceService;
+
+    @BeforeEach
+    void setUp() {
+        when(conversationRepository.findMembers(SMALL)).thenReturn(members(10, 20));
+        when(conversationRepository.findMembers(LARGE)).thenReturn(members(10, 20, 30));
+        membershipCache = new ConversationMembershipCache(conversationRepository, chatProperties);
+        when(chatService.requireMember(any(), any())).thenAnswer(invocation ->
+                membershipCache.get(invocation.<Long>getArgument(0)));
+        presenceService = service();
+    }
+
+    @Test
+    void typingNoticesBecomeOneFramePerTick() {
+        for (int i = 0; i < 5; i++) {
+            presenceService.typing(alice, SMALL, true);
+        }
+        presenceService.typing(bob, SMALL, true);
+
+        presenceService.tick();
+
+        ConversationActivity activity = sentToUsers();
+        assertThat(activity.getConversationId()).isEqualTo(SMALL);
+        assertThat(activity.getTyping()).containsExactlyInAnyOrder(10L, 20L);
+        // Still typing; nothing new to say
+        presenceService.typing(alice, SMALL, true);
+        presenceService.tick();
+        verify(messageDispatcher, times(1)).sendToUsers(anyCollection(), anyString(), any());
+    }
+
+    @Test
+    void announcesWhoStoppedTyping() {
+        presenceService.typing(alice, SMALL, true);
+        presenceService.tick();
+
+        presenceService.typing(alice, SMALL, false);
+        presenceService.tick();
+
+        ArgumentCaptor<Object> frames = ArgumentCaptor.forClass(Object.class);
+        verify(messageDispatcher, times(2)).sendToUsers(anyCollection(), eq(PresenceService.ACTIVITY_QUEUE),
+                frames.capture());
+        ConversationActivity stopped = (ConversationActivity) frames.getAllValues().get(1);
+        assertThat(stopped.getStoppedTyping()).containsExactly(10L);
+        assertThat(stopped.getTyping()).isEmpty();
+    }
+
+    @Test
+    void typingThatStartsAndStopsWithinATickSendsNothing() {
+        presenceService.typing(alice, SMALL, true);
+        presenceService.typing(alice, SMALL, false);
+
+        presenceService.tick();
+
+        verifyNoInteractions(messageDispatcher);
+    }
+
+    @Test
+    void typingLapsesWithoutRefresh() throws InterruptedException {
+        chatProperties.getPresence().setTypingTimeout(Duration.ofMillis(1));
+        presenceService = service();
+        presenceService.typing(alice, SMALL, true);
+        Thread.sleep(5);
+
+        presenceService.tick();
+
+        // Lapsed before it was ever announced
+        verifyNoInteractions(messageDispatcher);
+        assertThat(presenceService.currentActivity(SMALL, bob).getTyping()).isEmpty();
+    }
+
+    @Test
+    void largeConversationsGetTheirActivityTopic() {
+        presenceService.typing(alice, LARGE, true);
+
+        presenceService.tick();
+
+        verify(messageDispatcher).sendToTopic(eq("/topic/conversation." + LARGE + ".activity"), any(),
+                eq(List.of("auth|10", "auth|20", "auth|30")));
+        verify(messageDispatcher, never()).sendToUsers(anyCollection(), anyString(), any());
+    }
+
+    @Test
+    void connectingAnnouncesTheUserOnlineInTheirConversations() {
+        when(userRegistry.isLocal("auth|10")).thenReturn(true);
+        when(conversationRepository.findConversationsOfUsers(any())).thenReturn(List.of(
+                new UserConversationRow(SMALL, 10L, "auth|10")));
+
+        presenceService.onSessionConnected(new SessionConnectedEvent(this, frame(), principal("auth|10")));
+        presenceService.onSessionConnected(new SessionConnectedEvent(this, frame(), principal("auth|10")));
+        presenceService.tick();
+
+        assertThat(sentToUsers().getOnline()).containsExactly(10L);
+        verify(conversationRepository, times(1)).findConversationsOfUsers(any());
+    }
+
+    @Test
+    void connectingAndDroppingWithinATickSendsNothing() {
+        presenceService.onSessionConnected(new SessionConnectedEvent(this, frame(), principal("auth|10")));
+        presenceService.onSessionDisconnect(new SessionDisconnectEvent(this, frame(), "s1", CloseStatus.NORMAL,
+                principal("auth|10")));
+
+        presenceService.tick();
+
+        verifyNoInteractions(messageDispatcher);
+        verify(conversationRepository, never()).findConversationsOfUsers(any());
+    }
+
+    private PresenceService service() {
+        return new PresenceService(chatService, userRegistry, messageDispatcher, membershipCache,
+                conversationRepository, chatProperties, new SimpleMeterRegistry());
+    }
+
+    private ConversationActivity sentToUsers() {
+        ArgumentCaptor<Object> frame = ArgumentCaptor.forClass(Object.class);
+        verify(messageDispatcher).sendToUsers(eq(List.of("auth|10", "auth|20")), eq(PresenceService.ACTIVITY_QUEUE),
+                frame.capture());
+        return (ConversationActivity) frame.getValue();
+    }
+
+    private static Message<byte[]> frame() {
+        return MessageBuilder.withPayload(new byte[0]).build();
+    }
+
+    private static Principal principal(String name) {
+        return () -> name;
+    }
+
+    private static User user(long id, String name) {
+        User user = new User("auth|" + id, name, name + "@example.com", null);
+        user.setId(id);
+        return user;
+    }
+
+    private static List<MemberRow> members(long... userIds) {
+        List<MemberRow> members = new ArrayList<>();
+        for (long userId : userIds) {
+            members.add(new MemberRow(userId, "auth|" + userId));
+        }
+        return members;
+    }
+}
@@ -0,0 +1,171 @@
+package com.gapShap.gapShap.service;
+
+import com.gapShap.gapShap.cluster.ClusterEnvelope;
+import com.gapShap.gapShap.cluster.ClusterRelay;
+import com.gapShap.gapShap.cluster.ClusterUserRegistry;
+import com.gapShap.gapShap.cluster.LoopbackClusterRelay;
+import com.gapShap.gapShap.config.ChatProperties;
+import com.gapShap.gapShap.dto.MessageDTO;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RecentMessageCacheTests {
+
+    private static final long CONVERSATION_ID = 7L;
+    private static final long WAIT_MILLIS = 5_000;
+
+    private final ChatProperties chatProperties = new ChatProperties();
+
+    @Test
+    void servesTheNewestMessagesOfAFilledWindow() {
+        RecentMessageCache cache = cache(3);
+        cache.fill(CONVERSATION_ID, cache.stamp(CONVERSATION_ID), newestFirst(3, 2, 1), true);
+
+        assertThat(ids(cache.latest(CONVERSATION_ID, 2))).containsExactly(3L, 2L);
+        // All of the conversation is cached, so asking for more is still answered
+        assertThat(ids(cache.latest(CONVERSATION_ID, 10))).containsExactly(3L, 2L, 1L);
+        assertThat(cache.last(CONVERSATION_ID).getId()).isEqualTo(3L);
+    }
+
+    @Test
+    void cannotAnswerForMoreThanAnIncompleteWindowHolds() {
+        RecentMessageCache cache = cache(3);
+        cache.fill(CONVERSATION_ID, cache.stamp(CONVERSATION_ID), newestFirst(5, 4, 3, 2), true);
+
+        assertThat(ids(cache.latest(CONVERSATION_ID, 3))).containsExactly(5L, 4L, 3L);
+        assertThat(cache.latest(CONVERSATION_ID, 4)).isNull();
+        assertThat(cache.latest(CONVERSATION_ID + 1, 1)).isNull();
+    }
+
+    @Test
+    void appendsKeepTheWindowSortedUniqueAndBounded() {
+        RecentMessageCache cache = cache(3);
+        cache.fill(CONVERSATION_ID, cache.stamp(CONVERSATION_ID), newestFirst(3, 2, 1), true);
+
+        cache.append(message(5));
+        cache.append(message(4));
+        cache.append(message(4));
+        // Older than everything kept
+        cache.append(message(0));
+
+        assertThat(ids(cache.latest(CONVERSATION_ID, 3))).containsExactly(5L, 4L, 3L);
+        // Messages 1 and 2 were pushed out, so the window no longer holds the whole conversation
+        assertThat(cache.latest(CONVERSATION_ID, 4)).isNull();
+    }
+
+    @Test
+    void handsOutCopies() {
+        RecentMessageCache cache = cache(3);
+        MessageDTO filled = message(1);
+        cache.fill(CONVERSATION_ID, cache.stamp(CONVERSATION_ID), List.of(filled), true);
+
+        filled.setContent("changed after fill");
+        cache.last(CONVERSATION_ID).setContent("changed by a caller");
+        cache.last(CONVERSATION_ID).setRead(true);
+
+        MessageDTO cached = cache.last(CONVERSATION_ID);
+        assertThat(cached.getContent()).isEqualTo("m1");
+        assertThat(cached.isRead()).isFalse();
+    }
+
+    @Test
+    void fillRacingWithAnAppendIsNotStored() {
+        RecentMessageCache cache = cache(3);
+        long stamp = cache.stamp(CONVERSATION_ID);
+        // Committed after the database read the fill is made from
+        cache.append(message(2));
+
+        cache.fill(CONVERSATION_ID, stamp, newestFirst(1), true);
+
+        assertThat(cache.last(CONVERSATION_ID)).isNull();
+    }
+
+    @Test
+    void evictAndMaxAgeDropTheWindow() throws InterruptedException {
+        RecentMessageCache cache = cache(3);
+        cache.fill(CONVERSATION_ID, cache.stamp(CONVERSATION_ID), newestFirst(1), true);
+        cache.evict(CONVERSATION_ID);
+        assertThat(cache.last(CONVERSATION_ID)).isNull();
+
+        chatProperties.getRecentMessages().setMaxAge(Duration.ofMillis(1));
+        RecentMessageCache aging = cache(3);
+        aging.fill(CONVERSATION_ID, aging.stamp(CONVERSATION_ID), newestFirst(1), true);
+        Thread.sleep(5);
+        assertThat(aging.last(CONVERSATION_ID)).isNull();
+    }
+
+    @Test
+    void changesOnOtherNodesDropTheWindow() throws InterruptedException {
+        LoopbackClusterRelay relay = new LoopbackClusterRelay("recent-" + UUID.randomUUID());
+        chatProperties.getCluster().setNodeId("this");
+        RecentMessageCache cache = cache(3, relay);
+        // Handlers run in the order they subscribed, so this one hears of an envelope after the cache
+        LinkedBlockingQueue<ClusterEnvelope> handled = new LinkedBlockingQueue<>();
+        relay.subscribe(handled::add);
+        cache.fill(CONVERSATION_ID, cache.stamp(CONVERSATION_ID), newestFirst(1), true);
+
+        relay.publish(changed("this"));
+        assertThat(handled.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS)).isNotNull();
+        assertThat(cache.last(CONVERSATION_ID)).isNotNull();
+
+        relay.publish(changed("other"));
+        assertThat(handled.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS)).isNotNull();
+        assertThat(cache.last(CONVERSATION_ID)).isNull();
+    }
+
+    private static ClusterEnvelope changed(String originNode) {
+        return new ClusterEnvelope(ClusterEnvelope.Type.CHANGED, originNode, List.of(), null,
+                String.valueOf(CONVERSATION_ID));
+    }
+
+    private RecentMessageCache cache(int capacity) {
+        return cache(capacity, null);
+    }
+
+    private RecentMessageCache cache(int capacity, ClusterRelay clusterRelay) {
+        chatProperties.getRecentMessages().setMessagesPerConversation(capacity);
+        StaticListableBeanFactory beanFactory = new StaticListableBeanFactory();
+        if (clusterRelay != null) {
+            beanFactory.addBean("clusterRelay", clusterRelay);
+        }
+        ObjectProvider<ClusterRelay> relay = beanFactory.getBeanProvider(ClusterRelay.class);
+        RecentMessageCache cache = new RecentMessageCache(new ClusterUserRegistry(chatProperties, relay), relay,
+                chatProperties, new SimpleMeterRegistry());
+        cache.start();
+        return cache;
+    }
+
+    private static List<MessageDTO> newestFirst(long... ids) {
+        List<MessageDTO> messages = new ArrayList<>();
+        for (long id : ids) {
+            messages.add(message(id));
+        }
+        return messages;
+    }
+
+    // Sent one second apart, in id order
+    private static MessageDTO message(long id) {
+        MessageDTO message = new MessageDTO();
+        message.setId(id);
+        message.setContent("m" + id);
+        message.setSenderId(1L);
+        message.setConversationId(CONVERSATION_ID);
+        message.setSentAt(1_000_000L + id * 1_000);
+        return message;
+    }
+
+    private static List<Long> ids(List<MessageDTO> messages) {
+        return messages.stream().map(MessageDTO::getId).toList();
+    }
+}
@@ -0,0 +1,82 @@
+package com.gapShap.gapShap.service;
+
+import com.gapShap.gapShap.config.ChatProperties;
+import com.gapShap.gapShap.dto.MessageDTO;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+class SendDeduplicatorTests {
+
+    private SimpleMeterRegistry meterRegistry;
+    private SendDeduplicator deduplicator;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        deduplicator = new SendDeduplicator(new ChatProperties(), meterRegistry);
+    }
+
+    @Test
+    void firstAttemptIsNew() {
+        assertThat(deduplicator.claim(1L, "c-1", new CompletableFuture<>())).isNull();
+        assertThat(duplicates()).isZero();
+    }
+
+    @Test
+    void retryGetsTheFirstAttemptsOutcome() {
+        CompletableFuture<MessageDTO> first = new CompletableFuture<>();
+        deduplicator.claim(1L, "c-1", first);
+
+        CompletableFuture<MessageDTO> earlier = deduplicator.claim(1L, "c-1", new CompletableFuture<>());
+        assertThat(earlier).isSameAs(first);
+
+        MessageDTO stored = message(42L);
+        first.complete(stored);
+        assertThat(deduplicator.claim(1L, "c-1", new CompletableFuture<>()).join()).isSameAs(stored);
+        assertThat(duplicates()).isEqualTo(2);
+    }
+
+    @Test
+    void idsAreScopedPerSender() {
+        deduplicator.claim(1L, "c-1", new CompletableFuture<>());
+
+        assertThat(deduplicator.claim(2L, "c-1", new CompletableFuture<>())).isNull();
+    }
+
+    @Test
+    void failedAttemptCanBeRetried() {
+        CompletableFuture<MessageDTO> first = new CompletableFuture<>();
+        deduplicator.claim(1L, "c-1", first);
+        first.completeExceptionally(new IllegalStateException("Message queue is full"));
+
+        CompletableFuture<MessageDTO> retry = new CompletableFuture<>();
+        assertThat(deduplicator.claim(1L, "c-1", retry)).isNull();
+        retry.complete(message(43L));
+        assertThat(deduplicator.claim(1L, "c-1", new CompletableFuture<>())).isSameAs(retry);
+    }
+
+    @Test
+    void rejectsEmptyAndOverlongIds() {
+        assertThatIllegalArgumentException()
+                .isThrownBy(() -> deduplicator.claim(1L, "", new CompletableFuture<>()));
+        assertThatIllegalArgumentException()
+                .isThrownBy(() -> deduplicator.claim(1L, "x".repeat(65), new CompletableFuture<>()));
+        assertThat(deduplicator.claim(1L, "x".repeat(64), new CompletableFuture<>())).isNull();
+    }
+
+    private double duplicates() {
+        return meterRegistry.get("gapshap.chat.send.duplicates").counter().count();
+    }
+
+    private static MessageDTO message(long id) {
+        MessageDTO message = new MessageDTO();
+        message.setId(id);
+        return message;
+    }
+}
@@ -0,0 +1,89 @@
+package com.gapShap.gapShap.service;
+
+import com.gapShap.gapShap.cluster.ClusterRelay;
+import com.gapShap.gapShap.cluster.ClusterUserRegistry;
+import com.gapShap.gapShap.cluster.LoopbackClusterRelay;
+import com.gapShap.gapShap.config.ChatProperties;
+import com.gapShap.gapShap.model.User;
+import com.gapShap.gapShap.repository.UserRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Two nodes in one JVM, joined by the loopback relay and sharing one user table
+class UserServiceClusterTests {
+
+    private static final String AUTH_ID = "auth0|alice";
+    private static final long WAIT_MILLIS = 5_000;
+
+    private final String channel = "users-" + UUID.randomUUID();
+    private final UserRepository userRepository = mock(UserRepository.class);
+    private final UserService first = node("first");
+    private final UserService second = node("second");
+
+    @Test
+    void resolvesAUserOnceAndServesItFromTheCache() {
+        when(userRepository.findByAuthId(AUTH_ID)).thenReturn(Optional.of(user("Alice")));
+
+        User resolved = first.findUserByAuthId(AUTH_ID).orElseThrow();
+
+        assertThat(first.findUserByAuthId(AUTH_ID)).containsSame(resolved);
+        verify(userRepository, times(1)).findByAuthId(AUTH_ID);
+    }
+
+    @Test
+    void doesNotRememberUnknownUsers() {
+        when(userRepository.findByAuthId(AUTH_ID)).thenReturn(Optional.empty(), Optional.of(user("Alice")));
+
+        assertThat(first.findUserByAuthId(AUTH_ID)).isEmpty();
+        // Signed up in the meantime
+        assertThat(first.findUserByAuthId(AUTH_ID)).isPresent();
+    }
+
+    @Test
+    void profileChangesEvictTheUserOnOtherNodes() throws InterruptedException {
+        when(userRepository.findByAuthId(AUTH_ID)).thenReturn(Optional.of(user("Alice")));
+        first.findUserByAuthId(AUTH_ID);
+        second.findUserByAuthId(AUTH_ID);
+        User renamed = user("Alice Smith");
+        when(userRepository.upsertByAuthId(AUTH_ID, "Alice Smith", "alice@example.com", null)).thenReturn(renamed);
+        when(userRepository.findByAuthId(AUTH_ID)).thenReturn(Optional.of(renamed));
+
+        assertThat(first.saveOrUpdateUser(AUTH_ID, "Alice Smith", "alice@example.com", null)).isSameAs(renamed);
+
+        // The node that made the change has the new profile right away, the other once the notice arrives
+        assertThat(first.findUserByAuthId(AUTH_ID)).containsSame(renamed);
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (!second.findUserByAuthId(AUTH_ID).orElseThrow().getName().equals("Alice Smith")) {
+            assertThat(System.currentTimeMillis()).isLessThan(deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private UserService node(String nodeId) {
+        ChatProperties chatProperties = new ChatProperties();
+        chatProperties.getCluster().setNodeId(nodeId);
+        StaticListableBeanFactory beanFactory = new StaticListableBeanFactory();
+        beanFactory.addBean("clusterRelay", new LoopbackClusterRelay(channel));
+        ObjectProvider<ClusterRelay> relay = beanFactory.getBeanProvider(ClusterRelay.class);
+        UserService userService = new UserService(userRepository, mock(ConversationVersions.class),
+                new ClusterUserRegistry(chatProperties, relay), relay, chatProperties);
+        userService.start();
+        return userService;
+    }
+
+    private static User user(String name) {
+        User user = new User(AUTH_ID, name, "alice@example.com", null);
+        user.setId(1L);
+        return user;
+    }
+}
@@ -0,0 +1,147 @@
+package com.gapShap.gapShap.service;
+
+import com.gapShap.gapShap.IntegrationTest;
+import com.gapShap.gapShap.dto.CursorPage;
+import com.gapShap.gapShap.metrics.StatementCounter;
+import com.gapShap.gapShap.model.User;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+class UserServiceTests extends IntegrationTest {
+
+    @Autowired
+    private StatementCounter statementCounter;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    void unchangedLoginsCostNoStatement() {
+        User user = newUser("Alice");
+
+        try (StatementCounter.Scope scope = statementCounter.open()) {
+            User again = userService.saveOrUpdateUser(user.getAuthId(), "Alice", user.getEmail(), null);
+            assertThat(again.getId()).isEqualTo(user.getId());
+            assertThat(scope.count()).isZero();
+        }
+    }
+
+    @Test
+    void changedClaimsUpdateTheSameUser() {
+        User user = newUser("Alice");
+
+        User renamed = userService.saveOrUpdateUser(user.getAuthId(), "Alice Smith", user.getEmail(),
+                "https://example.com/alice.png");
+
+        assertThat(renamed.getId()).isEqualTo(user.getId());
+        assertThat(userService.findUserByAuthId(user.getAuthId())).get()
+                .extracting(User::getName, User::getPictureUrl)
+                .containsExactly("Alice Smith", "https://example.com/alice.png");
+        assertThat(jdbcTemplate.queryForObject("SELECT name FROM app_users WHERE id = ?", String.class,
+                user.getId())).isEqualTo("Alice Smith");
+    }
+
+    @Test
+    void concurrentFirstLoginsCreateOneUser() throws Exception {
+        String authId = "test|" + UUID.randomUUID();
+        ExecutorService logins = Executors.newFixedThreadPool(8);
+        List<Future<User>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < 8; i++) {
+                results.add(logins.submit(
+                        () -> userService.saveOrUpdateUser(authId, "Alice", "alice@example.com", null)));
+            }
+            Set<Long> ids = new HashSet<>();
+            for (Future<User> result : results) {
+                ids.add(result.get(10, TimeUnit.SECONDS).getId());
+            }
+            assertThat(ids).hasSize(1);
+        } finally {
+            logins.shutdown();
+        }
+        assertThat(jdbcTemplate.queryForObject("SELECT count(*) FROM app_users WHERE auth_id = ?", Integer.class,
+                authId)).isEqualTo(1);
+    }
+
+    @Test
+    void searchPagesThroughEveryMatchOnce() {
+        String tag = tag();
+        User viewer = newUser(tag + " viewer");
+        // Names whose lowercase differs between Java and a database with the C locale, and ties on name
+        List<User> matches = new ArrayList<>();
+        for (String name : List.of("Émile", "émile", "ÉMILE", "Zoë", "zoë", "İlker", "anna", "Anna", "anna")) {
+            matches.add(newUser(tag + " " + name));
+        }
+
+        List<Long> seen = new ArrayList<>();
+        String cursor = null;
+        do {
+            CursorPage<User> page = userService.searchUsers(tag, viewer.getId(), cursor, 2);
+            assertThat(page.getItems()).hasSizeLessThanOrEqualTo(2);
+            page.getItems().forEach(user -> seen.add(user.getId()));
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+
+        assertThat(seen).containsExactlyInAnyOrderElementsOf(matches.stream().map(User::getId).toList());
+    }
+
+    @Test
+    void searchRanksNamePrefixesFirst() {
+        String tag = tag();
+        User viewer = newUser("viewer");
+        User inEmailOnly = userService.saveOrUpdateUser("test|" + UUID.randomUUID(), "Someone",
+                tag + "@example.com", null);
+        User inMiddle = newUser("The " + tag);
+        User byName = newUser(tag + " Smith");
+
+        CursorPage<User> page = userService.searchUsers(tag.toUpperCase(), viewer.getId(), null, 10);
+
+        assertThat(page.getItems()).extracting(User::getId)
+                .containsExactly(byName.getId(), inEmailOnly.getId(), inMiddle.getId());
+        assertThat(page.getNextCursor()).isNull();
+    }
+
+    @Test
+    void directoryPagesThroughEveryUserOnce() {
+        String tag = tag();
+        User viewer = newUser(tag + " viewer");
+        List<Long> created = new ArrayList<>();
+        for (String name : List.of("Émile", "émile", "Zoë", "zoë", "anna", "Anna")) {
+            created.add(newUser(tag + " " + name).getId());
+        }
+
+        List<Long> seen = new ArrayList<>();
+        String cursor = null;
+        do {
+            CursorPage<User> page = userService.listUsers(viewer.getId(), cursor, 50);
+            page.getItems().forEach(user -> seen.add(user.getId()));
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+
+        assertThat(seen).doesNotHaveDuplicates().doesNotContain(viewer.getId()).containsAll(created);
+    }
+
+    @Test
+    void rejectsInvalidCursors() {
+        assertThatIllegalArgumentException().isThrownBy(() -> userService.listUsers(0L, "not a cursor", 10));
+    }
+
+    // Letters only, so LIKE and the trigram index see it as one word
+    private static String tag() {
+        return "t" + UUID.randomUUID().toString().replace("-", "").replaceAll("[0-9]", "x").substring(0, 12);
+    }
+}
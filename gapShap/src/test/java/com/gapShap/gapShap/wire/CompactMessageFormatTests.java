@@ -0,0 +1,110 @@
+package com.gapShap.gapShap.wire;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gapShap.gapShap.dto.MessageDTO;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CompactMessageFormatTests {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final CompactMessageFormat format = new CompactMessageFormat(objectMapper);
+
+    @Test
+    void encodesEveryFieldOfTheMessage() throws IOException {
+        MessageDTO message = message("Alice", "https://example.com/alice.png");
+        message.setContent("quotes \" and \\ and émoji 😀\nnewline");
+        message.setRead(true);
+
+        Message<?> encoded = format.encode(frame(message), new CompactMessageFormat.SenderDictionary());
+
+        JsonNode array = objectMapper.readTree((byte[]) encoded.getPayload());
+        assertThat(array.size()).isEqualTo(7);
+        assertThat(array.get(0).asLong()).isEqualTo(42L);
+        assertThat(array.get(1).asLong()).isEqualTo(7L);
+        assertThat(array.get(2).asLong()).isEqualTo(3L);
+        assertThat(array.get(3).asLong()).isEqualTo(1_700_000_000_000L);
+        assertThat(array.get(4).asText()).isEqualTo(message.getContent());
+        assertThat(array.get(5).asBoolean()).isTrue();
+        assertThat(array.get(6).get(0).asText()).isEqualTo("Alice");
+        assertThat(array.get(6).get(1).asText()).isEqualTo("https://example.com/alice.png");
+        assertThat(SimpMessageHeaderAccessor.wrap(encoded).getContentType())
+                .isEqualTo(CompactMessageFormat.CONTENT_TYPE);
+    }
+
+    @Test
+    void sendsASenderOncePerSessionUntilItChanges() throws IOException {
+        CompactMessageFormat.SenderDictionary session = new CompactMessageFormat.SenderDictionary();
+
+        assertThat(fields(format.encode(frame(message("Alice", null)), session))).isEqualTo(7);
+        assertThat(fields(format.encode(frame(message("Alice", null)), session))).isEqualTo(6);
+        assertThat(fields(format.encode(frame(message("Alice Smith", null)), session))).isEqualTo(7);
+        // Another session has its own dictionary
+        assertThat(fields(format.encode(frame(message("Alice Smith", null)),
+                new CompactMessageFormat.SenderDictionary()))).isEqualTo(7);
+    }
+
+    @Test
+    void sessionsShareOneFrameEncoding() throws IOException {
+        Message<byte[]> frame = frame(message("Alice", null));
+
+        Message<?> first = format.encode(frame, new CompactMessageFormat.SenderDictionary());
+        Message<?> second = format.encode(frame, new CompactMessageFormat.SenderDictionary());
+
+        assertThat((byte[]) second.getPayload()).isEqualTo((byte[]) first.getPayload());
+    }
+
+    @Test
+    void leavesOtherFramesAlone() {
+        Message<byte[]> activity = MessageBuilder.withPayload("{\"typing\":[1]}".getBytes()).build();
+
+        assertThat(format.encode(activity, new CompactMessageFormat.SenderDictionary())).isSameAs(activity);
+    }
+
+    @Test
+    void recognisesCompactSessionsAndMessageDestinations() {
+        assertThat(format.isRequested(MimeType.valueOf("application/vnd.gapshap.compact+json;charset=UTF-8")))
+                .isTrue();
+        assertThat(format.isRequested(MimeTypeUtils.APPLICATION_JSON)).isFalse();
+        assertThat(format.isRequested(null)).isFalse();
+
+        assertThat(format.carriesMessages("/queue/messages")).isTrue();
+        assertThat(format.carriesMessages("/topic/conversation.7")).isTrue();
+        assertThat(format.carriesMessages("/topic/conversation.7.activity")).isFalse();
+        assertThat(format.carriesMessages("/queue/activity")).isFalse();
+    }
+
+    private int fields(Message<?> encoded) throws IOException {
+        return objectMapper.readTree((byte[]) encoded.getPayload()).size();
+    }
+
+    // A chat message frame as the dispatcher hands it to the broker
+    private Message<byte[]> frame(MessageDTO message) throws IOException {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create();
+        accessor.setContentType(MimeTypeUtils.APPLICATION_JSON);
+        accessor.setHeader(CompactMessageFormat.DEFERRED_HEADER, new CompactMessageFormat.Deferred());
+        accessor.setLeaveMutable(true);
+        return MessageBuilder.createMessage(objectMapper.writeValueAsBytes(message), accessor.getMessageHeaders());
+    }
+
+    private static MessageDTO message(String senderName, String senderPicture) {
+        MessageDTO message = new MessageDTO();
+        message.setId(42L);
+        message.setConversationId(7L);
+        message.setSenderId(3L);
+        message.setSenderName(senderName);
+        message.setSenderPicture(senderPicture);
+        message.setSentAt(1_700_000_000_000L);
+        message.setContent("hello");
+        return message;
+    }
+}